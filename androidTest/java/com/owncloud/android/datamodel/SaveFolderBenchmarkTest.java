@@ -0,0 +1,225 @@
+/**
+ *   Nextcloud Android client application
+ *
+ *   Copyright (C) 2016 Nextcloud.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.datamodel;
+
+import android.accounts.Account;
+import android.content.ContentProvider;
+import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.mock.MockContentResolver;
+import android.util.Log;
+
+import com.owncloud.android.MainApp;
+import com.owncloud.android.db.ProviderMeta.ProviderTableMeta;
+import com.owncloud.android.utils.MimeType;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Instrumented benchmark timing {@link FileDataStorageManager#saveFolder(OCFile, java.util.Collection,
+ * java.util.Collection)} on a folder with 10k synthetic children, both for the first save (all inserts) and for a
+ * refresh (all updates).
+ *
+ * The queries and the inserts and updates reaching the provider are counted, to check that the stored files are
+ * looked up in bulk and not once per file. Timings are written to the log with the tag of this class; run it on a
+ * previous revision to get the figures to compare with.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class SaveFolderBenchmarkTest {
+
+    private static final String TAG = SaveFolderBenchmarkTest.class.getSimpleName();
+
+    private static final int NUMBER_OF_FILES = 10000;
+    private static final String FOLDER_PATH = "/benchmark/";
+
+    private ContentResolver mContentResolver;
+    private ContentProviderClient mProviderClient;
+    private CountingProvider mCountingProvider;
+    private Account mAccount;
+    private FileDataStorageManager mStorageManager;
+
+    @Before
+    public void setUp() {
+        mContentResolver = InstrumentationRegistry.getTargetContext().getContentResolver();
+        mAccount = new Account("benchmark@localhost", MainApp.getAccountType());
+        mStorageManager = new FileDataStorageManager(mAccount, mContentResolver);
+        deleteAccountFiles();
+
+        mProviderClient = mContentResolver.acquireContentProviderClient(MainApp.getAuthority());
+        mCountingProvider = new CountingProvider(mProviderClient.getLocalContentProvider());
+        mCountingProvider.attachInfo(InstrumentationRegistry.getTargetContext(), null);
+    }
+
+    @After
+    public void tearDown() {
+        mProviderClient.release();
+        deleteAccountFiles();
+    }
+
+    @Test
+    public void saveFolderWithTenThousandFiles() {
+        OCFile folder = new OCFile(FOLDER_PATH);
+        folder.setMimetype(MimeType.DIRECTORY);
+        folder.setParentId(mStorageManager.getFileByPath(OCFile.ROOT_PATH).getFileId());
+        mStorageManager.saveFile(folder);
+
+        List<OCFile> children = new ArrayList<>(NUMBER_OF_FILES);
+        for (int i = 0; i < NUMBER_OF_FILES; i++) {
+            OCFile child = new OCFile(FOLDER_PATH + "IMG_" + i + ".jpg");
+            child.setMimetype("image/jpeg");
+            child.setParentId(folder.getFileId());
+            child.setEtag("etag" + i);
+            child.setRemoteId(String.valueOf(i));
+            children.add(child);
+        }
+        List<OCFile> noFilesToRemove = Collections.emptyList();
+
+        MockContentResolver countingResolver = new MockContentResolver();
+        countingResolver.addProvider(MainApp.getAuthority(), mCountingProvider);
+        FileDataStorageManager countingStorageManager = new FileDataStorageManager(mAccount, countingResolver);
+
+        long start = System.currentTimeMillis();
+        countingStorageManager.saveFolder(folder, children, noFilesToRemove);
+        long insertTime = System.currentTimeMillis() - start;
+
+        // the children of the folder, then the new paths in the whole account, in chunks
+        int pathChunks = (NUMBER_OF_FILES + FileDataStorageManager.MAX_SELECTION_ARGS - 1) /
+                FileDataStorageManager.MAX_SELECTION_ARGS;
+        assertThat(mCountingProvider.mQueries, is(1 + pathChunks));
+        assertThat(mCountingProvider.mInserts, is(NUMBER_OF_FILES));
+        assertThat(mCountingProvider.mUpdates, is(1));  // metadata of the folder
+
+        for (OCFile child : children) {
+            child.setEtag(child.getEtag() + "-updated");
+        }
+        mCountingProvider.reset();
+
+        start = System.currentTimeMillis();
+        countingStorageManager.saveFolder(folder, children, noFilesToRemove);
+        long updateTime = System.currentTimeMillis() - start;
+
+        // all the children are found in the folder, nothing else is queried
+        assertThat(mCountingProvider.mQueries, is(1));
+        assertThat(mCountingProvider.mInserts, is(0));
+        assertThat(mCountingProvider.mUpdates, is(NUMBER_OF_FILES + 1));
+
+        Log.i(TAG, "saveFolder with " + NUMBER_OF_FILES + " files: insert " + insertTime + " ms, update " +
+                updateTime + " ms");
+
+        List<OCFile> stored = mStorageManager.getFolderContent(folder, false);
+        assertThat(stored.size(), is(NUMBER_OF_FILES));
+        for (OCFile file : stored) {
+            assertThat(file.getEtag().endsWith("-updated"), is(true));
+        }
+    }
+
+    private void deleteAccountFiles() {
+        mContentResolver.delete(ProviderTableMeta.CONTENT_URI, ProviderTableMeta.FILE_ACCOUNT_OWNER + "=?",
+                new String[]{mAccount.name});
+    }
+
+    /**
+     * Provider passing everything to the files provider of the app, counting the queries and the inserts and
+     * updates applied in batch.
+     */
+    private static class CountingProvider extends ContentProvider {
+
+        private final ContentProvider mProvider;
+        private int mQueries;
+        private int mInserts;
+        private int mUpdates;
+
+        CountingProvider(ContentProvider provider) {
+            mProvider = provider;
+        }
+
+        void reset() {
+            mQueries = 0;
+            mInserts = 0;
+            mUpdates = 0;
+        }
+
+        @Override
+        public boolean onCreate() {
+            return true;
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                            String sortOrder) {
+            mQueries++;
+            return mProvider.query(uri, projection, selection, selectionArgs, sortOrder);
+        }
+
+        @Override
+        public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+                throws OperationApplicationException {
+            ContentProviderResult[] results = mProvider.applyBatch(operations);
+            for (ContentProviderResult result : results) {
+                if (result.uri != null) {
+                    mInserts++;
+                } else {
+                    mUpdates++;
+                }
+            }
+            return results;
+        }
+
+        @Override
+        public String getType(Uri uri) {
+            return mProvider.getType(uri);
+        }
+
+        @Override
+        public Uri insert(Uri uri, ContentValues values) {
+            return mProvider.insert(uri, values);
+        }
+
+        @Override
+        public int delete(Uri uri, String selection, String[] selectionArgs) {
+            return mProvider.delete(uri, selection, selectionArgs);
+        }
+
+        @Override
+        public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+            return mProvider.update(uri, values, selection, selectionArgs);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ *   Nextcloud Android client application
+ *
+ *   Copyright (C) 2016 Nextcloud.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.providers;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.owncloud.android.db.ProviderMeta;
+import com.owncloud.android.db.ProviderMeta.ProviderTableMeta;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.fail;
+
+/**
+ * Instrumented test checking, through EXPLAIN QUERY PLAN, that the lookups done by
+ * {@link com.owncloud.android.datamodel.FileDataStorageManager} on the files table are served by an index and never
+ * fall back to a full scan of the table.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class FileContentProviderQueryPlanTest {
+
+    private static final String AND = "=? AND ";
+    private static final String[] ID_AND_ACCOUNT = new String[]{"1", "account"};
+    private static final String[] VALUE_AND_ACCOUNT = new String[]{"/path/", "account"};
+
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void openDatabase() {
+        Context context = InstrumentationRegistry.getTargetContext();
+
+        // accessing the provider grants the database is created or upgraded to the current version
+        Cursor c = context.getContentResolver().query(ProviderTableMeta.CONTENT_URI_SYNCED_FOLDERS,
+                null, null, null, null);
+        if (c != null) {
+            c.close();
+        }
+
+        mDb = SQLiteDatabase.openDatabase(context.getDatabasePath(ProviderMeta.DB_NAME).getPath(), null,
+                SQLiteDatabase.OPEN_READONLY);
+    }
+
+    @After
+    public void closeDatabase() {
+        if (mDb != null) {
+            mDb.close();
+        }
+    }
+
+    @Test
+    public void getFolderContentUsesIndex() {
+        assertNoFullScan(ProviderTableMeta.FILE_PARENT + "=1 AND " + ProviderTableMeta.FILE_PARENT + "=?",
+                new String[]{"1"});
+    }
+
+    @Test
+    public void getFileByPathUsesIndex() {
+        assertNoFullScan(ProviderTableMeta.FILE_PATH + AND + ProviderTableMeta.FILE_ACCOUNT_OWNER + "=?",
+                VALUE_AND_ACCOUNT);
+    }
+
+    @Test
+    public void getFileByLocalPathUsesIndex() {
+        assertNoFullScan(ProviderTableMeta.FILE_STORAGE_PATH + AND + ProviderTableMeta.FILE_ACCOUNT_OWNER + "=?",
+                VALUE_AND_ACCOUNT);
+    }
+
+    @Test
+    public void getFileByIdUsesIndex() {
+        assertNoFullScan(ProviderTableMeta._ID + AND + ProviderTableMeta.FILE_ACCOUNT_OWNER + "=?", ID_AND_ACCOUNT);
+    }
+
+    @Test
+    public void getFileByRemoteIdUsesIndex() {
+        assertNoFullScan(ProviderTableMeta.FILE_REMOTE_ID + "=?", new String[]{"00000001oc1234"});
+    }
+
+    @Test
+    public void getDescendantsUsesIndex() {
+        assertNoFullScan(ProviderTableMeta.FILE_ACCOUNT_OWNER + AND + ProviderTableMeta.FILE_PATH + " LIKE ? ",
+                new String[]{"account", "/path/%"});
+    }
+
+    @Test
+    public void resetShareFlagsInFolderUsesIndex() {
+        assertNoFullScan(ProviderTableMeta.FILE_ACCOUNT_OWNER + AND + ProviderTableMeta.FILE_PARENT + "=?",
+                new String[]{"account", "1"});
+    }
+
+    /**
+     * Fails if the query plan of a SELECT on the files table with the given selection, ordered in the default way
+     * used by {@link FileContentProvider}, contains a full scan of the table.
+     */
+    private void assertNoFullScan(String selection, String[] selectionArgs) {
+        String sql = "EXPLAIN QUERY PLAN SELECT * FROM " + ProviderTableMeta.FILE_TABLE_NAME +
+                " WHERE " + selection + " ORDER BY " + ProviderTableMeta.FILE_DEFAULT_SORT_ORDER;
+        Cursor plan = mDb.rawQuery(sql, selectionArgs);
+        try {
+            int detailIndex = plan.getColumnIndex("detail");
+            while (plan.moveToNext()) {
+                String detail = plan.getString(detailIndex);
+                if (detail.startsWith("SCAN") && detail.contains(ProviderTableMeta.FILE_TABLE_NAME) &&
+                        !detail.contains("INDEX")) {
+                    fail("Full scan of " + ProviderTableMeta.FILE_TABLE_NAME + " for selection '" + selection +
+                            "': " + detail);
+                }
+            }
+        } finally {
+            plan.close();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ *   Nextcloud Android client application
+ *
+ *   Copyright (C) 2016 Nextcloud.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.utils;
+
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.owncloud.android.datamodel.OCFile;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.Vector;
+
+import third_parties.daveKoeller.AlphanumComparator;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Instrumented microbenchmark of {@link FileStorageUtils#sortOCFilesByName(Vector)} with 50k synthetic names,
+ * against the former sort, that chunked both names with a new {@link AlphanumComparator} in every comparison.
+ *
+ * Both sorts are warmed up before being measured; the mean of the measured iterations is written to the log with
+ * the tag of this class. The test fails if both sorts do not give the same order.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class FileSortBenchmarkTest {
+
+    private static final String TAG = FileSortBenchmarkTest.class.getSimpleName();
+
+    private static final int NUMBER_OF_FILES = 50000;
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASURED_ITERATIONS = 5;
+    private static final String FOLDER_PATH = "/benchmark/";
+    private static final String[] PREFIXES = {"IMG_", "Document ", "scan-", "Report 2016-", "photo", "notes"};
+    private static final String[] EXTENSIONS = {".jpg", ".pdf", ".txt", ".odt", ".png"};
+
+    @Test
+    public void sortFiftyThousandFilesByName() {
+        Vector<OCFile> files = createFiles();
+        FileStorageUtils.mSortAscending = true;
+
+        Vector<OCFile> expected = new Vector<>(files);
+        sortWithAlphanumComparator(expected);
+        Vector<OCFile> sorted = new Vector<>(files);
+        FileStorageUtils.sortOCFilesByName(sorted);
+        for (int i = 0; i < NUMBER_OF_FILES; i++) {
+            assertThat(sorted.get(i).getRemotePath(), is(expected.get(i).getRemotePath()));
+        }
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            sortWithAlphanumComparator(new Vector<>(files));
+            FileStorageUtils.sortOCFilesByName(new Vector<>(files));
+        }
+
+        long alphanumTime = 0;
+        long sortKeyTime = 0;
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            Vector<OCFile> copy = new Vector<>(files);
+            long start = System.nanoTime();
+            sortWithAlphanumComparator(copy);
+            alphanumTime += System.nanoTime() - start;
+
+            copy = new Vector<>(files);
+            start = System.nanoTime();
+            FileStorageUtils.sortOCFilesByName(copy);
+            sortKeyTime += System.nanoTime() - start;
+        }
+
+        Log.i(TAG, "sort by name of " + NUMBER_OF_FILES + " files: AlphanumComparator " +
+                (alphanumTime / MEASURED_ITERATIONS / 1000000) + " ms/op, sort keys " +
+                (sortKeyTime / MEASURED_ITERATIONS / 1000000) + " ms/op");
+    }
+
+    /**
+     * Names mixing prefixes, numbers of different lengths and extensions, in random order, plus a few folders.
+     */
+    private Vector<OCFile> createFiles() {
+        Random random = new Random(42);
+        Vector<OCFile> files = new Vector<>(NUMBER_OF_FILES);
+        for (int i = 0; i < NUMBER_OF_FILES; i++) {
+            String prefix = PREFIXES[random.nextInt(PREFIXES.length)];
+            OCFile file;
+            if (i % 100 == 0) {
+                file = new OCFile(FOLDER_PATH + prefix + random.nextInt(1000) + OCFile.PATH_SEPARATOR);
+                file.setMimetype(MimeType.DIRECTORY);
+            } else {
+                file = new OCFile(FOLDER_PATH + prefix + random.nextInt(100000) +
+                        EXTENSIONS[random.nextInt(EXTENSIONS.length)]);
+                file.setMimetype("application/octet-stream");
+            }
+            file.setFileId(i);
+            files.add(file);
+        }
+        return files;
+    }
+
+    private static void sortWithAlphanumComparator(Vector<OCFile> files) {
+        Collections.sort(files, new Comparator<OCFile>() {
+            public int compare(OCFile o1, OCFile o2) {
+                if (o1.isFolder() && o2.isFolder()) {
+                    return new AlphanumComparator().compare(o1, o2);
+                } else if (o1.isFolder()) {
+                    return -1;
+                } else if (o2.isFolder()) {
+                    return 1;
+                }
+                return new AlphanumComparator().compare(o1, o2);
+            }
+        });
+    }
+}
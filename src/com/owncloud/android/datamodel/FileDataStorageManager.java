@@ -49,10 +49,12 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
 
@@ -67,6 +69,11 @@ public class FileDataStorageManager {
     private static final String FAILED_TO_INSERT_MSG = "Fail to insert insert file to database ";
     private static final String SENDING_TO_FILECONTENTPROVIDER_MSG = "Sending %d operations to FileContentProvider";
     private static final String EXCEPTION_MSG = "Exception in batch of operations ";
+    /** SQLite default limit of host parameters in a single statement is 999 */
+    static final int MAX_SELECTION_ARGS = 900;
+
+    /** Updates of local paths applied in every transaction when the storage folder is moved */
+    private static final int MIGRATION_BATCH_SIZE = 500;
 
     private static final String TAG = FileDataStorageManager.class.getSimpleName();
 
@@ -145,8 +152,19 @@ public class FileDataStorageManager {
 
 
     public Vector<OCFile> getFolderContent(OCFile f, boolean onlyOnDevice) {
+        return getFolderContent(f, onlyOnDevice, true);
+    }
+
+    /**
+     * @param f             Folder to read.
+     * @param onlyOnDevice  When 'true', only the files available in the device are returned, plus all the folders.
+     * @param sorted        When 'false', the natural sort of {@link OCFile} is skipped; useful for callers that
+     *                      will sort the result with a different criteria anyway.
+     * @return              Files and folders directly contained in the folder.
+     */
+    public Vector<OCFile> getFolderContent(OCFile f, boolean onlyOnDevice, boolean sorted) {
         if (f != null && f.isFolder() && f.getFileId() != -1) {
-            return getFolderContent(f.getFileId(), onlyOnDevice);
+            return getFolderContent(f.getFileId(), onlyOnDevice, sorted);
 
         } else {
             return new Vector<OCFile>();
@@ -154,6 +172,151 @@ public class FileDataStorageManager {
     }
 
 
+    /**
+     * Checks if a folder or any of its descendants is marked as favourite (kept in sync).
+     *
+     * @param folder        Folder to check.
+     * @return              'True' if 'folder' or any file or folder below it is a favourite.
+     */
+    public boolean containsFavorites(OCFile folder) {
+        Cursor c = getFilesCursor(
+                new String[]{ProviderTableMeta._ID},
+                ProviderTableMeta.FILE_ACCOUNT_OWNER + AND + ProviderTableMeta.FILE_PATH + " LIKE ? AND " +
+                        ProviderTableMeta.FILE_KEEP_IN_SYNC + "=1",
+                new String[]{mAccount.name, folder.getRemotePath() + "%"}
+        );
+        boolean found = false;
+        if (c != null) {
+            found = c.moveToFirst();
+            c.close();
+        }
+        return found;
+    }
+
+
+    /**
+     * Searches the files of the account whose name contains a text, ignoring case.
+     *
+     * The database narrows the names with a LIKE built by {@link #namePattern(String)}; since SQLite folds the case
+     * of ASCII letters only, the names found are matched again here, reading only ids and names, and the complete
+     * files are read afterwards for the page requested. Folders are not included.
+     *
+     * @param query     Text to find in the names of the files.
+     * @param offset    Number of results to skip, for paging.
+     * @param limit     Maximum number of results to return.
+     * @return          Files found, sorted by name.
+     */
+    public List<OCFile> searchFiles(String query, int offset, int limit) {
+        List<OCFile> result = new ArrayList<>();
+        if (query == null || query.length() == 0 || limit <= 0) {
+            return result;
+        }
+
+        String foldedQuery = foldCase(query);
+        List<Long> ids = new ArrayList<>();
+        Cursor c = getFilesCursor(
+                new String[]{ProviderTableMeta._ID, ProviderTableMeta.FILE_NAME},
+                ProviderTableMeta.FILE_ACCOUNT_OWNER + AND + ProviderTableMeta.FILE_CONTENT_TYPE + " != ? AND lower(" +
+                        ProviderTableMeta.FILE_NAME + ") LIKE ? ESCAPE '\\'",
+                new String[]{mAccount.name, MimeType.DIRECTORY, namePattern(foldedQuery)}
+        );
+        if (c != null) {
+            int skipped = 0;
+            while (ids.size() < limit && c.moveToNext()) {
+                if (nameMatches(c.getString(1), foldedQuery)) {
+                    if (skipped < offset) {
+                        skipped++;
+                    } else {
+                        ids.add(c.getLong(0));
+                    }
+                }
+            }
+            c.close();
+        }
+
+        Map<Long, OCFile> found = new HashMap<>();
+        for (int from = 0; from < ids.size(); from += MAX_SELECTION_ARGS) {
+            List<Long> chunk = ids.subList(from, Math.min(from + MAX_SELECTION_ARGS, ids.size()));
+            StringBuilder where = new StringBuilder(ProviderTableMeta.FILE_ACCOUNT_OWNER)
+                    .append(AND).append(ProviderTableMeta._ID).append(" IN (");
+            String[] whereArgs = new String[chunk.size() + 1];
+            whereArgs[0] = mAccount.name;
+            for (int i = 0; i < chunk.size(); i++) {
+                where.append(i == 0 ? "?" : ",?");
+                whereArgs[i + 1] = String.valueOf(chunk.get(i));
+            }
+            where.append(')');
+
+            c = getFilesCursor(null, where.toString(), whereArgs);
+            if (c != null) {
+                while (c.moveToNext()) {
+                    OCFile file = createFileInstance(c);
+                    found.put(file.getFileId(), file);
+                }
+                c.close();
+            }
+        }
+
+        // in the order of the names
+        for (Long id : ids) {
+            OCFile file = found.get(id);
+            if (file != null) {
+                result.add(file);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param fileName      Name of a file.
+     * @param foldedQuery   Text searched, already passed through {@link #foldCase(String)}.
+     * @return              'True' if the name contains the text, ignoring case.
+     */
+    static boolean nameMatches(String fileName, String foldedQuery) {
+        return fileName != null && foldCase(fileName).contains(foldedQuery);
+    }
+
+    /**
+     * Pattern for a LIKE on the lower case name, letting through at least every name accepted by
+     * {@link #nameMatches(String, String)}. SQLite lower() changes only ASCII letters, so any other character of the
+     * text matches any sequence, as do 'i' and 'k', which are also the lower case of 'İ' and of the Kelvin sign.
+     *
+     * @param foldedQuery   Text searched, already passed through {@link #foldCase(String)}.
+     * @return              Pattern to use with ESCAPE '\'.
+     */
+    static String namePattern(String foldedQuery) {
+        StringBuilder pattern = new StringBuilder("%");
+        boolean wildcard = true;
+        for (int i = 0; i < foldedQuery.length(); i++) {
+            char ch = foldedQuery.charAt(i);
+            if (ch >= 0x80 || ch == 'i' || ch == 'k') {
+                if (!wildcard) {
+                    pattern.append('%');
+                    wildcard = true;
+                }
+            } else {
+                if (ch == '%' || ch == '_' || ch == '\\') {
+                    pattern.append('\\');
+                }
+                pattern.append(ch);
+                wildcard = false;
+            }
+        }
+        if (!wildcard) {
+            pattern.append('%');
+        }
+        return pattern.toString();
+    }
+
+    /**
+     * Lower case independent of the locale of the device; in a Turkish locale, 'I' would become a dotless 'ı' and
+     * ASCII names would not match.
+     */
+    static String foldCase(String text) {
+        return text.toLowerCase(Locale.ROOT);
+    }
+
+
     public Vector<OCFile> getFolderImages(OCFile folder, boolean onlyOnDevice) {
         Vector<OCFile> ret = new Vector<OCFile>();
         if (folder != null) {
@@ -282,6 +445,10 @@ public class FileDataStorageManager {
         ArrayList<ContentProviderOperation> operations =
                 new ArrayList<ContentProviderOperation>(updatedFiles.size());
 
+        // find out in bulk which of the files are already stored, instead of querying once per file
+        Map<String, Long> existingIdsByPath = getStoredIdsByPath(folder, updatedFiles);
+        Set<Long> existingIds = getExistingFileIds(updatedFiles, existingIdsByPath);
+
         // prepare operations to insert or update files to save in the given folder
         for (OCFile file : updatedFiles) {
             ContentValues cv = new ContentValues();
@@ -314,8 +481,11 @@ public class FileDataStorageManager {
             cv.put(ProviderTableMeta.FILE_IS_DOWNLOADING, file.isDownloading());
             cv.put(ProviderTableMeta.FILE_ETAG_IN_CONFLICT, file.getEtagInConflict());
 
-            boolean existsByPath = fileExists(file.getRemotePath());
-            if (existsByPath || fileExists(file.getFileId())) {
+            Long idByPath = existingIdsByPath.get(file.getRemotePath());
+            if (idByPath != null || existingIds.contains(file.getFileId())) {
+                if (file.getFileId() == -1) {
+                    file.setFileId(idByPath);
+                }
                 // updating an existing file
                 operations.add(ContentProviderOperation.newUpdate(ProviderTableMeta.CONTENT_URI).
                         withValues(cv).
@@ -704,12 +874,20 @@ public class FileDataStorageManager {
         }
     }
 
+    /**
+     * Replaces the storage folder in the local paths of all the stored files. Updates are applied in transactions of
+     * {@link #MIGRATION_BATCH_SIZE} files; paths already updated are skipped, so the method can be called again to
+     * complete an interrupted migration.
+     *
+     * @param srcPath       Former storage folder.
+     * @param dstPath       New storage folder.
+     */
     public void migrateStoredFiles(String srcPath, String dstPath) throws Exception {
         Cursor cursor;
         try {
             if (getContentResolver() != null) {
                 cursor = getContentResolver().query(ProviderTableMeta.CONTENT_URI_FILE,
-                        null,
+                        new String[]{ProviderTableMeta._ID, ProviderTableMeta.FILE_STORAGE_PATH},
                         ProviderTableMeta.FILE_STORAGE_PATH + " IS NOT NULL",
                         null,
                         null);
@@ -726,38 +904,94 @@ public class FileDataStorageManager {
             throw e;
         }
 
-        ArrayList<ContentProviderOperation> operations = new ArrayList<>(cursor.getCount());
-        if (cursor.moveToFirst()) {
-            do {
-                ContentValues cv = new ContentValues();
-                long fileId = cursor.getLong(cursor.getColumnIndex(ProviderTableMeta._ID));
-                String oldFileStoragePath =
-                        cursor.getString(cursor.getColumnIndex(ProviderTableMeta.FILE_STORAGE_PATH));
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(MIGRATION_BATCH_SIZE);
+        try {
+            int idIndex = cursor.getColumnIndex(ProviderTableMeta._ID);
+            int storagePathIndex = cursor.getColumnIndex(ProviderTableMeta.FILE_STORAGE_PATH);
+            while (cursor.moveToNext()) {
+                long fileId = cursor.getLong(idIndex);
+                String oldFileStoragePath = cursor.getString(storagePathIndex);
 
                 if (oldFileStoragePath.startsWith(srcPath)) {
-
-                    cv.put(ProviderTableMeta.FILE_STORAGE_PATH, oldFileStoragePath.replaceFirst(srcPath, dstPath));
+                    ContentValues cv = new ContentValues();
+                    cv.put(ProviderTableMeta.FILE_STORAGE_PATH,
+                            dstPath + oldFileStoragePath.substring(srcPath.length()));
 
                     operations.add(
                             ContentProviderOperation.newUpdate(ProviderTableMeta.CONTENT_URI).
                                     withValues(cv).
                                     withSelection(ProviderTableMeta._ID + "=?", new String[]{String.valueOf(fileId)})
                                     .build());
+
+                    if (operations.size() == MIGRATION_BATCH_SIZE) {
+                        applyMigrationBatch(operations);
+                    }
                 }
+            }
+        } finally {
+            cursor.close();
+        }
 
-            } while (cursor.moveToNext());
+        if (!operations.isEmpty()) {
+            applyMigrationBatch(operations);
         }
-        cursor.close();
+    }
 
-        /// 3. apply updates in batch
+    private void applyMigrationBatch(ArrayList<ContentProviderOperation> operations) throws Exception {
+        Log_OC.d(TAG, String.format(SENDING_TO_FILECONTENTPROVIDER_MSG, operations.size()));
         if (getContentResolver() != null) {
             getContentResolver().applyBatch(MainApp.getAuthority(), operations);
         } else {
             getContentProviderClient().applyBatch(operations);
         }
+        operations.clear();
+    }
+
+    /**
+     * Clears the flag {@link ProviderTableMeta#FILE_UPDATE_THUMBNAIL} of several files of the account at once, with
+     * a single UPDATE for every {@link #MAX_SELECTION_ARGS} files instead of a {@link #saveFile(OCFile)} per file.
+     *
+     * @param fileIds   Ids of the files whose thumbnail is up to date.
+     * @return          Number of files updated.
+     */
+    public int clearNeedsUpdateThumbnail(Collection<Long> fileIds) {
+        List<Long> ids = new ArrayList<>(fileIds);
+        ContentValues cv = new ContentValues();
+        cv.put(ProviderTableMeta.FILE_UPDATE_THUMBNAIL, false);
+        int updated = 0;
+
+        for (int from = 0; from < ids.size(); from += MAX_SELECTION_ARGS) {
+            List<Long> chunk = ids.subList(from, Math.min(from + MAX_SELECTION_ARGS, ids.size()));
+            StringBuilder where = new StringBuilder(ProviderTableMeta.FILE_ACCOUNT_OWNER)
+                    .append(AND).append(ProviderTableMeta._ID).append(" IN (");
+            String[] whereArgs = new String[chunk.size() + 1];
+            whereArgs[0] = mAccount.name;
+            for (int i = 0; i < chunk.size(); i++) {
+                where.append(i == 0 ? "?" : ",?");
+                whereArgs[i + 1] = String.valueOf(chunk.get(i));
+            }
+            where.append(')');
+
+            if (getContentResolver() != null) {
+                updated += getContentResolver().update(ProviderTableMeta.CONTENT_URI, cv, where.toString(),
+                        whereArgs);
+            } else {
+                try {
+                    updated += getContentProviderClient().update(ProviderTableMeta.CONTENT_URI, cv,
+                            where.toString(), whereArgs);
+                } catch (RemoteException e) {
+                    Log_OC.e(TAG, "Could not clear thumbnail flags: " + e.getMessage(), e);
+                }
+            }
+        }
+        return updated;
     }
 
     private Vector<OCFile> getFolderContent(long parentId, boolean onlyOnDevice) {
+        return getFolderContent(parentId, onlyOnDevice, true);
+    }
+
+    private Vector<OCFile> getFolderContent(long parentId, boolean onlyOnDevice, boolean sorted) {
 
         Vector<OCFile> ret = new Vector<>();
 
@@ -797,7 +1031,9 @@ public class FileDataStorageManager {
             c.close();
         }
 
-        Collections.sort(ret);
+        if (sorted) {
+            Collections.sort(ret);
+        }
 
         return ret;
     }
@@ -811,6 +1047,125 @@ public class FileDataStorageManager {
         return file;
     }
 
+    /**
+     * Gets the ids of the files stored in the database for the current account with the remote paths of
+     * the given files, as fileExists(path) would find them one by one.
+     *
+     * The children of 'folder' are read in a single query, which finds all the paths in the usual refresh
+     * of a folder. Paths not found there, typically files new in the folder, are looked up in the whole
+     * account with a few IN queries, so that a row left with the same path under another parent is still
+     * updated instead of duplicated.
+     *
+     * @param folder        Folder whose children are saved.
+     * @param files         Files whose paths will be checked.
+     * @return              Map from remote path to id of every file of 'files' stored in the database.
+     */
+    private Map<String, Long> getStoredIdsByPath(OCFile folder, Collection<OCFile> files) {
+        Map<String, Long> ids = new HashMap<>();
+        Cursor c = getFilesCursor(
+                new String[]{ProviderTableMeta._ID, ProviderTableMeta.FILE_PATH},
+                ProviderTableMeta.FILE_ACCOUNT_OWNER + AND + ProviderTableMeta.FILE_PARENT + "=?",
+                new String[]{mAccount.name, String.valueOf(folder.getFileId())}
+        );
+        readIdsByPath(c, ids);
+
+        List<String> pathsToCheck = new ArrayList<>();
+        for (OCFile file : files) {
+            if (!ids.containsKey(file.getRemotePath())) {
+                pathsToCheck.add(file.getRemotePath());
+            }
+        }
+
+        for (int from = 0; from < pathsToCheck.size(); from += MAX_SELECTION_ARGS) {
+            List<String> chunk = pathsToCheck.subList(from, Math.min(from + MAX_SELECTION_ARGS,
+                    pathsToCheck.size()));
+            StringBuilder where = new StringBuilder(ProviderTableMeta.FILE_ACCOUNT_OWNER)
+                    .append(AND).append(ProviderTableMeta.FILE_PATH).append(" IN (");
+            String[] whereArgs = new String[chunk.size() + 1];
+            whereArgs[0] = mAccount.name;
+            for (int i = 0; i < chunk.size(); i++) {
+                where.append(i == 0 ? "?" : ",?");
+                whereArgs[i + 1] = chunk.get(i);
+            }
+            where.append(')');
+
+            c = getFilesCursor(new String[]{ProviderTableMeta._ID, ProviderTableMeta.FILE_PATH},
+                    where.toString(), whereArgs);
+            readIdsByPath(c, ids);
+        }
+        return ids;
+    }
+
+    private static void readIdsByPath(Cursor c, Map<String, Long> ids) {
+        if (c != null) {
+            int idIndex = c.getColumnIndex(ProviderTableMeta._ID);
+            int pathIndex = c.getColumnIndex(ProviderTableMeta.FILE_PATH);
+            while (c.moveToNext()) {
+                ids.put(c.getString(pathIndex), c.getLong(idIndex));
+            }
+            c.close();
+        }
+    }
+
+    /**
+     * Gets which of the ids of the given files are stored in the database for the current account.
+     *
+     * Ids already known in 'knownIdsByPath' are not queried again; the rest, typically files moved or
+     * renamed from other folders, are checked with a few IN queries instead of one query per file.
+     *
+     * @param files             Files whose ids will be checked.
+     * @param knownIdsByPath    Ids already known to exist, mapped by remote path.
+     * @return                  Set of ids of 'files' existing in the database.
+     */
+    private Set<Long> getExistingFileIds(Collection<OCFile> files, Map<String, Long> knownIdsByPath) {
+        Set<Long> existingIds = new HashSet<>(knownIdsByPath.values());
+        List<String> idsToCheck = new ArrayList<>();
+        for (OCFile file : files) {
+            if (file.getFileId() != -1 && !existingIds.contains(file.getFileId())) {
+                idsToCheck.add(String.valueOf(file.getFileId()));
+            }
+        }
+
+        for (int from = 0; from < idsToCheck.size(); from += MAX_SELECTION_ARGS) {
+            List<String> chunk = idsToCheck.subList(from, Math.min(from + MAX_SELECTION_ARGS, idsToCheck.size()));
+            StringBuilder where = new StringBuilder(ProviderTableMeta.FILE_ACCOUNT_OWNER)
+                    .append(AND).append(ProviderTableMeta._ID).append(" IN (");
+            for (int i = 0; i < chunk.size(); i++) {
+                where.append(i == 0 ? "?" : ",?");
+            }
+            where.append(')');
+            String[] whereArgs = new String[chunk.size() + 1];
+            whereArgs[0] = mAccount.name;
+            for (int i = 0; i < chunk.size(); i++) {
+                whereArgs[i + 1] = chunk.get(i);
+            }
+
+            Cursor c = getFilesCursor(new String[]{ProviderTableMeta._ID}, where.toString(), whereArgs);
+            if (c != null) {
+                while (c.moveToNext()) {
+                    existingIds.add(c.getLong(0));
+                }
+                c.close();
+            }
+        }
+        return existingIds;
+    }
+
+    private Cursor getFilesCursor(String[] projection, String selection, String[] selectionArgs) {
+        Cursor c = null;
+        if (getContentResolver() != null) {
+            c = getContentResolver().query(ProviderTableMeta.CONTENT_URI, projection, selection, selectionArgs, null);
+        } else {
+            try {
+                c = getContentProviderClient().query(ProviderTableMeta.CONTENT_URI, projection, selection,
+                        selectionArgs, null);
+            } catch (RemoteException e) {
+                Log_OC.e(TAG, "Could not query files: " + e.getMessage(), e);
+            }
+        }
+        return c;
+    }
+
     private boolean fileExists(String cmp_key, String value) {
         Cursor c;
         if (getContentResolver() != null) {
@@ -38,4 +38,13 @@ public class MediaFolder {
 
     /** total number of files in the media folder. */
     public long numberOfFiles;
+
+    /** id of the media store bucket of the folder. */
+    public String bucketId;
+
+    /** newest modification date of the folder's content, in seconds, as stored by the media store. */
+    public long lastModified;
+
+    /** highest media store id of the folder's content; grows with every file added. */
+    public long lastId;
 }
@@ -25,13 +25,17 @@ import android.content.ContentResolver;
 import android.database.Cursor;
 import android.net.Uri;
 import android.provider.MediaStore;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.owncloud.android.MainApp;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Media queries to gain access to media lists for the device.
@@ -41,11 +45,22 @@ public class MediaProvider {
 
     // fixed query parameters
     private static final Uri MEDIA_URI = android.provider.MediaStore.Images.Media.EXTERNAL_CONTENT_URI;
-    private static final String[] FILE_PROJECTION = new String[]{MediaStore.MediaColumns.DATA};
-    private static final String FILE_SELECTION = MediaStore.Images.Media.BUCKET_ID + "=";
-    private static final String[] FOLDER_PROJECTION = { "Distinct " + MediaStore.Images.Media.BUCKET_ID,
-            MediaStore.Images.Media.BUCKET_DISPLAY_NAME };
-    private static final String FOLDER_SORT_ORDER = MediaStore.Images.Media.BUCKET_DISPLAY_NAME + " ASC";
+    private static final String[] FILE_PROJECTION = new String[]{MediaStore.Images.Media.BUCKET_ID,
+            MediaStore.Images.Media.BUCKET_DISPLAY_NAME, MediaStore.MediaColumns.DATA,
+            MediaStore.MediaColumns.DATE_MODIFIED, MediaStore.MediaColumns._ID};
+    private static final String[] BUCKET_STATE_PROJECTION = new String[]{MediaStore.Images.Media.BUCKET_ID,
+            MediaStore.MediaColumns.DATE_MODIFIED, MediaStore.MediaColumns._ID};
+    private static final String FILE_SORT_ORDER = MediaStore.Images.Media.BUCKET_DISPLAY_NAME + " ASC, " +
+            MediaStore.Images.Media.BUCKET_ID + " ASC, " + MediaStore.Images.Media.DATE_TAKEN + " DESC";
+
+    /** Limit of '?' arguments in a selection, below the default SQLITE_MAX_VARIABLE_NUMBER of 999 */
+    private static final int MAX_SELECTION_ARGS = 900;
+
+    /**
+     * State of the buckets left out of the results because they are part of the app's own storage, by bucket id, so
+     * that they are not read again while they do not change; access synchronized on it.
+     */
+    private static final Map<String, long[]> sExcludedBuckets = new HashMap<>();
 
     /**
      * Getting All Images Paths.
@@ -55,62 +70,185 @@ public class MediaProvider {
      * @return list with media folders
      */
     public static List<MediaFolder> getMediaFolders(ContentResolver contentResolver, int itemLimit) {
-        // query media/image folders
-        Cursor cursorFolders = contentResolver.query(MEDIA_URI, FOLDER_PROJECTION, null, null, FOLDER_SORT_ORDER);
+        return scanBuckets(contentResolver, itemLimit, null, null);
+    }
+
+    /**
+     * Getting All Images Paths, reusing the results of a previous scan for the media folders that did not change.
+     *
+     * A media folder is read again only if the number of files in its bucket, the newest DATE_MODIFIED or the highest
+     * id of them differ from the previous scan; checking that needs a single query over three narrow columns. Ids
+     * grow with every file added, so a file removed and an older one added are detected too.
+     *
+     * @param contentResolver the content resolver
+     * @param itemLimit       the number of media items (usually images) to be returned per media folder.
+     * @param previousScan    media folders returned by a previous call, or null to scan everything.
+     * @return list with media folders
+     */
+    public static List<MediaFolder> getMediaFolders(ContentResolver contentResolver, int itemLimit,
+                                                    @Nullable List<MediaFolder> previousScan) {
+        if (previousScan == null) {
+            return getMediaFolders(contentResolver, itemLimit);
+        }
+
+        Map<String, long[]> bucketStates = readBucketStates(contentResolver);
+        if (bucketStates == null) {
+            return getMediaFolders(contentResolver, itemLimit);
+        }
+
+        Map<String, MediaFolder> previousFolders = new HashMap<>();
+        for (MediaFolder mediaFolder : previousScan) {
+            previousFolders.put(mediaFolder.bucketId, mediaFolder);
+        }
+
         List<MediaFolder> mediaFolders = new ArrayList<>();
-        String dataPath = MainApp.getStoragePath() + File.separator + MainApp.getDataFolder();
-
-        if (cursorFolders != null) {
-            String folderName;
-            String fileSortOrder = MediaStore.Images.Media.DATE_TAKEN + " DESC LIMIT " + itemLimit;
-            Cursor cursorImages;
-
-            while (cursorFolders.moveToNext()) {
-                String folderId = cursorFolders.getString(cursorFolders.getColumnIndex(MediaStore.Images.Media
-                        .BUCKET_ID));
-
-                MediaFolder mediaFolder = new MediaFolder();
-                folderName = cursorFolders.getString(cursorFolders.getColumnIndex(
-                        MediaStore.Images.Media.BUCKET_DISPLAY_NAME));
-                mediaFolder.folderName = folderName;
-                mediaFolder.filePaths = new ArrayList<>();
-
-                // query images
-                cursorImages = contentResolver.query(MEDIA_URI, FILE_PROJECTION, FILE_SELECTION + folderId, null,
-                        fileSortOrder);
-                Log.d(TAG, "Reading images for " + mediaFolder.folderName);
-
-                if (cursorImages != null) {
-                    String filePath;
-                    while (cursorImages.moveToNext()) {
-                        filePath = cursorImages.getString(cursorImages.getColumnIndexOrThrow(
-                                MediaStore.MediaColumns.DATA));
-                        mediaFolder.filePaths.add(filePath);
-                        mediaFolder.absolutePath = filePath.substring(0, filePath.lastIndexOf(folderName)
-                                + folderName.length());
+        List<String> changedBuckets = new ArrayList<>();
+        for (Map.Entry<String, long[]> bucketState : bucketStates.entrySet()) {
+            MediaFolder previousFolder = previousFolders.get(bucketState.getKey());
+            long[] state = bucketState.getValue();
+            if (previousFolder != null && previousFolder.numberOfFiles == state[0] &&
+                    previousFolder.lastModified == state[1] && previousFolder.lastId == state[2] &&
+                    previousFolder.filePaths.size() == Math.min(itemLimit, state[0])) {
+                mediaFolders.add(previousFolder);
+            } else if (!isExcludedBucketUnchanged(bucketState.getKey(), state)) {
+                changedBuckets.add(bucketState.getKey());
+            }
+        }
+
+        Log.d(TAG, "Media buckets changed since last scan: " + changedBuckets.size() + " of " +
+                bucketStates.size());
+
+        if (changedBuckets.size() > MAX_SELECTION_ARGS) {
+            return getMediaFolders(contentResolver, itemLimit);
+
+        } else if (!changedBuckets.isEmpty()) {
+            StringBuilder selection = new StringBuilder(MediaStore.Images.Media.BUCKET_ID + " IN (");
+            for (int i = 0; i < changedBuckets.size(); i++) {
+                selection.append(i == 0 ? "?" : ",?");
+            }
+            selection.append(")");
+            mediaFolders.addAll(scanBuckets(contentResolver, itemLimit, selection.toString(),
+                    changedBuckets.toArray(new String[changedBuckets.size()])));
+        }
+
+        return mediaFolders;
+    }
+
+    /**
+     * Builds the media folders of the buckets matching a selection in a single pass over the media store, counting
+     * the files of every bucket while keeping the paths of the newest ones.
+     */
+    private static List<MediaFolder> scanBuckets(ContentResolver contentResolver, int itemLimit, String selection,
+                                                 String[] selectionArgs) {
+        List<MediaFolder> mediaFolders = new ArrayList<>();
+        Cursor cursor = contentResolver.query(MEDIA_URI, FILE_PROJECTION, selection, selectionArgs,
+                FILE_SORT_ORDER);
+
+        if (cursor != null) {
+            String dataPath = MainApp.getStoragePath() + File.separator + MainApp.getDataFolder();
+            int bucketIdIndex = cursor.getColumnIndex(MediaStore.Images.Media.BUCKET_ID);
+            int folderNameIndex = cursor.getColumnIndex(MediaStore.Images.Media.BUCKET_DISPLAY_NAME);
+            int filePathIndex = cursor.getColumnIndex(MediaStore.MediaColumns.DATA);
+            int lastModifiedIndex = cursor.getColumnIndex(MediaStore.MediaColumns.DATE_MODIFIED);
+            int idIndex = cursor.getColumnIndex(MediaStore.MediaColumns._ID);
+            MediaFolder mediaFolder = null;
+
+            try {
+                while (cursor.moveToNext()) {
+                    String bucketId = cursor.getString(bucketIdIndex);
+                    if (mediaFolder == null || !TextUtils.equals(mediaFolder.bucketId, bucketId)) {
+                        addMediaFolder(mediaFolders, mediaFolder, dataPath);
+                        mediaFolder = new MediaFolder();
+                        mediaFolder.bucketId = bucketId;
+                        mediaFolder.folderName = cursor.getString(folderNameIndex);
+                        mediaFolder.filePaths = new ArrayList<>();
+                        Log.d(TAG, "Reading images for " + mediaFolder.folderName);
                     }
-                    cursorImages.close();
-
-                    // count images
-                    Cursor count = contentResolver.query(
-                            MEDIA_URI,
-                            FILE_PROJECTION,
-                            FILE_SELECTION + folderId,
-                            null,
-                            null);
-
-                    if (count != null) {
-                        mediaFolder.numberOfFiles = count.getCount();
-                        count.close();
+
+                    mediaFolder.numberOfFiles++;
+                    mediaFolder.lastModified = Math.max(mediaFolder.lastModified, cursor.getLong(lastModifiedIndex));
+                    mediaFolder.lastId = Math.max(mediaFolder.lastId, cursor.getLong(idIndex));
+
+                    if (mediaFolder.absolutePath == null || mediaFolder.filePaths.size() < itemLimit) {
+                        String filePath = cursor.getString(filePathIndex);
+                        if (filePath != null) {
+                            if (mediaFolder.absolutePath == null) {
+                                mediaFolder.absolutePath = new File(filePath).getParent();
+                            }
+                            if (mediaFolder.filePaths.size() < itemLimit) {
+                                mediaFolder.filePaths.add(filePath);
+                            }
+                        }
                     }
                 }
-                if (!mediaFolder.absolutePath.startsWith(dataPath)) {
-                    mediaFolders.add(mediaFolder);
-                }
+                addMediaFolder(mediaFolders, mediaFolder, dataPath);
+
+            } finally {
+                cursor.close();
             }
-            cursorFolders.close();
         }
 
         return mediaFolders;
     }
+
+    /**
+     * Adds a scanned media folder to the results, unless it is empty or part of the app's own storage; the state of
+     * the latter is recorded, so that it is not read again while it does not change.
+     */
+    private static void addMediaFolder(List<MediaFolder> mediaFolders, MediaFolder mediaFolder, String dataPath) {
+        if (mediaFolder == null || mediaFolder.absolutePath == null) {
+            return;
+        }
+        synchronized (sExcludedBuckets) {
+            if (mediaFolder.absolutePath.startsWith(dataPath)) {
+                sExcludedBuckets.put(mediaFolder.bucketId,
+                        new long[]{mediaFolder.numberOfFiles, mediaFolder.lastModified, mediaFolder.lastId});
+                return;
+            }
+            sExcludedBuckets.remove(mediaFolder.bucketId);
+        }
+        mediaFolders.add(mediaFolder);
+    }
+
+    private static boolean isExcludedBucketUnchanged(String bucketId, long[] state) {
+        synchronized (sExcludedBuckets) {
+            long[] excludedState = sExcludedBuckets.get(bucketId);
+            return excludedState != null && excludedState[0] == state[0] && excludedState[1] == state[1] &&
+                    excludedState[2] == state[2];
+        }
+    }
+
+    /**
+     * Reads the number of files, the newest DATE_MODIFIED and the highest id of every bucket in the media store.
+     *
+     * @return map from bucket id to {number of files, newest modification date, highest id}, or null if the media
+     * store could not be queried.
+     */
+    private static Map<String, long[]> readBucketStates(ContentResolver contentResolver) {
+        Cursor cursor = contentResolver.query(MEDIA_URI, BUCKET_STATE_PROJECTION, null, null, null);
+        if (cursor == null) {
+            return null;
+        }
+
+        Map<String, long[]> bucketStates = new HashMap<>();
+        try {
+            int bucketIdIndex = cursor.getColumnIndex(MediaStore.Images.Media.BUCKET_ID);
+            int lastModifiedIndex = cursor.getColumnIndex(MediaStore.MediaColumns.DATE_MODIFIED);
+            int idIndex = cursor.getColumnIndex(MediaStore.MediaColumns._ID);
+            while (cursor.moveToNext()) {
+                String bucketId = cursor.getString(bucketIdIndex);
+                long[] bucketState = bucketStates.get(bucketId);
+                if (bucketState == null) {
+                    bucketState = new long[3];
+                    bucketStates.put(bucketId, bucketState);
+                }
+                bucketState[0]++;
+                bucketState[1] = Math.max(bucketState[1], cursor.getLong(lastModifiedIndex));
+                bucketState[2] = Math.max(bucketState[2], cursor.getLong(idIndex));
+            }
+        } finally {
+            cursor.close();
+        }
+        return bucketStates;
+    }
 }
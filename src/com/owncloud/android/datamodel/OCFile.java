@@ -62,6 +62,9 @@ public class OCFile implements Parcelable, Comparable<OCFile> {
 
     private static final String TAG = OCFile.class.getSimpleName();
 
+    /** Stateless, shared by all the comparisons */
+    private static final AlphanumComparator NATURAL_ORDER = new AlphanumComparator();
+
     private long mId;
     private long mParentId;
     private long mLength;
@@ -543,7 +546,7 @@ public class OCFile implements Parcelable, Comparable<OCFile> {
         } else if (another.isFolder()) {
             return 1;
         }
-        return new AlphanumComparator().compare(this, another);
+        return NATURAL_ORDER.compare(this, another);
     }
 
     @Override
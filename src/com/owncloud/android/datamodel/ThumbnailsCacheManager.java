@@ -36,6 +36,9 @@ import android.graphics.drawable.Drawable;
 import android.media.ThumbnailUtils;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LruCache;
 import android.view.Display;
 import android.view.MenuItem;
 import android.view.View;
@@ -58,12 +61,31 @@ import com.owncloud.android.utils.DisplayUtils.AvatarGenerationListener;
 import com.owncloud.android.utils.FileStorageUtils;
 import com.owncloud.android.utils.MimeTypeUtil;
 
+import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpStatus;
 import org.apache.commons.httpclient.methods.GetMethod;
 
 import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 
@@ -81,9 +103,82 @@ public class ThumbnailsCacheManager {
     private static DiskLruImageCache mThumbnailCache = null;
     private static boolean mThumbnailCacheStarting = true;
 
+    /** The memory cache takes up to 1 / MEMORY_CACHE_HEAP_DIVIDER of the maximum heap */
+    private static final int MEMORY_CACHE_HEAP_DIVIDER = 8;
+    private static final String AVATAR_KEY_PREFIX = "a_";
+
+    /**
+     * Decoded images, shared by every view showing them. Evicted bitmaps are left to the garbage collector, and never
+     * decoded over with inBitmap, since a view may still display them.
+     */
+    private static final LruCache<String, Bitmap> mThumbnailsMemoryCache =
+            new LruCache<String, Bitmap>((int) (Runtime.getRuntime().maxMemory() / MEMORY_CACHE_HEAP_DIVIDER)) {
+                @Override
+                protected int sizeOf(String key, Bitmap bitmap) {
+                    return bitmap.getByteCount();
+                }
+            };
+
+    private static final AtomicInteger mDiskCacheHitCount = new AtomicInteger();
+
+    private static final int LOCAL_THUMBNAIL_THREADS = 2;
+    private static final int REMOTE_THUMBNAIL_THREADS = 3;
+    private static final int THUMBNAIL_THREADS_KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * Executor for thumbnails generated from files in the device or found in cache.
+     *
+     * Thumbnail executors run the most recently requested task first, so the rows just bound to the screen are
+     * served before those scrolled away; tasks cancelled by a rebound view are skipped when they are dequeued.
+     */
+    public static final Executor LOCAL_THUMBNAIL_EXECUTOR =
+            createThumbnailExecutor("ThumbnailLocal", LOCAL_THUMBNAIL_THREADS);
+
+    /**
+     * Executor for thumbnails and avatars that may need to be downloaded, kept apart from
+     * {@link #LOCAL_THUMBNAIL_EXECUTOR} so that slow requests to the server do not delay local ones.
+     */
+    public static final Executor REMOTE_THUMBNAIL_EXECUTOR =
+            createThumbnailExecutor("ThumbnailRemote", REMOTE_THUMBNAIL_THREADS);
+
+    /** Delay to write together the thumbnail flags cleared by a burst of generated thumbnails */
+    private static final long THUMBNAIL_FLAGS_FLUSH_DELAY_MS = 1000;
+
+    /** Cleared thumbnail flags written without waiting for the delay */
+    private static final int MAX_PENDING_THUMBNAIL_FLAGS = 200;
+
+    /**
+     * Ids of files with a new thumbnail whose flag is still set in database, by account; access synchronized on it.
+     * See {@link #thumbnailUpdated(Account, long)}.
+     */
+    private static final Map<Account, Set<Long>> mPendingThumbnailFlags = new HashMap<>();
+    private static int mPendingThumbnailFlagsCount = 0;
+    private static boolean mThumbnailFlagsFlushScheduled = false;
+
+    private static final ScheduledExecutorService THUMBNAIL_FLAGS_EXECUTOR =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, "ThumbnailFlags");
+                }
+            });
+
+    private static final Runnable FLUSH_THUMBNAIL_FLAGS = new Runnable() {
+        @Override
+        public void run() {
+            flushThumbnailFlags();
+        }
+    };
+
+    /** Image keys being generated, see {@link #startImageKeyGeneration(String, ImageKeyWaiter)} */
+    private static final ConcurrentHashMap<String, ImageKeyGeneration> mImageKeyGenerations =
+            new ConcurrentHashMap<>();
+
+    /** Handler delivering to the tasks waiting for an image key the result of the task generating it */
+    private static final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
     private static final CompressFormat mCompressFormat = CompressFormat.JPEG;
     private static final int mCompressQuality = 70;
-    private static OwnCloudClient mClient = null;
 
     public static final Bitmap mDefaultImg =
             BitmapFactory.decodeResource(
@@ -144,6 +239,165 @@ public class ThumbnailsCacheManager {
         }
     }
 
+    private static Executor createThumbnailExecutor(final String name, int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                THUMBNAIL_THREADS_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LifoBlockingDeque(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        return new Thread(runnable, name + " #" + mCount.incrementAndGet());
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Queues clearing the flag {@link OCFile#needsUpdateThumbnail()} of a file in database after generating its
+     * thumbnail. Flags cleared while the user scrolls through a folder are written in a single update, so that the
+     * list is not refreshed for every thumbnail.
+     *
+     * @param account   Account owning the file.
+     * @param fileId    Id of the file in database.
+     */
+    private static void thumbnailUpdated(Account account, long fileId) {
+        synchronized (mPendingThumbnailFlags) {
+            Set<Long> ids = mPendingThumbnailFlags.get(account);
+            if (ids == null) {
+                ids = new HashSet<>();
+                mPendingThumbnailFlags.put(account, ids);
+            }
+            if (!ids.add(fileId)) {
+                return;
+            }
+            mPendingThumbnailFlagsCount++;
+            if (mPendingThumbnailFlagsCount >= MAX_PENDING_THUMBNAIL_FLAGS) {
+                THUMBNAIL_FLAGS_EXECUTOR.execute(FLUSH_THUMBNAIL_FLAGS);
+            } else if (!mThumbnailFlagsFlushScheduled) {
+                mThumbnailFlagsFlushScheduled = true;
+                THUMBNAIL_FLAGS_EXECUTOR.schedule(FLUSH_THUMBNAIL_FLAGS, THUMBNAIL_FLAGS_FLUSH_DELAY_MS,
+                        TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Writes the thumbnail flags queued by {@link #thumbnailUpdated(Account, long)}.
+     */
+    private static void flushThumbnailFlags() {
+        Map<Account, Set<Long>> pending;
+        synchronized (mPendingThumbnailFlags) {
+            pending = new HashMap<>(mPendingThumbnailFlags);
+            mPendingThumbnailFlags.clear();
+            mPendingThumbnailFlagsCount = 0;
+            mThumbnailFlagsFlushScheduled = false;
+        }
+        for (Map.Entry<Account, Set<Long>> entry : pending.entrySet()) {
+            FileDataStorageManager storageManager = new FileDataStorageManager(entry.getKey(),
+                    MainApp.getAppContext().getContentResolver());
+            int updated = storageManager.clearNeedsUpdateThumbnail(entry.getValue());
+            Log_OC.d(TAG, "Cleared thumbnail flag of " + updated + " files of " + entry.getKey().name);
+        }
+    }
+
+    /**
+     * Work queue handing the last task queued to the first idle thread.
+     */
+    private static class LifoBlockingDeque extends LinkedBlockingDeque<Runnable> {
+        @Override
+        public boolean offer(Runnable runnable) {
+            return offerFirst(runnable);
+        }
+    }
+
+    /**
+     * Task that can wait for an image key generated by another task, see
+     * {@link #startImageKeyGeneration(String, ImageKeyWaiter)}.
+     */
+    private interface ImageKeyWaiter {
+
+        /**
+         * Called in the background thread of the task that generated the image key.
+         *
+         * @param imageKey  Key of the generated image.
+         * @param bitmap    Generated image; null if it could not be generated or was only stored in disk, so that
+         *                  it has to be looked up in cache.
+         */
+        void imageKeyGenerated(String imageKey, Bitmap bitmap);
+    }
+
+    /**
+     * Generation of an image key in progress, with the tasks waiting for it; access synchronized on it.
+     */
+    private static class ImageKeyGeneration {
+        private final List<ImageKeyWaiter> mWaiters = new ArrayList<>();
+        private boolean mFinished = false;
+    }
+
+    /**
+     * Starts the generation of an image key, unless another task is already generating it. In that case the caller
+     * is not blocked: it is added to the waiters of the generation in progress, and gets the result through
+     * {@link ImageKeyWaiter#imageKeyGenerated(String, Bitmap)}.
+     *
+     * A started generation must be finished with {@link #finishImageKeyGeneration(String, ImageKeyGeneration,
+     * Bitmap)}.
+     *
+     * @param imageKey  Key of the image to generate.
+     * @param waiter    Task to notify if the key is already being generated; may be null.
+     * @return          Started generation, or null if another task is generating the key.
+     */
+    private static ImageKeyGeneration startImageKeyGeneration(String imageKey, ImageKeyWaiter waiter) {
+        ImageKeyGeneration generation = new ImageKeyGeneration();
+        while (true) {
+            ImageKeyGeneration inFlight = mImageKeyGenerations.putIfAbsent(imageKey, generation);
+            if (inFlight == null) {
+                return generation;
+            }
+            synchronized (inFlight) {
+                if (!inFlight.mFinished) {
+                    if (waiter != null) {
+                        inFlight.mWaiters.add(waiter);
+                    }
+                    return null;
+                }
+            }
+            // finished meanwhile; try again, its result is likely in cache now
+        }
+    }
+
+    private static void finishImageKeyGeneration(String imageKey, ImageKeyGeneration generation, Bitmap bitmap) {
+        mImageKeyGenerations.remove(imageKey, generation);
+        List<ImageKeyWaiter> waiters;
+        synchronized (generation) {
+            generation.mFinished = true;
+            waiters = new ArrayList<>(generation.mWaiters);
+        }
+        for (ImageKeyWaiter waiter : waiters) {
+            try {
+                waiter.imageKeyGenerated(imageKey, bitmap);
+            } catch (Throwable t) {
+                // the app should never break due to a problem with thumbnails
+                Log_OC.e(TAG, "Delivery of " + imageKey + " to a waiting task failed", t);
+            }
+        }
+    }
+
+    /**
+     * Gets the client of the account of a task. Kept by the task while it runs, never in a shared field, since
+     * tasks of different accounts run at the same time.
+     *
+     * @return  Client for the account, or null if no account was given.
+     */
+    private static OwnCloudClient getClientFor(Account account) throws Exception {
+        if (account == null) {
+            return null;
+        }
+        OwnCloudAccount ocAccount = new OwnCloudAccount(account, MainApp.getAppContext());
+        return OwnCloudClientManagerFactory.getDefaultSingleton().getClientFor(ocAccount, MainApp.getAppContext());
+    }
+
     /**
      * Converts size of file icon from dp to pixel
      * @return int
@@ -176,6 +430,7 @@ public class ThumbnailsCacheManager {
     }
     
     public static void addBitmapToCache(String key, Bitmap bitmap) {
+        mThumbnailsMemoryCache.put(key, bitmap);
         synchronized (mThumbnailsDiskCacheLock) {
             if (mThumbnailCache != null) {
                 mThumbnailCache.put(key, bitmap);
@@ -184,7 +439,22 @@ public class ThumbnailsCacheManager {
     }
 
 
+    /**
+     * Gets a cached image, checking first the memory cache and then the disk cache.
+     *
+     * Images found in disk are decoded out of the disk cache lock into new bitmaps, and kept in the memory cache.
+     * Bitmaps returned are shared by the cache and the views showing them, so they must not be recycled.
+     *
+     * @param key   Key of the image.
+     * @return      Cached image, or null if not found.
+     */
     public static Bitmap getBitmapFromDiskCache(String key) {
+        Bitmap bitmap = mThumbnailsMemoryCache.get(key);
+        if (bitmap != null) {
+            return bitmap;
+        }
+
+        DiskLruImageCache.CachedImage image = null;
         synchronized (mThumbnailsDiskCacheLock) {
             // Wait while disk cache is started from background thread
             while (mThumbnailCacheStarting) {
@@ -195,10 +465,227 @@ public class ThumbnailsCacheManager {
                 }
             }
             if (mThumbnailCache != null) {
-                return mThumbnailCache.getBitmap(key);
+                image = mThumbnailCache.getImage(key);
             }
         }
-        return null;
+
+        if (image != null) {
+            bitmap = decodeBitmap(image.getData());
+            if (bitmap != null) {
+                if (image.isOpaque()) {
+                    // lets the bitmap be drawn without blending
+                    bitmap.setHasAlpha(false);
+                }
+                mDiskCacheHitCount.incrementAndGet();
+                mThumbnailsMemoryCache.put(key, bitmap);
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * Stores the body of a response with an image in the disk cache exactly as received, and decodes it from there.
+     *
+     * The network stream is copied out of the disk cache lock, so that other images can be read meanwhile.
+     *
+     * @param key       Key of the image.
+     * @param get       Executed request, with a successful response.
+     * @return          Decoded image, or null if it could not be read.
+     */
+    private static Bitmap addResponseToCache(String key, GetMethod get) throws IOException {
+        DiskLruImageCache diskCache = waitForDiskCache();
+
+        InputStream inputStream = get.getResponseBodyAsStream();
+        if (diskCache == null) {
+            Bitmap bitmap = BitmapFactory.decodeStream(inputStream);
+            if (bitmap != null) {
+                mThumbnailsMemoryCache.put(key, bitmap);
+            }
+            return bitmap;
+        }
+
+        if (!diskCache.putStream(key, inputStream, getImageFormat(get))) {
+            return null;
+        }
+        // replace any outdated version in memory
+        mThumbnailsMemoryCache.remove(key);
+        return getBitmapFromDiskCache(key);
+    }
+
+    /**
+     * @return  Disk cache, once started; null if it could not be created.
+     */
+    private static DiskLruImageCache waitForDiskCache() {
+        synchronized (mThumbnailsDiskCacheLock) {
+            while (mThumbnailCacheStarting) {
+                try {
+                    mThumbnailsDiskCacheLock.wait();
+                } catch (InterruptedException e) {
+                    Log_OC.e(TAG, "Wait in mThumbnailsDiskCacheLock was interrupted", e);
+                }
+            }
+            return mThumbnailCache;
+        }
+    }
+
+    /**
+     * Checks if the thumbnail of a file shown in a list of files is cached and up to date, without decoding it.
+     *
+     * @param file  File in the server.
+     * @return      'true' if the thumbnail is in the memory or the disk cache and the file was not updated.
+     */
+    public static boolean isThumbnailCached(OCFile file) {
+        if (file.needsUpdateThumbnail()) {
+            return false;
+        }
+        String imageKey = "t" + file.getRemoteId();
+        if (mThumbnailsMemoryCache.get(imageKey) != null) {
+            return true;
+        }
+        DiskLruImageCache diskCache = waitForDiskCache();
+        return diskCache != null && diskCache.containsKey(imageKey);
+    }
+
+    /**
+     * Downloads the thumbnail of a file shown in a list of files into the disk cache, without decoding it, so that
+     * it is found there when the file is shown. Slow, do not call from the UI thread.
+     *
+     * The client may be shared by several threads prefetching thumbnails of the same account. The flag
+     * {@link OCFile#needsUpdateThumbnail()} of the file is cleared once the new thumbnail is stored, so that it is
+     * not prefetched again.
+     *
+     * @param client    Client of the account owning the file, for a server supporting thumbnails.
+     * @param account   Account owning the file.
+     * @param file      File in the server, not available in the device.
+     * @return          Bytes downloaded; 0 if the thumbnail was already cached, -1 if it could not be downloaded.
+     */
+    public static long prefetchThumbnail(OwnCloudClient client, Account account, OCFile file) {
+        String imageKey = "t" + file.getRemoteId();
+        ImageKeyGeneration generation = startImageKeyGeneration(imageKey, null);
+        if (generation == null) {
+            // another task is getting it right now
+            return 0;
+        }
+        try {
+            if (isThumbnailCached(file)) {
+                return 0;
+            }
+            DiskLruImageCache diskCache = waitForDiskCache();
+            if (diskCache == null) {
+                return -1;
+            }
+
+            int px = getThumbnailDimension();
+            String uri = client.getBaseUri() + "/index.php/apps/files/api/v1/thumbnail/" + px + "/" + px +
+                    Uri.encode(file.getRemotePath(), "/");
+            GetMethod get = new GetMethod(uri);
+            try {
+                get.setRequestHeader("Cookie", "nc_sameSiteCookielax=true;nc_sameSiteCookiestrict=true");
+                if (client.executeMethod(get) != HttpStatus.SC_OK) {
+                    return -1;
+                }
+                CountingInputStream in = new CountingInputStream(get.getResponseBodyAsStream());
+                if (!diskCache.putStream(imageKey, in, getImageFormat(get))) {
+                    return -1;
+                }
+                // replace any outdated version in memory
+                mThumbnailsMemoryCache.remove(imageKey);
+                if (file.needsUpdateThumbnail()) {
+                    file.setNeedsUpdateThumbnail(false);
+                    thumbnailUpdated(account, file.getFileId());
+                }
+                return in.getCount();
+
+            } catch (IOException e) {
+                Log_OC.d(TAG, "Could not prefetch thumbnail of " + file.getRemotePath(), e);
+                return -1;
+            } finally {
+                get.releaseConnection();
+            }
+        } finally {
+            // waiting tasks find it in the disk cache
+            finishImageKeyGeneration(imageKey, generation, null);
+        }
+    }
+
+    /**
+     * Stream counting the bytes read through it.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+
+        private long mCount = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                mCount += read;
+            }
+            return read;
+        }
+
+        long getCount() {
+            return mCount;
+        }
+    }
+
+    /**
+     * @return  Format of the image in a response, as tagged in {@link DiskLruImageCache}; JPEG if unknown.
+     */
+    private static String getImageFormat(GetMethod get) {
+        Header contentType = get.getResponseHeader("Content-Type");
+        String value = (contentType == null) ? "" : contentType.getValue().toLowerCase(Locale.US);
+        if (value.startsWith(DiskLruImageCache.FORMAT_PNG)) {
+            return DiskLruImageCache.FORMAT_PNG;
+        } else if (value.startsWith(DiskLruImageCache.FORMAT_WEBP)) {
+            return DiskLruImageCache.FORMAT_WEBP;
+        }
+        return DiskLruImageCache.FORMAT_JPEG;
+    }
+
+    private static Bitmap decodeBitmap(byte[] data) {
+        return BitmapFactory.decodeByteArray(data, 0, data.length);
+    }
+
+    /**
+     * @return Number of images found in the memory cache.
+     */
+    public static int getMemoryCacheHitCount() {
+        return mThumbnailsMemoryCache.hitCount();
+    }
+
+    /**
+     * @return Number of images not found in the memory cache.
+     */
+    public static int getMemoryCacheMissCount() {
+        return mThumbnailsMemoryCache.missCount();
+    }
+
+    /**
+     * @return Number of images evicted from the memory cache to make room for new ones.
+     */
+    public static int getMemoryCacheEvictionCount() {
+        return mThumbnailsMemoryCache.evictionCount();
+    }
+
+    /**
+     * @return Number of images not found in the memory cache but found in the disk cache.
+     */
+    public static int getDiskCacheHitCount() {
+        return mDiskCacheHitCount.get();
     }
 
     /**
@@ -226,10 +713,10 @@ public class ThumbnailsCacheManager {
         return mThumbnailCache.getMaxSize() / 1024 / 1024;
     }
 
-    public static class ThumbnailGenerationTask extends AsyncTask<Object, Void, Bitmap> {
+    public static class ThumbnailGenerationTask extends AsyncTask<Object, Void, Bitmap> implements ImageKeyWaiter {
         private final WeakReference<ImageView> mImageViewReference;
         private WeakReference<ProgressBar> mProgressWheelRef;
-        private static Account mAccount;
+        private final Account mAccount;
         private Object mFile;
         private Boolean mIsThumbnail;
         private String mImageKey = null;
@@ -264,6 +751,19 @@ public class ThumbnailsCacheManager {
         public ThumbnailGenerationTask(ImageView imageView) {
             // Use a WeakReference to ensure the ImageView can be garbage collected
             mImageViewReference = new WeakReference<ImageView>(imageView);
+            mAccount = null;
+        }
+
+        /**
+         * Executes the task in the thumbnail executor matching the source of the image: files not available in the
+         * device may need to be downloaded and go to {@link #REMOTE_THUMBNAIL_EXECUTOR}.
+         *
+         * @param params    Same parameters as {@link #execute(Object[])}.
+         */
+        public void executeOnThumbnailExecutor(Object... params) {
+            mFile = params[0];
+            boolean remote = params[0] instanceof OCFile && !((OCFile) params[0]).isDown();
+            executeOnExecutor(remote ? REMOTE_THUMBNAIL_EXECUTOR : LOCAL_THUMBNAIL_EXECUTOR, params);
         }
 
         @SuppressFBWarnings("Dm")
@@ -272,15 +772,6 @@ public class ThumbnailsCacheManager {
             Bitmap thumbnail = null;
 
             try {
-                if (mAccount != null) {
-                    OwnCloudAccount ocAccount = new OwnCloudAccount(
-                            mAccount,
-                            MainApp.getAppContext()
-                    );
-                    mClient = OwnCloudClientManagerFactory.getDefaultSingleton().
-                            getClientFor(ocAccount, MainApp.getAppContext());
-                }
-
                 mFile = params[0];
                 mIsThumbnail = (Boolean) params[1];
 
@@ -289,23 +780,16 @@ public class ThumbnailsCacheManager {
                 }
 
                 if (mFile instanceof OCFile) {
-                    thumbnail = doOCFileInBackground(mIsThumbnail);
-
-                    if (MimeTypeUtil.isVideo((OCFile) mFile) && thumbnail != null) {
-                        thumbnail = addVideoOverlay(thumbnail);
-                    }
+                    thumbnail = doOCFileInBackground(getClientFor(mAccount), mIsThumbnail);
                 } else if (mFile instanceof File) {
                     thumbnail = doFileInBackground(mIsThumbnail);
-
-                    String url = ((File) mFile).getAbsolutePath();
-                    String mMimeType = FileStorageUtils.getMimeTypeFromName(url);
-
-                    if (MimeTypeUtil.isVideo(mMimeType) && thumbnail != null) {
-                        thumbnail = addVideoOverlay(thumbnail);
-                    }
                     //} else {  do nothing
                 }
 
+                if (thumbnail != null && isVideo()) {
+                    thumbnail = addVideoOverlay(thumbnail);
+                }
+
             } catch(OutOfMemoryError oome) {
                 System.gc();
             } catch (Throwable t) {
@@ -316,6 +800,32 @@ public class ThumbnailsCacheManager {
             return thumbnail;
         }
 
+        @Override
+        public void imageKeyGenerated(String imageKey, Bitmap bitmap) {
+            Bitmap thumbnail = (bitmap != null) ? bitmap : getBitmapFromDiskCache(imageKey);
+            if (thumbnail != null && isVideo()) {
+                thumbnail = addVideoOverlay(thumbnail);
+            }
+            final Bitmap result = thumbnail;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isCancelled()) {
+                        onPostExecute(result);
+                    }
+                }
+            });
+        }
+
+        private boolean isVideo() {
+            if (mFile instanceof OCFile) {
+                return MimeTypeUtil.isVideo((OCFile) mFile);
+            } else if (mFile instanceof File) {
+                return MimeTypeUtil.isVideo(FileStorageUtils.getMimeTypeFromName(((File) mFile).getAbsolutePath()));
+            }
+            return false;
+        }
+
         protected void onPostExecute(Bitmap bitmap){
             if (bitmap != null && mImageViewReference != null) {
                 final ImageView imageView = mImageViewReference.get();
@@ -382,8 +892,7 @@ public class ThumbnailsCacheManager {
             return test;
         }
 
-        private Bitmap doOCFileInBackground(Boolean isThumbnail) {
-            Bitmap thumbnail = null;
+        private Bitmap doOCFileInBackground(OwnCloudClient client, Boolean isThumbnail) {
             OCFile file = (OCFile)mFile;
 
             // distinguish between thumbnail and resized image
@@ -396,8 +905,23 @@ public class ThumbnailsCacheManager {
 
             final String imageKey = temp;
 
+            ImageKeyGeneration generation = startImageKeyGeneration(imageKey, this);
+            if (generation == null) {
+                // another task is generating it, and hands it to this one when done
+                return null;
+            }
+            Bitmap thumbnail = null;
+            try {
+                thumbnail = generateOCFileThumbnail(client, file, imageKey);
+            } finally {
+                finishImageKeyGeneration(imageKey, generation, thumbnail);
+            }
+            return thumbnail;
+        }
+
+        private Bitmap generateOCFileThumbnail(OwnCloudClient client, OCFile file, String imageKey) {
             // Check disk cache in background thread
-            thumbnail = getBitmapFromDiskCache(imageKey);
+            Bitmap thumbnail = getBitmapFromDiskCache(imageKey);
 
             // Not found in disk cache
             if (thumbnail == null || file.needsUpdateThumbnail()) {
@@ -425,32 +949,33 @@ public class ThumbnailsCacheManager {
                                 pxW, pxH);
 
                         file.setNeedsUpdateThumbnail(false);
-                        mStorageManager.saveFile(file);
+                        if (file.fileExists()) {
+                            thumbnailUpdated(mStorageManager.getAccount(), file.getFileId());
+                        }
                     }
 
-                } else {
+                } else if (!isCancelled()) {
                     // Download thumbnail from server
                     OwnCloudVersion serverOCVersion = AccountUtils.getServerVersion(mAccount);
-                    if (mClient != null && serverOCVersion != null) {
+                    if (client != null && serverOCVersion != null) {
                         if (serverOCVersion.supportsRemoteThumbnails()) {
                             GetMethod get = null;
                             try {
                                 if (mIsThumbnail) {
-                                    String uri = mClient.getBaseUri() + "" +
+                                    String uri = client.getBaseUri() + "" +
                                             "/index.php/apps/files/api/v1/thumbnail/" +
                                             pxW + "/" + pxH + Uri.encode(file.getRemotePath(), "/");
                                     Log_OC.d("Thumbnail", "URI: " + uri);
                                     get = new GetMethod(uri);
                                     get.setRequestHeader("Cookie",
                                             "nc_sameSiteCookielax=true;nc_sameSiteCookiestrict=true");
-                                    int status = mClient.executeMethod(get);
+                                    int status = client.executeMethod(get);
                                     if (status == HttpStatus.SC_OK) {
-                                        InputStream inputStream = get.getResponseBodyAsStream();
-                                        Bitmap bitmap = BitmapFactory.decodeStream(inputStream);
-                                        thumbnail = ThumbnailUtils.extractThumbnail(bitmap, pxW, pxH);
+                                        // the server sends it cropped to the requested size
+                                        thumbnail = addResponseToCache(imageKey, get);
                                     }
                                 } else {
-                                    String uri = mClient.getBaseUri() + "" +
+                                    String uri = client.getBaseUri() + "" +
                                             "/index.php/apps/gallery/api/preview/" +
                                             Integer.parseInt(file.getRemoteId().substring(0,8)) +
                                             "/" + pxW + "/" + pxH;
@@ -459,24 +984,12 @@ public class ThumbnailsCacheManager {
                                     get = new GetMethod(uri);
                                     get.setRequestHeader("Cookie",
                                             "nc_sameSiteCookielax=true;nc_sameSiteCookiestrict=true");
-                                    int status = mClient.executeMethod(get);
+                                    int status = client.executeMethod(get);
                                     if (status == HttpStatus.SC_OK) {
-                                        InputStream inputStream = get.getResponseBodyAsStream();
-                                        Bitmap bitmap = BitmapFactory.decodeStream(inputStream);
                                         // Download via gallery app
-                                        thumbnail = bitmap;
+                                        thumbnail = addResponseToCache(imageKey, get);
                                     }
                                 }
-
-                                // Handle PNG
-                                if (file.getMimetype().equalsIgnoreCase("image/png")) {
-                                    thumbnail = handlePNG(thumbnail, pxW);
-                                }
-
-                                // Add thumbnail to cache
-                                if (thumbnail != null) {
-                                    addBitmapToCache(imageKey, thumbnail);
-                                }
                             } catch (Exception e) {
                                 Log_OC.d(TAG, e.getMessage(), e);
                             } finally {
@@ -512,6 +1025,21 @@ public class ThumbnailsCacheManager {
                 mImageKey = "r" + mImageKey;
             }
 
+            ImageKeyGeneration generation = startImageKeyGeneration(imageKey, this);
+            if (generation == null) {
+                // another task is generating it, and hands it to this one when done
+                return null;
+            }
+            Bitmap thumbnail = null;
+            try {
+                thumbnail = generateFileThumbnail(file, imageKey, mIsThumbnail);
+            } finally {
+                finishImageKeyGeneration(imageKey, generation, thumbnail);
+            }
+            return thumbnail;
+        }
+
+        private Bitmap generateFileThumbnail(File file, String imageKey, Boolean mIsThumbnail) {
             // Check disk cache in background thread
             Bitmap thumbnail = getBitmapFromDiskCache(imageKey);
 
@@ -539,16 +1067,31 @@ public class ThumbnailsCacheManager {
 
     }
 
-    public static class MediaThumbnailGenerationTask extends AsyncTask<Object, Void, Bitmap> {
+    public static class MediaThumbnailGenerationTask extends AsyncTask<Object, Void, Bitmap>
+            implements ImageKeyWaiter {
         private final WeakReference<ImageView> mImageViewReference;
         private File mFile;
         private String mImageKey = null;
+        /** Set when another task generates the image; the result is shown when it hands it over */
+        private volatile boolean mWaitingForImageKey = false;
 
         public MediaThumbnailGenerationTask(ImageView imageView) {
             // Use a WeakReference to ensure the ImageView can be garbage collected
             mImageViewReference = new WeakReference<>(imageView);
         }
 
+        /**
+         * Executes the task in {@link #LOCAL_THUMBNAIL_EXECUTOR}.
+         *
+         * @param params    Same parameters as {@link #execute(Object[])}.
+         */
+        public void executeOnThumbnailExecutor(Object... params) {
+            if (params[0] instanceof File) {
+                mFile = (File) params[0];
+            }
+            executeOnExecutor(LOCAL_THUMBNAIL_EXECUTOR, params);
+        }
+
         @Override
         protected Bitmap doInBackground(Object... params) {
             Bitmap thumbnail = null;
@@ -575,7 +1118,26 @@ public class ThumbnailsCacheManager {
             return thumbnail;
         }
 
+        @Override
+        public void imageKeyGenerated(String imageKey, Bitmap bitmap) {
+            final Bitmap thumbnail = (bitmap != null) ? bitmap : getBitmapFromDiskCache(imageKey);
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isCancelled()) {
+                        showThumbnail(thumbnail);
+                    }
+                }
+            });
+        }
+
         protected void onPostExecute(Bitmap bitmap) {
+            if (!mWaitingForImageKey) {
+                showThumbnail(bitmap);
+            }
+        }
+
+        private void showThumbnail(Bitmap bitmap) {
             String tagId = "";
             final ImageView imageView = mImageViewReference.get();
             if (imageView != null) {
@@ -612,6 +1174,23 @@ public class ThumbnailsCacheManager {
                 imageKey = String.valueOf(file.hashCode());
             }
 
+            mWaitingForImageKey = true;
+            ImageKeyGeneration generation = startImageKeyGeneration(imageKey, this);
+            if (generation == null) {
+                // another task is generating it, and hands it to this one when done
+                return null;
+            }
+            mWaitingForImageKey = false;
+            Bitmap thumbnail = null;
+            try {
+                thumbnail = generateFileThumbnail(file, imageKey);
+            } finally {
+                finishImageKeyGeneration(imageKey, generation, thumbnail);
+            }
+            return thumbnail;
+        }
+
+        private Bitmap generateFileThumbnail(File file, String imageKey) {
             // Check disk cache in background thread
             Bitmap thumbnail = getBitmapFromDiskCache(imageKey);
 
@@ -630,10 +1209,10 @@ public class ThumbnailsCacheManager {
         }
     }
 
-    public static class AvatarGenerationTask extends AsyncTask<String, Void, Bitmap> {
+    public static class AvatarGenerationTask extends AsyncTask<String, Void, Bitmap> implements ImageKeyWaiter {
         private final WeakReference<AvatarGenerationListener> mAvatarGenerationListener;
         private final Object mCallContext;
-        private Account mAccount;
+        private final Account mAccount;
         private String mUsername;
 
 
@@ -647,21 +1226,23 @@ public class ThumbnailsCacheManager {
             mAccount = account;
         }
 
+        /**
+         * Executes the task in {@link #REMOTE_THUMBNAIL_EXECUTOR}.
+         *
+         * @param params    Same parameters as {@link #execute(Object[])}.
+         */
+        public void executeOnThumbnailExecutor(String... params) {
+            executeOnExecutor(REMOTE_THUMBNAIL_EXECUTOR, params);
+        }
+
         @SuppressFBWarnings("Dm")
         @Override
         protected Bitmap doInBackground(String... params) {
             Bitmap thumbnail = null;
 
             try {
-                if (mAccount != null) {
-                    OwnCloudAccount ocAccount = new OwnCloudAccount(mAccount,
-                            MainApp.getAppContext());
-                    mClient = OwnCloudClientManagerFactory.getDefaultSingleton().
-                            getClientFor(ocAccount, MainApp.getAppContext());
-                }
-
                 mUsername = params[0];
-                thumbnail = doAvatarInBackground();
+                thumbnail = doAvatarInBackground(getClientFor(mAccount));
 
             } catch(OutOfMemoryError oome) {
                 System.gc(); // todo, does this really make sense?
@@ -673,6 +1254,19 @@ public class ThumbnailsCacheManager {
             return thumbnail;
         }
 
+        @Override
+        public void imageKeyGenerated(String imageKey, Bitmap bitmap) {
+            final Bitmap avatar = (bitmap != null) ? bitmap : getBitmapFromDiskCache(imageKey);
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isCancelled()) {
+                        onPostExecute(avatar);
+                    }
+                }
+            });
+        }
+
         protected void onPostExecute(Bitmap bitmap) {
             if (bitmap != null) {
                 AvatarGenerationListener listener = mAvatarGenerationListener.get();
@@ -715,11 +1309,26 @@ public class ThumbnailsCacheManager {
             return Math.round(r.getDimension(R.dimen.file_avatar_size));
         }
 
-        private Bitmap doAvatarInBackground() {
+        private Bitmap doAvatarInBackground(OwnCloudClient client) {
             String username = (String) mUsername;
 
-            final String imageKey = "a_" + username;
+            final String imageKey = AVATAR_KEY_PREFIX + username;
+
+            ImageKeyGeneration generation = startImageKeyGeneration(imageKey, this);
+            if (generation == null) {
+                // another task is generating it, and hands it to this one when done
+                return null;
+            }
+            Bitmap avatar = null;
+            try {
+                avatar = generateAvatar(client, username, imageKey);
+            } finally {
+                finishImageKeyGeneration(imageKey, generation, avatar);
+            }
+            return avatar;
+        }
 
+        private Bitmap generateAvatar(OwnCloudClient client, String username, String imageKey) {
             // Check disk cache in background thread
             Bitmap avatar = getBitmapFromDiskCache(imageKey);
 
@@ -730,15 +1339,15 @@ public class ThumbnailsCacheManager {
 
                 // Download avatar from server
                 OwnCloudVersion serverOCVersion = AccountUtils.getServerVersion(mAccount);
-                if (mClient != null && serverOCVersion != null) {
+                if (client != null && serverOCVersion != null) {
                     if (serverOCVersion.supportsRemoteThumbnails()) {
                         GetMethod get = null;
                         try {
-                            String uri = mClient.getBaseUri() + "" +
+                            String uri = client.getBaseUri() + "" +
                                     "/index.php/avatar/" + AccountUtils.getAccountUsername(username) + "/" + px;
                             Log_OC.d("Avatar", "URI: " + uri);
                             get = new GetMethod(uri);
-                            int status = mClient.executeMethod(get);
+                            int status = client.executeMethod(get);
                             if (status == HttpStatus.SC_OK) {
                                 InputStream inputStream = get.getResponseBodyAsStream();
                                 Bitmap bitmap = BitmapFactory.decodeStream(inputStream);
@@ -750,7 +1359,7 @@ public class ThumbnailsCacheManager {
                                     addBitmapToCache(imageKey, avatar);
                                 }
                             } else {
-                                mClient.exhaustResponse(get.getResponseBodyAsStream());
+                                client.exhaustResponse(get.getResponseBodyAsStream());
                             }
                         } catch (Exception e) {
                             Log_OC.e(TAG, "Error downloading avatar", e);
@@ -787,6 +1396,25 @@ public class ThumbnailsCacheManager {
         return true;
     }
 
+    public static boolean cancelPotentialMediaThumbnailWork(File file, ImageView imageView) {
+        final MediaThumbnailGenerationTask bitmapWorkerTask = getMediaBitmapWorkerTask(imageView);
+
+        if (bitmapWorkerTask != null) {
+            final File bitmapData = bitmapWorkerTask.mFile;
+            // If bitmapData is not yet set or it differs from the new data
+            if (bitmapData == null || !bitmapData.equals(file)) {
+                // Cancel previous task
+                bitmapWorkerTask.cancel(true);
+                Log_OC.v(TAG, "Cancelled generation of media thumbnail for a reused imageView");
+            } else {
+                // The same work is already in progress
+                return false;
+            }
+        }
+        // No task associated with the ImageView, or an existing task was cancelled
+        return true;
+    }
+
     public static boolean cancelPotentialAvatarWork(Object file, Object callContext) {
         if (callContext instanceof ImageView) {
             return cancelPotentialAvatarWork(file, (ImageView) callContext);
@@ -846,6 +1474,17 @@ public class ThumbnailsCacheManager {
         return null;
     }
 
+    public static MediaThumbnailGenerationTask getMediaBitmapWorkerTask(ImageView imageView) {
+        if (imageView != null) {
+            final Drawable drawable = imageView.getDrawable();
+            if (drawable instanceof AsyncMediaThumbnailDrawable) {
+                final AsyncMediaThumbnailDrawable asyncDrawable = (AsyncMediaThumbnailDrawable) drawable;
+                return asyncDrawable.getBitmapWorkerTask();
+            }
+        }
+        return null;
+    }
+
     public static Bitmap addVideoOverlay(Bitmap thumbnail){
         Bitmap playButton = BitmapFactory.decodeResource(MainApp.getAppContext().getResources(),
                 R.drawable.view_play);
@@ -966,6 +1605,8 @@ public class ThumbnailsCacheManager {
         c.drawColor(MainApp.getAppContext().getResources().
                 getColor(R.color.background_color));
         c.drawBitmap(bitmap, 0, 0, null);
+        // fully painted; cached as JPEG
+        resultBitmap.setHasAlpha(false);
 
         return resultBitmap;
     }
@@ -126,7 +126,7 @@ public class UploadsStorageManager extends Observable {
         } else {
             long new_id = Long.parseLong(result.getPathSegments().get(1));
             ocUpload.setUploadId(new_id);
-            notifyObserversNow();
+            notifyObserversNow(new_id);
             return new_id;
         }
     }
@@ -158,7 +158,7 @@ public class UploadsStorageManager extends Observable {
         if (result != 1) {
             Log_OC.e(TAG, "Failed to update item " + ocUpload.getLocalPath() + " into upload db.");
         } else {
-            notifyObserversNow();
+            notifyObserversNow(ocUpload.getUploadId());
         }
 
         return result;
@@ -185,7 +185,8 @@ public class UploadsStorageManager extends Observable {
             if(localPath != null) {
                 upload.setLocalPath(localPath);
             }
-            if (status == UploadStatus.UPLOAD_SUCCEEDED) {
+            if (status == UploadStatus.UPLOAD_SUCCEEDED || status == UploadStatus.UPLOAD_FAILED) {
+                // needed also by failed uploads to expire them from the history
                 upload.setUploadEndTimestamp(Calendar.getInstance().getTimeInMillis());
             }
 
@@ -234,6 +235,9 @@ public class UploadsStorageManager extends Observable {
     /**
      * Should be called when some value of this DB was changed. All observers
      * are informed.
+     *
+     * Observers receive as argument the ids of the changed uploads, as a long[], or null when any upload may have
+     * changed.
      */
     public void notifyObserversNow() {
         Log_OC.d(TAG, "notifyObserversNow");
@@ -241,6 +245,12 @@ public class UploadsStorageManager extends Observable {
         notifyObservers();
     }
 
+    private void notifyObserversNow(long uploadId) {
+        Log_OC.d(TAG, "notifyObserversNow " + uploadId);
+        setChanged();
+        notifyObservers(new long[]{uploadId});
+    }
+
 
     /**
      * Remove an upload from the uploads list, known its target account and remote path.
@@ -257,7 +267,7 @@ public class UploadsStorageManager extends Observable {
         );
         Log_OC.d(TAG, "delete returns " + result + " for upload " + upload);
         if (result > 0) {
-            notifyObserversNow();
+            notifyObserversNow(upload.getUploadId());
         }
         return result;
     }
@@ -303,18 +313,68 @@ public class UploadsStorageManager extends Observable {
         return result;
     }
 
+    /**
+     * @param status    Status of the uploads to count.
+     * @return          Number of stored uploads in the status, in all the accounts.
+     */
+    public int getUploadsCount(UploadStatus status) {
+        return (int) getSummaryTotal(ProviderTableMeta.UPLOADS_SUMMARY_COUNT, status);
+    }
+
+    /**
+     * @param status    Status of the uploads to measure.
+     * @return          Total size in bytes of the stored uploads in the status, in all the accounts.
+     */
+    public long getUploadsSize(UploadStatus status) {
+        return getSummaryTotal(ProviderTableMeta.UPLOADS_SUMMARY_SIZE, status);
+    }
+
+    /**
+     * Reads a total from the summary of uploads, kept by the database, instead of scanning the uploads.
+     */
+    private long getSummaryTotal(String column, UploadStatus status) {
+        long total = 0;
+        Cursor c = getDB().query(
+                ProviderTableMeta.CONTENT_URI_UPLOADS_SUMMARY,
+                new String[]{"SUM(" + column + ")"},
+                ProviderTableMeta.UPLOADS_SUMMARY_STATUS + "=?",
+                new String[]{String.valueOf(status.getValue())},
+                null
+        );
+        if (c != null) {
+            if (c.moveToFirst()) {
+                total = c.getLong(0);
+            }
+            c.close();
+        }
+        return total;
+    }
+
     public OCUpload[] getAllStoredUploads() {
         return getUploads(null, null);
     }
 
 
+    /**
+     * @param id    Id of an upload.
+     * @return      Stored upload with the id, or null if there is none.
+     */
+    public OCUpload getUploadById(long id) {
+        OCUpload[] uploads = getUploads(ProviderTableMeta._ID + "=?", new String[]{String.valueOf(id)});
+        return uploads.length > 0 ? uploads[0] : null;
+    }
+
     private OCUpload[] getUploads(String selection, String[] selectionArgs) {
+        return getUploads(ProviderTableMeta.CONTENT_URI_UPLOADS, selection, selectionArgs, null);
+    }
+
+    private OCUpload[] getUploads(Uri uri, String selection, String[] selectionArgs, String sortOrder) {
         Cursor c = getDB().query(
-                ProviderTableMeta.CONTENT_URI_UPLOADS,
+                uri,
                 null,
                 selection,
                 selectionArgs,
-                null
+                sortOrder
         );
         OCUpload[] list = new OCUpload[c.getCount()];
         if (c.moveToFirst()) {
@@ -386,6 +446,30 @@ public class UploadsStorageManager extends Observable {
         return getUploads(ProviderTableMeta.UPLOADS_STATUS + "==" + UploadStatus.UPLOAD_SUCCEEDED.value, null);
     }
 
+    /**
+     * Gets a page of the uploads successfully completed, the most recently finished first, so that the history
+     * does not need to be read completely to show its beginning.
+     *
+     * @param after     Last upload of the previous page, or null to get the first page.
+     * @param count     Maximum number of uploads in the page.
+     * @return          Uploads finished before 'after', sorted by descending end time and id.
+     */
+    public OCUpload[] getFinishedUploads(OCUpload after, int count) {
+        String selection = ProviderTableMeta.UPLOADS_STATUS + "==" + UploadStatus.UPLOAD_SUCCEEDED.value;
+        String[] selectionArgs = null;
+        if (after != null) {
+            selection += AND + "(" + ProviderTableMeta.UPLOADS_UPLOAD_END_TIMESTAMP + "<? OR (" +
+                    ProviderTableMeta.UPLOADS_UPLOAD_END_TIMESTAMP + "=?" + AND + ProviderTableMeta._ID + "<?))";
+            String endTimestamp = String.valueOf(after.getUploadEndTimestamp());
+            selectionArgs = new String[]{endTimestamp, endTimestamp, String.valueOf(after.getUploadId())};
+        }
+        Uri uri = ProviderTableMeta.CONTENT_URI_UPLOADS.buildUpon()
+                .appendQueryParameter(ProviderTableMeta.PAGE_PARAM_LIMIT, String.valueOf(count))
+                .build();
+        return getUploads(uri, selection, selectionArgs,
+                ProviderTableMeta.UPLOADS_UPLOAD_END_TIMESTAMP + " DESC, " + ProviderTableMeta._ID + " DESC");
+    }
+
     /**
      * Get all failed uploads, except for those that were not performed due to lack of Wifi connection
      * @return      Array of failed uploads, except for those that were not performed due to lack of Wifi connection.
@@ -39,6 +39,13 @@ public abstract class PreferenceManager {
     private static final String AUTO_PREF__SORT_ASCENDING = "sort_ascending";
     private static final String AUTO_PREF__UPLOADER_BEHAVIOR = "prefs_uploader_behaviour";
     private static final String AUTO_PREF__GRID_COLUMNS = "grid_columns";
+    private static final String AUTO_PREF__FULL_SYNC_PARALLELISM = "full_sync_parallelism";
+    private static final String AUTO_PREF__UPLOAD_LANES = "upload_lanes";
+    private static final String AUTO_PREF__DOWNLOAD_LANES = "download_lanes";
+    private static final String AUTO_PREF__IMAGE_PREFETCH = "image_prefetch";
+    private static final String AUTO_PREF__UPLOAD_WITHOUT_STAGING = "upload_without_staging";
+    private static final String AUTO_PREF__UPLOADS_HISTORY_MAX_COUNT = "uploads_history_max_count";
+    private static final String AUTO_PREF__UPLOADS_HISTORY_MAX_AGE_DAYS = "uploads_history_max_age_days";
     private static final String PREF__INSTANT_UPLOADING = "instant_uploading";
     private static final String PREF__INSTANT_UPLOAD_PATH_ACCOUNT = "instant_upload_path_account";
     private static final String PREF__INSTANT_VIDEO_UPLOADING = "instant_video_uploading";
@@ -47,6 +54,9 @@ public abstract class PreferenceManager {
     private static final String PREF__INSTANT_VIDEO_UPLOAD_ON_WIFI = "instant_video_upload_on_wifi";
     private static final String PREF__INSTANT_VIDEO_UPLOAD_PATH_USE_SUBFOLDERS = "instant_video_upload_path_use_subfolders";
     private static final String PREF__INSTANT_VIDEO_UPLOAD_PATH_ACCOUNT = "instant_video_upload_path_account";
+    private static final String PREF__THUMBNAIL_PREFETCH = "thumbnail_prefetch";
+    private static final String PREF__THUMBNAIL_PREFETCH_ON_WIFI = "thumbnail_prefetch_on_wifi";
+    private static final String PREF__THUMBNAIL_PREFETCH_ON_CHARGING = "thumbnail_prefetch_on_charging";
 
     public static boolean instantPictureUploadEnabled(Context context) {
         return getDefaultSharedPreferences(context).getBoolean(PREF__INSTANT_UPLOADING, false);
@@ -92,6 +102,25 @@ public abstract class PreferenceManager {
         return PreferenceManager.getDefaultSharedPreferences(context).getBoolean("show_hidden_files_pref", false);
     }
 
+    /**
+     * Gets whether the thumbnails of folders with many images not in cache are downloaded in background after
+     * refreshing them.
+     *
+     * @param context Caller {@link Context}, used to access to shared preferences manager.
+     * @return 'true' if thumbnails are prefetched, 'false' (default) otherwise
+     */
+    public static boolean thumbnailPrefetchEnabled(Context context) {
+        return getDefaultSharedPreferences(context).getBoolean(PREF__THUMBNAIL_PREFETCH, false);
+    }
+
+    public static boolean thumbnailPrefetchViaWiFiOnly(Context context) {
+        return getDefaultSharedPreferences(context).getBoolean(PREF__THUMBNAIL_PREFETCH_ON_WIFI, true);
+    }
+
+    public static boolean thumbnailPrefetchWhenChargingOnly(Context context) {
+        return getDefaultSharedPreferences(context).getBoolean(PREF__THUMBNAIL_PREFETCH_ON_CHARGING, false);
+    }
+
     /**
      * Gets the path where the user selected to do the last upload of a file shared from other app.
      *
@@ -194,6 +223,128 @@ public abstract class PreferenceManager {
         saveFloatPreference(context, AUTO_PREF__GRID_COLUMNS, gridColumns);
     }
 
+    /**
+     * Gets the maximum number of folders refreshed at the same time during a full synchronization of an account.
+     *
+     * @param context Caller {@link Context}, used to access to shared preferences manager.
+     * @return number of parallel folder refreshes, default is 4
+     */
+    public static int getFullSyncParallelism(Context context) {
+        return Math.max(1, getDefaultSharedPreferences(context).getInt(AUTO_PREF__FULL_SYNC_PARALLELISM, 4));
+    }
+
+    /**
+     * Saves the maximum number of folders refreshed at the same time during a full synchronization of an account.
+     *
+     * @param context     Caller {@link Context}, used to access to shared preferences manager.
+     * @param parallelism number of parallel folder refreshes
+     */
+    public static void setFullSyncParallelism(Context context, int parallelism) {
+        saveIntPreference(context, AUTO_PREF__FULL_SYNC_PARALLELISM, parallelism);
+    }
+
+    /**
+     * Gets the number of uploads run at the same time, not counting the lane reserved for small files.
+     *
+     * @param context Caller {@link Context}, used to access to shared preferences manager.
+     * @return number of upload lanes, default is 2
+     */
+    public static int getUploadLanes(Context context) {
+        return Math.max(1, getDefaultSharedPreferences(context).getInt(AUTO_PREF__UPLOAD_LANES, 2));
+    }
+
+    /**
+     * Saves the number of uploads run at the same time, not counting the lane reserved for small files.
+     *
+     * @param context Caller {@link Context}, used to access to shared preferences manager.
+     * @param lanes   number of upload lanes
+     */
+    public static void setUploadLanes(Context context, int lanes) {
+        saveIntPreference(context, AUTO_PREF__UPLOAD_LANES, lanes);
+    }
+
+    /**
+     * Gets the number of downloads run at the same time.
+     *
+     * @param context Caller {@link Context}, used to access to shared preferences manager.
+     * @return number of download lanes, default is 3
+     */
+    public static int getDownloadLanes(Context context) {
+        return Math.max(1, getDefaultSharedPreferences(context).getInt(AUTO_PREF__DOWNLOAD_LANES, 3));
+    }
+
+    /**
+     * Saves the number of downloads run at the same time.
+     *
+     * @param context Caller {@link Context}, used to access to shared preferences manager.
+     * @param lanes   number of download lanes
+     */
+    public static void setDownloadLanes(Context context, int lanes) {
+        saveIntPreference(context, AUTO_PREF__DOWNLOAD_LANES, lanes);
+    }
+
+    /**
+     * Gets the number of images after the one shown in the gallery that are downloaded in advance.
+     *
+     * @param context Caller {@link Context}, used to access to shared preferences manager.
+     * @return number of prefetched images, default is 2; 0 disables the prefetch
+     */
+    public static int getImagePrefetchCount(Context context) {
+        return Math.max(0, getDefaultSharedPreferences(context).getInt(AUTO_PREF__IMAGE_PREFETCH, 2));
+    }
+
+    /**
+     * Saves the number of images after the one shown in the gallery that are downloaded in advance.
+     *
+     * @param context Caller {@link Context}, used to access to shared preferences manager.
+     * @param count   number of prefetched images, 0 to disable the prefetch
+     */
+    public static void setImagePrefetchCount(Context context, int count) {
+        saveIntPreference(context, AUTO_PREF__IMAGE_PREFETCH, count);
+    }
+
+    /**
+     * Gets if files uploaded keeping the original in place are sent directly from the original, instead of from a
+     * copy made in the temporal folder before the upload.
+     *
+     * @param context Caller {@link Context}, used to access to shared preferences manager.
+     * @return true to upload unchanged files without copying them first, default is false
+     */
+    public static boolean isUploadWithoutStagingEnabled(Context context) {
+        return getDefaultSharedPreferences(context).getBoolean(AUTO_PREF__UPLOAD_WITHOUT_STAGING, false);
+    }
+
+    /**
+     * Saves if files uploaded keeping the original in place are sent directly from the original.
+     *
+     * @param context Caller {@link Context}, used to access to shared preferences manager.
+     * @param enabled true to upload unchanged files without copying them first
+     */
+    public static void setUploadWithoutStagingEnabled(Context context, boolean enabled) {
+        saveBooleanPreference(context, AUTO_PREF__UPLOAD_WITHOUT_STAGING, enabled);
+    }
+
+    /**
+     * Gets the number of successful uploads kept in the list of uploads; older ones are removed.
+     *
+     * @param context Caller {@link Context}, used to access to shared preferences manager.
+     * @return maximum number of successful uploads kept, default is 30
+     */
+    public static int getUploadsHistoryMaxCount(Context context) {
+        return Math.max(0, getDefaultSharedPreferences(context).getInt(AUTO_PREF__UPLOADS_HISTORY_MAX_COUNT, 30));
+    }
+
+    /**
+     * Gets the days that successful and cancelled uploads are kept in the list of uploads after they finished.
+     * Other failed uploads are always kept.
+     *
+     * @param context Caller {@link Context}, used to access to shared preferences manager.
+     * @return days finished uploads are kept, 0 to keep them regardless of their age; default is 30
+     */
+    public static int getUploadsHistoryMaxAgeDays(Context context) {
+        return Math.max(0, getDefaultSharedPreferences(context).getInt(AUTO_PREF__UPLOADS_HISTORY_MAX_AGE_DAYS, 30));
+    }
+
     private static void saveBooleanPreference(Context context, String key, boolean value) {
         SharedPreferences.Editor appPreferences = getDefaultSharedPreferences(context.getApplicationContext()).edit();
         appPreferences.putBoolean(key, value).apply();
@@ -33,7 +33,7 @@ import com.owncloud.android.MainApp;
 public class ProviderMeta {
 
     public static final String DB_NAME = "filelist";
-    public static final int DB_VERSION = 16;
+    public static final int DB_VERSION = 18;
 
     private ProviderMeta() {
     }
@@ -43,6 +43,7 @@ public class ProviderMeta {
         public static final String OCSHARES_TABLE_NAME = "ocshares";
         public static final String CAPABILITIES_TABLE_NAME = "capabilities";
         public static final String UPLOADS_TABLE_NAME = "list_of_uploads";
+        public static final String UPLOADS_SUMMARY_TABLE_NAME = "uploads_summary";
         public static final String SYNCED_FOLDERS_TABLE_NAME = "synced_folders";
 
         private static final String CONTENT_PREFIX = "content://";
@@ -59,6 +60,8 @@ public class ProviderMeta {
                 + MainApp.getAuthority() + "/capabilities");
         public static final Uri CONTENT_URI_UPLOADS = Uri.parse(CONTENT_PREFIX
                 + MainApp.getAuthority() + "/uploads");
+        public static final Uri CONTENT_URI_UPLOADS_SUMMARY = Uri.parse(CONTENT_PREFIX
+                + MainApp.getAuthority() + "/uploads_summary");
         public static final Uri CONTENT_URI_SYNCED_FOLDERS = Uri.parse(CONTENT_PREFIX
                 + MainApp.getAuthority() + "/synced_folders");
 
@@ -91,6 +94,16 @@ public class ProviderMeta {
 
         public static final String FILE_DEFAULT_SORT_ORDER = FILE_NAME
                 + " collate nocase asc";
+
+        // Indexes of filelist table
+        public static final String FILE_PARENT_INDEX = "filelist_parent_index";
+        public static final String FILE_PATH_INDEX = "filelist_owner_path_index";
+        public static final String FILE_STORAGE_PATH_INDEX = "filelist_owner_media_path_index";
+        public static final String FILE_REMOTE_ID_INDEX = "filelist_remote_id_index";
+
+        // Query parameters of CONTENT_URI_UPLOADS to read a page
+        public static final String PAGE_PARAM_OFFSET = "offset";
+        public static final String PAGE_PARAM_LIMIT = "limit";
         
         // Columns of ocshares table
         public static final String OCSHARES_FILE_SOURCE = "file_source";
@@ -157,6 +170,17 @@ public class ProviderMeta {
         public static final String UPLOADS_CREATED_BY = "created_by";
         public static final String UPLOADS_DEFAULT_SORT_ORDER = ProviderTableMeta._ID  + " collate nocase desc";
 
+        // Indexes of uploads table
+        public static final String UPLOADS_STATUS_INDEX = "uploads_status_result_index";
+        public static final String UPLOADS_END_TIMESTAMP_INDEX = "uploads_status_end_timestamp_index";
+        public static final String UPLOADS_REMOTE_PATH_INDEX = "uploads_account_remote_path_index";
+
+        // Columns of uploads summary table; number and size of the uploads of an account in every status
+        public static final String UPLOADS_SUMMARY_ACCOUNT_NAME = "account_name";
+        public static final String UPLOADS_SUMMARY_STATUS = "status";
+        public static final String UPLOADS_SUMMARY_COUNT = "uploads_count";
+        public static final String UPLOADS_SUMMARY_SIZE = "uploads_size";
+
         // Columns of synced folder table
         public static final String SYNCED_FOLDER_LOCAL_PATH = "local_path";
         public static final String SYNCED_FOLDER_REMOTE_PATH = "remote_path";
@@ -37,7 +37,7 @@ import com.owncloud.android.lib.common.utils.Log_OC;
 /**
  * Receives all connectivity action from Android OS at all times and performs
  * required OC actions. For now that are: - Signal connectivity to
- * {@link FileUploader}.
+ * {@link FileUploader} and {@link FileDownloader}.
  * 
  * Later can be added: - Signal connectivity to download service, deletion
  * service, ... - Handle offline mode (cf.
@@ -168,7 +168,21 @@ public class ConnectivityActionReceiver extends BroadcastReceiver {
         */
     }
 
-    private void wifiConnected(Context context) {
+    private void wifiConnected(final Context context) {
+        // downloads interrupted by the loss of connectivity resume their partial content; their files are read
+        // from database, out of the main thread
+        final PendingResult pendingResult = goAsync();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    new InterruptedDownloadsQueue(context).retryAll();
+                } finally {
+                    pendingResult.finish();
+                }
+            }
+        }).start();
+
         // for the moment, only recovery of instant uploads, similar to behaviour in release 1.9.1
         if (
                 (PreferenceManager.instantPictureUploadEnabled(context) &&
@@ -28,11 +28,7 @@ import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Intent;
 import android.os.Binder;
-import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.IBinder;
-import android.os.Looper;
-import android.os.Message;
 import android.os.Process;
 import android.support.v4.app.NotificationCompat;
 import android.util.Pair;
@@ -42,6 +38,7 @@ import com.owncloud.android.authentication.AccountUtils;
 import com.owncloud.android.authentication.AuthenticatorActivity;
 import com.owncloud.android.datamodel.FileDataStorageManager;
 import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.db.PreferenceManager;
 import com.owncloud.android.lib.common.OwnCloudAccount;
 import com.owncloud.android.lib.common.OwnCloudClient;
 import com.owncloud.android.lib.common.OwnCloudClientManagerFactory;
@@ -49,50 +46,108 @@ import com.owncloud.android.lib.common.network.OnDatatransferProgressListener;
 import com.owncloud.android.lib.common.operations.RemoteOperationResult;
 import com.owncloud.android.lib.common.operations.RemoteOperationResult.ResultCode;
 import com.owncloud.android.lib.common.utils.Log_OC;
-import com.owncloud.android.lib.resources.files.FileUtils;
 import com.owncloud.android.ui.notifications.NotificationUtils;
 import com.owncloud.android.operations.DownloadFileOperation;
 import com.owncloud.android.ui.activity.FileActivity;
 import com.owncloud.android.ui.activity.FileDisplayActivity;
 import com.owncloud.android.ui.preview.PreviewImageActivity;
 import com.owncloud.android.ui.preview.PreviewImageFragment;
+import com.owncloud.android.utils.DisplayUtils;
 import com.owncloud.android.utils.ErrorMessageAdapter;
 
 import java.io.File;
-import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Vector;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 
 public class FileDownloader extends Service
-        implements OnDatatransferProgressListener, OnAccountsUpdateListener {
+        implements OnAccountsUpdateListener {
 
     public static final String EXTRA_ACCOUNT = "ACCOUNT";
     public static final String EXTRA_FILE = "FILE";
 
+    /**
+     * Optional boolean extra; 'true' when the user is waiting for the file, so it is downloaded before any other
+     * queued file.
+     */
+    public static final String EXTRA_PRIORITY = "PRIORITY";
+
+    /**
+     * Optional boolean extra; 'true' for speculative downloads, run only when no other download is waiting and
+     * without notifications.
+     */
+    public static final String EXTRA_PREFETCH = "PREFETCH";
+
     private static final String DOWNLOAD_ADDED_MESSAGE = "DOWNLOAD_ADDED";
     private static final String DOWNLOAD_FINISH_MESSAGE = "DOWNLOAD_FINISH";
     public static final String EXTRA_DOWNLOAD_RESULT = "RESULT";
     public static final String EXTRA_FILE_PATH = "FILE_PATH";
     public static final String EXTRA_REMOTE_PATH = "REMOTE_PATH";
     public static final String EXTRA_LINKED_TO_PATH = "LINKED_TO";
+    public static final String EXTRA_RESUMED_BYTES = "RESUMED_BYTES";
     public static final String ACCOUNT_NAME = "ACCOUNT_NAME";
 
     private static final String TAG = FileDownloader.class.getSimpleName();
 
-    private Looper mServiceLooper;
-    private ServiceHandler mServiceHandler;
+    /**
+     * Maximum number of downloads of the same account run at the same time, so that a long queue of one account
+     * does not take every lane, nor overloads its server.
+     */
+    private static final int MAX_DOWNLOADS_PER_ACCOUNT = 2;
+
+    /**
+     * Maximum number of downloads of the same account running when a prefetch starts, so that a download requested
+     * by the user never waits behind speculative ones.
+     */
+    private static final int MAX_PREFETCHES_PER_ACCOUNT = MAX_DOWNLOADS_PER_ACCOUNT - 1;
+
+    /**
+     * Signals released when the download of a file finishes, successfully or not, or is dropped, by download key.
+     */
+    private static final Map<String, CountDownLatch> sCompletionLatches = new HashMap<>();
+
     private IBinder mBinder;
-    private OwnCloudClient mDownloadClient = null;
-    private Account mCurrentAccount = null;
-    private FileDataStorageManager mStorageManager;
+    private InterruptedDownloadsQueue mInterruptedDownloads;
 
     private IndexedForest<DownloadFileOperation> mPendingDownloads = new IndexedForest<DownloadFileOperation>();
 
-    private DownloadFileOperation mCurrentDownload = null;
+    /**
+     * Keys of the downloads in mPendingDownloads waiting for a lane, grouped by account name; accounts are served in
+     * turns. Guarded by itself, as the rest of the state of the lanes.
+     */
+    private final LinkedHashMap<String, ArrayDeque<String>> mQueuedDownloads = new LinkedHashMap<>();
+
+    /**
+     * Keys of speculative downloads, served only when no download in mQueuedDownloads can run.
+     */
+    private final ArrayDeque<String> mQueuedPrefetches = new ArrayDeque<>();
+    private final Set<String> mPrefetchKeys = new HashSet<>();
+
+    private final Map<String, Integer> mRunningDownloadsPerAccount = new HashMap<>();
+    private int mRunningDownloads = 0;
+    private int mLastStartId;
+    private boolean mLanesStopped = false;
+
+    /**
+     * {@link DownloadFileOperation} objects of ongoing downloads, by download key.
+     */
+    private final Map<String, DownloadFileOperation> mCurrentDownloads = new ConcurrentHashMap<>();
 
     private NotificationManager mNotificationManager;
+
+    /**
+     * Downloaded and total bytes of the downloads running in the lanes, except prefetches, shown together in a
+     * single progress notification while any of them is running. Access synchronized on this, as the notification.
+     */
+    private final Map<DownloadFileOperation, long[]> mDownloadsProgress = new LinkedHashMap<>();
     private NotificationCompat.Builder mNotificationBuilder;
     private int mLastPercent;
 
@@ -105,6 +160,66 @@ public class FileDownloader extends Service
         return FileDownloader.class.getName() + DOWNLOAD_FINISH_MESSAGE;
     }
 
+    /**
+     * Gets a signal released when the next download of a file finishes, successfully or not, or when the request
+     * is rejected or dropped; the state of the file tells which.
+     *
+     * Must be called before requesting the download, so the signal can not be missed. Only valid in the process
+     * of the service.
+     *
+     * @param account   Account owning the file.
+     * @param file      File to download.
+     * @return          Signal to wait for.
+     */
+    public static CountDownLatch getCompletionLatch(Account account, OCFile file) {
+        String downloadKey = account.name + file.getRemotePath();
+        synchronized (sCompletionLatches) {
+            CountDownLatch latch = sCompletionLatches.get(downloadKey);
+            if (latch == null) {
+                latch = new CountDownLatch(1);
+                sCompletionLatches.put(downloadKey, latch);
+            }
+            return latch;
+        }
+    }
+
+    private static void releaseCompletionLatch(String downloadKey) {
+        CountDownLatch latch;
+        synchronized (sCompletionLatches) {
+            latch = sCompletionLatches.remove(downloadKey);
+        }
+        if (latch != null) {
+            latch.countDown();
+        }
+    }
+
+    /**
+     * Releases the signals of the downloads dropped from the queue, for a file or the files in a folder, that will
+     * never run; the downloads in progress release theirs when they finish.
+     *
+     * @param keyPath   Account name and remote path of the file or folder, or an empty string for all of them.
+     */
+    private void releaseDroppedCompletionLatches(String keyPath) {
+        String folderPrefix = keyPath.endsWith(OCFile.PATH_SEPARATOR) ? keyPath : keyPath + OCFile.PATH_SEPARATOR;
+        List<CountDownLatch> released = new ArrayList<>();
+        synchronized (sCompletionLatches) {
+            Iterator<Map.Entry<String, CountDownLatch>> it = sCompletionLatches.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, CountDownLatch> entry = it.next();
+                String downloadKey = entry.getKey();
+                boolean dropped = keyPath.length() == 0 || downloadKey.equals(keyPath) ||
+                        downloadKey.startsWith(folderPrefix);
+                if (dropped && !mCurrentDownloads.containsKey(downloadKey)) {
+                    released.add(entry.getValue());
+                    it.remove();
+                }
+            }
+        }
+        for (CountDownLatch latch : released) {
+            latch.countDown();
+        }
+    }
+
     /**
      * Service initialization
      */
@@ -113,12 +228,13 @@ public class FileDownloader extends Service
         super.onCreate();
         Log_OC.d(TAG, "Creating service");
         mNotificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
-        HandlerThread thread = new HandlerThread("FileDownloaderThread",
-                Process.THREAD_PRIORITY_BACKGROUND);
-        thread.start();
-        mServiceLooper = thread.getLooper();
-        mServiceHandler = new ServiceHandler(mServiceLooper, this);
         mBinder = new FileDownloaderBinder();
+        mInterruptedDownloads = new InterruptedDownloadsQueue(this);
+
+        int lanes = PreferenceManager.getDownloadLanes(this);
+        for (int i = 0; i < lanes; i++) {
+            new DownloadLane("FileDownloaderThread-" + i).start();
+        }
 
         // add AccountsUpdatedListener
         AccountManager am = AccountManager.get(getApplicationContext());
@@ -133,10 +249,14 @@ public class FileDownloader extends Service
     public void onDestroy() {
         Log_OC.v(TAG, "Destroying service");
         mBinder = null;
-        mServiceHandler = null;
-        mServiceLooper.quit();
-        mServiceLooper = null;
-        mNotificationManager = null;
+        synchronized (mQueuedDownloads) {
+            // lanes finish their current download and stop
+            mLanesStopped = true;
+            mQueuedDownloads.notifyAll();
+        }
+        // queued downloads will not run
+        releaseDroppedCompletionLatches("");
+        // the notification manager is kept; lanes may still be finishing their current download
 
         // remove AccountsUpdatedListener
         AccountManager am = AccountManager.get(getApplicationContext());
@@ -164,30 +284,35 @@ public class FileDownloader extends Service
         } else {
             final Account account = intent.getParcelableExtra(EXTRA_ACCOUNT);
             final OCFile file = intent.getParcelableExtra(EXTRA_FILE);
-            AbstractList<String> requestedDownloads = new Vector<String>();
+            boolean priority = intent.getBooleanExtra(EXTRA_PRIORITY, false);
+            boolean prefetch = intent.getBooleanExtra(EXTRA_PREFETCH, false) && !priority;
             try {
                 DownloadFileOperation newDownload = new DownloadFileOperation(account, file);
-                newDownload.addDatatransferProgressListener(this);
-                newDownload.addDatatransferProgressListener((FileDownloaderBinder) mBinder);
+                // prefetches are not shown in the progress notification, unless promoted before they start
+                newDownload.addDatatransferProgressListener(getProgressListener(newDownload));
+                newDownload.addDatatransferProgressListener(
+                        ((FileDownloaderBinder) mBinder).getBoundListenerRelay(newDownload));
                 Pair<String, String> putResult = mPendingDownloads.putIfAbsent(
                         account.name, file.getRemotePath(), newDownload);
                 if (putResult != null) {
-                    String downloadKey = putResult.first;
-                    requestedDownloads.add(downloadKey);
+                    queueDownload(account.name, putResult.first, priority, prefetch, startId);
                     sendBroadcastNewDownload(newDownload, putResult.second);
-                }   // else, file already in the queue of downloads; don't repeat the request
+
+                } else if (!prefetch) {
+                    // file already in the queue of downloads; don't repeat the request, but promote it if needed
+                    DownloadFileOperation queuedDownload = mPendingDownloads.get(account.name, file.getRemotePath());
+                    if (queuedDownload != null) {
+                        promoteDownload(account.name, queuedDownload, priority);
+                    }
+                }
 
             } catch (IllegalArgumentException e) {
                 Log_OC.e(TAG, "Not enough information provided in intent: " + e.getMessage());
+                if (account != null && file != null) {
+                    releaseCompletionLatch(account.name + file.getRemotePath());
+                }
                 return START_NOT_STICKY;
             }
-
-            if (requestedDownloads.size() > 0) {
-                Message msg = mServiceHandler.obtainMessage();
-                msg.arg1 = startId;
-                msg.obj = requestedDownloads;
-                mServiceHandler.sendMessage(msg);
-            }
         }
 
         return START_NOT_STICKY;
@@ -217,10 +342,11 @@ public class FileDownloader extends Service
 
     @Override
     public void onAccountsUpdated(Account[] accounts) {
-         //review the current download and cancel it if its account doesn't exist
-        if (mCurrentDownload != null &&
-                !AccountUtils.exists(mCurrentDownload.getAccount(), getApplicationContext())) {
-            mCurrentDownload.cancel();
+         //review the current downloads and cancel them if their account doesn't exist
+        for (DownloadFileOperation currentDownload : mCurrentDownloads.values()) {
+            if (!AccountUtils.exists(currentDownload.getAccount(), getApplicationContext())) {
+                currentDownload.cancel();
+            }
         }
         // The rest of downloads are cancelled when they try to start
     }
@@ -231,7 +357,7 @@ public class FileDownloader extends Service
      * <p/>
      * It provides by itself the available operations.
      */
-    public class FileDownloaderBinder extends Binder implements OnDatatransferProgressListener {
+    public class FileDownloaderBinder extends Binder {
 
         /**
          * Map of listeners that will be reported about progress of downloads from a
@@ -239,7 +365,7 @@ public class FileDownloader extends Service
          * instance.
          */
         private Map<Long, OnDatatransferProgressListener> mBoundListeners =
-                new HashMap<Long, OnDatatransferProgressListener>();
+                new ConcurrentHashMap<Long, OnDatatransferProgressListener>();
 
 
         /**
@@ -254,11 +380,14 @@ public class FileDownloader extends Service
             DownloadFileOperation download = removeResult.first;
             if (download != null) {
                 download.cancel();
+                // the download and the ones in the folder are dropped from the queue, will never finish
+                releaseDroppedCompletionLatches(account.name + file.getRemotePath());
             } else {
-                if (mCurrentDownload != null && mCurrentAccount != null &&
-                        mCurrentDownload.getRemotePath().startsWith(file.getRemotePath()) &&
-                        account.name.equals(mCurrentAccount.name)) {
-                    mCurrentDownload.cancel();
+                for (DownloadFileOperation currentDownload : mCurrentDownloads.values()) {
+                    if (currentDownload.getRemotePath().startsWith(file.getRemotePath()) &&
+                            account.name.equals(currentDownload.getAccount().name)) {
+                        currentDownload.cancel();
+                    }
                 }
             }
         }
@@ -271,10 +400,10 @@ public class FileDownloader extends Service
         public void cancel(Account account) {
             Log_OC.d(TAG, "Account= " + account.name);
 
-            if (mCurrentDownload != null) {
-                Log_OC.d(TAG, "Current Download Account= " + mCurrentDownload.getAccount().name);
-                if (mCurrentDownload.getAccount().name.equals(account.name)) {
-                    mCurrentDownload.cancel();
+            for (DownloadFileOperation currentDownload : mCurrentDownloads.values()) {
+                Log_OC.d(TAG, "Current Download Account= " + currentDownload.getAccount().name);
+                if (currentDownload.getAccount().name.equals(account.name)) {
+                    currentDownload.cancel();
                 }
             }
             // Cancel pending downloads
@@ -340,50 +469,247 @@ public class FileDownloader extends Service
             }
         }
 
-        @Override
-        public void onTransferProgress(long progressRate, long totalTransferredSoFar,
-                                       long totalToTransfer, String fileName) {
-            OnDatatransferProgressListener boundListener =
-                    mBoundListeners.get(mCurrentDownload.getFile().getFileId());
-            if (boundListener != null) {
-                boundListener.onTransferProgress(progressRate, totalTransferredSoFar,
-                        totalToTransfer, fileName);
+        /**
+         * Builds a listener forwarding the progress of a download to the listener bound to its file, if any.
+         *
+         * @param download  Download operation to report about.
+         * @return          Listener to add to the download operation.
+         */
+        OnDatatransferProgressListener getBoundListenerRelay(final DownloadFileOperation download) {
+            return new OnDatatransferProgressListener() {
+                @Override
+                public void onTransferProgress(long progressRate, long totalTransferredSoFar,
+                                               long totalToTransfer, String fileName) {
+                    OnDatatransferProgressListener boundListener =
+                            mBoundListeners.get(download.getFile().getFileId());
+                    if (boundListener != null) {
+                        boundListener.onTransferProgress(progressRate, totalTransferredSoFar,
+                                totalToTransfer, fileName);
+                    }
+                }
+            };
+        }
+
+    }
+
+    /**
+     * Adds a download already in mPendingDownloads to the queue served by the download lanes.
+     *
+     * @param accountName   Account of the download.
+     * @param downloadKey   Key of the download in mPendingDownloads.
+     * @param priority      'true' to run the download before any other queued one.
+     * @param prefetch      'true' to run the download only when nothing else is waiting.
+     * @param startId       Id of the start request adding the download.
+     */
+    private void queueDownload(String accountName, String downloadKey, boolean priority, boolean prefetch,
+                               int startId) {
+        synchronized (mQueuedDownloads) {
+            if (prefetch) {
+                mQueuedPrefetches.add(downloadKey);
+                mPrefetchKeys.add(downloadKey);
+            } else {
+                ArrayDeque<String> accountDownloads = getAccountQueue(accountName, priority);
+                if (priority) {
+                    accountDownloads.addFirst(downloadKey);
+                } else {
+                    accountDownloads.addLast(downloadKey);
+                }
             }
+            mLastStartId = startId;
+            mQueuedDownloads.notifyAll();
         }
+    }
 
+    /**
+     * Moves a queued download requested again to the queue of regular downloads, or to its head when the user is
+     * waiting for it. Downloads already running are not affected.
+     *
+     * @param accountName   Account of the download.
+     * @param download      Queued download.
+     * @param priority      'true' to run the download before any other queued one.
+     */
+    private void promoteDownload(String accountName, DownloadFileOperation download, boolean priority) {
+        String downloadKey = accountName + download.getRemotePath();
+        synchronized (mQueuedDownloads) {
+            boolean wasPrefetch = mQueuedPrefetches.remove(downloadKey);
+            if (wasPrefetch) {
+                mPrefetchKeys.remove(downloadKey);
+            }
+            ArrayDeque<String> accountDownloads = mQueuedDownloads.get(accountName);
+            boolean wasQueued = accountDownloads != null && accountDownloads.contains(downloadKey);
+            if (priority && wasQueued) {
+                accountDownloads.remove(downloadKey);
+            }
+            if (wasPrefetch || (priority && wasQueued)) {
+                accountDownloads = getAccountQueue(accountName, priority);
+                if (priority) {
+                    accountDownloads.addFirst(downloadKey);
+                } else {
+                    accountDownloads.addLast(downloadKey);
+                }
+                mQueuedDownloads.notifyAll();
+            }
+        }
     }
 
     /**
-     * Download worker. Performs the pending downloads in the order they were requested.
+     * @param accountName   Account name.
+     * @param first         'true' to move the account to the head of the turn.
+     * @return              Queue of downloads of the account, created if needed.
+     */
+    private ArrayDeque<String> getAccountQueue(String accountName, boolean first) {
+        ArrayDeque<String> accountDownloads = mQueuedDownloads.remove(accountName);
+        if (accountDownloads == null) {
+            accountDownloads = new ArrayDeque<>();
+        }
+        if (first && !mQueuedDownloads.isEmpty()) {
+            LinkedHashMap<String, ArrayDeque<String>> others = new LinkedHashMap<>(mQueuedDownloads);
+            mQueuedDownloads.clear();
+            mQueuedDownloads.put(accountName, accountDownloads);
+            mQueuedDownloads.putAll(others);
+        } else {
+            mQueuedDownloads.put(accountName, accountDownloads);
+        }
+        return accountDownloads;
+    }
 
-     * Created with the Looper of a new thread, started in {@link FileUploader#onCreate()}.
+    /**
+     * Waits for the next download a lane can run.
+     *
+     * Accounts are served in turns, without exceeding {@link #MAX_DOWNLOADS_PER_ACCOUNT}; speculative downloads are
+     * taken only when no other download can run, and below {@link #MAX_PREFETCHES_PER_ACCOUNT}.
+     *
+     * @return  Key of the download to run and name of its account, or null when the service is being destroyed.
      */
-    private static class ServiceHandler extends Handler {
-        // don't make it a final class, and don't remove the static ; lint will warn about a
-        // possible memory leak
-        FileDownloader mService;
+    private Pair<String, String> takeNextDownload() {
+        synchronized (mQueuedDownloads) {
+            while (!mLanesStopped) {
+                Pair<String, String> downloadKey = pollDownload();
+                if (downloadKey == null) {
+                    downloadKey = pollPrefetch();
+                }
+                if (downloadKey != null) {
+                    return downloadKey;
+                }
+                try {
+                    mQueuedDownloads.wait();
+                } catch (InterruptedException e) {
+                    Log_OC.e(TAG, "Download lane interrupted while waiting for downloads", e);
+                    return null;
+                }
+            }
+            return null;
+        }
+    }
+
+    private Pair<String, String> pollDownload() {
+        Iterator<Map.Entry<String, ArrayDeque<String>>> accounts = mQueuedDownloads.entrySet().iterator();
+        while (accounts.hasNext()) {
+            Map.Entry<String, ArrayDeque<String>> account = accounts.next();
+            if (getRunningDownloads(account.getKey()) >= MAX_DOWNLOADS_PER_ACCOUNT) {
+                continue;
+            }
+            String downloadKey = null;
+            ArrayDeque<String> accountDownloads = account.getValue();
+            while (downloadKey == null && !accountDownloads.isEmpty()) {
+                downloadKey = accountDownloads.poll();
+                if (mPendingDownloads.get(downloadKey) == null) {
+                    // cancelled while waiting
+                    downloadKey = null;
+                }
+            }
+            accounts.remove();
+            if (downloadKey != null) {
+                if (!accountDownloads.isEmpty()) {
+                    // move the account to the end of the turn
+                    mQueuedDownloads.put(account.getKey(), accountDownloads);
+                }
+                startedDownload(account.getKey());
+                return new Pair<>(downloadKey, account.getKey());
+            }
+        }
+        return null;
+    }
+
+    private Pair<String, String> pollPrefetch() {
+        Iterator<String> keys = mQueuedPrefetches.iterator();
+        while (keys.hasNext()) {
+            String downloadKey = keys.next();
+            DownloadFileOperation download = mPendingDownloads.get(downloadKey);
+            if (download == null) {
+                keys.remove();
+                mPrefetchKeys.remove(downloadKey);
+            } else if (getRunningDownloads(download.getAccount().name) < MAX_PREFETCHES_PER_ACCOUNT) {
+                keys.remove();
+                startedDownload(download.getAccount().name);
+                return new Pair<>(downloadKey, download.getAccount().name);
+            }
+        }
+        return null;
+    }
 
-        public ServiceHandler(Looper looper, FileDownloader service) {
-            super(looper);
-            if (service == null) {
-                throw new IllegalArgumentException("Received invalid NULL in parameter 'service'");
+    private int getRunningDownloads(String accountName) {
+        Integer running = mRunningDownloadsPerAccount.get(accountName);
+        return (running == null) ? 0 : running;
+    }
+
+    private void startedDownload(String accountName) {
+        mRunningDownloadsPerAccount.put(accountName, getRunningDownloads(accountName) + 1);
+        mRunningDownloads++;
+    }
+
+    /**
+     * Called by a lane when it finishes a download; stops the service when there is nothing else to do.
+     *
+     * @param accountName   Account of the finished download.
+     * @param downloadKey   Key of the finished download.
+     */
+    private void downloadFinished(String accountName, String downloadKey) {
+        synchronized (mQueuedDownloads) {
+            mPrefetchKeys.remove(downloadKey);
+            int running = getRunningDownloads(accountName) - 1;
+            if (running > 0) {
+                mRunningDownloadsPerAccount.put(accountName, running);
+            } else {
+                mRunningDownloadsPerAccount.remove(accountName);
             }
-            mService = service;
+            mRunningDownloads--;
+            if (mRunningDownloads == 0 && mQueuedDownloads.isEmpty() && mQueuedPrefetches.isEmpty()) {
+                Log_OC.d(TAG, "Stopping command after id " + mLastStartId);
+                stopSelf(mLastStartId);
+            } else {
+                // a lane may be waiting for the account cap
+                mQueuedDownloads.notifyAll();
+            }
+        }
+    }
+
+    private boolean isPrefetch(String downloadKey) {
+        synchronized (mQueuedDownloads) {
+            return mPrefetchKeys.contains(downloadKey);
+        }
+    }
+
+    /**
+     * Download worker. Performs pending downloads, one at a time, until the service is destroyed.
+     */
+    private class DownloadLane extends Thread {
+
+        DownloadLane(String name) {
+            super(name);
         }
 
         @Override
-        public void handleMessage(Message msg) {
-            @SuppressWarnings("unchecked")
-            AbstractList<String> requestedDownloads = (AbstractList<String>) msg.obj;
-            if (msg.obj != null) {
-                Iterator<String> it = requestedDownloads.iterator();
-                while (it.hasNext()) {
-                    String next = it.next();
-                    mService.downloadFile(next);
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            Pair<String, String> next;
+            while ((next = takeNextDownload()) != null) {
+                try {
+                    downloadFile(next.first);
+                } finally {
+                    downloadFinished(next.second, next.first);
                 }
             }
-            Log_OC.d(TAG, "Stopping after command with id " + msg.arg1);
-            mService.stopSelf(msg.arg1);
         }
     }
 
@@ -395,41 +721,42 @@ public class FileDownloader extends Service
      */
     private void downloadFile(String downloadKey) {
 
-        mCurrentDownload = mPendingDownloads.get(downloadKey);
+        DownloadFileOperation currentDownload = mPendingDownloads.get(downloadKey);
 
-        if (mCurrentDownload != null) {
+        if (currentDownload != null) {
             // Detect if the account exists
-            if (AccountUtils.exists(mCurrentDownload.getAccount(), getApplicationContext())) {
-                Log_OC.d(TAG, "Account " + mCurrentDownload.getAccount().name + " exists");
+            if (AccountUtils.exists(currentDownload.getAccount(), getApplicationContext())) {
+                Log_OC.d(TAG, "Account " + currentDownload.getAccount().name + " exists");
 
-                notifyDownloadStart(mCurrentDownload);
+                Account currentAccount = currentDownload.getAccount();
+                boolean prefetch = isPrefetch(downloadKey);
+                mCurrentDownloads.put(downloadKey, currentDownload);
+
+                if (!prefetch) {
+                    notifyDownloadStart(currentDownload);
+                }
 
                 RemoteOperationResult downloadResult = null;
                 try {
-                    /// prepare client object to send the request to the ownCloud server
-                    if (mCurrentAccount == null ||
-                            !mCurrentAccount.equals(mCurrentDownload.getAccount())) {
-                        mCurrentAccount = mCurrentDownload.getAccount();
-                        mStorageManager = new FileDataStorageManager(
-                                mCurrentAccount,
-                                getContentResolver()
-                        );
-                    }   // else, reuse storage manager from previous operation
+                    FileDataStorageManager storageManager = new FileDataStorageManager(
+                            currentAccount,
+                            getContentResolver()
+                    );
 
                     // always get client from client manager, to get fresh credentials in case
                     // of update
                     OwnCloudAccount ocAccount = new OwnCloudAccount(
-                            mCurrentAccount,
+                            currentAccount,
                             this
                     );
-                    mDownloadClient = OwnCloudClientManagerFactory.getDefaultSingleton().
+                    OwnCloudClient downloadClient = OwnCloudClientManagerFactory.getDefaultSingleton().
                             getClientFor(ocAccount, this);
 
 
                     /// perform the download
-                    downloadResult = mCurrentDownload.execute(mDownloadClient);
+                    downloadResult = currentDownload.execute(downloadClient);
                     if (downloadResult.isSuccess()) {
-                        saveDownloadedFile();
+                        saveDownloadedFile(currentDownload, storageManager);
                     }
 
                 } catch (Exception e) {
@@ -437,25 +764,59 @@ public class FileDownloader extends Service
                     downloadResult = new RemoteOperationResult(e);
 
                 } finally {
+                    mCurrentDownloads.remove(downloadKey);
+                    if (downloadResult == null) {
+                        // an Error was thrown; it goes on after the download is finished here
+                        downloadResult = new RemoteOperationResult(ResultCode.UNKNOWN_ERROR);
+                    }
+
+                    if (isNetworkError(downloadResult)) {
+                        // retried when the connectivity is back, resuming the partial content
+                        mInterruptedDownloads.add(currentAccount.name, currentDownload.getRemotePath());
+                    } else {
+                        mInterruptedDownloads.remove(currentAccount.name, currentDownload.getRemotePath());
+                    }
+
                     Pair<DownloadFileOperation, String> removeResult =
                             mPendingDownloads.removePayload(
-                                    mCurrentAccount.name,
-                                    mCurrentDownload.getRemotePath()
+                                    currentAccount.name,
+                                    currentDownload.getRemotePath()
                             );
 
                     /// notify result
-                    notifyDownloadResult(mCurrentDownload, downloadResult);
+                    if (!prefetch) {
+                        notifyDownloadResult(currentDownload, downloadResult);
+                    }
+
+                    sendBroadcastDownloadFinished(currentDownload, downloadResult, removeResult.second);
 
-                    sendBroadcastDownloadFinished(mCurrentDownload, downloadResult, removeResult.second);
+                    releaseCompletionLatch(downloadKey);
                 }
 
             } else {
                 // Cancel the transfer
-                Log_OC.d(TAG, "Account " + mCurrentDownload.getAccount().toString() +
+                Log_OC.d(TAG, "Account " + currentDownload.getAccount().toString() +
                         " doesn't exist");
-                cancelDownloadsForAccount(mCurrentDownload.getAccount());
+                cancelDownloadsForAccount(currentDownload.getAccount());
+                releaseCompletionLatch(downloadKey);
 
             }
+        } else {
+            // cancelled while queued
+            releaseCompletionLatch(downloadKey);
+        }
+    }
+
+
+    private boolean isNetworkError(RemoteOperationResult result) {
+        switch (result.getCode()) {
+            case NO_NETWORK_CONNECTION:
+            case HOST_NOT_AVAILABLE:
+            case TIMEOUT:
+            case WRONG_CONNECTION:
+                return true;
+            default:
+                return false;
         }
     }
 
@@ -465,46 +826,59 @@ public class FileDownloader extends Service
      *
      * TODO move to DownloadFileOperation
      */
-    private void saveDownloadedFile() {
-        OCFile file = mStorageManager.getFileById(mCurrentDownload.getFile().getFileId());
+    private void saveDownloadedFile(DownloadFileOperation download, FileDataStorageManager storageManager) {
+        OCFile file = storageManager.getFileById(download.getFile().getFileId());
         long syncDate = System.currentTimeMillis();
         file.setLastSyncDateForProperties(syncDate);
         file.setLastSyncDateForData(syncDate);
         file.setNeedsUpdateThumbnail(true);
-        file.setModificationTimestamp(mCurrentDownload.getModificationTimestamp());
-        file.setModificationTimestampAtLastSyncForData(mCurrentDownload.getModificationTimestamp());
-        file.setEtag(mCurrentDownload.getEtag());
-        file.setMimetype(mCurrentDownload.getMimeType());
-        file.setStoragePath(mCurrentDownload.getSavePath());
-        file.setFileLength((new File(mCurrentDownload.getSavePath()).length()));
-        file.setRemoteId(mCurrentDownload.getFile().getRemoteId());
-        mStorageManager.saveFile(file);
-        mStorageManager.triggerMediaScan(file.getStoragePath());
-        mStorageManager.saveConflict(file, null);
+        file.setModificationTimestamp(download.getModificationTimestamp());
+        file.setModificationTimestampAtLastSyncForData(download.getModificationTimestamp());
+        file.setEtag(download.getEtag());
+        file.setMimetype(download.getMimeType());
+        file.setStoragePath(download.getSavePath());
+        file.setFileLength((new File(download.getSavePath()).length()));
+        file.setRemoteId(download.getFile().getRemoteId());
+        storageManager.saveFile(file);
+        storageManager.triggerMediaScan(file.getStoragePath());
+        storageManager.saveConflict(file, null);
     }
 
     /**
-     * Creates a status notification to show the download progress
+     * Builds a listener reporting the progress of a download to the status notification.
+     *
+     * @param download  Download operation to report about.
+     * @return          Listener to add to the download operation.
+     */
+    private OnDatatransferProgressListener getProgressListener(final DownloadFileOperation download) {
+        return new OnDatatransferProgressListener() {
+            @Override
+            public void onTransferProgress(long progressRate, long totalTransferredSoFar,
+                                           long totalToTransfer, String fileName) {
+                notifyDownloadProgress(download, totalTransferredSoFar, totalToTransfer);
+            }
+        };
+    }
+
+    /**
+     * Adds a download to the status notification showing the progress of the downloads in all the lanes.
      *
      * @param download Download operation starting.
      */
-    private void notifyDownloadStart(DownloadFileOperation download) {
-        /// create status notification with a progress bar
-        mLastPercent = 0;
-        mNotificationBuilder =
-                NotificationUtils.newNotificationBuilder(this);
-        mNotificationBuilder
-                .setSmallIcon(R.drawable.notification_icon)
-                .setTicker(getString(R.string.downloader_download_in_progress_ticker))
-                .setContentTitle(getString(R.string.downloader_download_in_progress_ticker))
-                .setOngoing(true)
-                .setProgress(100, 0, download.getSize() < 0)
-                .setContentText(
-                        String.format(getString(R.string.downloader_download_in_progress_content), 0,
-                                new File(download.getSavePath()).getName())
-                );
+    private synchronized void notifyDownloadStart(DownloadFileOperation download) {
+        mDownloadsProgress.put(download, new long[]{0, download.getSize()});
 
-        /// includes a pending intent in the notification showing the details view of the file
+        if (mNotificationBuilder == null) {
+            /// create status notification with a progress bar
+            mNotificationBuilder = NotificationUtils.newNotificationBuilder(this);
+            mNotificationBuilder
+                    .setSmallIcon(R.drawable.notification_icon)
+                    .setTicker(getString(R.string.downloader_download_in_progress_ticker))
+                    .setContentTitle(getString(R.string.downloader_download_in_progress_ticker))
+                    .setOngoing(true);
+        }
+
+        /// includes a pending intent in the notification showing the details view of the last file started
         Intent showDetailsIntent = null;
         if (PreviewImageFragment.canBePreviewed(download.getFile())) {
             showDetailsIntent = new Intent(this, PreviewImageActivity.class);
@@ -519,37 +893,77 @@ public class FileDownloader extends Service
                 this, (int) System.currentTimeMillis(), showDetailsIntent, 0
         ));
 
-        mNotificationManager.notify(R.string.downloader_download_in_progress_ticker, mNotificationBuilder.build());
+        updateProgressNotification(true);
     }
 
 
     /**
-     * Callback method to update the progress bar in the status notification.
+     * Updates the progress of a download in the status notification; prefetches are ignored.
      */
-    @Override
-    public void onTransferProgress(long progressRate, long totalTransferredSoFar,
-                                   long totalToTransfer, String filePath) {
-        int percent = (int) (100.0 * ((double) totalTransferredSoFar) / ((double) totalToTransfer));
-        if (percent != mLastPercent) {
-            mNotificationBuilder.setProgress(100, percent, totalToTransfer < 0);
-            String fileName = filePath.substring(filePath.lastIndexOf(FileUtils.PATH_SEPARATOR) + 1);
-            String text = String.format(getString(R.string.downloader_download_in_progress_content), percent, fileName);
-            mNotificationBuilder.setContentText(text);
-            mNotificationManager.notify(R.string.downloader_download_in_progress_ticker, mNotificationBuilder.build());
+    private synchronized void notifyDownloadProgress(DownloadFileOperation download, long totalTransferredSoFar,
+                                                     long totalToTransfer) {
+        long[] progress = mDownloadsProgress.get(download);
+        if (progress != null) {
+            progress[0] = totalTransferredSoFar;
+            progress[1] = totalToTransfer;
+            updateProgressNotification(false);
+        }
+    }
+
+
+    /**
+     * Shows in the status notification the progress of all the running downloads together.
+     *
+     * @param force     'true' to show it even if the percentage did not change, since the downloads did.
+     */
+    private void updateProgressNotification(boolean force) {
+        long transferred = 0;
+        long total = 0;
+        boolean unknownSize = false;
+        for (long[] progress : mDownloadsProgress.values()) {
+            transferred += progress[0];
+            total += progress[1];
+            unknownSize |= progress[1] < 0;
+        }
+        int percent = (total > 0 && !unknownSize) ?
+                (int) (100.0 * ((double) transferred) / ((double) total)) : 0;
+        if (percent == mLastPercent && !force) {
+            return;
         }
         mLastPercent = percent;
+
+        String text;
+        if (mDownloadsProgress.size() == 1) {
+            DownloadFileOperation download = mDownloadsProgress.keySet().iterator().next();
+            text = String.format(getString(R.string.downloader_download_in_progress_content), percent,
+                    new File(download.getSavePath()).getName());
+        } else {
+            text = String.format(getString(R.string.downloader_downloads_in_progress_content), percent,
+                    mDownloadsProgress.size());
+        }
+        mNotificationBuilder.setProgress(100, percent, unknownSize);
+        mNotificationBuilder.setContentText(text);
+        mNotificationManager.notify(R.string.downloader_download_in_progress_ticker, mNotificationBuilder.build());
     }
 
 
     /**
-     * Updates the status notification with the result of a download operation.
+     * Updates the status notifications with the result of a download operation.
      *
      * @param downloadResult Result of the download operation.
      * @param download       Finished download operation
      */
-    private void notifyDownloadResult(DownloadFileOperation download,
+    private synchronized void notifyDownloadResult(DownloadFileOperation download,
                                       RemoteOperationResult downloadResult) {
-        mNotificationManager.cancel(R.string.downloader_download_in_progress_ticker);
+        // the progress notification is removed when no other download is running
+        mDownloadsProgress.remove(download);
+        if (mDownloadsProgress.isEmpty()) {
+            mNotificationManager.cancel(R.string.downloader_download_in_progress_ticker);
+            mNotificationBuilder = null;
+        } else {
+            updateProgressNotification(true);
+        }
+
         if (!downloadResult.isCancelled()) {
             int tickerId = (downloadResult.isSuccess()) ? R.string.downloader_download_succeeded_ticker :
                     R.string.downloader_download_failed_ticker;
@@ -558,7 +972,9 @@ public class FileDownloader extends Service
             tickerId = (needsToUpdateCredentials) ?
                     R.string.downloader_download_failed_credentials_error : tickerId;
 
-            mNotificationBuilder
+            NotificationCompat.Builder resultBuilder = NotificationUtils.newNotificationBuilder(this);
+            resultBuilder
+                    .setSmallIcon(R.drawable.notification_icon)
                     .setTicker(getString(tickerId))
                     .setContentTitle(getString(tickerId))
                     .setAutoCancel(true)
@@ -578,7 +994,7 @@ public class FileDownloader extends Service
                 updateAccountCredentials.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
                 updateAccountCredentials.addFlags(Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS);
                 updateAccountCredentials.addFlags(Intent.FLAG_FROM_BACKGROUND);
-                mNotificationBuilder
+                resultBuilder
                         .setContentIntent(PendingIntent.getActivity(
                                 this, (int) System.currentTimeMillis(), updateAccountCredentials,
                                 PendingIntent.FLAG_ONE_SHOT));
@@ -586,16 +1002,18 @@ public class FileDownloader extends Service
             } else {
                 // TODO put something smart in showDetailsIntent
                 Intent showDetailsIntent = new Intent();
-                mNotificationBuilder
+                resultBuilder
                         .setContentIntent(PendingIntent.getActivity(
                                 this, (int) System.currentTimeMillis(), showDetailsIntent, 0));
             }
 
-            mNotificationBuilder.setContentText(
-                    ErrorMessageAdapter.getErrorCauseMessage(downloadResult, download,
-                            getResources())
-            );
-            mNotificationManager.notify(tickerId, mNotificationBuilder.build());
+            String content = ErrorMessageAdapter.getErrorCauseMessage(downloadResult, download, getResources());
+            if (downloadResult.isSuccess() && download.getResumedBytes() > 0) {
+                content = String.format(getString(R.string.downloader_download_resumed_content), content,
+                        DisplayUtils.bytesToHumanReadable(download.getResumedBytes()));
+            }
+            resultBuilder.setContentText(content);
+            mNotificationManager.notify(tickerId, resultBuilder.build());
 
             // Remove success notification
             if (downloadResult.isSuccess()) {
@@ -628,6 +1046,7 @@ public class FileDownloader extends Service
         end.putExtra(ACCOUNT_NAME, download.getAccount().name);
         end.putExtra(EXTRA_REMOTE_PATH, download.getRemotePath());
         end.putExtra(EXTRA_FILE_PATH, download.getSavePath());
+        end.putExtra(EXTRA_RESUMED_BYTES, download.getResumedBytes());
         if (unlinkedFromRemotePath != null) {
             end.putExtra(EXTRA_LINKED_TO_PATH, unlinkedFromRemotePath);
         }
@@ -659,5 +1078,6 @@ public class FileDownloader extends Service
     private void cancelDownloadsForAccount(Account account) {
         // Cancel pending downloads
         mPendingDownloads.remove(account.name);
+        releaseDroppedCompletionLatches(account.name + OCFile.ROOT_PATH);
     }
 }
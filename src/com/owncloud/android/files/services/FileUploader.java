@@ -33,11 +33,7 @@ import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
-import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.IBinder;
-import android.os.Looper;
-import android.os.Message;
 import android.os.Parcelable;
 import android.os.Process;
 import android.support.v4.app.NotificationCompat;
@@ -52,6 +48,7 @@ import com.owncloud.android.datamodel.ThumbnailsCacheManager;
 import com.owncloud.android.datamodel.UploadsStorageManager;
 import com.owncloud.android.datamodel.UploadsStorageManager.UploadStatus;
 import com.owncloud.android.db.OCUpload;
+import com.owncloud.android.db.PreferenceManager;
 import com.owncloud.android.db.UploadResult;
 import com.owncloud.android.datamodel.ThumbnailsCacheManager;
 import com.owncloud.android.lib.common.OwnCloudAccount;
@@ -61,20 +58,21 @@ import com.owncloud.android.lib.common.network.OnDatatransferProgressListener;
 import com.owncloud.android.lib.common.operations.RemoteOperationResult;
 import com.owncloud.android.lib.common.operations.RemoteOperationResult.ResultCode;
 import com.owncloud.android.lib.common.utils.Log_OC;
-import com.owncloud.android.lib.resources.files.FileUtils;
 import com.owncloud.android.lib.resources.status.OwnCloudVersion;
 import com.owncloud.android.ui.notifications.NotificationUtils;
+import com.owncloud.android.operations.RemoteFolderCache;
 import com.owncloud.android.operations.UploadFileOperation;
 import com.owncloud.android.ui.activity.FileActivity;
 import com.owncloud.android.ui.activity.UploadListActivity;
 import com.owncloud.android.utils.ErrorMessageAdapter;
 
-import java.io.File;
 import java.util.AbstractList;
-import java.util.HashMap;
+import java.util.ArrayDeque;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Service for uploading files. Invoke using context.startService(...).
@@ -89,7 +87,7 @@ import java.util.Vector;
  * However, Intent keys (e.g., KEY_WIFI_ONLY) are obeyed.
  */
 public class FileUploader extends Service
-        implements OnDatatransferProgressListener, OnAccountsUpdateListener, UploadFileOperation.OnRenameListener {
+        implements OnAccountsUpdateListener, UploadFileOperation.OnRenameListener {
 
     private static final String TAG = FileUploader.class.getSimpleName();
 
@@ -97,6 +95,7 @@ public class FileUploader extends Service
     private static final String UPLOAD_START_MESSAGE = "UPLOAD_START";
     private static final String UPLOAD_FINISH_MESSAGE = "UPLOAD_FINISH";
     public static final String EXTRA_UPLOAD_RESULT = "RESULT";
+    public static final String EXTRA_UPLOAD_ID = "UPLOAD_ID";
     public static final String EXTRA_REMOTE_PATH = "REMOTE_PATH";
     public static final String EXTRA_OLD_REMOTE_PATH = "OLD_REMOTE_PATH";
     public static final String EXTRA_OLD_FILE_PATH = "OLD_FILE_PATH";
@@ -151,23 +150,44 @@ public class FileUploader extends Service
     public static final int LOCAL_BEHAVIOUR_FORGET = 2;
     public static final int LOCAL_BEHAVIOUR_DELETE = 3;
 
-    private Looper mServiceLooper;
-    private ServiceHandler mServiceHandler;
+    /**
+     * Uploads of files up to this size can also run in the lane reserved for small files, so that they are not
+     * blocked behind big ones.
+     */
+    private static final long SMALL_FILE_MAX_SIZE = 5 * 1024 * 1024;
+
     private IBinder mBinder;
-    private OwnCloudClient mUploadClient = null;
-    private Account mCurrentAccount = null;
-    private FileDataStorageManager mStorageManager;
     //since there can be only one instance of an Android service, there also just one db connection.
     private UploadsStorageManager mUploadsStorageManager = null;
 
     private IndexedForest<UploadFileOperation> mPendingUploads = new IndexedForest<UploadFileOperation>();
 
     /**
-     * {@link UploadFileOperation} object of ongoing upload. Can be null. Note: There can only be one concurrent upload!
+     * Keys of the uploads in mPendingUploads waiting for a lane, grouped by account name; accounts are served in
+     * turns. Guarded by itself, as the rest of the state of the lanes.
      */
-    private UploadFileOperation mCurrentUpload = null;
+    private final LinkedHashMap<String, ArrayDeque<String>> mQueuedUploads = new LinkedHashMap<>();
+    private int mRunningUploads = 0;
+    private int mLastStartId;
+    private boolean mLanesStopped = false;
+
+    /**
+     * {@link UploadFileOperation} objects of ongoing uploads, by upload key.
+     */
+    private final Map<String, UploadFileOperation> mCurrentUploads = new ConcurrentHashMap<>();
+
+    private final UploadThroughput mThroughput = new UploadThroughput();
+
+    /** Listings of the remote folders targeted by the queued uploads; cleared when the queue gets empty */
+    private final RemoteFolderCache mRemoteFolders = new RemoteFolderCache();
 
     private NotificationManager mNotificationManager;
+
+    /**
+     * Uploaded and total bytes of the uploads running in the lanes, shown together in a single progress
+     * notification while any of them is running. Access synchronized on this, as the notification.
+     */
+    private final Map<UploadFileOperation, long[]> mUploadsProgress = new LinkedHashMap<>();
     private NotificationCompat.Builder mNotificationBuilder;
     private int mLastPercent;
 
@@ -184,9 +204,9 @@ public class FileUploader extends Service
     }
 
     @Override
-    public void onRenameUpload() {
-        mUploadsStorageManager.updateDatabaseUploadStart(mCurrentUpload);
-        sendBroadcastUploadStarted(mCurrentUpload);
+    public void onRenameUpload(UploadFileOperation upload) {
+        mUploadsStorageManager.updateDatabaseUploadStart(upload);
+        sendBroadcastUploadStarted(upload);
     }
 
 
@@ -339,13 +359,14 @@ public class FileUploader extends Service
         super.onCreate();
         Log_OC.d(TAG, "Creating service");
         mNotificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
-        HandlerThread thread = new HandlerThread("FileUploaderThread",
-                Process.THREAD_PRIORITY_BACKGROUND);
-        thread.start();
-        mServiceLooper = thread.getLooper();
-        mServiceHandler = new ServiceHandler(mServiceLooper, this);
         mBinder = new FileUploaderBinder();
 
+        int lanes = PreferenceManager.getUploadLanes(this);
+        for (int i = 0; i < lanes; i++) {
+            new UploadLane("FileUploaderThread-" + i, false).start();
+        }
+        new UploadLane("FileUploaderThread-small", true).start();
+
         mUploadsStorageManager = new UploadsStorageManager(getContentResolver());
 
         int failedCounter = mUploadsStorageManager.failInProgressUploads(
@@ -377,10 +398,12 @@ public class FileUploader extends Service
     public void onDestroy() {
         Log_OC.v(TAG, "Destroying service");
         mBinder = null;
-        mServiceHandler = null;
-        mServiceLooper.quit();
-        mServiceLooper = null;
-        mNotificationManager = null;
+        synchronized (mQueuedUploads) {
+            // lanes finish their current upload and stop
+            mLanesStopped = true;
+            mQueuedUploads.notifyAll();
+        }
+        // the notification manager is kept; lanes may still be finishing their current upload
 
         // remove AccountsUpdatedListener
         AccountManager am = AccountManager.get(getApplicationContext());
@@ -503,11 +526,13 @@ public class FileUploader extends Service
                             this
                     );
                     newUpload.setCreatedBy(createdBy);
+                    newUpload.setRemoteFolderCache(mRemoteFolders);
                     if (isCreateRemoteFolder) {
                         newUpload.setRemoteFolderToBeCreated();
                     }
-                    newUpload.addDatatransferProgressListener(this);
-                    newUpload.addDatatransferProgressListener((FileUploaderBinder) mBinder);
+                    newUpload.addDatatransferProgressListener(getProgressListener(newUpload));
+                    newUpload.addDatatransferProgressListener(
+                            ((FileUploaderBinder) mBinder).getBoundListenerRelay(newUpload));
 
                     newUpload.addRenameUploadListener(this);
 
@@ -556,9 +581,11 @@ public class FileUploader extends Service
                     upload.getLocalAction(),    // TODO should be read from DB?
                     this
             );
+            newUpload.setRemoteFolderCache(mRemoteFolders);
 
-            newUpload.addDatatransferProgressListener(this);
-            newUpload.addDatatransferProgressListener((FileUploaderBinder) mBinder);
+            newUpload.addDatatransferProgressListener(getProgressListener(newUpload));
+            newUpload.addDatatransferProgressListener(
+                    ((FileUploaderBinder) mBinder).getBoundListenerRelay(newUpload));
 
             newUpload.addRenameUploadListener(this);
 
@@ -579,10 +606,7 @@ public class FileUploader extends Service
         // *** TODO REWRITE END ***/
 
         if (requestedUploads.size() > 0) {
-            Message msg = mServiceHandler.obtainMessage();
-            msg.arg1 = startId;
-            msg.obj = requestedUploads;
-            mServiceHandler.sendMessage(msg);
+            queueUploads(account.name, requestedUploads, startId);
             sendBroadcastUploadsAdded();
         }
         return Service.START_NOT_STICKY;
@@ -611,10 +635,11 @@ public class FileUploader extends Service
 
     @Override
     public void onAccountsUpdated(Account[] accounts) {
-        // Review current upload, and cancel it if its account doen't exist
-        if (mCurrentUpload != null &&
-                !AccountUtils.exists(mCurrentUpload.getAccount(), getApplicationContext())) {
-            mCurrentUpload.cancel();
+        // Review current uploads, and cancel them if their account doesn't exist
+        for (UploadFileOperation currentUpload : mCurrentUploads.values()) {
+            if (!AccountUtils.exists(currentUpload.getAccount(), getApplicationContext())) {
+                currentUpload.cancel();
+            }
         }
         // The rest of uploads are cancelled when they try to start
     }
@@ -625,14 +650,14 @@ public class FileUploader extends Service
      * <p/>
      * It provides by itself the available operations.
      */
-    public class FileUploaderBinder extends Binder implements OnDatatransferProgressListener {
+    public class FileUploaderBinder extends Binder {
 
         /**
          * Map of listeners that will be reported about progress of uploads from a
          * {@link FileUploaderBinder} instance
          */
         private Map<String, OnDatatransferProgressListener> mBoundListeners =
-                new HashMap<String, OnDatatransferProgressListener>();
+                new ConcurrentHashMap<String, OnDatatransferProgressListener>();
 
 
         /**
@@ -665,12 +690,14 @@ public class FileUploader extends Service
             Pair<UploadFileOperation, String> removeResult =
                     mPendingUploads.remove(accountName, remotePath);
             UploadFileOperation upload = removeResult.first;
-            if (upload == null &&
-                    mCurrentUpload != null && mCurrentAccount != null &&
-                    mCurrentUpload.getRemotePath().startsWith(remotePath) &&
-                    accountName.equals(mCurrentAccount.name)) {
-
-                upload = mCurrentUpload;
+            if (upload == null) {
+                for (UploadFileOperation currentUpload : mCurrentUploads.values()) {
+                    if (currentUpload.getRemotePath().startsWith(remotePath) &&
+                            accountName.equals(currentUpload.getAccount().name)) {
+                        upload = currentUpload;
+                        break;
+                    }
+                }
             }
             if (upload != null) {
                 boolean pending = !upload.isUploadInProgress();
@@ -692,10 +719,10 @@ public class FileUploader extends Service
         public void cancel(Account account) {
             Log_OC.d(TAG, "Account= " + account.name);
 
-            if (mCurrentUpload != null) {
-                Log_OC.d(TAG, "Current Upload Account= " + mCurrentUpload.getAccount().name);
-                if (mCurrentUpload.getAccount().name.equals(account.name)) {
-                    mCurrentUpload.cancel();
+            for (UploadFileOperation currentUpload : mCurrentUploads.values()) {
+                Log_OC.d(TAG, "Current Upload Account= " + currentUpload.getAccount().name);
+                if (currentUpload.getAccount().name.equals(account.name)) {
+                    currentUpload.cancel();
                 }
             }
             // Cancel pending uploads
@@ -729,13 +756,31 @@ public class FileUploader extends Service
 
 
         public boolean isUploadingNow(OCUpload upload) {
-            return (
-                upload != null  &&
-                mCurrentAccount != null &&
-                mCurrentUpload != null &&
-                upload.getAccountName().equals(mCurrentAccount.name) &&
-                upload.getRemotePath().equals(mCurrentUpload.getRemotePath())
-            );
+            if (upload != null) {
+                for (UploadFileOperation currentUpload : mCurrentUploads.values()) {
+                    if (upload.getAccountName().equals(currentUpload.getAccount().name) &&
+                            upload.getRemotePath().equals(currentUpload.getRemotePath())) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+
+        /**
+         * @return Number of uploads finished successfully in the last minute.
+         */
+        public int getUploadedFilesPerMinute() {
+            return mThroughput.getFilesPerMinute();
+        }
+
+
+        /**
+         * @return Average upload speed in the last minute, in bytes per second, counting all the lanes.
+         */
+        public long getUploadedBytesPerSecond() {
+            return mThroughput.getBytesPerSecond();
         }
 
 
@@ -819,15 +864,25 @@ public class FileUploader extends Service
         }
 
 
-        @Override
-        public void onTransferProgress(long progressRate, long totalTransferredSoFar,
-                                       long totalToTransfer, String fileName) {
-            String key = buildRemoteName(mCurrentUpload.getAccount().name, mCurrentUpload.getFile().getRemotePath());
-            OnDatatransferProgressListener boundListener = mBoundListeners.get(key);
-            if (boundListener != null) {
-                boundListener.onTransferProgress(progressRate, totalTransferredSoFar,
-                        totalToTransfer, fileName);
-            }
+        /**
+         * Builds a listener forwarding the progress of an upload to the listener bound to its file, if any.
+         *
+         * @param upload    Upload operation to report about.
+         * @return          Listener to add to the upload operation.
+         */
+        OnDatatransferProgressListener getBoundListenerRelay(final UploadFileOperation upload) {
+            return new OnDatatransferProgressListener() {
+                @Override
+                public void onTransferProgress(long progressRate, long totalTransferredSoFar,
+                                               long totalToTransfer, String fileName) {
+                    String key = buildRemoteName(upload.getAccount().name, upload.getFile().getRemotePath());
+                    OnDatatransferProgressListener boundListener = mBoundListeners.get(key);
+                    if (boundListener != null) {
+                        boundListener.onTransferProgress(progressRate, totalTransferredSoFar,
+                                totalToTransfer, fileName);
+                    }
+                }
+            };
         }
 
         /**
@@ -847,37 +902,118 @@ public class FileUploader extends Service
     }
 
     /**
-     * Upload worker. Performs the pending uploads in the order they were
-     * requested.
-     * <p/>
-     * Created with the Looper of a new thread, started in
-     * {@link FileUploader#onCreate()}.
+     * Adds uploads already in mPendingUploads to the queue served by the upload lanes.
+     *
+     * @param accountName       Account of the uploads.
+     * @param uploadKeys        Keys of the uploads in mPendingUploads, in the order they were requested.
+     * @param startId           Id of the start request adding the uploads.
+     */
+    private void queueUploads(String accountName, AbstractList<String> uploadKeys, int startId) {
+        synchronized (mQueuedUploads) {
+            ArrayDeque<String> accountUploads = mQueuedUploads.get(accountName);
+            if (accountUploads == null) {
+                accountUploads = new ArrayDeque<>();
+                mQueuedUploads.put(accountName, accountUploads);
+            }
+            accountUploads.addAll(uploadKeys);
+            mLastStartId = startId;
+            mQueuedUploads.notifyAll();
+        }
+    }
+
+    /**
+     * Waits for the next upload a lane can run.
+     *
+     * Accounts are served in turns; the lane for small files only takes uploads of up to
+     * {@link #SMALL_FILE_MAX_SIZE} bytes.
+     *
+     * @param smallFilesOnly    'true' for the lane reserved to small files.
+     * @return                  Key of the upload to run, or null when the service is being destroyed.
+     */
+    private String takeNextUpload(boolean smallFilesOnly) {
+        synchronized (mQueuedUploads) {
+            while (!mLanesStopped) {
+                Iterator<Map.Entry<String, ArrayDeque<String>>> accounts = mQueuedUploads.entrySet().iterator();
+                while (accounts.hasNext()) {
+                    Map.Entry<String, ArrayDeque<String>> account = accounts.next();
+                    String uploadKey = pollUpload(account.getValue(), smallFilesOnly);
+                    if (account.getValue().isEmpty()) {
+                        accounts.remove();
+                    }
+                    if (uploadKey != null) {
+                        if (!account.getValue().isEmpty()) {
+                            // move the account to the end of the turn
+                            accounts.remove();
+                            mQueuedUploads.put(account.getKey(), account.getValue());
+                        }
+                        mRunningUploads++;
+                        return uploadKey;
+                    }
+                }
+                try {
+                    mQueuedUploads.wait();
+                } catch (InterruptedException e) {
+                    Log_OC.e(TAG, "Upload lane interrupted while waiting for uploads", e);
+                    return null;
+                }
+            }
+            return null;
+        }
+    }
+
+    private String pollUpload(ArrayDeque<String> accountUploads, boolean smallFilesOnly) {
+        Iterator<String> keys = accountUploads.iterator();
+        while (keys.hasNext()) {
+            String uploadKey = keys.next();
+            UploadFileOperation upload = mPendingUploads.get(uploadKey);
+            if (upload == null) {
+                // cancelled while waiting
+                keys.remove();
+            } else if (!smallFilesOnly || upload.getFile().getFileLength() <= SMALL_FILE_MAX_SIZE) {
+                keys.remove();
+                return uploadKey;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Called by a lane when it finishes an upload; stops the service when there is nothing else to do.
      */
-    private static class ServiceHandler extends Handler {
-        // don't make it a final class, and don't remove the static ; lint will
-        // warn about a possible memory leak
-        FileUploader mService;
-
-        public ServiceHandler(Looper looper, FileUploader service) {
-            super(looper);
-            if (service == null) {
-                throw new IllegalArgumentException("Received invalid NULL in parameter 'service'");
+    private void uploadFinished() {
+        synchronized (mQueuedUploads) {
+            mRunningUploads--;
+            if (mRunningUploads == 0 && mQueuedUploads.isEmpty()) {
+                mRemoteFolders.clear();
+                Log_OC.d(TAG, "Stopping command after id " + mLastStartId);
+                stopSelf(mLastStartId);
             }
-            mService = service;
+        }
+    }
+
+    /**
+     * Upload worker. Performs pending uploads, one at a time, until the service is destroyed.
+     */
+    private class UploadLane extends Thread {
+
+        private final boolean mSmallFilesOnly;
+
+        UploadLane(String name, boolean smallFilesOnly) {
+            super(name);
+            mSmallFilesOnly = smallFilesOnly;
         }
 
         @Override
-        public void handleMessage(Message msg) {
-            @SuppressWarnings("unchecked")
-            AbstractList<String> requestedUploads = (AbstractList<String>) msg.obj;
-            if (msg.obj != null) {
-                Iterator<String> it = requestedUploads.iterator();
-                while (it.hasNext()) {
-                    mService.uploadFile(it.next());
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            String uploadKey;
+            while ((uploadKey = takeNextUpload(mSmallFilesOnly)) != null) {
+                try {
+                    uploadFile(uploadKey);
+                } finally {
+                    uploadFinished();
                 }
             }
-            Log_OC.d(TAG, "Stopping command after id " + msg.arg1);
-            mService.stopSelf(msg.arg1);
         }
     }
 
@@ -888,47 +1024,46 @@ public class FileUploader extends Service
      */
     public void uploadFile(String uploadKey) {
 
-        mCurrentUpload = mPendingUploads.get(uploadKey);
+        UploadFileOperation currentUpload = mPendingUploads.get(uploadKey);
 
-        if (mCurrentUpload != null) {
+        if (currentUpload != null) {
 
             /// Check account existence
-            if (!AccountUtils.exists(mCurrentUpload.getAccount(), this)) {
-                Log_OC.w(TAG, "Account " + mCurrentUpload.getAccount().name +
+            if (!AccountUtils.exists(currentUpload.getAccount(), this)) {
+                Log_OC.w(TAG, "Account " + currentUpload.getAccount().name +
                         " does not exist anymore -> cancelling all its uploads");
-                cancelUploadsForAccount(mCurrentUpload.getAccount());
+                cancelUploadsForAccount(currentUpload.getAccount());
                 return;
             }
 
+            Account currentAccount = currentUpload.getAccount();
+            FileDataStorageManager storageManager = new FileDataStorageManager(
+                    currentAccount,
+                    getContentResolver()
+            );
+
+            mCurrentUploads.put(uploadKey, currentUpload);
+
             /// OK, let's upload
-            mUploadsStorageManager.updateDatabaseUploadStart(mCurrentUpload);
+            mUploadsStorageManager.updateDatabaseUploadStart(currentUpload);
 
-            notifyUploadStart(mCurrentUpload);
+            notifyUploadStart(currentUpload);
 
-            sendBroadcastUploadStarted(mCurrentUpload);
+            sendBroadcastUploadStarted(currentUpload);
 
             RemoteOperationResult uploadResult = null;
 
             try {
-                /// prepare client object to send the request to the ownCloud server
-                if (mCurrentAccount == null || !mCurrentAccount.equals(mCurrentUpload.getAccount())) {
-                    mCurrentAccount = mCurrentUpload.getAccount();
-                    mStorageManager = new FileDataStorageManager(
-                            mCurrentAccount,
-                            getContentResolver()
-                    );
-                }   // else, reuse storage manager from previous operation
-
                 // always get client from client manager, to get fresh credentials in case of update
                 OwnCloudAccount ocAccount = new OwnCloudAccount(
-                        mCurrentAccount,
+                        currentAccount,
                         this
                 );
-                mUploadClient = OwnCloudClientManagerFactory.getDefaultSingleton().
+                OwnCloudClient uploadClient = OwnCloudClientManagerFactory.getDefaultSingleton().
                         getClientFor(ocAccount, this);
 
                 /// perform the upload
-                uploadResult = mCurrentUpload.execute(mUploadClient, mStorageManager);
+                uploadResult = currentUpload.execute(uploadClient, storageManager);
 
 
             } catch (Exception e) {
@@ -936,74 +1071,90 @@ public class FileUploader extends Service
                 uploadResult = new RemoteOperationResult(e);
 
             } finally {
+                mCurrentUploads.remove(uploadKey);
+
                 Pair<UploadFileOperation, String> removeResult;
-                if (mCurrentUpload.wasRenamed()) {
+                if (currentUpload.wasRenamed()) {
                     removeResult = mPendingUploads.removePayload(
-                            mCurrentAccount.name,
-                            mCurrentUpload.getOldFile().getRemotePath()
+                            currentAccount.name,
+                            currentUpload.getOldFile().getRemotePath()
                     );
-                    /** TODO: grant that name is also updated for mCurrentUpload.getOCUploadId */
+                    /** TODO: grant that name is also updated for currentUpload.getOCUploadId */
 
                 } else {
                     removeResult = mPendingUploads.removePayload(
-                            mCurrentAccount.name,
-                            mCurrentUpload.getRemotePath()
+                            currentAccount.name,
+                            currentUpload.getRemotePath()
                     );
                 }
 
-                mUploadsStorageManager.updateDatabaseUploadResult(uploadResult, mCurrentUpload);
+                if (uploadResult.isSuccess()) {
+                    mThroughput.addFile();
+                }
+
+                mUploadsStorageManager.updateDatabaseUploadResult(uploadResult, currentUpload);
 
                 /// notify result
-                notifyUploadResult(mCurrentUpload, uploadResult);
+                notifyUploadResult(currentUpload, uploadResult);
 
-                sendBroadcastUploadFinished(mCurrentUpload, uploadResult, removeResult.second);
+                sendBroadcastUploadFinished(currentUpload, uploadResult, removeResult.second);
 
             }
 
             // generate new Thumbnail
             final ThumbnailsCacheManager.ThumbnailGenerationTask task =
-                    new ThumbnailsCacheManager.ThumbnailGenerationTask(mStorageManager, mCurrentAccount);
+                    new ThumbnailsCacheManager.ThumbnailGenerationTask(storageManager, currentAccount);
 
             Object[] params = new Object[3];
-            params[0] = mCurrentUpload.getFile();
+            params[0] = currentUpload.getFile();
             params[1] = true;
-            params[2] = mCurrentUpload.getFile().getRemoteId();
+            params[2] = currentUpload.getFile().getRemoteId();
 
-            task.execute(params);
+            task.executeOnThumbnailExecutor(params);
         }
     }
 
 
     /**
-     * Creates a status notification to show the upload progress
+     * Builds a listener reporting the progress of an upload to the status notification and to the throughput.
+     *
+     * @param upload    Upload operation to report about.
+     * @return          Listener to add to the upload operation.
+     */
+    private OnDatatransferProgressListener getProgressListener(final UploadFileOperation upload) {
+        return new OnDatatransferProgressListener() {
+            @Override
+            public void onTransferProgress(long progressRate, long totalTransferredSoFar,
+                                           long totalToTransfer, String fileName) {
+                mThroughput.addBytes(progressRate);
+                notifyUploadProgress(upload, totalTransferredSoFar, totalToTransfer);
+            }
+        };
+    }
+
+    /**
+     * Adds an upload to the status notification showing the progress of the uploads in all the lanes.
      *
      * @param upload Upload operation starting.
      */
-    private void notifyUploadStart(UploadFileOperation upload) {
-        // / create status notification with a progress bar
-        mLastPercent = 0;
-        mNotificationBuilder =
-                NotificationUtils.newNotificationBuilder(this);
-        mNotificationBuilder
-                .setOngoing(true)
-                .setSmallIcon(R.drawable.notification_icon)
-                .setTicker(getString(R.string.uploader_upload_in_progress_ticker))
-                .setContentTitle(getString(R.string.uploader_upload_in_progress_ticker))
-                .setProgress(100, 0, false)
-                .setContentText(
-                        String.format(getString(R.string.uploader_upload_in_progress_content), 0, upload.getFileName())
-                );
+    private synchronized void notifyUploadStart(UploadFileOperation upload) {
+        mUploadsProgress.put(upload, new long[]{0, upload.getFile().getFileLength()});
+
+        if (mNotificationBuilder == null) {
+            // / create status notification with a progress bar
+            mNotificationBuilder = NotificationUtils.newNotificationBuilder(this);
+            mNotificationBuilder
+                    .setOngoing(true)
+                    .setSmallIcon(R.drawable.notification_icon)
+                    .setTicker(getString(R.string.uploader_upload_in_progress_ticker))
+                    .setContentTitle(getString(R.string.uploader_upload_in_progress_ticker));
+        }
 
         /// includes a pending intent in the notification showing the details
-        Intent showUploadListIntent = new Intent(this, UploadListActivity.class);
-        showUploadListIntent.putExtra(FileActivity.EXTRA_FILE, upload.getFile());
-        showUploadListIntent.putExtra(FileActivity.EXTRA_ACCOUNT, upload.getAccount());
-        showUploadListIntent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
-        mNotificationBuilder.setContentIntent(PendingIntent.getActivity(this, (int) System.currentTimeMillis(),
-            showUploadListIntent, 0));
+        mNotificationBuilder.setContentIntent(newUploadListIntent(upload));
 
         if (!upload.isInstantPicture() && !upload.isInstantVideo()) {
-            mNotificationManager.notify(R.string.uploader_upload_in_progress_ticker, mNotificationBuilder.build());
+            updateProgressNotification(true);
         }   // else wait until the upload really start (onTransferProgress is called), so that if it's discarded
         // due to lack of Wifi, no notification is shown
         // TODO generalize for automated uploads
@@ -1011,33 +1162,74 @@ public class FileUploader extends Service
     }
 
     /**
-     * Callback method to update the progress bar in the status notification
+     * Updates the progress of an upload in the status notification.
      */
-    @Override
-    public void onTransferProgress(long progressRate, long totalTransferredSoFar,
-                                   long totalToTransfer, String filePath) {
-        int percent = (int) (100.0 * ((double) totalTransferredSoFar) / ((double) totalToTransfer));
-        if (percent != mLastPercent) {
-            mNotificationBuilder.setProgress(100, percent, false);
-            String fileName = filePath.substring(filePath.lastIndexOf(FileUtils.PATH_SEPARATOR) + 1);
-            String text = String.format(getString(R.string.uploader_upload_in_progress_content), percent, fileName);
-            mNotificationBuilder.setContentText(text);
-            mNotificationManager.notify(R.string.uploader_upload_in_progress_ticker, mNotificationBuilder.build());
+    private synchronized void notifyUploadProgress(UploadFileOperation upload, long totalTransferredSoFar,
+                                                   long totalToTransfer) {
+        long[] progress = mUploadsProgress.get(upload);
+        if (progress != null) {
+            progress[0] = totalTransferredSoFar;
+            progress[1] = totalToTransfer;
+            updateProgressNotification(false);
+        }
+    }
+
+    /**
+     * Shows in the status notification the progress of all the running uploads together.
+     *
+     * @param force     'true' to show it even if the percentage did not change, since the uploads did.
+     */
+    private void updateProgressNotification(boolean force) {
+        long transferred = 0;
+        long total = 0;
+        for (long[] progress : mUploadsProgress.values()) {
+            transferred += progress[0];
+            total += progress[1];
+        }
+        int percent = (total > 0) ? (int) (100.0 * ((double) transferred) / ((double) total)) : 0;
+        if (percent == mLastPercent && !force) {
+            return;
         }
         mLastPercent = percent;
+
+        String text;
+        if (mUploadsProgress.size() == 1) {
+            text = String.format(getString(R.string.uploader_upload_in_progress_content), percent,
+                    mUploadsProgress.keySet().iterator().next().getFileName());
+        } else {
+            text = String.format(getString(R.string.uploader_uploads_in_progress_content), percent,
+                    mUploadsProgress.size());
+        }
+        mNotificationBuilder.setProgress(100, percent, false);
+        mNotificationBuilder.setContentText(text);
+        mNotificationManager.notify(R.string.uploader_upload_in_progress_ticker, mNotificationBuilder.build());
+    }
+
+    private PendingIntent newUploadListIntent(UploadFileOperation upload) {
+        Intent showUploadListIntent = new Intent(this, UploadListActivity.class);
+        showUploadListIntent.putExtra(FileActivity.EXTRA_FILE, upload.getFile());
+        showUploadListIntent.putExtra(FileActivity.EXTRA_ACCOUNT, upload.getAccount());
+        showUploadListIntent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
+        return PendingIntent.getActivity(this, (int) System.currentTimeMillis(), showUploadListIntent, 0);
     }
 
     /**
-     * Updates the status notification with the result of an upload operation.
+     * Updates the status notifications with the result of an upload operation.
      *
      * @param uploadResult Result of the upload operation.
      * @param upload       Finished upload operation
      */
-    private void notifyUploadResult(UploadFileOperation upload,
+    private synchronized void notifyUploadResult(UploadFileOperation upload,
                                     RemoteOperationResult uploadResult) {
         Log_OC.d(TAG, "NotifyUploadResult with resultCode: " + uploadResult.getCode());
-        // / cancelled operation or success -> silent removal of progress notification
-        mNotificationManager.cancel(R.string.uploader_upload_in_progress_ticker);
+        // / the progress notification is removed silently when no other upload is running
+        mUploadsProgress.remove(upload);
+        if (mUploadsProgress.isEmpty()) {
+            mNotificationManager.cancel(R.string.uploader_upload_in_progress_ticker);
+            mNotificationBuilder = null;
+        } else {
+            updateProgressNotification(true);
+        }
 
         // Show the result: success or fail notification
         if (!uploadResult.isCancelled() &&
@@ -1055,7 +1247,11 @@ public class FileUploader extends Service
             tickerId = (needsToUpdateCredentials) ?
                     R.string.uploader_upload_failed_credentials_error : tickerId;
 
-            mNotificationBuilder
+            NotificationCompat.Builder resultBuilder = NotificationUtils.newNotificationBuilder(this);
+            resultBuilder
+                    .setSmallIcon(R.drawable.notification_icon)
+                    // also in case of failure, no details file view (because there may be no file!)
+                    .setContentIntent(newUploadListIntent(upload))
                     .setTicker(getString(tickerId))
                     .setContentTitle(getString(tickerId))
                     .setAutoCancel(true)
@@ -1080,7 +1276,7 @@ public class FileUploader extends Service
                 updateAccountCredentials.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
                 updateAccountCredentials.addFlags(Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS);
                 updateAccountCredentials.addFlags(Intent.FLAG_FROM_BACKGROUND);
-                mNotificationBuilder.setContentIntent(PendingIntent.getActivity(
+                resultBuilder.setContentIntent(PendingIntent.getActivity(
                         this,
                         (int) System.currentTimeMillis(),
                         updateAccountCredentials,
@@ -1088,21 +1284,11 @@ public class FileUploader extends Service
                 ));
 
             } else {
-                mNotificationBuilder.setContentText(content);
-            }
-
-            if (!uploadResult.isSuccess() && !needsToUpdateCredentials ) {
-                //in case of failure, do not show details file view (because there is no file!)
-                Intent showUploadListIntent = new Intent(this, UploadListActivity.class);
-                showUploadListIntent.putExtra(FileActivity.EXTRA_FILE, upload.getFile());
-                showUploadListIntent.putExtra(FileActivity.EXTRA_ACCOUNT, upload.getAccount());
-                showUploadListIntent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
-                mNotificationBuilder.setContentIntent(PendingIntent.getActivity(this, (int) System.currentTimeMillis(),
-                        showUploadListIntent, 0));
+                resultBuilder.setContentText(content);
             }
 
-            mNotificationBuilder.setContentText(content);
-            mNotificationManager.notify(tickerId, mNotificationBuilder.build());
+            resultBuilder.setContentText(content);
+            mNotificationManager.notify(tickerId, resultBuilder.build());
 
             if (uploadResult.isSuccess()) {
                 mPendingUploads.remove(upload.getAccount().name, upload.getFile().getRemotePath());
@@ -1144,6 +1330,7 @@ public class FileUploader extends Service
         start.putExtra(EXTRA_REMOTE_PATH, upload.getRemotePath()); // real remote
         start.putExtra(EXTRA_OLD_FILE_PATH, upload.getOriginalStoragePath());
         start.putExtra(ACCOUNT_NAME, upload.getAccount().name);
+        start.putExtra(EXTRA_UPLOAD_ID, upload.getOCUploadId());
 
         sendStickyBroadcast(start);
     }
@@ -1174,6 +1361,7 @@ public class FileUploader extends Service
         }
         end.putExtra(EXTRA_OLD_FILE_PATH, upload.getOriginalStoragePath());
         end.putExtra(ACCOUNT_NAME, upload.getAccount().name);
+        end.putExtra(EXTRA_UPLOAD_ID, upload.getOCUploadId());
         end.putExtra(EXTRA_UPLOAD_RESULT, uploadResult.isSuccess());
         if (unlinkedFromRemotePath != null) {
             end.putExtra(EXTRA_LINKED_TO_PATH, unlinkedFromRemotePath);
@@ -1192,4 +1380,57 @@ public class FileUploader extends Service
         mUploadsStorageManager.removeUploads(account.name);
     }
 
+
+    /**
+     * Counts bytes and files uploaded by all the lanes in the last minute, in one second slots.
+     */
+    private static class UploadThroughput {
+
+        private static final int SLOTS = 60;
+
+        private final long[] mBytes = new long[SLOTS];
+        private final int[] mFiles = new int[SLOTS];
+        private final long[] mSlotSecond = new long[SLOTS];
+
+        synchronized void addBytes(long bytes) {
+            mBytes[currentSlot()] += bytes;
+        }
+
+        synchronized void addFile() {
+            mFiles[currentSlot()]++;
+        }
+
+        synchronized int getFilesPerMinute() {
+            long now = System.currentTimeMillis() / 1000;
+            int files = 0;
+            for (int i = 0; i < SLOTS; i++) {
+                if (now - mSlotSecond[i] < SLOTS) {
+                    files += mFiles[i];
+                }
+            }
+            return files;
+        }
+
+        synchronized long getBytesPerSecond() {
+            long now = System.currentTimeMillis() / 1000;
+            long bytes = 0;
+            for (int i = 0; i < SLOTS; i++) {
+                if (now - mSlotSecond[i] < SLOTS) {
+                    bytes += mBytes[i];
+                }
+            }
+            return bytes / SLOTS;
+        }
+
+        private int currentSlot() {
+            long now = System.currentTimeMillis() / 1000;
+            int slot = (int) (now % SLOTS);
+            if (mSlotSecond[slot] != now) {
+                mSlotSecond[slot] = now;
+                mBytes[slot] = 0;
+                mFiles[slot] = 0;
+            }
+            return slot;
+        }
+    }
 }
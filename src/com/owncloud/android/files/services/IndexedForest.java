@@ -98,7 +98,7 @@ public class IndexedForest<V> {
     }
 
 
-    public /* synchronized */ Pair<String, String> putIfAbsent(String accountName, String remotePath, V value) {
+    public synchronized Pair<String, String> putIfAbsent(String accountName, String remotePath, V value) {
         String targetKey = buildKey(accountName, remotePath);
 
         Node<V> valuedNode = new Node(targetKey, value);
@@ -144,7 +144,7 @@ public class IndexedForest<V> {
     };
 
 
-    public Pair<V, String> removePayload(String accountName, String remotePath) {
+    public synchronized Pair<V, String> removePayload(String accountName, String remotePath) {
         String targetKey = buildKey(accountName, remotePath);
         Node<V> target = mMap.get(targetKey);
         if (target != null) {
@@ -157,7 +157,7 @@ public class IndexedForest<V> {
     }
 
 
-    public /* synchronized */ Pair<V, String> remove(String accountName, String remotePath) {
+    public synchronized Pair<V, String> remove(String accountName, String remotePath) {
         String targetKey = buildKey(accountName, remotePath);
         Node<V> firstRemoved = mMap.remove(targetKey);
         String unlinkedFrom = null;
@@ -199,12 +199,12 @@ public class IndexedForest<V> {
         }
     }
 
-    public boolean contains(String accountName, String remotePath) {
+    public synchronized boolean contains(String accountName, String remotePath) {
         String targetKey = buildKey(accountName, remotePath);
         return mMap.containsKey(targetKey);
     }
 
-    public /* synchronized */ V get(String key) {
+    public synchronized V get(String key) {
         Node<V> node = mMap.get(key);
         if (node != null) {
             return node.getPayload();
@@ -213,7 +213,7 @@ public class IndexedForest<V> {
         }
     }
 
-    public V get(String accountName, String remotePath) {
+    public synchronized V get(String accountName, String remotePath) {
         String key = buildKey(accountName, remotePath);
         return get(key);
     }
@@ -223,7 +223,7 @@ public class IndexedForest<V> {
      * Remove the elements that contains account as a part of its key
      * @param accountName
      */
-    public void remove(String accountName){
+    public synchronized void remove(String accountName){
         Iterator<String> it = mMap.keySet().iterator();
         while (it.hasNext()) {
             String key = it.next();
@@ -0,0 +1,140 @@
+/**
+ *   Nextcloud Android client application
+ *
+ *   Copyright (C) 2016 Nextcloud
+ *
+ *   This program is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU AFFERO GENERAL PUBLIC LICENSE
+ *   License as published by the Free Software Foundation; either
+ *   version 3 of the License, or any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU AFFERO GENERAL PUBLIC LICENSE for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public
+ *   License along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.owncloud.android.files.services;
+
+import android.accounts.Account;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+
+import com.owncloud.android.authentication.AccountUtils;
+import com.owncloud.android.datamodel.FileDataStorageManager;
+import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.lib.common.utils.Log_OC;
+import com.owncloud.android.operations.ResumableDownloadRemoteFileOperation;
+import com.owncloud.android.utils.FileStorageUtils;
+
+import java.util.Map;
+
+/**
+ * Durable list of the downloads interrupted by a network error, to request them again to {@link FileDownloader}
+ * when the connectivity is back. The partial content they left is resumed by the new downloads.
+ *
+ * Entries are kept in a private shared preferences file, so they survive the process. The partial content of a
+ * download is removed when it is forgotten, and when it can not be retried anymore.
+ */
+public class InterruptedDownloadsQueue {
+
+    private static final String TAG = InterruptedDownloadsQueue.class.getSimpleName();
+
+    private static final String PREFERENCES_NAME = "interrupted_downloads";
+
+    /** Account names can not contain line breaks */
+    private static final String KEY_SEPARATOR = "\n";
+
+    /** Shared by every instance, since all of them work on the same preferences file */
+    private static final Object LOCK = new Object();
+
+    private final Context mContext;
+    private final SharedPreferences mPreferences;
+
+    public InterruptedDownloadsQueue(Context context) {
+        mContext = context.getApplicationContext();
+        mPreferences = mContext.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Records a download interrupted by a network error.
+     *
+     * @param accountName   Name of the account of the file.
+     * @param remotePath    Path of the file in the server.
+     */
+    public void add(String accountName, String remotePath) {
+        synchronized (LOCK) {
+            mPreferences.edit().putLong(buildKey(accountName, remotePath), System.currentTimeMillis()).apply();
+        }
+    }
+
+    /**
+     * Forgets a download, because it finished or was cancelled, and removes its partial content, if any.
+     *
+     * @param accountName   Name of the account of the file.
+     * @param remotePath    Path of the file in the server.
+     */
+    public void remove(String accountName, String remotePath) {
+        String key = buildKey(accountName, remotePath);
+        synchronized (LOCK) {
+            if (mPreferences.contains(key)) {
+                mPreferences.edit().remove(key).apply();
+            }
+        }
+        discardPartialContent(accountName, remotePath);
+    }
+
+    /**
+     * Requests again to {@link FileDownloader} every recorded download, and empties the list. Downloads interrupted
+     * again will be recorded again.
+     *
+     * Reads the database; do not call from the main thread.
+     */
+    public void retryAll() {
+        Map<String, ?> entries;
+        synchronized (LOCK) {
+            entries = mPreferences.getAll();
+            mPreferences.edit().clear().apply();
+        }
+
+        for (String key : entries.keySet()) {
+            int separator = key.indexOf(KEY_SEPARATOR);
+            if (separator < 0) {
+                continue;
+            }
+            String accountName = key.substring(0, separator);
+            String remotePath = key.substring(separator + 1);
+            Account account = AccountUtils.getOwnCloudAccountByName(mContext, accountName);
+            if (account == null) {
+                discardPartialContent(accountName, remotePath);
+                continue;
+            }
+            FileDataStorageManager storageManager =
+                    new FileDataStorageManager(account, mContext.getContentResolver());
+            OCFile file = storageManager.getFileByPath(remotePath);
+            if (file == null || file.isFolder()) {
+                discardPartialContent(accountName, remotePath);
+                continue;
+            }
+
+            Log_OC.d(TAG, "Retrying interrupted download of " + file.getRemotePath());
+            Intent i = new Intent(mContext, FileDownloader.class);
+            i.putExtra(FileDownloader.EXTRA_ACCOUNT, account);
+            i.putExtra(FileDownloader.EXTRA_FILE, file);
+            mContext.startService(i);
+        }
+    }
+
+    private static void discardPartialContent(String accountName, String remotePath) {
+        ResumableDownloadRemoteFileOperation.discardPartialContent(
+                FileStorageUtils.getTemporalPath(accountName) + remotePath);
+    }
+
+    private static String buildKey(String accountName, String remotePath) {
+        return accountName + KEY_SEPARATOR + remotePath;
+    }
+}
@@ -34,7 +34,6 @@ import com.owncloud.android.lib.common.operations.OperationCancelledException;
 import com.owncloud.android.lib.common.operations.RemoteOperation;
 import com.owncloud.android.lib.common.operations.RemoteOperationResult;
 import com.owncloud.android.lib.common.utils.Log_OC;
-import com.owncloud.android.lib.resources.files.DownloadRemoteFileOperation;
 import com.owncloud.android.utils.FileStorageUtils;
 
 import android.accounts.Account;
@@ -52,9 +51,10 @@ public class DownloadFileOperation extends RemoteOperation {
     private Set<OnDatatransferProgressListener> mDataTransferListeners = new HashSet<OnDatatransferProgressListener>();
     private long mModificationTimestamp = 0;
     private String mEtag = "";
+    private long mResumedBytes = 0;
     private final AtomicBoolean mCancellationRequested = new AtomicBoolean(false);
     
-    private DownloadRemoteFileOperation mDownloadOperation;
+    private ResumableDownloadRemoteFileOperation mDownloadOperation;
 
     
     public DownloadFileOperation(Account account, OCFile file) {
@@ -92,6 +92,13 @@ public class DownloadFileOperation extends RemoteOperation {
         return FileStorageUtils.getTemporalPath(mAccount.name) + mFile.getRemotePath();
     }
     
+    /**
+     * @return Local path of the file where the content is written while it is being downloaded.
+     */
+    public String getPartialPath() {
+        return ResumableDownloadRemoteFileOperation.getPartialPath(getTmpPath());
+    }
+
     public String getTmpFolder() {
         return FileStorageUtils.getTemporalPath(mAccount.name);
     }
@@ -132,6 +139,13 @@ public class DownloadFileOperation extends RemoteOperation {
         return mEtag;
     }
 
+    /**
+     * @return Bytes taken from a previous interrupted download of the file, instead of being transferred again.
+     */
+    public long getResumedBytes() {
+        return mResumedBytes;
+    }
+
     @Override
     protected RemoteOperationResult run(OwnCloudClient client) {
         RemoteOperationResult result;
@@ -140,9 +154,7 @@ public class DownloadFileOperation extends RemoteOperation {
         
         /// download will be performed to a temporal file, then moved to the final location
         File tmpFile = new File(getTmpPath());
-        
-        String tmpFolder =  getTmpFolder();
-        
+
         /// perform the download
         synchronized(mCancellationRequested) {
             if (mCancellationRequested.get()) {
@@ -150,16 +162,24 @@ public class DownloadFileOperation extends RemoteOperation {
             }
         }
         
-        mDownloadOperation = new DownloadRemoteFileOperation(mFile.getRemotePath(), tmpFolder);
-        Iterator<OnDatatransferProgressListener> listener = mDataTransferListeners.iterator();
-        while (listener.hasNext()) {
-            mDownloadOperation.addDatatransferProgressListener(listener.next());
+        // resumes a previous interrupted download of the file, if its partial content is still valid
+        mDownloadOperation = new ResumableDownloadRemoteFileOperation(mFile.getRemotePath(), getTmpPath());
+        synchronized (mDataTransferListeners) {
+            Iterator<OnDatatransferProgressListener> listener = mDataTransferListeners.iterator();
+            while (listener.hasNext()) {
+                mDownloadOperation.addDatatransferProgressListener(listener.next());
+            }
         }
         result = mDownloadOperation.execute(client);
-        
+
         if (result.isSuccess()) {
             mModificationTimestamp = mDownloadOperation.getModificationTimestamp();
             mEtag = mDownloadOperation.getEtag();
+            mResumedBytes = mDownloadOperation.getResumedBytes();
+            if (mModificationTimestamp == 0) {
+                Log_OC.e(TAG, "Could not read modification time from response downloading " +
+                        mFile.getRemotePath());
+            }
             newFile = new File(getSavePath());
             newFile.getParentFile().mkdirs();
             moved = tmpFile.renameTo(newFile);
@@ -169,7 +189,7 @@ public class DownloadFileOperation extends RemoteOperation {
             }
         }
         Log_OC.i(TAG, "Download of " + mFile.getRemotePath() + " to " + getSavePath() + ": " +
-                result.getLogMessage());
+                result.getLogMessage() + ", resumed bytes: " + mResumedBytes);
         
         return result;
     }
@@ -23,10 +23,13 @@ package com.owncloud.android.operations;
 import android.accounts.Account;
 import android.content.Context;
 import android.content.Intent;
+import android.os.Build;
 import android.util.Log;
 
 import com.owncloud.android.datamodel.FileDataStorageManager;
 import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.datamodel.ThumbnailsCacheManager;
+import com.owncloud.android.db.PreferenceManager;
 import com.owncloud.android.lib.common.OwnCloudClient;
 import com.owncloud.android.lib.common.operations.RemoteOperation;
 import com.owncloud.android.lib.common.operations.RemoteOperationResult;
@@ -37,6 +40,7 @@ import com.owncloud.android.lib.resources.files.ReadRemoteFolderOperation;
 import com.owncloud.android.lib.resources.files.RemoteFile;
 import com.owncloud.android.lib.resources.shares.GetRemoteSharesForFileOperation;
 import com.owncloud.android.lib.resources.shares.OCShare;
+import com.owncloud.android.services.ThumbnailsPrefetchJobService;
 import com.owncloud.android.syncadapter.FileSyncAdapter;
 import com.owncloud.android.utils.FileStorageUtils;
 import com.owncloud.android.utils.MimeTypeUtil;
@@ -63,6 +67,9 @@ public class RefreshFolderOperation extends RemoteOperation {
 
     private static final String TAG = RefreshFolderOperation.class.getSimpleName();
 
+    /** Images without cached thumbnail that make worth downloading all of them in background */
+    private static final int MIN_THUMBNAILS_TO_PREFETCH = 50;
+
     public static final String EVENT_SINGLE_FOLDER_CONTENTS_SYNCED  = 
             RefreshFolderOperation.class.getName() + ".EVENT_SINGLE_FOLDER_CONTENTS_SYNCED";
     public static final String EVENT_SINGLE_FOLDER_SHARES_SYNCED    = 
@@ -110,6 +117,9 @@ public class RefreshFolderOperation extends RemoteOperation {
     /** 'True' means that Etag will be ignored */
     private boolean mIgnoreETag;
 
+    /** Number of PROPFIND requests sent to the server in the last execution */
+    private int mPropfindsCount;
+
     private List<SynchronizeFileOperation> mFilesToSyncContents;
     // this will be used for every file when 'folder synchronization' replaces 'folder download'
 
@@ -162,6 +172,22 @@ public class RefreshFolderOperation extends RemoteOperation {
     public Map<String, String> getForgottenLocalFiles() {
         return mForgottenLocalFiles;
     }
+
+    /**
+     * Returns 'true' if the eTag of the remote folder changed, or was ignored, and its contents were fetched
+     * from the server in the last execution.
+     *
+     * When 'false', no descendant of the folder changed in the server, only local changes can be pending.
+     *
+     * @return  'True' when the contents of the folder were fetched from the server.
+     */
+    public boolean isRemoteFolderChanged() {
+        return mRemoteFolderChanged;
+    }
+
+    public int getPropfindsCount() {
+        return mPropfindsCount;
+    }
     
     /**
      * Returns the list of files and folders contained in the synchronized folder, 
@@ -183,6 +209,7 @@ public class RefreshFolderOperation extends RemoteOperation {
         RemoteOperationResult result = null;
         mFailsInFavouritesFound = 0;
         mConflictsFound = 0;
+        mPropfindsCount = 0;
         mForgottenLocalFiles.clear();
         
         if (OCFile.ROOT_PATH.equals(mLocalFolder.getRemotePath()) && !mSyncFullAccount) {
@@ -203,6 +230,10 @@ public class RefreshFolderOperation extends RemoteOperation {
             if (result.isSuccess()) {
                 // request for the synchronization of KEPT-IN-SYNC file contents
                 startContentSynchronizations(mFilesToSyncContents, client);
+
+                if (!mSyncFullAccount) {
+                    requestThumbnailsPrefetch();
+                }
             }
         }
         
@@ -226,6 +257,35 @@ public class RefreshFolderOperation extends RemoteOperation {
         
     }
 
+    /**
+     * Schedules the download of the thumbnails of the folder in background when it has many images without a
+     * cached thumbnail, if enabled by the user.
+     */
+    private void requestThumbnailsPrefetch() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP ||
+                !PreferenceManager.thumbnailPrefetchEnabled(mContext) || mChildren == null) {
+            return;
+        }
+        List<OCFile> images = new ArrayList<>();
+        for (OCFile child : mChildren) {
+            if (MimeTypeUtil.isImage(child) && !child.isDown()) {
+                images.add(child);
+            }
+        }
+        // the disk cache is checked only while the threshold can still be reached
+        int missingThumbnails = 0;
+        for (int i = 0; i < images.size() && missingThumbnails + images.size() - i >= MIN_THUMBNAILS_TO_PREFETCH;
+                i++) {
+            if (!ThumbnailsCacheManager.isThumbnailCached(images.get(i))) {
+                missingThumbnails++;
+                if (missingThumbnails >= MIN_THUMBNAILS_TO_PREFETCH) {
+                    ThumbnailsPrefetchJobService.schedulePrefetch(mContext, mAccount, mLocalFolder.getRemotePath());
+                    return;
+                }
+            }
+        }
+    }
+
     private void updateOCVersion(OwnCloudClient client) {
         UpdateOCVersionOperation update = new UpdateOCVersionOperation(mAccount, mContext);
         RemoteOperationResult result = update.execute(client);
@@ -269,6 +329,7 @@ public class RefreshFolderOperation extends RemoteOperation {
         // remote request 
         ReadRemoteFileOperation operation = new ReadRemoteFileOperation(remotePath);
         result = operation.execute(client);
+        mPropfindsCount++;
         if (result.isSuccess()){
             OCFile remoteFolder = FileStorageUtils.fillOCFile((RemoteFile) result.getData().get(0));
 
@@ -311,6 +372,7 @@ public class RefreshFolderOperation extends RemoteOperation {
         String remotePath = mLocalFolder.getRemotePath();
         ReadRemoteFolderOperation operation = new ReadRemoteFolderOperation(remotePath);
         RemoteOperationResult result = operation.execute(client);
+        mPropfindsCount++;
         Log_OC.d(TAG, "Synchronizing " + mAccount.name + remotePath);
         
         if (result.isSuccess()) {
@@ -0,0 +1,221 @@
+/**
+ *   Nextcloud Android client application
+ *
+ *   Copyright (C) 2016 Nextcloud
+ *
+ *   This program is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU AFFERO GENERAL PUBLIC LICENSE
+ *   License as published by the Free Software Foundation; either
+ *   version 3 of the License, or any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU AFFERO GENERAL PUBLIC LICENSE for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public
+ *   License along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.owncloud.android.operations;
+
+import android.accounts.Account;
+import android.os.SystemClock;
+
+import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.lib.common.OwnCloudClient;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult.ResultCode;
+import com.owncloud.android.lib.common.utils.Log_OC;
+import com.owncloud.android.lib.resources.files.ExistenceCheckRemoteOperation;
+import com.owncloud.android.lib.resources.files.ReadRemoteFolderOperation;
+import com.owncloud.android.lib.resources.files.RemoteFile;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Names of the files in the remote folders targeted by a batch of uploads, read with a single PROPFIND per folder.
+ *
+ * Uploads check the existence of their folder and look for a free name for their file here, instead of asking the
+ * server for every candidate name. Names chosen by uploads are added immediately, so that concurrent uploads to the
+ * same folder do not choose the same one. Listings older than {@link #MAX_AGE} are read again from the server, and a
+ * name chosen from a listing not read just now is checked in the server, since other clients may have used it since.
+ *
+ * Shared by all the uploads of a {@link com.owncloud.android.files.services.FileUploader}; thread safe.
+ */
+public class RemoteFolderCache {
+
+    private static final String TAG = RemoteFolderCache.class.getSimpleName();
+
+    /** Time after which a listing is considered stale, in milliseconds */
+    private static final long MAX_AGE = 60 * 1000;
+
+    private final Map<String, FolderListing> mListings = new HashMap<>();
+
+
+    /**
+     * Checks that a remote folder exists, reading its listing from the server if it is not cached or is stale.
+     *
+     * @param client        Client to access the server of the account.
+     * @param account       Account owning the folder.
+     * @param folderPath    Remote path of the folder, ending in {@link OCFile#PATH_SEPARATOR}.
+     * @return              Success if the folder exists; the result of the failed PROPFIND otherwise.
+     */
+    public RemoteOperationResult checkFolder(OwnCloudClient client, Account account, String folderPath) {
+        FolderListing listing = getListing(account, folderPath);
+        synchronized (listing) {
+            if (listing.isFresh()) {
+                return new RemoteOperationResult(ResultCode.OK);
+            }
+            return listing.load(client, folderPath);
+        }
+    }
+
+
+    /**
+     * Records a folder just created in the server, so that it does not need to be read.
+     */
+    public void folderCreated(Account account, String folderPath) {
+        FolderListing listing = getListing(account, folderPath);
+        synchronized (listing) {
+            listing.reset();
+        }
+    }
+
+
+    /**
+     * Finds a name not used in the folder of remotePath, adding a suffix " (2)", " (3)"... before the extension when
+     * needed, and reserves it.
+     *
+     * If the listing was cached, the chosen name is checked in the server; when it was used meanwhile, the next
+     * candidates are checked one by one.
+     *
+     * @param client        Client to access the server of the account.
+     * @param account       Account owning the folder.
+     * @param remotePath    Remote path requested for an uploaded file.
+     * @return              Free remote path, or null if the listing of the folder could not be read.
+     */
+    public String reserveAvailablePath(OwnCloudClient client, Account account, String remotePath) {
+        int separator = remotePath.lastIndexOf(OCFile.PATH_SEPARATOR);
+        String folderPath = remotePath.substring(0, separator + 1);
+        String fileName = remotePath.substring(separator + 1);
+
+        FolderListing listing = getListing(account, folderPath);
+        synchronized (listing) {
+            boolean cached = listing.isFresh();
+            if (!cached && !listing.load(client, folderPath).isSuccess()) {
+                return null;
+            }
+
+            String availableName = findAvailableName(listing, fileName);
+            while (cached && existsFile(client, folderPath + availableName)) {
+                Log_OC.d(TAG, folderPath + availableName + " was created after the listing was read");
+                listing.mNames.add(availableName);
+                availableName = findAvailableName(listing, fileName);
+            }
+            listing.mReservedNames.add(availableName);
+            return folderPath + availableName;
+        }
+    }
+
+
+    private static String findAvailableName(FolderListing listing, String fileName) {
+        if (!listing.isUsed(fileName)) {
+            return fileName;
+        }
+        int pos = fileName.lastIndexOf('.');
+        String baseName = (pos >= 0) ? fileName.substring(0, pos) : fileName;
+        String extension = (pos >= 0) ? fileName.substring(pos) : "";
+        String availableName;
+        int count = 2;
+        do {
+            availableName = baseName + " (" + count + ")" + extension;
+            count++;
+        } while (listing.isUsed(availableName));
+        return availableName;
+    }
+
+
+    private static boolean existsFile(OwnCloudClient client, String remotePath) {
+        ExistenceCheckRemoteOperation existsOperation = new ExistenceCheckRemoteOperation(remotePath, false);
+        return existsOperation.execute(client).isSuccess();
+    }
+
+
+    /**
+     * Frees a name reserved with {@link #reserveAvailablePath(OwnCloudClient, Account, String)} by an upload that
+     * failed.
+     */
+    public void release(Account account, String remotePath) {
+        int separator = remotePath.lastIndexOf(OCFile.PATH_SEPARATOR);
+        FolderListing listing = getListing(account, remotePath.substring(0, separator + 1));
+        synchronized (listing) {
+            listing.mReservedNames.remove(remotePath.substring(separator + 1));
+        }
+    }
+
+
+    /**
+     * Forgets all the listings; called when a batch of uploads is finished.
+     */
+    public synchronized void clear() {
+        mListings.clear();
+    }
+
+
+    private synchronized FolderListing getListing(Account account, String folderPath) {
+        String key = account.name + folderPath;
+        FolderListing listing = mListings.get(key);
+        if (listing == null) {
+            listing = new FolderListing();
+            mListings.put(key, listing);
+        }
+        return listing;
+    }
+
+
+    /**
+     * Names in a remote folder, and names chosen by uploads to it; access synchronized on the instance.
+     */
+    private static class FolderListing {
+
+        private final Set<String> mNames = new HashSet<>();
+        private final Set<String> mReservedNames = new HashSet<>();
+        private long mLoadTime = -1;
+
+        boolean isUsed(String name) {
+            return mNames.contains(name) || mReservedNames.contains(name);
+        }
+
+        boolean isFresh() {
+            return mLoadTime >= 0 && SystemClock.elapsedRealtime() - mLoadTime < MAX_AGE;
+        }
+
+        void reset() {
+            mNames.clear();
+            mLoadTime = SystemClock.elapsedRealtime();
+        }
+
+        RemoteOperationResult load(OwnCloudClient client, String folderPath) {
+            ReadRemoteFolderOperation operation = new ReadRemoteFolderOperation(folderPath);
+            RemoteOperationResult result = operation.execute(client);
+            if (result.isSuccess()) {
+                reset();
+                // the first element is the folder itself
+                for (int i = 1; i < result.getData().size(); i++) {
+                    String path = ((RemoteFile) result.getData().get(i)).getRemotePath();
+                    if (path.endsWith(OCFile.PATH_SEPARATOR)) {
+                        path = path.substring(0, path.length() - 1);
+                    }
+                    mNames.add(path.substring(path.lastIndexOf(OCFile.PATH_SEPARATOR) + 1));
+                }
+            } else {
+                Log_OC.d(TAG, "Could not read listing of " + folderPath + ": " + result.getLogMessage());
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,329 @@
+/**
+ *   Nextcloud Android client application
+ *
+ *   Copyright (C) 2016 Nextcloud
+ *
+ *   This program is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU AFFERO GENERAL PUBLIC LICENSE
+ *   License as published by the Free Software Foundation; either
+ *   version 3 of the License, or any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU AFFERO GENERAL PUBLIC LICENSE for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public
+ *   License along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.owncloud.android.operations;
+
+import com.owncloud.android.lib.common.OwnCloudClient;
+import com.owncloud.android.lib.common.network.OnDatatransferProgressListener;
+import com.owncloud.android.lib.common.network.WebdavUtils;
+import com.owncloud.android.lib.common.operations.OperationCancelledException;
+import com.owncloud.android.lib.common.operations.RemoteOperation;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+import com.owncloud.android.lib.common.utils.Log_OC;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.GetMethod;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Downloads a remote file to a partial file, resuming a previous interrupted download of the same file when
+ * possible.
+ *
+ * The etag of the remote file is kept next to the partial file. When both are found, only the missing bytes are
+ * requested with a 'Range' header, conditioned to the etag with an 'If-Range' header; if the file changed in the
+ * server, the server sends it complete and the partial file is overwritten.
+ *
+ * The partial file is kept when the download fails by a network error, so that it can be resumed, and removed when
+ * the download is cancelled, when the remote file is not found or does not match the request anymore, and when it
+ * finishes successfully, after being renamed to the temporal path of the download.
+ */
+public class ResumableDownloadRemoteFileOperation extends RemoteOperation {
+
+    private static final String TAG = ResumableDownloadRemoteFileOperation.class.getSimpleName();
+
+    private static final String PARTIAL_SUFFIX = ".part";
+    private static final String ETAG_SUFFIX = ".etag";
+    private static final int BUFFER_SIZE = 4096;
+
+    private final String mRemotePath;
+    private final File mTargetFile;
+    private final File mPartialFile;
+    private final File mEtagFile;
+
+    private final Set<OnDatatransferProgressListener> mDataTransferListeners = new HashSet<>();
+    private final AtomicBoolean mCancellationRequested = new AtomicBoolean(false);
+    private volatile GetMethod mGet;
+
+    private long mModificationTimestamp = 0;
+    private String mEtag = "";
+    private long mResumedBytes = 0;
+
+    /**
+     * @param remotePath    Path of the file in the server.
+     * @param targetPath    Local path where the complete file is left.
+     */
+    public ResumableDownloadRemoteFileOperation(String remotePath, String targetPath) {
+        mRemotePath = remotePath;
+        mTargetFile = new File(targetPath);
+        mPartialFile = new File(getPartialPath(targetPath));
+        mEtagFile = new File(getPartialPath(targetPath) + ETAG_SUFFIX);
+    }
+
+    /**
+     * @param targetPath    Local path where the complete file is left.
+     * @return              Local path of the partial file written while downloading.
+     */
+    public static String getPartialPath(String targetPath) {
+        return targetPath + PARTIAL_SUFFIX;
+    }
+
+    /**
+     * Removes the partial file left by an interrupted download, and its etag, when it will not be resumed.
+     *
+     * @param targetPath    Local path where the complete file would have been left.
+     */
+    public static void discardPartialContent(String targetPath) {
+        new File(getPartialPath(targetPath)).delete();
+        new File(getPartialPath(targetPath) + ETAG_SUFFIX).delete();
+    }
+
+    @Override
+    protected RemoteOperationResult run(OwnCloudClient client) {
+        RemoteOperationResult result;
+        try {
+            mTargetFile.getParentFile().mkdirs();
+            result = download(client, readPartialEtag());
+            if (result.getHttpCode() == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE) {
+                // the partial file does not match the remote file anymore
+                discardPartialFile();
+                result = download(client, null);
+            }
+
+        } catch (OperationCancelledException e) {
+            discardPartialFile();
+            result = new RemoteOperationResult(e);
+
+        } catch (Exception e) {
+            if (mCancellationRequested.get()) {
+                discardPartialFile();
+                result = new RemoteOperationResult(new OperationCancelledException());
+            } else {
+                result = new RemoteOperationResult(e);
+            }
+        }
+        // logged by the caller, with the resumed bytes
+        return result;
+    }
+
+    /**
+     * Performs a GET request of the remote file, asking only for the bytes not in the partial file when its etag is
+     * known.
+     *
+     * @param client        Client to access the server.
+     * @param partialEtag   Etag of the remote file when the partial file was written, or null to download the
+     *                      complete file.
+     * @return              Result of the request.
+     */
+    private RemoteOperationResult download(OwnCloudClient client, String partialEtag) throws Exception {
+        if (mCancellationRequested.get()) {
+            throw new OperationCancelledException();
+        }
+        GetMethod get = createGetMethod(client.getWebdavUri() + WebdavUtils.encodePath(mRemotePath));
+        mGet = get;
+        long offset = (partialEtag != null) ? mPartialFile.length() : 0;
+        if (offset > 0) {
+            get.addRequestHeader("Range", "bytes=" + offset + "-");
+            // etags are stored without quotes, as read by WebdavUtils
+            String entityTag = partialEtag.startsWith("\"") ? partialEtag : "\"" + partialEtag + "\"";
+            get.addRequestHeader("If-Range", entityTag);
+        }
+        mResumedBytes = 0;
+
+        try {
+            int status = client.executeMethod(get);
+
+            if (status == HttpStatus.SC_PARTIAL_CONTENT && offset > 0) {
+                String etag = WebdavUtils.getEtagFromResponse(get);
+                if (etag != null && etag.length() > 0 && !etag.equals(partialEtag)) {
+                    // the server ignored If-Range, or the file changed after the partial file was written
+                    client.exhaustResponse(get.getResponseBodyAsStream());
+                    discardPartialFile();
+                    return download(client, null);
+                }
+                mResumedBytes = offset;
+
+            } else if (status == HttpStatus.SC_OK) {
+                offset = 0;
+
+            } else {
+                client.exhaustResponse(get.getResponseBodyAsStream());
+                if (status == HttpStatus.SC_NOT_FOUND || status == HttpStatus.SC_PRECONDITION_FAILED) {
+                    // the partial file belongs to a remote file that does not exist anymore
+                    discardPartialFile();
+                }
+                return new RemoteOperationResult(false, status, get.getResponseHeaders());
+            }
+
+            readResponseHeaders(get);
+            if (mEtag.length() > 0) {
+                writePartialEtag(mEtag);
+            } else {
+                // nothing to validate a later resumption with
+                mEtagFile.delete();
+            }
+
+            long totalToTransfer = offset + get.getResponseContentLength();
+            writeResponseBody(get.getResponseBodyAsStream(), offset, totalToTransfer);
+
+            if (!mPartialFile.renameTo(mTargetFile)) {
+                return new RemoteOperationResult(RemoteOperationResult.ResultCode.LOCAL_STORAGE_NOT_MOVED);
+            }
+            mEtagFile.delete();
+            return new RemoteOperationResult(true, status, get.getResponseHeaders());
+
+        } finally {
+            get.releaseConnection();
+        }
+    }
+
+    /**
+     * Overridden by tests to simulate the responses of the server.
+     */
+    GetMethod createGetMethod(String uri) {
+        return new GetMethod(uri);
+    }
+
+    private void writeResponseBody(InputStream body, long offset, long totalToTransfer) throws Exception {
+        FileOutputStream fos = new FileOutputStream(mPartialFile, offset > 0);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long transferred = offset;
+            int read;
+            while ((read = body.read(buffer)) != -1) {
+                if (mCancellationRequested.get()) {
+                    throw new OperationCancelledException();
+                }
+                fos.write(buffer, 0, read);
+                transferred += read;
+                synchronized (mDataTransferListeners) {
+                    for (OnDatatransferProgressListener listener : mDataTransferListeners) {
+                        listener.onTransferProgress(read, transferred, totalToTransfer,
+                                mTargetFile.getAbsolutePath());
+                    }
+                }
+            }
+            if (totalToTransfer > 0 && transferred < totalToTransfer) {
+                throw new IOException("Connection closed after " + transferred + " of " + totalToTransfer +
+                        " bytes");
+            }
+        } finally {
+            fos.close();
+        }
+    }
+
+    private void readResponseHeaders(GetMethod get) {
+        Header modificationTime = get.getResponseHeader("Last-Modified");
+        if (modificationTime == null) {
+            modificationTime = get.getResponseHeader("last-modified");
+        }
+        if (modificationTime != null) {
+            Date date = WebdavUtils.parseResponseDate(modificationTime.getValue());
+            mModificationTimestamp = (date != null) ? date.getTime() : 0;
+        }
+        String etag = WebdavUtils.getEtagFromResponse(get);
+        mEtag = (etag != null) ? etag : "";
+    }
+
+    /**
+     * @return Etag saved with the partial file, or null if there is no partial file that can be resumed.
+     */
+    private String readPartialEtag() {
+        if (!mPartialFile.exists() || !mEtagFile.exists()) {
+            discardPartialFile();
+            return null;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(mEtagFile));
+            String etag = reader.readLine();
+            return (etag != null && etag.length() > 0) ? etag : null;
+
+        } catch (IOException e) {
+            Log_OC.w(TAG, "Could not read etag of partial file " + mPartialFile.getAbsolutePath());
+            return null;
+
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    Log_OC.w(TAG, "Could not close " + mEtagFile.getAbsolutePath());
+                }
+            }
+        }
+    }
+
+    private void writePartialEtag(String etag) throws IOException {
+        FileWriter writer = new FileWriter(mEtagFile);
+        try {
+            writer.write(etag);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private void discardPartialFile() {
+        mPartialFile.delete();
+        mEtagFile.delete();
+    }
+
+    public void cancel() {
+        mCancellationRequested.set(true);
+        GetMethod get = mGet;
+        if (get != null) {
+            get.abort();
+        }
+    }
+
+    /**
+     * @return Modification time sent by the server, or 0 if it could not be read from the response.
+     */
+    public long getModificationTimestamp() {
+        return mModificationTimestamp;
+    }
+
+    public String getEtag() {
+        return mEtag;
+    }
+
+    /**
+     * @return Bytes of the file taken from a previous interrupted download instead of being transferred again.
+     */
+    public long getResumedBytes() {
+        return mResumedBytes;
+    }
+
+    public void addDatatransferProgressListener(OnDatatransferProgressListener listener) {
+        synchronized (mDataTransferListeners) {
+            mDataTransferListeners.add(listener);
+        }
+    }
+}
@@ -60,6 +60,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
@@ -104,6 +106,17 @@ public class UploadFileOperation extends SyncOperation {
 
     private static final String TAG = UploadFileOperation.class.getSimpleName();
 
+    /** Bytes moved by every call to {@link FileChannel#transferTo}, to check cancellation between them */
+    private static final long TRANSFER_CHUNK_SIZE = 8 * 1024 * 1024;
+
+    /** Buffers for copies of content:// streams, reused by all the uploads */
+    private static final int COPY_BUFFER_SIZE = 256 * 1024;
+    private static final int MAX_POOLED_COPY_BUFFERS = 4;
+    private static final Deque<byte[]> sCopyBuffers = new ArrayDeque<>();
+
+    /** Files modified less than this before their upload are always copied before sending them */
+    private static final long STABLE_FILE_AGE = 60 * 1000;
+
     private Account mAccount;
     /**
      * OCFile which is to be uploaded.
@@ -129,6 +142,8 @@ public class UploadFileOperation extends SyncOperation {
     private String mOriginalStoragePath = null;
     private Set<OnDatatransferProgressListener> mDataTransferListeners = new HashSet<OnDatatransferProgressListener>();
     private OnRenameListener mRenameUploadListener;
+    private RemoteFolderCache mRemoteFolderCache;
+    private String mReservedRemotePath = null;
 
     private final AtomicBoolean mCancellationRequested = new AtomicBoolean(false);
     private final AtomicBoolean mUploadStarted = new AtomicBoolean(false);
@@ -287,6 +302,14 @@ public class UploadFileOperation extends SyncOperation {
         mRenameUploadListener = listener;
     }
 
+    /**
+     * Sets the listings of remote folders shared with the rest of uploads of the batch, used to check the existence
+     * of the target folder and to resolve name collisions without asking the server every time.
+     */
+    public void setRemoteFolderCache(RemoteFolderCache remoteFolderCache) {
+        mRemoteFolderCache = remoteFolderCache;
+    }
+
     @Override
     @SuppressWarnings("PMD.AvoidDuplicateLiterals")
     protected RemoteOperationResult run(OwnCloudClient client) {
@@ -294,6 +317,8 @@ public class UploadFileOperation extends SyncOperation {
         mUploadStarted.set(true);
         RemoteOperationResult result = null;
         File temporalFile = null, originalFile = new File(mOriginalStoragePath), expectedFile = null;
+        boolean uploadingOriginal = false;
+        long originalLength = 0, originalLastModified = 0;
 
         try {
 
@@ -339,7 +364,7 @@ public class UploadFileOperation extends SyncOperation {
                     Log_OC.d(TAG, "File renamed as " + remotePath);
                 }
                 mRemotePath = remotePath;
-                mRenameUploadListener.onRenameUpload();
+                mRenameUploadListener.onRenameUpload(this);
             }
 
             if (mCancellationRequested.get()) {
@@ -349,8 +374,16 @@ public class UploadFileOperation extends SyncOperation {
             String expectedPath = FileStorageUtils.getDefaultSavePathFor(mAccount.name, mFile);
             expectedFile = new File(expectedPath);
 
-            /// copy the file locally before uploading
+            /// copy the file locally before uploading, unless it can be sent from the original
             if (mLocalBehaviour == FileUploader.LOCAL_BEHAVIOUR_COPY &&
+                    !mOriginalStoragePath.equals(expectedPath) && canUploadOriginal(originalFile)) {
+
+                uploadingOriginal = true;
+                originalLength = originalFile.length();
+                originalLastModified = originalFile.lastModified();
+                Log_OC.d(TAG, "Uploading " + mOriginalStoragePath + " without copying it first");
+
+            } else if (mLocalBehaviour == FileUploader.LOCAL_BEHAVIOUR_COPY &&
                     !mOriginalStoragePath.equals(expectedPath)) {
 
                 String temporalPath = FileStorageUtils.getTemporalPath(mAccount.name) + mFile.getRemotePath();
@@ -388,6 +421,13 @@ public class UploadFileOperation extends SyncOperation {
 
             result = mUploadOperation.execute(client);
 
+            if (result.isSuccess() && uploadingOriginal &&
+                    (originalFile.length() != originalLength || originalFile.lastModified() != originalLastModified)) {
+                // the contents sent could be a mix of old and new data; fail, so that the upload is retried
+                Log_OC.w(TAG, mOriginalStoragePath + " changed while it was uploaded");
+                result = new RemoteOperationResult(ResultCode.LOCAL_STORAGE_NOT_COPIED);
+            }
+
             /// move local temporal file or original file to its corresponding
             // location in the ownCloud local folder
             if (result.isSuccess()) {
@@ -407,6 +447,11 @@ public class UploadFileOperation extends SyncOperation {
 
                     if (temporalFile != null) {         // FileUploader.LOCAL_BEHAVIOUR_COPY
                         move(temporalFile, expectedFile);
+                    } else if (uploadingOriginal) {     // FileUploader.LOCAL_BEHAVIOUR_COPY, not staged
+                        expectedFile.getParentFile().mkdirs();
+                        if (!FileStorageUtils.copyFile(originalFile, expectedFile)) {
+                            mFile.setStoragePath(""); // forget the local file; it was uploaded anyway
+                        }
                     } else {                            // FileUploader.LOCAL_BEHAVIOUR_MOVE
                         move(originalFile, expectedFile);
                         getStorageManager().deleteFileInMediaScan(originalFile.getAbsolutePath());
@@ -448,6 +493,11 @@ public class UploadFileOperation extends SyncOperation {
             }
         }
 
+        if (!result.isSuccess() && mReservedRemotePath != null) {
+            mRemoteFolderCache.release(mAccount, mReservedRemotePath);
+            mReservedRemotePath = null;
+        }
+
         if (result.isSuccess()) {
             saveUploadedFile(client);
 
@@ -505,11 +555,19 @@ public class UploadFileOperation extends SyncOperation {
      * will be uploaded.
      */
     private RemoteOperationResult grantFolderExistence(String pathToGrant, OwnCloudClient client) {
-        RemoteOperation operation = new ExistenceCheckRemoteOperation(pathToGrant, mContext, false);
-        RemoteOperationResult result = operation.execute(client);
+        RemoteOperationResult result;
+        if (mRemoteFolderCache != null) {
+            result = mRemoteFolderCache.checkFolder(client, mAccount, pathToGrant);
+        } else {
+            RemoteOperation operation = new ExistenceCheckRemoteOperation(pathToGrant, mContext, false);
+            result = operation.execute(client);
+        }
         if (!result.isSuccess() && result.getCode() == ResultCode.FILE_NOT_FOUND && mRemoteFolderToBeCreated) {
             SyncOperation syncOp = new CreateFolderOperation(pathToGrant, true);
             result = syncOp.execute(client, getStorageManager());
+            if (result.isSuccess() && mRemoteFolderCache != null) {
+                mRemoteFolderCache.folderCreated(mAccount, pathToGrant);
+            }
         }
         if (result.isSuccess()) {
             OCFile parentDir = getStorageManager().getFileByPath(pathToGrant);
@@ -573,11 +631,22 @@ public class UploadFileOperation extends SyncOperation {
      * Checks if remotePath does not exist in the server and returns it, or adds
      * a suffix to it in order to avoid the server file is overwritten.
      *
+     * The listing of the folder in the shared {@link RemoteFolderCache} is used when available; every candidate
+     * name is checked in the server otherwise.
+     *
      * @param wc
      * @param remotePath
      * @return
      */
     private String getAvailableRemotePath(OwnCloudClient wc, String remotePath) {
+        if (mRemoteFolderCache != null) {
+            String availablePath = mRemoteFolderCache.reserveAvailablePath(wc, mAccount, remotePath);
+            if (availablePath != null) {
+                mReservedRemotePath = availablePath;
+                return availablePath;
+            }
+        }
+
         boolean check = existsFile(wc, remotePath);
         if (!check) {
             return remotePath;
@@ -643,10 +712,24 @@ public class UploadFileOperation extends SyncOperation {
 
     }
 
+    /**
+     * A file can be uploaded without copying it first when the user enabled it, it is not a content:// stream, and it
+     * was not modified lately; the length and modification date read before the upload are checked after it, to
+     * detect changes during the upload.
+     */
+    private boolean canUploadOriginal(File originalFile) {
+        return PreferenceManager.isUploadWithoutStagingEnabled(mContext) &&
+                !mOriginalStoragePath.startsWith(UriUtils.URI_CONTENT_SCHEME) &&
+                System.currentTimeMillis() - originalFile.lastModified() > STABLE_FILE_AGE;
+    }
+
     /**
      * TODO rewrite with homogeneous fail handling, remove dependency on {@link RemoteOperationResult},
      * TODO     use Exceptions instead
      *
+     * Files are copied with {@link FileChannel#transferTo}, so that the system moves the bytes without copying them
+     * through the Java heap; content:// streams are copied with a large buffer reused between uploads.
+     *
      * @param   sourceFile      Source file to copy.
      * @param   targetFile      Target location to copy the file.
      * @return  {@link RemoteOperationResult}
@@ -686,17 +769,37 @@ public class UploadFileOperation extends SyncOperation {
                     if (mOriginalStoragePath.startsWith(UriUtils.URI_CONTENT_SCHEME)) {
                         Uri uri = Uri.parse(mOriginalStoragePath);
                         in = mContext.getContentResolver().openInputStream(uri);
+                        out = new FileOutputStream(targetFile);
+                        byte[] buf = obtainCopyBuffer();
+                        try {
+                            int nRead;
+                            while (!mCancellationRequested.get() &&
+                                    (nRead = in.read(buf)) > -1) {
+                                out.write(buf, 0, nRead);
+                            }
+                        } finally {
+                            releaseCopyBuffer(buf);
+                        }
+                        out.flush();
+
                     } else {
-                        in = new FileInputStream(sourceFile);
-                    }
-                    out = new FileOutputStream(targetFile);
-                    int nRead;
-                    byte[] buf = new byte[4096];
-                    while (!mCancellationRequested.get() &&
-                            (nRead = in.read(buf)) > -1) {
-                        out.write(buf, 0, nRead);
+                        FileInputStream fileIn = new FileInputStream(sourceFile);
+                        in = fileIn;
+                        FileOutputStream fileOut = new FileOutputStream(targetFile);
+                        out = fileOut;
+                        FileChannel inChannel = fileIn.getChannel();
+                        FileChannel outChannel = fileOut.getChannel();
+                        long size = inChannel.size();
+                        long position = 0;
+                        while (!mCancellationRequested.get() && position < size) {
+                            long transferred = inChannel.transferTo(position,
+                                    Math.min(TRANSFER_CHUNK_SIZE, size - position), outChannel);
+                            if (transferred <= 0) {
+                                throw new IOException("Source file truncated while copying");
+                            }
+                            position += transferred;
+                        }
                     }
-                    out.flush();
 
                 } // else: weird but possible situation, nothing to copy
 
@@ -731,6 +834,21 @@ public class UploadFileOperation extends SyncOperation {
         return result;
     }
 
+    private static byte[] obtainCopyBuffer() {
+        synchronized (sCopyBuffers) {
+            byte[] buffer = sCopyBuffers.poll();
+            return (buffer != null) ? buffer : new byte[COPY_BUFFER_SIZE];
+        }
+    }
+
+    private static void releaseCopyBuffer(byte[] buffer) {
+        synchronized (sCopyBuffers) {
+            if (sCopyBuffers.size() < MAX_POOLED_COPY_BUFFERS) {
+                sCopyBuffers.push(buffer);
+            }
+        }
+    }
+
 
     /**
      * TODO rewrite with homogeneous fail handling, remove dependency on {@link RemoteOperationResult},
@@ -752,25 +870,13 @@ public class UploadFileOperation extends SyncOperation {
             if (expectedFolder.isDirectory()){
                 if (!sourceFile.renameTo(targetFile)){
                     // try to copy and then delete
-                    targetFile.createNewFile();
-                    FileChannel inChannel = new FileInputStream(sourceFile).getChannel();
-                    FileChannel outChannel = new FileOutputStream(targetFile).getChannel();
-                    try {
-                        inChannel.transferTo(0, inChannel.size(), outChannel);
+                    if (FileStorageUtils.copyFile(sourceFile, targetFile)) {
                         sourceFile.delete();
-                    } catch (Exception e){
+                    } else {
                         mFile.setStoragePath(""); // forget the local file
                         // by now, treat this as a success; the file was uploaded
                         // the best option could be show a warning message
                     }
-                    finally {
-                        if (inChannel != null) {
-                            inChannel.close();
-                        }
-                        if (outChannel != null) {
-                            outChannel.close();
-                        }
-                    }
                 }
 
             } else {
@@ -843,7 +949,7 @@ public class UploadFileOperation extends SyncOperation {
 
     public interface OnRenameListener {
 
-        void onRenameUpload();
+        void onRenameUpload(UploadFileOperation upload);
     }
 
 }
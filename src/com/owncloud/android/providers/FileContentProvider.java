@@ -46,7 +46,9 @@ import com.owncloud.android.R;
 import com.owncloud.android.datamodel.OCFile;
 import com.owncloud.android.datamodel.UploadsStorageManager;
 import com.owncloud.android.db.ProviderMeta;
+import com.owncloud.android.db.PreferenceManager;
 import com.owncloud.android.db.ProviderMeta.ProviderTableMeta;
+import com.owncloud.android.db.UploadResult;
 import com.owncloud.android.lib.common.accounts.AccountUtils;
 import com.owncloud.android.lib.common.utils.Log_OC;
 import com.owncloud.android.lib.resources.shares.ShareType;
@@ -56,6 +58,7 @@ import com.owncloud.android.utils.MimeType;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The ContentProvider for the ownCloud App.
@@ -72,6 +75,7 @@ public class FileContentProvider extends ContentProvider {
     private static final int CAPABILITIES = 5;
     private static final int UPLOADS = 6;
     private static final int SYNCED_FOLDERS = 7;
+    private static final int UPLOADS_SUMMARY = 8;
 
     private static final String TAG = FileContentProvider.class.getSimpleName();
 
@@ -83,6 +87,8 @@ public class FileContentProvider extends ContentProvider {
     private static final String TEXT = " TEXT, ";
     private static final String ALTER_TABLE = "ALTER TABLE ";
     private static final String ADD_COLUMN = " ADD COLUMN ";
+    private static final String CREATE_INDEX = "CREATE INDEX IF NOT EXISTS ";
+    private static final String ON = " ON ";
     private static final String UPGRADE_VERSION_MSG = "OUT of the ADD in onUpgrade; oldVersion == %d, newVersion == %d";
 
     @Override
@@ -301,7 +307,7 @@ public class FileContentProvider extends ContentProvider {
                 if (uploadId >0) {
                     insertedUploadUri =
                             ContentUris.withAppendedId(ProviderTableMeta.CONTENT_URI_UPLOADS, uploadId);
-                    trimSuccessfulUploads(db);
+                    trimUploadsHistory(db);
                 } else {
                     throw new SQLException(ERROR + uri);
 
@@ -368,6 +374,7 @@ public class FileContentProvider extends ContentProvider {
         mUriMatcher.addURI(authority, "uploads/", UPLOADS);
         mUriMatcher.addURI(authority, "uploads/#", UPLOADS);
         mUriMatcher.addURI(authority, "synced_folders", SYNCED_FOLDERS);
+        mUriMatcher.addURI(authority, "uploads_summary", UPLOADS_SUMMARY);
 
         return true;
     }
@@ -449,6 +456,10 @@ public class FileContentProvider extends ContentProvider {
                             + uri.getPathSegments().get(1));
                 }
                 break;
+            case UPLOADS_SUMMARY:
+                // read only; maintained by triggers on the uploads table
+                sqlQuery.setTables(ProviderTableMeta.UPLOADS_SUMMARY_TABLE_NAME);
+                break;
             default:
                 throw new IllegalArgumentException("Unknown uri id: " + uri);
         }
@@ -468,6 +479,9 @@ public class FileContentProvider extends ContentProvider {
                 case SYNCED_FOLDERS:
                     order = ProviderTableMeta.SYNCED_FOLDER_LOCAL_PATH;
                     break;
+                case UPLOADS_SUMMARY:
+                    order = ProviderTableMeta.UPLOADS_SUMMARY_ACCOUNT_NAME;
+                    break;
                 default: // Files
                     order = ProviderTableMeta.FILE_DEFAULT_SORT_ORDER;
                     break;
@@ -476,13 +490,39 @@ public class FileContentProvider extends ContentProvider {
             order = sortOrder;
         }
 
+        String limit = null;
+        if (mUriMatcher.match(uri) == UPLOADS) {
+            limit = buildLimit(uri);
+        }
+
         // DB case_sensitive
         db.execSQL("PRAGMA case_sensitive_like = true");
-        Cursor c = sqlQuery.query(db, projection, selection, selectionArgs, null, null, order);
+        Cursor c = sqlQuery.query(db, projection, selection, selectionArgs, null, null, order, limit);
         c.setNotificationUri(getContext().getContentResolver(), uri);
         return c;
     }
 
+    /**
+     * Builds the LIMIT clause of a page of uploads from the query parameters
+     * {@link ProviderTableMeta#PAGE_PARAM_OFFSET} and {@link ProviderTableMeta#PAGE_PARAM_LIMIT} of its URI.
+     *
+     * @param uri       Uploads URI.
+     * @return          LIMIT clause, or null to get all the results.
+     */
+    private String buildLimit(Uri uri) {
+        String limit = uri.getQueryParameter(ProviderTableMeta.PAGE_PARAM_LIMIT);
+        if (limit == null) {
+            return null;
+        }
+        String offset = uri.getQueryParameter(ProviderTableMeta.PAGE_PARAM_OFFSET);
+        try {
+            // parsed, since the parameters end in the SQL statement
+            return (offset == null ? "" : Integer.parseInt(offset) + ",") + Integer.parseInt(limit);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid page in uri: " + uri, e);
+        }
+    }
+
     @Override
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
 
@@ -523,10 +563,16 @@ public class FileContentProvider extends ContentProvider {
                 int ret = db.update(
                         ProviderTableMeta.UPLOADS_TABLE_NAME, values, selection, selectionArgs
                 );
-                trimSuccessfulUploads(db);
+                // the history only grows when uploads finish
+                Integer status = values.getAsInteger(ProviderTableMeta.UPLOADS_STATUS);
+                if (status != null && status != UploadsStorageManager.UploadStatus.UPLOAD_IN_PROGRESS.getValue()) {
+                    trimUploadsHistory(db);
+                }
                 return ret;
             case SYNCED_FOLDERS:
                 return db.update(ProviderTableMeta.SYNCED_FOLDERS_TABLE_NAME, values, selection, selectionArgs);
+            case UPLOADS_SUMMARY:
+                throw new IllegalArgumentException("Read only uri: " + uri);
             default:
                 return db.update(
                         ProviderTableMeta.FILE_TABLE_NAME, values, selection, selectionArgs
@@ -570,6 +616,7 @@ public class FileContentProvider extends ContentProvider {
             // files table
             Log_OC.i(SQL, "Entering in onCreate");
             createFilesTable(db);
+            createFilesIndexes(db);
 
             // Create ocshares table
             createOCSharesTable(db);
@@ -579,6 +626,8 @@ public class FileContentProvider extends ContentProvider {
 
             // Create uploads table
             createUploadsTable(db);
+            createUploadsIndexes(db);
+            createUploadsSummaryTable(db);
 
             // Create synced folders table
             createSyncedFoldersTable(db);
@@ -839,6 +888,38 @@ public class FileContentProvider extends ContentProvider {
                 }
             }
 
+            if (oldVersion < 17 && newVersion >= 17) {
+                Log_OC.i(SQL, "Entering in the #17 ADD indexes on files table");
+                db.beginTransaction();
+                try {
+                    createFilesIndexes(db);
+                    upgraded = true;
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+
+            if (oldVersion < 18 && newVersion >= 18) {
+                Log_OC.i(SQL, "Entering in the #18 ADD indexes and summary table on uploads");
+                db.beginTransaction();
+                try {
+                    createUploadsIndexes(db);
+                    createUploadsSummaryTable(db);
+                    db.execSQL("INSERT INTO " + ProviderTableMeta.UPLOADS_SUMMARY_TABLE_NAME +
+                            " SELECT " + ProviderTableMeta.UPLOADS_ACCOUNT_NAME + ", " +
+                            ProviderTableMeta.UPLOADS_STATUS + ", COUNT(*), IFNULL(SUM(" +
+                            ProviderTableMeta.UPLOADS_FILE_SIZE + "), 0)" +
+                            " FROM " + ProviderTableMeta.UPLOADS_TABLE_NAME +
+                            " GROUP BY " + ProviderTableMeta.UPLOADS_ACCOUNT_NAME + ", " +
+                            ProviderTableMeta.UPLOADS_STATUS);
+                    upgraded = true;
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+
             if (!upgraded) {
                 Log_OC.i(SQL, String.format(Locale.ENGLISH, UPGRADE_VERSION_MSG, oldVersion, newVersion));
             }
@@ -874,6 +955,24 @@ public class FileContentProvider extends ContentProvider {
         );
     }
 
+    /**
+     * Creates the indexes needed by the lookups done in {@link com.owncloud.android.datamodel.FileDataStorageManager}
+     * on the files table, so that none of them needs a full scan: children of a folder, file by remote path, file by
+     * local path and file by remote id.
+     *
+     * @param db        Database where table of files is included.
+     */
+    private void createFilesIndexes(SQLiteDatabase db) {
+        db.execSQL(CREATE_INDEX + ProviderTableMeta.FILE_PARENT_INDEX + ON + ProviderTableMeta.FILE_TABLE_NAME + "("
+                + ProviderTableMeta.FILE_PARENT + ");");
+        db.execSQL(CREATE_INDEX + ProviderTableMeta.FILE_PATH_INDEX + ON + ProviderTableMeta.FILE_TABLE_NAME + "("
+                + ProviderTableMeta.FILE_ACCOUNT_OWNER + ", " + ProviderTableMeta.FILE_PATH + ");");
+        db.execSQL(CREATE_INDEX + ProviderTableMeta.FILE_STORAGE_PATH_INDEX + ON + ProviderTableMeta.FILE_TABLE_NAME
+                + "(" + ProviderTableMeta.FILE_ACCOUNT_OWNER + ", " + ProviderTableMeta.FILE_STORAGE_PATH + ");");
+        db.execSQL(CREATE_INDEX + ProviderTableMeta.FILE_REMOTE_ID_INDEX + ON + ProviderTableMeta.FILE_TABLE_NAME + "("
+                + ProviderTableMeta.FILE_REMOTE_ID + ");");
+    }
+
     private void createOCSharesTable(SQLiteDatabase db) {
         // Create ocshares table
         db.execSQL("CREATE TABLE " + ProviderTableMeta.OCSHARES_TABLE_NAME + "("
@@ -952,6 +1051,66 @@ public class FileContentProvider extends ContentProvider {
         */
     }
 
+    /**
+     * Creates the indexes needed by the lookups done in {@link UploadsStorageManager} on the uploads table: uploads
+     * by status and last result, successful uploads by end time, and upload by account and remote path.
+     *
+     * @param db        Database where table of uploads is included.
+     */
+    private void createUploadsIndexes(SQLiteDatabase db) {
+        db.execSQL(CREATE_INDEX + ProviderTableMeta.UPLOADS_STATUS_INDEX + ON + ProviderTableMeta.UPLOADS_TABLE_NAME
+                + "(" + ProviderTableMeta.UPLOADS_STATUS + ", " + ProviderTableMeta.UPLOADS_LAST_RESULT + ");");
+        db.execSQL(CREATE_INDEX + ProviderTableMeta.UPLOADS_END_TIMESTAMP_INDEX + ON
+                + ProviderTableMeta.UPLOADS_TABLE_NAME + "(" + ProviderTableMeta.UPLOADS_STATUS + ", "
+                + ProviderTableMeta.UPLOADS_UPLOAD_END_TIMESTAMP + ");");
+        db.execSQL(CREATE_INDEX + ProviderTableMeta.UPLOADS_REMOTE_PATH_INDEX + ON
+                + ProviderTableMeta.UPLOADS_TABLE_NAME + "(" + ProviderTableMeta.UPLOADS_ACCOUNT_NAME + ", "
+                + ProviderTableMeta.UPLOADS_REMOTE_PATH + ");");
+    }
+
+    /**
+     * Creates the table with the number and size of the uploads of every account in every status, and the
+     * triggers keeping it up to date with every insertion, update and deletion in the uploads table, so that totals
+     * can be read without scanning the uploads.
+     *
+     * @param db        Database where table of uploads is included.
+     */
+    private void createUploadsSummaryTable(SQLiteDatabase db) {
+        String summary = ProviderTableMeta.UPLOADS_SUMMARY_TABLE_NAME;
+        String account = ProviderTableMeta.UPLOADS_SUMMARY_ACCOUNT_NAME;
+        String status = ProviderTableMeta.UPLOADS_SUMMARY_STATUS;
+        String count = ProviderTableMeta.UPLOADS_SUMMARY_COUNT;
+        String size = ProviderTableMeta.UPLOADS_SUMMARY_SIZE;
+
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + summary + "("
+                + account + TEXT
+                + status + INTEGER
+                + count + INTEGER
+                + size + INTEGER
+                + "PRIMARY KEY (" + account + ", " + status + "));"
+        );
+
+        String addNew = "INSERT OR IGNORE INTO " + summary + " VALUES (new."
+                + ProviderTableMeta.UPLOADS_ACCOUNT_NAME + ", new." + ProviderTableMeta.UPLOADS_STATUS + ", 0, 0); "
+                + "UPDATE " + summary + " SET " + count + " = " + count + " + 1, " + size + " = " + size
+                + " + IFNULL(new." + ProviderTableMeta.UPLOADS_FILE_SIZE + ", 0) WHERE " + account + " = new."
+                + ProviderTableMeta.UPLOADS_ACCOUNT_NAME + " AND " + status + " = new."
+                + ProviderTableMeta.UPLOADS_STATUS + "; ";
+        String removeOld = "UPDATE " + summary + " SET " + count + " = " + count + " - 1, " + size + " = " + size
+                + " - IFNULL(old." + ProviderTableMeta.UPLOADS_FILE_SIZE + ", 0) WHERE " + account + " = old."
+                + ProviderTableMeta.UPLOADS_ACCOUNT_NAME + " AND " + status + " = old."
+                + ProviderTableMeta.UPLOADS_STATUS + "; ";
+
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + summary + "_insert AFTER INSERT ON "
+                + ProviderTableMeta.UPLOADS_TABLE_NAME + " BEGIN " + addNew + "END;");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + summary + "_delete AFTER DELETE ON "
+                + ProviderTableMeta.UPLOADS_TABLE_NAME + " BEGIN " + removeOld + "END;");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + summary + "_update AFTER UPDATE OF "
+                + ProviderTableMeta.UPLOADS_ACCOUNT_NAME + ", " + ProviderTableMeta.UPLOADS_STATUS + ", "
+                + ProviderTableMeta.UPLOADS_FILE_SIZE + " ON " + ProviderTableMeta.UPLOADS_TABLE_NAME
+                + " BEGIN " + removeOld + addNew + "END;");
+    }
+
     private void createSyncedFoldersTable(SQLiteDatabase db){
         db.execSQL("CREATE TABLE " + ProviderTableMeta.SYNCED_FOLDERS_TABLE_NAME + "("
         + ProviderTableMeta._ID + " INTEGER PRIMARY KEY, "                          // id
@@ -1081,41 +1240,54 @@ public class FileContentProvider extends ContentProvider {
     }
 
     /**
-     * Grants that total count of successful uploads stored is not greater than MAX_SUCCESSFUL_UPLOADS.
+     * Applies the retention policy of the list of uploads: keeps up to
+     * {@link PreferenceManager#getUploadsHistoryMaxCount(Context)} successful uploads, and removes successful and
+     * cancelled uploads finished more than {@link PreferenceManager#getUploadsHistoryMaxAgeDays(Context)} ago.
+     * Other failed uploads are kept whatever their age, since they may still be retried, as instant uploads that
+     * failed unnoticed.
      *
-     * Removes older uploads if needed.
+     * Both deletions use the index on status and end time of the uploads table.
      */
-    private void trimSuccessfulUploads(SQLiteDatabase db) {
-        Cursor c = null;
+    private void trimUploadsHistory(SQLiteDatabase db) {
         try {
-            String MAX_SUCCESSFUL_UPLOADS = "30";
-            c = db.rawQuery(
-                "delete from " + ProviderTableMeta.UPLOADS_TABLE_NAME +
-                    " where " + ProviderTableMeta.UPLOADS_STATUS + " == "
-                    + UploadsStorageManager.UploadStatus.UPLOAD_SUCCEEDED.getValue() +
-                    " and " + ProviderTableMeta._ID +
-                    " not in (select " + ProviderTableMeta._ID +
-                    " from " + ProviderTableMeta.UPLOADS_TABLE_NAME +
-                    " where " + ProviderTableMeta.UPLOADS_STATUS + " == "
-                    + UploadsStorageManager.UploadStatus.UPLOAD_SUCCEEDED.getValue() +
-                    " order by " + ProviderTableMeta.UPLOADS_UPLOAD_END_TIMESTAMP +
-                    " desc limit " + MAX_SUCCESSFUL_UPLOADS +
-                    ")",
-                null
+            String succeeded = String.valueOf(UploadsStorageManager.UploadStatus.UPLOAD_SUCCEEDED.getValue());
+            int maxCount = PreferenceManager.getUploadsHistoryMaxCount(getContext());
+            db.delete(
+                ProviderTableMeta.UPLOADS_TABLE_NAME,
+                ProviderTableMeta.UPLOADS_STATUS + "=? AND " + ProviderTableMeta._ID +
+                    " NOT IN (SELECT " + ProviderTableMeta._ID +
+                    " FROM " + ProviderTableMeta.UPLOADS_TABLE_NAME +
+                    " WHERE " + ProviderTableMeta.UPLOADS_STATUS + "=?" +
+                    " ORDER BY " + ProviderTableMeta.UPLOADS_UPLOAD_END_TIMESTAMP +
+                    " DESC LIMIT " + maxCount + ")",
+                new String[]{succeeded, succeeded}
             );
-            c.moveToFirst(); // do something with the cursor, or deletion doesn't happen; true story
+
+            int maxAgeDays = PreferenceManager.getUploadsHistoryMaxAgeDays(getContext());
+            if (maxAgeDays > 0) {
+                long oldestEnd = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(maxAgeDays);
+                db.delete(
+                    ProviderTableMeta.UPLOADS_TABLE_NAME,
+                    "(" + ProviderTableMeta.UPLOADS_STATUS + "=? OR (" +
+                        ProviderTableMeta.UPLOADS_STATUS + "=? AND " +
+                        ProviderTableMeta.UPLOADS_LAST_RESULT + "=?)) AND " +
+                        ProviderTableMeta.UPLOADS_UPLOAD_END_TIMESTAMP + " > 0 AND " +
+                        ProviderTableMeta.UPLOADS_UPLOAD_END_TIMESTAMP + " < ?",
+                    new String[]{
+                        succeeded,
+                        String.valueOf(UploadsStorageManager.UploadStatus.UPLOAD_FAILED.getValue()),
+                        String.valueOf(UploadResult.CANCELLED.getValue()),
+                        String.valueOf(oldestEnd)
+                    }
+                );
+            }
 
         } catch (Exception e) {
             Log_OC.e(
                 TAG,
-                "Something wrong trimming successful uploads, database could grow more than expected",
+                "Something wrong trimming the list of uploads, database could grow more than expected",
                 e
             );
-
-        } finally {
-            if (c!= null) {
-                c.close();
-            }
         }
     }
 
@@ -0,0 +1,357 @@
+/**
+ *   Nextcloud Android client application
+ *
+ *   Copyright (C) 2016 Nextcloud
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.services;
+
+import android.accounts.AccountsException;
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.owncloud.android.datamodel.FileDataStorageManager;
+import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.lib.common.OwnCloudAccount;
+import com.owncloud.android.lib.common.OwnCloudClient;
+import com.owncloud.android.lib.common.OwnCloudClientManagerFactory;
+import com.owncloud.android.lib.common.OwnCloudCredentials;
+import com.owncloud.android.lib.common.OwnCloudCredentialsFactory;
+import com.owncloud.android.lib.common.operations.RemoteOperation;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+import com.owncloud.android.lib.common.utils.Log_OC;
+import com.owncloud.android.lib.resources.status.OwnCloudVersion;
+import com.owncloud.android.operations.common.SyncOperation;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Operations worker. Performs the pending operations in a few threads, started in
+ * {@link OperationsService#onCreate()}.
+ *
+ * Operations on the same account are serialized when they touch the same path, or a path inside the other, and
+ * operations without paths are serialized with the rest of operations without paths on the same account or server;
+ * any other operations run in parallel. Conflicting operations are started in the order they were requested.
+ */
+class OperationsScheduler {
+
+    private static final String TAG = OperationsScheduler.class.getSimpleName();
+
+    private static final int WORKERS = 4;
+
+    private final OperationsService mService;
+
+    /** Pending and running operations; access synchronized on this */
+    private final LinkedList<ScheduledOperation> mPendingOperations = new LinkedList<>();
+    private final List<ScheduledOperation> mRunningOperations = new ArrayList<>();
+    private final Map<String, OperationsService.OperationLatency> mLatencies = new HashMap<>();
+
+    private boolean mStopped = false;
+
+    /** Id of the last start request of the service, returned when the scheduler becomes idle */
+    private int mLastStartId = 0;
+
+
+    OperationsScheduler(OperationsService service) {
+        if (service == null) {
+            throw new IllegalArgumentException("Received invalid NULL in parameter 'service'");
+        }
+        mService = service;
+        for (int i = 0; i < WORKERS; i++) {
+            new Worker("Operations thread-" + i).start();
+        }
+    }
+
+
+    /**
+     * Queues a new operation.
+     *
+     * @param target        Account or server the operation is sent to.
+     * @param operation     Operation to perform.
+     * @param paths         Remote paths the operation reads or modifies; none if it does not work on files.
+     */
+    synchronized void add(OperationsService.Target target, RemoteOperation operation, List<String> paths) {
+        mPendingOperations.add(new ScheduledOperation(target, operation, paths));
+        notifyAll();
+    }
+
+
+    /**
+     * Records a start request of the service. Recorded together with the operations, so that the service is only
+     * stopped with the id of the last request received before the scheduler became idle.
+     *
+     * @param startId   Id of the start request.
+     * @return          The same id if no operation is waiting or in progress, so that the service can stop; 0
+     *                  otherwise.
+     */
+    synchronized int started(int startId) {
+        mLastStartId = startId;
+        return isIdle() ? startId : 0;
+    }
+
+
+    /**
+     * @return  Number of operations waiting to start.
+     */
+    synchronized int getPendingOperationsCount() {
+        return mPendingOperations.size();
+    }
+
+
+    /**
+     * @return  Number of operations in progress.
+     */
+    synchronized int getRunningOperationsCount() {
+        return mRunningOperations.size();
+    }
+
+
+    /**
+     * @return  'True' when no operation is waiting or in progress.
+     */
+    synchronized boolean isIdle() {
+        return mPendingOperations.isEmpty() && mRunningOperations.isEmpty();
+    }
+
+
+    /**
+     * @return  Copy of the latencies of the finished operations, by name of their class.
+     */
+    synchronized List<OperationsService.OperationLatency> getLatencies() {
+        List<OperationsService.OperationLatency> latencies = new ArrayList<>(mLatencies.size());
+        for (OperationsService.OperationLatency latency : mLatencies.values()) {
+            latencies.add(new OperationsService.OperationLatency(latency));
+        }
+        return latencies;
+    }
+
+
+    /**
+     * Stops the workers after the operations in progress; pending operations are not performed.
+     */
+    synchronized void stop() {
+        mStopped = true;
+        mPendingOperations.clear();
+        notifyAll();
+    }
+
+
+    /**
+     * Waits for the first pending operation that does not conflict with any operation running or requested before.
+     *
+     * @return  Next operation to perform, already moved to the running ones, or null if the scheduler was stopped.
+     */
+    private synchronized ScheduledOperation takeNext() {
+        while (!mStopped) {
+            Iterator<ScheduledOperation> it = mPendingOperations.iterator();
+            List<ScheduledOperation> earlier = new ArrayList<>();
+            while (it.hasNext()) {
+                ScheduledOperation candidate = it.next();
+                if (!conflictsWithAny(candidate, mRunningOperations) && !conflictsWithAny(candidate, earlier)) {
+                    it.remove();
+                    candidate.mStartTime = SystemClock.elapsedRealtime();
+                    mRunningOperations.add(candidate);
+                    return candidate;
+                }
+                earlier.add(candidate);
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Log_OC.w(TAG, "Interrupted while waiting for operations");
+                return null;
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * @return  Id of the last start request of the service if no operation is left, to stop it; 0 otherwise.
+     */
+    private synchronized int operationFinished(ScheduledOperation finished) {
+        mRunningOperations.remove(finished);
+        long now = SystemClock.elapsedRealtime();
+        long waitTime = finished.mStartTime - finished.mQueuedTime;
+        long runTime = now - finished.mStartTime;
+
+        String name = finished.mOperation.getClass().getSimpleName();
+        OperationsService.OperationLatency latency = mLatencies.get(name);
+        if (latency == null) {
+            latency = new OperationsService.OperationLatency(name);
+            mLatencies.put(name, latency);
+        }
+        latency.add(waitTime, runTime);
+
+        Log_OC.d(TAG, name + " finished; waited " + waitTime + " ms, ran " + runTime + " ms; " +
+                mPendingOperations.size() + " pending, " + mRunningOperations.size() + " running");
+
+        // the finished operation may have been blocking others
+        notifyAll();
+        return isIdle() ? mLastStartId : 0;
+    }
+
+
+    private static boolean conflictsWithAny(ScheduledOperation operation, List<ScheduledOperation> others) {
+        for (ScheduledOperation other : others) {
+            if (operation.conflictsWith(other)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Performs an operation and reports its result to the listeners of the service.
+     */
+    private void perform(ScheduledOperation next) {
+        OperationsService.Target target = next.mTarget;
+        RemoteOperation operation = next.mOperation;
+        RemoteOperationResult result;
+        try {
+            /// prepare client object to send the request to the ownCloud server
+            OwnCloudClient client;
+            FileDataStorageManager storageManager = null;
+            if (target.mAccount != null) {
+                OwnCloudAccount ocAccount = new OwnCloudAccount(target.mAccount, mService);
+                client = OwnCloudClientManagerFactory.getDefaultSingleton().getClientFor(ocAccount, mService);
+
+                OwnCloudVersion version = com.owncloud.android.authentication.AccountUtils.getServerVersion(
+                        target.mAccount
+                );
+                client.setOwnCloudVersion(version);
+
+                storageManager = new FileDataStorageManager(target.mAccount, mService.getContentResolver());
+            } else {
+                OwnCloudCredentials credentials = null;
+                if (target.mCookie != null && target.mCookie.length() > 0) {
+                    // just used for GetUserName
+                    // TODO refactor to run GetUserName as AsyncTask in the context of
+                    // AuthenticatorActivity
+                    credentials = OwnCloudCredentialsFactory.newSamlSsoCredentials(
+                            null,                   // unknown
+                            target.mCookie);        // SAML SSO
+                }
+                OwnCloudAccount ocAccount = new OwnCloudAccount(target.mServerUrl, credentials);
+                client = OwnCloudClientManagerFactory.getDefaultSingleton().getClientFor(ocAccount, mService);
+            }
+
+            /// perform the operation
+            if (operation instanceof SyncOperation) {
+                result = ((SyncOperation) operation).execute(client, storageManager);
+            } else {
+                result = operation.execute(client);
+            }
+
+        } catch (AccountsException | IOException e) {
+            if (target.mAccount == null) {
+                Log_OC.e(TAG, "Error while trying to get authorization for a NULL account", e);
+            } else {
+                Log_OC.e(TAG, "Error while trying to get authorization for " + target.mAccount.name, e);
+            }
+            result = new RemoteOperationResult(e);
+
+        } catch (Exception e) {
+            if (target.mAccount == null) {
+                Log_OC.e(TAG, "Unexpected error for a NULL account", e);
+            } else {
+                Log_OC.e(TAG, "Unexpected error for " + target.mAccount.name, e);
+            }
+            result = new RemoteOperationResult(e);
+        }
+
+        mService.dispatchResultToOperationListeners(operation, result);
+    }
+
+
+    private class Worker extends Thread {
+
+        Worker(String name) {
+            super(name);
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            ScheduledOperation next;
+            while ((next = takeNext()) != null) {
+                int idleStartId;
+                try {
+                    perform(next);
+                } finally {
+                    idleStartId = operationFinished(next);
+                }
+                if (idleStartId > 0) {
+                    mService.onOperationsIdle(idleStartId);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Operation in the scheduler, with what is needed to detect conflicts and measure its latency.
+     */
+    private static class ScheduledOperation {
+
+        private final OperationsService.Target mTarget;
+        private final RemoteOperation mOperation;
+        private final String mTargetKey;
+        private final List<String> mPaths = new ArrayList<>();
+        private final long mQueuedTime = SystemClock.elapsedRealtime();
+        private long mStartTime;
+
+        ScheduledOperation(OperationsService.Target target, RemoteOperation operation, List<String> paths) {
+            mTarget = target;
+            mOperation = operation;
+            if (target.mAccount != null) {
+                mTargetKey = target.mAccount.name;
+            } else {
+                mTargetKey = String.valueOf(target.mServerUrl);
+            }
+            for (String path : paths) {
+                if (path != null && path.length() > 0) {
+                    mPaths.add(path.endsWith(OCFile.PATH_SEPARATOR) ? path : path + OCFile.PATH_SEPARATOR);
+                }
+            }
+        }
+
+        boolean conflictsWith(ScheduledOperation other) {
+            if (!mTargetKey.equals(other.mTargetKey)) {
+                return false;
+            }
+            if (mPaths.isEmpty() || other.mPaths.isEmpty()) {
+                return mPaths.isEmpty() && other.mPaths.isEmpty();
+            }
+            // with a trailing separator in all the paths, a prefix is the same path or an ancestor
+            for (String path : mPaths) {
+                for (String otherPath : other.mPaths) {
+                    if (path.startsWith(otherPath) || otherPath.startsWith(path)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -20,7 +20,6 @@
 package com.owncloud.android.services;
 
 import android.accounts.Account;
-import android.accounts.AccountsException;
 import android.accounts.AuthenticatorException;
 import android.accounts.OperationCanceledException;
 import android.app.Service;
@@ -30,27 +29,20 @@ import android.os.Binder;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
-import android.os.Looper;
 import android.os.Message;
 import android.os.Process;
 import android.util.Pair;
 
 import com.owncloud.android.MainApp;
 import com.owncloud.android.R;
-import com.owncloud.android.datamodel.FileDataStorageManager;
 import com.owncloud.android.datamodel.OCFile;
-import com.owncloud.android.lib.common.OwnCloudAccount;
-import com.owncloud.android.lib.common.OwnCloudClient;
 import com.owncloud.android.lib.common.OwnCloudClientManagerFactory;
-import com.owncloud.android.lib.common.OwnCloudCredentials;
-import com.owncloud.android.lib.common.OwnCloudCredentialsFactory;
 import com.owncloud.android.lib.common.accounts.AccountUtils.AccountNotFoundException;
 import com.owncloud.android.lib.common.operations.OnRemoteOperationListener;
 import com.owncloud.android.lib.common.operations.RemoteOperation;
 import com.owncloud.android.lib.common.operations.RemoteOperationResult;
 import com.owncloud.android.lib.common.utils.Log_OC;
 import com.owncloud.android.lib.resources.shares.ShareType;
-import com.owncloud.android.lib.resources.status.OwnCloudVersion;
 import com.owncloud.android.lib.resources.users.GetRemoteUserInfoOperation;
 import com.owncloud.android.operations.CheckCurrentCredentialsOperation;
 import com.owncloud.android.operations.CopyFileOperation;
@@ -67,13 +59,13 @@ import com.owncloud.android.operations.SynchronizeFolderOperation;
 import com.owncloud.android.operations.UnshareOperation;
 import com.owncloud.android.operations.UpdateSharePermissionsOperation;
 import com.owncloud.android.operations.UpdateShareViaLinkOperation;
-import com.owncloud.android.operations.common.SyncOperation;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 
 public class OperationsService extends Service {
@@ -128,7 +120,7 @@ public class OperationsService extends Service {
             mUndispatchedFinishedOperations =
             new ConcurrentHashMap<Integer, Pair<RemoteOperation, RemoteOperationResult>>();
 
-    private static class Target {
+    static class Target {
         public Uri mServerUrl = null;
         public Account mAccount = null;
         public String mCookie = null;
@@ -140,7 +132,7 @@ public class OperationsService extends Service {
         }
     }
 
-    private ServiceHandler mOperationsHandler;
+    private OperationsScheduler mOperationsScheduler;
     private OperationsServiceBinder mOperationsBinder;
     
     private SyncFolderHandler mSyncFolderHandler;
@@ -153,15 +145,12 @@ public class OperationsService extends Service {
         super.onCreate();
         Log_OC.d(TAG, "Creating service");
 
-        /// First worker thread for most of operations 
-        HandlerThread thread = new HandlerThread("Operations thread",
-                Process.THREAD_PRIORITY_BACKGROUND);
-        thread.start();
-        mOperationsHandler = new ServiceHandler(thread.getLooper(), this);
-        mOperationsBinder = new OperationsServiceBinder(mOperationsHandler);
+        /// Worker threads for most of operations
+        mOperationsScheduler = new OperationsScheduler(this);
+        mOperationsBinder = new OperationsServiceBinder(mOperationsScheduler);
         
         /// Separated worker thread for download of folders (WIP)
-        thread = new HandlerThread("Syncfolder thread", Process.THREAD_PRIORITY_BACKGROUND);
+        HandlerThread thread = new HandlerThread("Syncfolder thread", Process.THREAD_PRIORITY_BACKGROUND);
         thread.start();
         mSyncFolderHandler = new SyncFolderHandler(thread.getLooper(), this);
     }
@@ -201,9 +190,11 @@ public class OperationsService extends Service {
             }
 
         } else {
-            Message msg = mOperationsHandler.obtainMessage();
-            msg.arg1 = startId;
-            mOperationsHandler.sendMessage(msg);
+            int idleStartId = mOperationsScheduler.started(startId);
+            if (idleStartId > 0) {
+                // the operation finished before this request arrived
+                onOperationsIdle(idleStartId);
+            }
         }
         
         return START_NOT_STICKY;
@@ -226,8 +217,8 @@ public class OperationsService extends Service {
 
         mOperationsBinder = null;
 
-        mOperationsHandler.getLooper().quit();
-        mOperationsHandler = null;
+        mOperationsScheduler.stop();
+        mOperationsScheduler = null;
 
         mSyncFolderHandler.getLooper().quit();
         mSyncFolderHandler = null;
@@ -235,6 +226,18 @@ public class OperationsService extends Service {
         super.onDestroy();
     }
 
+    /**
+     * Called by the workers of mOperationsScheduler when no operation is left, to stop the service if no new start
+     * request arrived meanwhile.
+     *
+     * @param startId   Id of the last start request when the scheduler became idle; the service is not stopped if
+     *                  a later one arrived, since new operations are queued after their start request.
+     */
+    void onOperationsIdle(int startId) {
+        Log_OC.d(TAG, "Stopping after command with id " + startId);
+        stopSelf(startId);
+    }
+
     /**
      * Provides a binder object that clients can use to perform actions on the queue of operations,
      * except the addition of new operations.
@@ -269,10 +272,10 @@ public class OperationsService extends Service {
         private final ConcurrentMap<OnRemoteOperationListener, Handler> mBoundListeners =
                 new ConcurrentHashMap<OnRemoteOperationListener, Handler>();
 
-        private ServiceHandler mServiceHandler = null;
+        private OperationsScheduler mScheduler = null;
 
-        public OperationsServiceBinder(ServiceHandler serviceHandler) {
-            mServiceHandler = serviceHandler;
+        public OperationsServiceBinder(OperationsScheduler scheduler) {
+            mScheduler = scheduler;
         }
 
 
@@ -328,14 +331,39 @@ public class OperationsService extends Service {
          *          in process.
          */
         public boolean isPerformingBlockingOperation() {
-            return (!mServiceHandler.mPendingOperations.isEmpty());
+            return !mScheduler.isIdle();
+        }
+
+
+        /**
+         * @return  Number of operations waiting to start.
+         */
+        public int getPendingOperationsCount() {
+            return mScheduler.getPendingOperationsCount();
+        }
+
+
+        /**
+         * @return  Number of operations in progress.
+         */
+        public int getRunningOperationsCount() {
+            return mScheduler.getRunningOperationsCount();
+        }
+
+
+        /**
+         * @return  Time waited and spent by the operations finished since the service was created, by kind of
+         *          operation.
+         */
+        public List<OperationLatency> getOperationLatencies() {
+            return mScheduler.getLatencies();
         }
 
 
         /**
          * Creates and adds to the queue a new operation, as described by operationIntent.
          * 
-         * Calls startService to make the operation is processed by the ServiceHandler.
+         * Calls startService to keep the service alive until the operation is processed.
          * 
          * @param operationIntent       Intent describing a new operation to queue and execute.
          * @return                      Identifier of the operation created, or null if failed.
@@ -343,8 +371,13 @@ public class OperationsService extends Service {
         public long queueNewOperation(Intent operationIntent) {
             Pair<Target, RemoteOperation> itemToQueue = newOperation(operationIntent);
             if (itemToQueue != null) {
-                mServiceHandler.mPendingOperations.add(itemToQueue);
-                startService(new Intent(OperationsService.this, OperationsService.class));
+                // started before queuing, so that a worker becoming idle meanwhile stops the service with an
+                // older start id, which is ignored; and under the lock of the scheduler, so that the start request
+                // is not found with the scheduler still idle
+                synchronized (mScheduler) {
+                    startService(new Intent(OperationsService.this, OperationsService.class));
+                    mScheduler.add(itemToQueue.first, itemToQueue.second, getTouchedPaths(operationIntent));
+                }
                 return itemToQueue.second.hashCode();
                 
             } else {
@@ -362,7 +395,7 @@ public class OperationsService extends Service {
                 return true;
                 //Log_OC.e(TAG, "Sending callback later");
             } else {
-                return (!mServiceHandler.mPendingOperations.isEmpty());
+                return !mScheduler.isIdle();
             }
         }
         
@@ -386,151 +419,101 @@ public class OperationsService extends Service {
 
 
     /**
-     * Operations worker. Performs the pending operations in the order they were requested.
-     *
-     * Created with the Looper of a new thread, started in {@link OperationsService#onCreate()}. 
+     * Time waited and spent by the finished operations of a kind.
      */
-    private static class ServiceHandler extends Handler {
-        // don't make it a final class, and don't remove the static ; lint will warn about a p
-        // ossible memory leak
-        
-        
-        OperationsService mService;
+    public static class OperationLatency {
 
+        private final String mOperationName;
+        private int mCount = 0;
+        private long mTotalWaitTime = 0;
+        private long mTotalRunTime = 0;
+        private long mMaxRunTime = 0;
 
-        private ConcurrentLinkedQueue<Pair<Target, RemoteOperation>> mPendingOperations =
-                new ConcurrentLinkedQueue<Pair<Target, RemoteOperation>>();
-        private RemoteOperation mCurrentOperation = null;
-        private Target mLastTarget = null;
-        private OwnCloudClient mOwnCloudClient = null;
-        private FileDataStorageManager mStorageManager;
-        
-        
-        public ServiceHandler(Looper looper, OperationsService service) {
-            super(looper);
-            if (service == null) {
-                throw new IllegalArgumentException("Received invalid NULL in parameter 'service'");
-            }
-            mService = service;
+        OperationLatency(String operationName) {
+            mOperationName = operationName;
         }
 
-        @Override
-        public void handleMessage(Message msg) {
-            nextOperation();
-            Log_OC.d(TAG, "Stopping after command with id " + msg.arg1);
-            mService.stopSelf(msg.arg1);
+        OperationLatency(OperationLatency another) {
+            mOperationName = another.mOperationName;
+            mCount = another.mCount;
+            mTotalWaitTime = another.mTotalWaitTime;
+            mTotalRunTime = another.mTotalRunTime;
+            mMaxRunTime = another.mMaxRunTime;
+        }
+
+        void add(long waitTime, long runTime) {
+            mCount++;
+            mTotalWaitTime += waitTime;
+            mTotalRunTime += runTime;
+            mMaxRunTime = Math.max(mMaxRunTime, runTime);
         }
 
-        
         /**
-         * Performs the next operation in the queue
+         * @return  Simple name of the class of the operations.
          */
-        private void nextOperation() {
-            
-            //Log_OC.e(TAG, "nextOperation init" );
-            
-            Pair<Target, RemoteOperation> next = null;
-            synchronized(mPendingOperations) {
-                next = mPendingOperations.peek();
-            }
-
-            if (next != null) {
-                
-                mCurrentOperation = next.second;
-                RemoteOperationResult result = null;
-                try {
-                    /// prepare client object to send the request to the ownCloud server
-                    if (mLastTarget == null || !mLastTarget.equals(next.first)) {
-                        mLastTarget = next.first;
-                        if (mLastTarget.mAccount != null) {
-                            OwnCloudAccount ocAccount = new OwnCloudAccount(mLastTarget.mAccount, mService);
-                            mOwnCloudClient = OwnCloudClientManagerFactory.getDefaultSingleton().
-                                    getClientFor(ocAccount, mService);
-
-                            OwnCloudVersion version = com.owncloud.android.authentication.AccountUtils.getServerVersion(
-                                    mLastTarget.mAccount
-                            );
-                            mOwnCloudClient.setOwnCloudVersion(version);
+        public String getOperationName() {
+            return mOperationName;
+        }
 
-                            mStorageManager = new FileDataStorageManager(
-                                    mLastTarget.mAccount, 
-                                    mService.getContentResolver()
-                            );
-                        } else {
-                            OwnCloudCredentials credentials = null;
-                            if (mLastTarget.mCookie != null &&
-                                    mLastTarget.mCookie.length() > 0) {
-                                // just used for GetUserName
-                                // TODO refactor to run GetUserName as AsyncTask in the context of
-                                // AuthenticatorActivity
-                                credentials = OwnCloudCredentialsFactory.newSamlSsoCredentials(
-                                        null,                   // unknown
-                                        mLastTarget.mCookie);   // SAML SSO
-                            }
-                            OwnCloudAccount ocAccount = new OwnCloudAccount(
-                                    mLastTarget.mServerUrl, credentials);
-                            mOwnCloudClient = OwnCloudClientManagerFactory.getDefaultSingleton().
-                                    getClientFor(ocAccount, mService);
-                            mStorageManager = null;
-                        }
-                    }
+        public int getCount() {
+            return mCount;
+        }
 
-                    /// perform the operation
-                    if (mCurrentOperation instanceof SyncOperation) {
-                        result = ((SyncOperation)mCurrentOperation).execute(mOwnCloudClient,
-                                mStorageManager);
-                    } else {
-                        result = mCurrentOperation.execute(mOwnCloudClient);
-                    }
+        /**
+         * @return  Mean time from the request of the operations to their start, in milliseconds.
+         */
+        public long getMeanWaitTime() {
+            return (mCount == 0) ? 0 : mTotalWaitTime / mCount;
+        }
 
-                } catch (AccountsException e) {
-                    if (mLastTarget.mAccount == null) {
-                        Log_OC.e(TAG, "Error while trying to get authorization for a NULL account",
-                                e);
-                    } else {
-                        Log_OC.e(TAG, "Error while trying to get authorization for " +
-                                mLastTarget.mAccount.name, e);
-                    }
-                    result = new RemoteOperationResult(e);
-                    
-                } catch (IOException e) {
-                    if (mLastTarget.mAccount == null) {
-                        Log_OC.e(TAG, "Error while trying to get authorization for a NULL account",
-                                e);
-                    } else {
-                        Log_OC.e(TAG, "Error while trying to get authorization for " +
-                                mLastTarget.mAccount.name, e);
-                    }
-                    result = new RemoteOperationResult(e);
-                } catch (Exception e) {
-                    if (mLastTarget.mAccount == null) {
-                        Log_OC.e(TAG, "Unexpected error for a NULL account", e);
-                    } else {
-                        Log_OC.e(TAG, "Unexpected error for " + mLastTarget.mAccount.name, e);
-                    }
-                    result = new RemoteOperationResult(e);
-                
-                } finally {
-                    synchronized(mPendingOperations) {
-                        mPendingOperations.poll();
-                    }
-                }
-                
-                //sendBroadcastOperationFinished(mLastTarget, mCurrentOperation, result);
-                mService.dispatchResultToOperationListeners(mCurrentOperation, result);
-            }
+        /**
+         * @return  Mean time from the start of the operations to their end, in milliseconds.
+         */
+        public long getMeanRunTime() {
+            return (mCount == 0) ? 0 : mTotalRunTime / mCount;
         }
 
+        public long getMaxRunTime() {
+            return mMaxRunTime;
+        }
+    }
 
 
+    /**
+     * Remote paths read or modified by an operation, needed to serialize it with the operations on the same files.
+     *
+     * @param operationIntent       Intent describing the operation.
+     * @return                      Paths of the operation, empty if it does not work on files.
+     */
+    private List<String> getTouchedPaths(Intent operationIntent) {
+        List<String> paths = new ArrayList<>();
+        String remotePath = operationIntent.getStringExtra(EXTRA_REMOTE_PATH);
+        if (remotePath == null) {
+            return paths;
+        }
+        paths.add(remotePath);
+
+        String action = operationIntent.getAction();
+        String name = new File(remotePath).getName();
+        if (ACTION_RENAME.equals(action)) {
+            String newName = operationIntent.getStringExtra(EXTRA_NEWNAME);
+            String parentPath = new File(remotePath).getParent();
+            if (newName != null && parentPath != null) {
+                paths.add(new File(parentPath, newName).getPath());
+            }
+        } else if (ACTION_MOVE_FILE.equals(action) || ACTION_COPY_FILE.equals(action)) {
+            String newParentPath = operationIntent.getStringExtra(EXTRA_NEW_PARENT_PATH);
+            if (newParentPath != null) {
+                paths.add(new File(newParentPath, name).getPath());
+            }
+        }
+        return paths;
     }
 
 
     /**
      * Creates a new operation, as described by operationIntent.
      * 
-     * TODO - move to ServiceHandler (probably)
-     * 
      * @param operationIntent       Intent describing a new operation to queue and execute.
      * @return                      Pair with the new operation object and the information about its
      *                              target server.
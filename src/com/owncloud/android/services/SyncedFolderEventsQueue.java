@@ -0,0 +1,126 @@
+/**
+ *   Nextcloud Android client application
+ *
+ *   Copyright (C) 2016 Nextcloud
+ *
+ *   This program is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU AFFERO GENERAL PUBLIC LICENSE
+ *   License as published by the Free Software Foundation; either
+ *   version 3 of the License, or any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU AFFERO GENERAL PUBLIC LICENSE for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public
+ *   License along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.owncloud.android.services;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Durable queue of the files detected in synced folders that are waiting to be handed to the uploader by
+ * {@link SyncedFolderJobService}.
+ *
+ * Entries are kept in a private shared preferences file, so they survive the process and reboots. Repeated events
+ * for the same path are collapsed in a single entry that keeps the time of the first one. New entries are written
+ * to storage asynchronously, since bursts of events would block the observer otherwise; removals are batched and
+ * written synchronously, so that uploaded files are not queued again after a crash.
+ */
+public class SyncedFolderEventsQueue {
+
+    private static final String PREFERENCES_NAME = "synced_folder_events";
+    private static final String KEY_SEPARATOR = ":";
+
+    /** Shared by every instance, since all of them work on the same preferences file */
+    private static final Object LOCK = new Object();
+
+    private final SharedPreferences mPreferences;
+
+    public SyncedFolderEventsQueue(Context context) {
+        mPreferences = context.getApplicationContext().getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Queues a file detected in a synced folder.
+     *
+     * @param syncedFolderId    Id of the synced folder containing the file.
+     * @param path              Absolute local path of the file.
+     * @param eventTime         Time of the event, in milliseconds.
+     * @return                  'true' if the file was not queued yet.
+     */
+    public boolean add(long syncedFolderId, String path, long eventTime) {
+        String key = buildKey(syncedFolderId, path);
+        synchronized (LOCK) {
+            if (mPreferences.contains(key)) {
+                return false;
+            }
+            mPreferences.edit().putLong(key, eventTime).apply();
+            return true;
+        }
+    }
+
+    /**
+     * @param syncedFolderId    Id of a synced folder.
+     * @return                  Paths queued for the synced folder, mapped to the time of their first event.
+     */
+    public Map<String, Long> get(long syncedFolderId) {
+        String prefix = buildKey(syncedFolderId, "");
+        Map<String, Long> events = new HashMap<>();
+        synchronized (LOCK) {
+            for (Map.Entry<String, ?> entry : mPreferences.getAll().entrySet()) {
+                if (entry.getKey().startsWith(prefix) && entry.getValue() instanceof Long) {
+                    events.put(entry.getKey().substring(prefix.length()), (Long) entry.getValue());
+                }
+            }
+        }
+        return events;
+    }
+
+    /**
+     * @param syncedFolderId    Id of a synced folder.
+     * @return                  'true' if there is any file queued for the synced folder.
+     */
+    public boolean hasEvents(long syncedFolderId) {
+        String prefix = buildKey(syncedFolderId, "");
+        synchronized (LOCK) {
+            for (String key : mPreferences.getAll().keySet()) {
+                if (key.startsWith(prefix)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes files from the queue of a synced folder, in a single write.
+     *
+     * @param syncedFolderId    Id of the synced folder containing the files.
+     * @param paths             Absolute local paths of the files to remove.
+     */
+    public void remove(long syncedFolderId, Collection<String> paths) {
+        if (paths.isEmpty()) {
+            return;
+        }
+        synchronized (LOCK) {
+            SharedPreferences.Editor editor = mPreferences.edit();
+            for (String path : paths) {
+                editor.remove(buildKey(syncedFolderId, path));
+            }
+            editor.commit();
+        }
+    }
+
+    private static String buildKey(long syncedFolderId, String path) {
+        return syncedFolderId + KEY_SEPARATOR + path;
+    }
+}
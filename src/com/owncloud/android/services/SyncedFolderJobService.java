@@ -23,8 +23,11 @@ package com.owncloud.android.services;
 
 import android.accounts.Account;
 import android.annotation.TargetApi;
+import android.app.job.JobInfo;
 import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
 import android.app.job.JobService;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Build;
@@ -32,6 +35,7 @@ import android.os.PersistableBundle;
 
 import com.owncloud.android.MainApp;
 import com.owncloud.android.authentication.AccountUtils;
+import com.owncloud.android.datamodel.SyncedFolder;
 import com.owncloud.android.files.services.FileUploader;
 import com.owncloud.android.lib.common.utils.Log_OC;
 import com.owncloud.android.operations.UploadFileOperation;
@@ -39,48 +43,204 @@ import com.owncloud.android.utils.FileStorageUtils;
 import com.owncloud.android.utils.MimeTypeUtil;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
+/**
+ * Uploads, in a single batch, the files queued in {@link SyncedFolderEventsQueue} for a synced folder.
+ *
+ * There is at most one pending job per synced folder; it waits {@link #BATCH_WINDOW_MS} after the first event so
+ * that bursts of new files are handed to {@link FileUploader} in one request. The queue is read in a worker thread,
+ * out of the main thread where jobs are started.
+ *
+ * Jobs persisted by previous versions, one per file, are still run; their extras have the path of the file
+ * instead of the id of a synced folder.
+ */
 @TargetApi(Build.VERSION_CODES.LOLLIPOP)
 public class SyncedFolderJobService extends JobService {
     private static final String TAG = "SyncedFolderJobService";
 
+    private static final String KEY_SYNCED_FOLDER_ID = "syncedFolderId";
+    private static final String KEY_REMOTE_PATH = "remotePath";
+    private static final String KEY_ACCOUNT = "account";
+    private static final String KEY_UPLOAD_BEHAVIOUR = "uploadBehaviour";
+    private static final String KEY_SUBFOLDER_BY_DATE = "subfolderByDate";
+
+    /** Extras of the jobs persisted by previous versions */
+    private static final String KEY_LEGACY_FILE_PATH = "filePath";
+    private static final String KEY_LEGACY_DATE_TAKEN = "dateTaken";
+
+    /** Time the events of a synced folder are collected before uploading them */
+    private static final long BATCH_WINDOW_MS = 15000;
+
+    /** Files modified more recently than this are considered still being written, and wait for the next run */
+    private static final long MIN_FILE_AGE_MS = 5000;
+
+    /** Initial delay before running again a job that left files in the queue */
+    private static final long RETRY_BACKOFF_MS = 10000;
+
+    /**
+     * Schedules the upload of the files queued for a synced folder, unless there is already a pending job for it;
+     * in that case the pending job will also upload the new files.
+     *
+     * @param context       Caller {@link Context}.
+     * @param syncedFolder  Synced folder with queued files.
+     */
+    public static void scheduleUpload(Context context, SyncedFolder syncedFolder) {
+        JobScheduler js = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        int jobId = (int) syncedFolder.getId();
+
+        for (JobInfo pendingJob : js.getAllPendingJobs()) {
+            if (pendingJob.getId() == jobId) {
+                return;
+            }
+        }
+
+        PersistableBundle bundle = new PersistableBundle();
+        bundle.putLong(KEY_SYNCED_FOLDER_ID, syncedFolder.getId());
+        bundle.putString(KEY_REMOTE_PATH, syncedFolder.getRemotePath());
+        bundle.putString(KEY_ACCOUNT, syncedFolder.getAccount());
+        bundle.putInt(KEY_UPLOAD_BEHAVIOUR, syncedFolder.getUploadAction());
+        bundle.putInt(KEY_SUBFOLDER_BY_DATE, syncedFolder.getSubfolderByDate() ? 1 : 0);
+
+        // no override deadline: it would run the job regardless of the charging and network constraints
+        JobInfo job = new JobInfo.Builder(jobId, new ComponentName(context, SyncedFolderJobService.class))
+                .setMinimumLatency(BATCH_WINDOW_MS)
+                .setRequiresCharging(syncedFolder.getChargingOnly())
+                .setRequiredNetworkType(syncedFolder.getWifiOnly() ? JobInfo.NETWORK_TYPE_UNMETERED : JobInfo.NETWORK_TYPE_ANY)
+                .setBackoffCriteria(RETRY_BACKOFF_MS, JobInfo.BACKOFF_POLICY_LINEAR)
+                .setExtras(bundle)
+                .setPersisted(true)
+                .build();
+
+        Integer result = js.schedule(job);
+        if (result <= 0) {
+            Log_OC.d(TAG, "Job failed to start: " + result);
+        }
+    }
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         return START_REDELIVER_INTENT;
     }
 
     @Override
-    public boolean onStartJob(JobParameters params) {
+    public boolean onStartJob(final JobParameters params) {
+        if (params.getExtras().containsKey(KEY_LEGACY_FILE_PATH)) {
+            uploadLegacyFile(params.getExtras());
+            return false;
+        }
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // files still being written are retried with backoff
+                jobFinished(params, uploadQueuedFiles(params));
+            }
+        }).start();
+        return true;
+    }
+
+    /**
+     * Hands to {@link FileUploader} the files queued for the synced folder of a job.
+     *
+     * @return  'true' if files were left in the queue, so the job must run again.
+     */
+    private boolean uploadQueuedFiles(JobParameters params) {
         Context context = MainApp.getAppContext();
         PersistableBundle bundle = params.getExtras();
-        String filePath = bundle.getString("filePath");
-        String remoteFolder = bundle.getString("remotePath");
-        Long dateTaken = bundle.getLong("dateTaken");
-        Boolean subfolderByDate = bundle.getInt("subfolderByDate") == 1;
-        Account account = AccountUtils.getOwnCloudAccountByName(context, bundle.getString("account"));
-        Integer uploadBehaviour = bundle.getInt("uploadBehaviour");
+        long syncedFolderId = bundle.getLong(KEY_SYNCED_FOLDER_ID);
+        String remoteFolder = bundle.getString(KEY_REMOTE_PATH);
+        Boolean subfolderByDate = bundle.getInt(KEY_SUBFOLDER_BY_DATE) == 1;
+        Account account = AccountUtils.getOwnCloudAccountByName(context, bundle.getString(KEY_ACCOUNT));
+        Integer uploadBehaviour = bundle.getInt(KEY_UPLOAD_BEHAVIOUR);
 
-        Log_OC.d(TAG, "startJob: " + params.getJobId() + ", filePath: " + filePath);
+        SyncedFolderEventsQueue queue = new SyncedFolderEventsQueue(context);
+        Map<String, Long> events = queue.get(syncedFolderId);
 
-        File file = new File(filePath);
-        String mimeType = MimeTypeUtil.getBestMimeTypeByFilename(file.getAbsolutePath());
+        Log_OC.d(TAG, "startJob: " + params.getJobId() + ", queued files: " + events.size());
+
+        List<String> localPaths = new ArrayList<>();
+        List<String> remotePaths = new ArrayList<>();
+        List<String> mimeTypes = new ArrayList<>();
+        List<String> handledPaths = new ArrayList<>();
+        long now = System.currentTimeMillis();
+
+        for (Map.Entry<String, Long> event : events.entrySet()) {
+            File file = new File(event.getKey());
+            if (!file.isFile()) {
+                // removed before the upload, or a folder
+                handledPaths.add(event.getKey());
+                continue;
+            }
+            if (now - file.lastModified() < MIN_FILE_AGE_MS) {
+                // still being written, keep it for the next run
+                continue;
+            }
+            localPaths.add(file.getAbsolutePath());
+            remotePaths.add(FileStorageUtils.getInstantUploadFilePath(remoteFolder, file.getName(),
+                    event.getValue(), subfolderByDate));
+            mimeTypes.add(MimeTypeUtil.getBestMimeTypeByFilename(file.getAbsolutePath()));
+            handledPaths.add(event.getKey());
+        }
+
+        if (account == null) {
+            Log_OC.w(TAG, "Account of synced folder " + syncedFolderId + " not found, dropping queued files");
+            handledPaths = new ArrayList<>(events.keySet());
+
+        } else if (!localPaths.isEmpty()) {
+            FileUploader.UploadRequester requester = new FileUploader.UploadRequester();
+            requester.uploadNewFile(
+                    context,
+                    account,
+                    localPaths.toArray(new String[localPaths.size()]),
+                    remotePaths.toArray(new String[remotePaths.size()]),
+                    mimeTypes.toArray(new String[mimeTypes.size()]),
+                    uploadBehaviour,
+                    true,           // create parent folder if not existent
+                    UploadFileOperation.CREATED_AS_INSTANT_PICTURE
+            );
+        }
+
+        queue.remove(syncedFolderId, handledPaths);
 
+        return queue.hasEvents(syncedFolderId);
+    }
+
+    /**
+     * Uploads the single file of a job persisted by a previous version.
+     */
+    private void uploadLegacyFile(PersistableBundle bundle) {
+        Context context = MainApp.getAppContext();
+        String filePath = bundle.getString(KEY_LEGACY_FILE_PATH);
+        Account account = AccountUtils.getOwnCloudAccountByName(context, bundle.getString(KEY_ACCOUNT));
+
+        Log_OC.d(TAG, "startJob of previous version, filePath: " + filePath);
+
+        if (filePath == null || account == null) {
+            Log_OC.w(TAG, "Dropping job of previous version without file or account");
+            return;
+        }
+
+        File file = new File(filePath);
         FileUploader.UploadRequester requester = new FileUploader.UploadRequester();
         requester.uploadNewFile(
                 context,
                 account,
                 filePath,
-                FileStorageUtils.getInstantUploadFilePath(remoteFolder, file.getName(), dateTaken, subfolderByDate),
-                uploadBehaviour,
-                mimeType,
+                FileStorageUtils.getInstantUploadFilePath(bundle.getString(KEY_REMOTE_PATH), file.getName(),
+                        bundle.getLong(KEY_LEGACY_DATE_TAKEN), bundle.getInt(KEY_SUBFOLDER_BY_DATE) == 1),
+                bundle.getInt(KEY_UPLOAD_BEHAVIOUR),
+                MimeTypeUtil.getBestMimeTypeByFilename(file.getAbsolutePath()),
                 true,           // create parent folder if not existent
                 UploadFileOperation.CREATED_AS_INSTANT_PICTURE
         );
-        return false;
     }
 
     @Override
     public boolean onStopJob(JobParameters params) {
-        return false;
+        // the files are still queued, run again
+        return true;
     }
 }
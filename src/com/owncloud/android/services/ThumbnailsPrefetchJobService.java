@@ -0,0 +1,269 @@
+/**
+ *   Nextcloud Android client application
+ *
+ *   Copyright (C) 2016 Nextcloud
+ *
+ *   This program is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU AFFERO GENERAL PUBLIC LICENSE
+ *   License as published by the Free Software Foundation; either
+ *   version 3 of the License, or any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU AFFERO GENERAL PUBLIC LICENSE for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public
+ *   License along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.owncloud.android.services;
+
+import android.accounts.Account;
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Build;
+import android.os.PersistableBundle;
+import android.os.Process;
+
+import com.owncloud.android.MainApp;
+import com.owncloud.android.authentication.AccountUtils;
+import com.owncloud.android.datamodel.FileDataStorageManager;
+import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.datamodel.ThumbnailsCacheManager;
+import com.owncloud.android.db.PreferenceManager;
+import com.owncloud.android.lib.common.OwnCloudAccount;
+import com.owncloud.android.lib.common.OwnCloudClient;
+import com.owncloud.android.lib.common.OwnCloudClientManagerFactory;
+import com.owncloud.android.lib.common.utils.Log_OC;
+import com.owncloud.android.lib.resources.status.OwnCloudVersion;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads into the thumbnails cache, in background, the thumbnails of a folder with many images, so that they are
+ * ready when the folder is shown instead of being requested one by one while the rows are bound.
+ *
+ * Requested by {@link com.owncloud.android.operations.RefreshFolderOperation} when enabled in the preferences, which
+ * also restrict the job to Wi-Fi and charging. There is at most one job; requesting another folder replaces it.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class ThumbnailsPrefetchJobService extends JobService {
+    private static final String TAG = ThumbnailsPrefetchJobService.class.getSimpleName();
+
+    private static final String KEY_ACCOUNT = "account";
+    private static final String KEY_FOLDER_PATH = "folderPath";
+
+    /** Out of the range of ids of synced folders, used by {@link SyncedFolderJobService} */
+    private static final int JOB_ID = Integer.MAX_VALUE;
+
+    /** Thumbnails downloaded at the same time, reusing the kept-alive connections of the client of the account */
+    private static final int PREFETCH_THREADS = 3;
+
+    /** Thumbnails prefetched between logs of the progress */
+    private static final int PROGRESS_LOG_INTERVAL = 100;
+
+    /** Time given to the downloads in progress to end when the job is stopped */
+    private static final long STOP_TIMEOUT_MS = 1000;
+
+    private static final AtomicInteger mPrefetchedCount = new AtomicInteger();
+    private static final AtomicLong mPrefetchedBytes = new AtomicLong();
+
+    private PrefetchThread mPrefetchThread;
+
+    /**
+     * Schedules the prefetch of the thumbnails of a folder, replacing the prefetch of any other folder.
+     *
+     * @param context       Caller {@link Context}.
+     * @param account       Account owning the folder.
+     * @param folderPath    Remote path of the folder.
+     */
+    public static void schedulePrefetch(Context context, Account account, String folderPath) {
+        JobScheduler js = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+
+        for (JobInfo pendingJob : js.getAllPendingJobs()) {
+            if (pendingJob.getId() == JOB_ID &&
+                    account.name.equals(pendingJob.getExtras().getString(KEY_ACCOUNT)) &&
+                    folderPath.equals(pendingJob.getExtras().getString(KEY_FOLDER_PATH))) {
+                return;
+            }
+        }
+
+        PersistableBundle bundle = new PersistableBundle();
+        bundle.putString(KEY_ACCOUNT, account.name);
+        bundle.putString(KEY_FOLDER_PATH, folderPath);
+
+        JobInfo job = new JobInfo.Builder(JOB_ID, new ComponentName(context, ThumbnailsPrefetchJobService.class))
+                .setRequiresCharging(PreferenceManager.thumbnailPrefetchWhenChargingOnly(context))
+                .setRequiredNetworkType(PreferenceManager.thumbnailPrefetchViaWiFiOnly(context) ?
+                        JobInfo.NETWORK_TYPE_UNMETERED : JobInfo.NETWORK_TYPE_ANY)
+                .setExtras(bundle)
+                .build();
+
+        int result = js.schedule(job);
+        if (result <= 0) {
+            Log_OC.d(TAG, "Job failed to start: " + result);
+        }
+    }
+
+    /**
+     * @return  Number of thumbnails downloaded by prefetch jobs since the app started.
+     */
+    public static int getPrefetchedCount() {
+        return mPrefetchedCount.get();
+    }
+
+    /**
+     * @return  Bytes of the thumbnails downloaded by prefetch jobs since the app started.
+     */
+    public static long getPrefetchedBytes() {
+        return mPrefetchedBytes.get();
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        mPrefetchThread = new PrefetchThread(params);
+        mPrefetchThread.start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        if (mPrefetchThread != null) {
+            mPrefetchThread.stopPrefetch();
+            mPrefetchThread = null;
+        }
+        // continue later with the thumbnails left
+        return true;
+    }
+
+    /**
+     * Prefetches the thumbnails of the folder in the job parameters, out of the main thread.
+     */
+    private class PrefetchThread extends Thread {
+
+        private final JobParameters mParams;
+        private volatile boolean mCancelled = false;
+
+        PrefetchThread(JobParameters params) {
+            super("ThumbnailsPrefetch");
+            mParams = params;
+        }
+
+        /**
+         * Stops the prefetch, interrupting the downloads in progress, and waits a while for them to end, so that
+         * they do not overlap with the job when it is run again.
+         */
+        void stopPrefetch() {
+            mCancelled = true;
+            interrupt();
+            try {
+                join(2 * STOP_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (isAlive()) {
+                Log_OC.w(TAG, "Prefetch of thumbnails still stopping");
+            }
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            try {
+                prefetch();
+            } catch (Exception e) {
+                // the app should never break due to a problem with thumbnails
+                Log_OC.e(TAG, "Prefetch of thumbnails failed", e);
+            }
+            if (!mCancelled) {
+                jobFinished(mParams, false);
+            }
+        }
+
+        private void prefetch() throws Exception {
+            Context context = MainApp.getAppContext();
+            PersistableBundle bundle = mParams.getExtras();
+            String folderPath = bundle.getString(KEY_FOLDER_PATH);
+            final Account account = AccountUtils.getOwnCloudAccountByName(context, bundle.getString(KEY_ACCOUNT));
+            if (account == null) {
+                return;
+            }
+            OwnCloudVersion version = AccountUtils.getServerVersion(account);
+            if (version == null || !version.supportsRemoteThumbnails()) {
+                return;
+            }
+
+            FileDataStorageManager storageManager = new FileDataStorageManager(account, getContentResolver());
+            OCFile folder = storageManager.getFileByPath(folderPath);
+            if (folder == null || !folder.isFolder()) {
+                return;
+            }
+            List<OCFile> images = new ArrayList<>();
+            for (OCFile image : storageManager.getFolderImages(folder, false)) {
+                // thumbnails of files in the device are generated from them
+                if (!image.isDown() && !ThumbnailsCacheManager.isThumbnailCached(image)) {
+                    images.add(image);
+                }
+            }
+            if (images.isEmpty()) {
+                return;
+            }
+
+            final OwnCloudClient client = OwnCloudClientManagerFactory.getDefaultSingleton().
+                    getClientFor(new OwnCloudAccount(account, context), context);
+            final int total = images.size();
+            final AtomicInteger done = new AtomicInteger();
+            final AtomicLong bytes = new AtomicLong();
+            Log_OC.d(TAG, "Prefetching " + total + " thumbnails of " + folderPath);
+
+            ExecutorService executor = Executors.newFixedThreadPool(PREFETCH_THREADS);
+            for (final OCFile image : images) {
+                if (mCancelled) {
+                    break;
+                }
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mCancelled) {
+                            return;
+                        }
+                        long downloaded = ThumbnailsCacheManager.prefetchThumbnail(client, account, image);
+                        if (downloaded > 0) {
+                            mPrefetchedCount.incrementAndGet();
+                            mPrefetchedBytes.addAndGet(downloaded);
+                            bytes.addAndGet(downloaded);
+                        }
+                        int count = done.incrementAndGet();
+                        if (count % PROGRESS_LOG_INTERVAL == 0) {
+                            Log_OC.d(TAG, "Prefetched " + count + "/" + total + " thumbnails, " + bytes.get() +
+                                    " bytes");
+                        }
+                    }
+                });
+            }
+            executor.shutdown();
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // job stopped; the downloads in progress are interrupted too
+                executor.shutdownNow();
+                executor.awaitTermination(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            }
+
+            Log_OC.d(TAG, "Prefetch of " + folderPath + (mCancelled ? " stopped" : " finished") + " after " +
+                    done.get() + "/" + total + " thumbnails, " + bytes.get() + " bytes");
+        }
+    }
+}
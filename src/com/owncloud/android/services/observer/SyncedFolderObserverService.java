@@ -3,24 +3,29 @@ package com.owncloud.android.services.observer;
 import android.app.Service;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Build;
 import android.os.IBinder;
 
 import com.owncloud.android.MainApp;
 import com.owncloud.android.datamodel.SyncedFolder;
 import com.owncloud.android.datamodel.SyncedFolderProvider;
 import com.owncloud.android.lib.common.utils.Log_OC;
+import com.owncloud.android.services.SyncedFolderEventsQueue;
+import com.owncloud.android.services.SyncedFolderJobService;
 
 import java.util.HashMap;
 
 public class SyncedFolderObserverService extends Service {
     private static final String TAG = "SyncedFolderObserverService";
     private SyncedFolderProvider mProvider;
+    private SyncedFolderEventsQueue mEventsQueue;
     private HashMap<String, SyncedFolderObserver> syncedFolderMap = new HashMap<>();
     private final IBinder mBinder = new SyncedFolderObserverBinder();
 
     @Override
     public void onCreate() {
         mProvider = new SyncedFolderProvider(MainApp.getAppContext().getContentResolver());
+        mEventsQueue = new SyncedFolderEventsQueue(MainApp.getAppContext());
     }
 
     @Override
@@ -32,6 +37,12 @@ public class SyncedFolderObserverService extends Service {
                 SyncedFolderObserver observer = new SyncedFolderObserver(syncedFolder);
                 observer.startWatching();
                 syncedFolderMap.put(syncedFolder.getLocalPath(), observer);
+
+                // files detected before the process was killed or the device rebooted
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP &&
+                        mEventsQueue.hasEvents(syncedFolder.getId())) {
+                    SyncedFolderJobService.scheduleUpload(this, syncedFolder);
+                }
             }
         }
 
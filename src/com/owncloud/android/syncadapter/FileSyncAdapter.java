@@ -24,9 +24,14 @@ package com.owncloud.android.syncadapter;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.jackrabbit.webdav.DavException;
 
@@ -34,6 +39,7 @@ import com.owncloud.android.R;
 import com.owncloud.android.authentication.AuthenticatorActivity;
 import com.owncloud.android.datamodel.FileDataStorageManager;
 import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.db.PreferenceManager;
 import com.owncloud.android.lib.common.operations.RemoteOperationResult;
 import com.owncloud.android.operations.RefreshFolderOperation;
 import com.owncloud.android.operations.UpdateOCVersionOperation;
@@ -60,6 +66,9 @@ import android.support.v4.app.NotificationCompat;
  * 
  * Performs a full synchronization of the account received in {@link #onPerformSync(Account, Bundle,
  * String, ContentProviderClient, SyncResult)}.
+ *
+ * Folders are refreshed by a bounded pool of workers, see {@link PreferenceManager#getFullSyncParallelism}.
+ * Subtrees below a folder whose eTag did not change are not walked, unless they contain favourites.
  */
 public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
 
@@ -82,13 +91,29 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
     public static final String EXTRA_FOLDER_PATH = FileSyncAdapter.class.getName() +
             ".EXTRA_FOLDER_PATH";
     public static final String EXTRA_RESULT = FileSyncAdapter.class.getName() + ".EXTRA_RESULT";
+
+    /** Statistics of the synchronization in progress, attached to the EVENT_FULL_SYNC_* broadcasts */
+    public static final String EXTRA_FOLDERS_VISITED = FileSyncAdapter.class.getName() +
+            ".EXTRA_FOLDERS_VISITED";
+    public static final String EXTRA_FOLDERS_SKIPPED = FileSyncAdapter.class.getName() +
+            ".EXTRA_FOLDERS_SKIPPED";
+    public static final String EXTRA_PROPFINDS_ISSUED = FileSyncAdapter.class.getName() +
+            ".EXTRA_PROPFINDS_ISSUED";
+    public static final String EXTRA_SYNC_DURATION = FileSyncAdapter.class.getName() +
+            ".EXTRA_SYNC_DURATION";
     
     
     /** Time stamp for the current synchronization process, used to distinguish fresh data */
     private long mCurrentSyncTime;
     
+    /** Time stamp when the current synchronization process started, used to measure its duration */
+    private long mSyncStartTime;
+
     /** Flag made 'true' when a request to cancel the synchronization is received */
-    private boolean mCancellation;
+    private volatile boolean mCancellation;
+
+    /** Lock guarding the counters and results below, updated from the workers refreshing folders */
+    private final Object mResultsLock = new Object();
 
     /** Counter for failed operations in the synchronization process */
     private int mFailedResultsCounter;
@@ -111,6 +136,20 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
 
     /** 'True' means that the server supports the share API */
     private boolean mIsShareSupported;
+
+    /** Workers refreshing folders in parallel */
+    private ExecutorService mFolderSyncExecutor;
+
+    /** Lock guarding the number of folders submitted to the workers and not finished yet */
+    private final Object mPendingLock = new Object();
+
+    /** Number of folders submitted to the workers and not finished yet */
+    private int mPendingFolders;
+
+    /** Counters of the synchronization in progress */
+    private final AtomicInteger mFoldersVisited = new AtomicInteger();
+    private final AtomicInteger mFoldersSkipped = new AtomicInteger();
+    private final AtomicInteger mPropfindsIssued = new AtomicInteger();
     
     
     /**
@@ -149,7 +188,14 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
         mLastFailedResult = null;
         mConflictsFound = 0;
         mFailsInFavouritesFound = 0;
-        mForgottenLocalFiles = new HashMap<String, String>();
+        mForgottenLocalFiles = Collections.synchronizedMap(new HashMap<String, String>());
+        mFoldersVisited.set(0);
+        mFoldersSkipped.set(0);
+        mPropfindsIssued.set(0);
+        synchronized (mPendingLock) {
+            mPendingFolders = 0;
+        }
+        mSyncStartTime = System.currentTimeMillis();
         mSyncResult = syncResult;
         mSyncResult.fullSyncRequested = false;
         mSyncResult.delayUntil = (System.currentTimeMillis()/1000) + 3*60*60; // avoid too many automatic synchronizations
@@ -176,8 +222,12 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
             updateOCVersion();
             mCurrentSyncTime = System.currentTimeMillis();
             if (!mCancellation) {
-                synchronizeFolder(getStorageManager().getFileByPath(OCFile.ROOT_PATH));
-                
+                mFolderSyncExecutor = Executors.newFixedThreadPool(
+                        PreferenceManager.getFullSyncParallelism(getContext())
+                );
+                submitFolder(getStorageManager().getFileByPath(OCFile.ROOT_PATH));
+                awaitFolders();
+
             } else {
                 Log_OC.d(TAG, "Leaving synchronization before synchronizing the root folder " +
                         "because cancelation request");
@@ -187,6 +237,9 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
         } finally {
             // it's important making this although very unexpected errors occur;
             // that's the reason for the finally
+            if (mFolderSyncExecutor != null) {
+                mFolderSyncExecutor.shutdownNow();
+            }
             
             if (mFailedResultsCounter > 0 && mIsManualSync) {
                 /// don't let the system synchronization manager retries MANUAL synchronizations
@@ -203,6 +256,9 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
             if (mForgottenLocalFiles.size() > 0) {
                 notifyForgottenLocalFiles();
             }
+            Log_OC.i(TAG, "Synchronization of " + account.name + " finished: " + mFoldersVisited.get() +
+                    " folders visited, " + mFoldersSkipped.get() + " skipped, " + mPropfindsIssued.get() +
+                    " PROPFINDs, " + (System.currentTimeMillis() - mSyncStartTime) + " ms");
             sendLocalBroadcast(EVENT_FULL_SYNC_END, null, mLastFailedResult);   // message to signal
                                                                                 // the end to the UI
         }
@@ -247,15 +303,19 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
      *  Fetches the list and properties of the files contained in the given folder, including their 
      *  properties, and updates the local database with them.
      *  
-     *  Enters in the child folders to synchronize their contents also, following a recursive
-     *  depth first strategy. 
+     *  Submits the child folders to the workers to synchronize their contents also, see
+     *  {@link #syncChildren(List, OCFile, boolean)}.
+     *
+     *  Runs in one of the workers of {@link #mFolderSyncExecutor}.
      * 
      *  @param folder                   Folder to synchronize.
      */
     private void synchronizeFolder(OCFile folder) {
-        
-        if (mFailedResultsCounter > MAX_FAILED_RESULTS || isFinisher(mLastFailedResult)) {
-            return;
+
+        synchronized (mResultsLock) {
+            if (mCancellation || mFailedResultsCounter > MAX_FAILED_RESULTS || isFinisher(mLastFailedResult)) {
+                return;
+            }
         }
         
         // folder synchronization
@@ -269,7 +329,8 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
                                                                                    getContext()
                                                                                   );
         RemoteOperationResult result = synchFolderOp.execute(getClient());
-        
+        mFoldersVisited.incrementAndGet();
+        mPropfindsIssued.addAndGet(synchFolderOp.getPropfindsCount());
         
         // synchronized folder -> notice to UI - ALWAYS, although !result.isSuccess
         sendLocalBroadcast(EVENT_FULL_SYNC_FOLDER_CONTENTS_SYNCED, folder.getRemotePath(), result);
@@ -278,8 +339,10 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
         if (result.isSuccess() || result.getCode() == ResultCode.SYNC_CONFLICT) {
             
             if (result.getCode() == ResultCode.SYNC_CONFLICT) {
-                mConflictsFound += synchFolderOp.getConflictsFound();
-                mFailsInFavouritesFound += synchFolderOp.getFailsInFavouritesFound();
+                synchronized (mResultsLock) {
+                    mConflictsFound += synchFolderOp.getConflictsFound();
+                    mFailsInFavouritesFound += synchFolderOp.getFailsInFavouritesFound();
+                }
             }
             if (synchFolderOp.getForgottenLocalFiles().size() > 0) {
                 mForgottenLocalFiles.putAll(synchFolderOp.getForgottenLocalFiles());
@@ -287,23 +350,24 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
             if (result.isSuccess()) {
                 // synchronize children folders 
                 List<OCFile> children = synchFolderOp.getChildren();
-                // beware of the 'hidden' recursion here!
-                syncChildren(children);
+                syncChildren(children, folder, synchFolderOp.isRemoteFolderChanged());
             }
             
         } else if (result.getCode() != ResultCode.FILE_NOT_FOUND) {
             // in failures, the statistics for the global result are updated
-            if (RemoteOperationResult.ResultCode.UNAUTHORIZED.equals(result.getCode())) {
-                mSyncResult.stats.numAuthExceptions++;
-                
-            } else if (result.getException() instanceof DavException) {
-                mSyncResult.stats.numParseExceptions++;
-                
-            } else if (result.getException() instanceof IOException) { 
-                mSyncResult.stats.numIoExceptions++;
+            synchronized (mResultsLock) {
+                if (RemoteOperationResult.ResultCode.UNAUTHORIZED.equals(result.getCode())) {
+                    mSyncResult.stats.numAuthExceptions++;
+
+                } else if (result.getException() instanceof DavException) {
+                    mSyncResult.stats.numParseExceptions++;
+
+                } else if (result.getException() instanceof IOException) {
+                    mSyncResult.stats.numIoExceptions++;
+                }
+                mFailedResultsCounter++;
+                mLastFailedResult = result;
             }
-            mFailedResultsCounter++;
-            mLastFailedResult = result;
 
         } // else, ResultCode.FILE_NOT_FOUND is ignored, remote folder was
           // removed from other thread or other client during the synchronization,
@@ -331,20 +395,29 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
     }
 
     /**
-     * Triggers the synchronization of any folder contained in the list of received files.
+     * Triggers the synchronization of the folders contained in the list of received files.
      *
-     * No consideration of etag here because it MUST walk down anyway, in case that kept-in-sync files
-     * have local changes.
+     * When the eTag of the parent folder did not change, nothing changed below it in the server, so only
+     * the subtrees that contain kept-in-sync files, which may have local changes, and the folders never
+     * synchronized before are walked down.
      * 
-     * @param files         Files to recursively synchronize.
+     * @param files                 Files to recursively synchronize.
+     * @param parent                Folder containing 'files'.
+     * @param remoteFolderChanged   'True' if the eTag of 'parent' changed in the server.
      */
-    private void syncChildren(List<OCFile> files) {
+    private void syncChildren(List<OCFile> files, OCFile parent, boolean remoteFolderChanged) {
+        boolean favoritesBelow = remoteFolderChanged || getStorageManager().containsFavorites(parent);
         int i;
         OCFile newFile;
         for (i=0; i < files.size() && !mCancellation; i++) {
             newFile = files.get(i);
             if (newFile.isFolder()) {
-                synchronizeFolder(newFile);
+                if (remoteFolderChanged || newFile.getEtag() == null || newFile.getEtag().length() == 0 ||
+                        (favoritesBelow && getStorageManager().containsFavorites(newFile))) {
+                    submitFolder(newFile);
+                } else {
+                    mFoldersSkipped.incrementAndGet();
+                }
             }
         }
        
@@ -356,6 +429,60 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
     }
 
     
+    /**
+     * Submits the synchronization of a folder to the workers.
+     *
+     * @param folder        Folder to synchronize.
+     */
+    private void submitFolder(final OCFile folder) {
+        synchronized (mPendingLock) {
+            mPendingFolders++;
+        }
+        try {
+            mFolderSyncExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        synchronizeFolder(folder);
+                    } finally {
+                        folderFinished();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // workers are shutting down
+            folderFinished();
+        }
+    }
+
+    private void folderFinished() {
+        synchronized (mPendingLock) {
+            mPendingFolders--;
+            if (mPendingFolders <= 0) {
+                mPendingLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Blocks until every folder submitted to the workers, and the folders they submitted in turn, are
+     * synchronized.
+     */
+    private void awaitFolders() {
+        synchronized (mPendingLock) {
+            while (mPendingFolders > 0) {
+                try {
+                    mPendingLock.wait();
+                } catch (InterruptedException e) {
+                    Log_OC.d(TAG, "Interrupted while waiting for folders to synchronize");
+                    mCancellation = true;
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
     /**
      * Sends a message to any application component interested in the progress of the
      * synchronization.
@@ -376,6 +503,10 @@ public class FileSyncAdapter extends AbstractOwnCloudSyncAdapter {
         if (result != null) {
             intent.putExtra(FileSyncAdapter.EXTRA_RESULT, result);
         }
+        intent.putExtra(FileSyncAdapter.EXTRA_FOLDERS_VISITED, mFoldersVisited.get());
+        intent.putExtra(FileSyncAdapter.EXTRA_FOLDERS_SKIPPED, mFoldersSkipped.get());
+        intent.putExtra(FileSyncAdapter.EXTRA_PROPFINDS_ISSUED, mPropfindsIssued.get());
+        intent.putExtra(FileSyncAdapter.EXTRA_SYNC_DURATION, System.currentTimeMillis() - mSyncStartTime);
         getContext().sendStickyBroadcast(intent);
         //LocalBroadcastManager.getInstance(getContext()).sendBroadcast(intent);
     }
@@ -1647,6 +1647,7 @@ public class FileDisplayActivity extends HookActivity
             Intent i = new Intent(this, FileDownloader.class);
             i.putExtra(FileDownloader.EXTRA_ACCOUNT, account);
             i.putExtra(FileDownloader.EXTRA_FILE, mWaitingToPreview);
+            i.putExtra(FileDownloader.EXTRA_PRIORITY, true);
             startService(i);
         }
     }
@@ -1718,6 +1719,7 @@ public class FileDisplayActivity extends HookActivity
             Intent i = new Intent(this, FileDownloader.class);
             i.putExtra(FileDownloader.EXTRA_ACCOUNT, account);
             i.putExtra(FileDownloader.EXTRA_FILE, file);
+            i.putExtra(FileDownloader.EXTRA_PRIORITY, true);
             startService(i);
         }
     }
@@ -68,6 +68,9 @@ public class FolderSyncActivity extends FileActivity implements FolderSyncAdapte
     private static final String SYNCED_FOLDER_PREFERENCES_DIALOG_TAG = "SYNCED_FOLDER_PREFERENCES_DIALOG";
     public static final String PRIORITIZED_FOLDER = "Camera";
 
+    /** Media folders found the last time the activity was opened, only buckets changed since then are read again */
+    private static volatile List<MediaFolder> sLastMediaScan;
+
     private RecyclerView mRecyclerView;
     private FolderSyncAdapter mAdapter;
     private LinearLayout mProgress;
@@ -130,7 +133,8 @@ public class FolderSyncActivity extends FileActivity implements FolderSyncAdapte
             @Override
             public void run() {
                 final List<MediaFolder> mediaFolders = MediaProvider.getMediaFolders(getContentResolver(),
-                        perFolderMediaItemLimit);
+                        perFolderMediaItemLimit, sLastMediaScan);
+                sLastMediaScan = mediaFolders;
                 syncFolderItems = sortSyncedFolderItems(mergeFolderData(mSyncedFolderProvider.getSyncedFolders(),
                         mediaFolders));
 
@@ -0,0 +1,330 @@
+/**
+ *   Nextcloud Android client application
+ *
+ *   Copyright (C) 2016 Nextcloud
+ *
+ *   This program is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU AFFERO GENERAL PUBLIC LICENSE
+ *   License as published by the Free Software Foundation; either
+ *   version 3 of the License, or any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU AFFERO GENERAL PUBLIC LICENSE for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public
+ *   License along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.owncloud.android.ui.activity;
+
+import android.content.Context;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Record of the files copied by a {@link StorageMigration}, kept in the private folder of the app, so that an
+ * interrupted migration can be resumed.
+ *
+ * The first two lines are the source and target storages. Every next line is a completely copied file, as the
+ * size and modification time of its source when it was copied, and its path relative to the data folder; a file
+ * changed in the source after its copy is copied again. Line {@link #DATA_FOLDER_RENAMING} is written before
+ * trying to move the data folder to the target as a whole, and line {@link #DATA_FOLDER_RENAMED} once it was moved;
+ * lines {@link #INDEX_UPDATED} and {@link #INDEX_REVERTED} record when the index of files may point to the target.
+ * While the data folder may have been moved or the index may point to the target, the target is never discarded.
+ *
+ * Nothing is logged here; errors are reported to the caller, see {@link #getError()}.
+ */
+class MigrationJournal {
+
+    private static final String JOURNAL_FILE_NAME = "storage_migration.journal";
+
+    private static final String DATA_FOLDER_RENAMING = "#data_folder_renaming";
+    private static final String DATA_FOLDER_RENAMED = "#data_folder_renamed";
+    private static final String INDEX_UPDATED = "#index_updated";
+    private static final String INDEX_REVERTED = "#index_reverted";
+
+    /** Size and modification time of the source of every copied file, by relative path */
+    private final Map<String, String> mCopiedFiles = new HashMap<>();
+    private boolean mDataFolderRenaming;
+    private boolean mDataFolderRenamed;
+    private BufferedWriter mWriter;
+    private IOException mError;
+
+    private MigrationJournal() {
+    }
+
+    static File getJournalFile(Context context) {
+        return new File(context.getFilesDir(), JOURNAL_FILE_NAME);
+    }
+
+    /**
+     * @return  'true' if an interrupted migration between the same storages left a journal.
+     */
+    static boolean isPending(File journalFile, String source, String target) {
+        List<String> lines = readLines(journalFile);
+        return lines.size() >= 2 && lines.get(0).equals(source) && lines.get(1).equals(target);
+    }
+
+    /**
+     * Opens the journal of the migration between two storages, creating it if it does not exist.
+     */
+    static MigrationJournal open(File journalFile, String source, String target) {
+        MigrationJournal journal = new MigrationJournal();
+        boolean existing = isPending(journalFile, source, target);
+        if (existing) {
+            List<String> lines = readLines(journalFile);
+            journal.mDataFolderRenaming = lines.contains(DATA_FOLDER_RENAMING);
+            journal.mDataFolderRenamed = lines.contains(DATA_FOLDER_RENAMED);
+            for (String line : lines.subList(2, lines.size())) {
+                String[] fields = line.split(" ", 3);
+                if (fields.length == 3 && !line.startsWith("#")) {
+                    journal.mCopiedFiles.put(fields[2], fields[0] + " " + fields[1]);
+                }
+            }
+        }
+        try {
+            journal.mWriter = new BufferedWriter(new FileWriter(journalFile, existing));
+            if (!existing) {
+                journal.mWriter.write(source);
+                journal.mWriter.newLine();
+                journal.mWriter.write(target);
+                journal.mWriter.newLine();
+                journal.mWriter.flush();
+            }
+        } catch (IOException e) {
+            journal.mError = e;
+            journal.close();
+            journal.mWriter = null;
+        }
+        return journal;
+    }
+
+    /**
+     * Removes the journal of an interrupted migration, if any, and the files it copied, unless they may be the moved
+     * data folder or the index of files may point to them.
+     *
+     * @param journalFile       Journal to discard.
+     * @param currentStorage    Storage in use, never deleted.
+     * @param dataFolder        Name of the data folder in the storages.
+     * @return                  Storage whose files were kept, or null if none.
+     */
+    static String discard(File journalFile, String currentStorage, String dataFolder) {
+        String keptStorage = null;
+        List<String> lines = readLines(journalFile);
+        if (lines.size() >= 2 && !lines.get(1).equals(currentStorage)) {
+            File source = new File(lines.get(0) + File.separator + dataFolder);
+            boolean renamed = lines.contains(DATA_FOLDER_RENAMED) ||
+                    (lines.contains(DATA_FOLDER_RENAMING) && isEmptyFolder(source));
+            if (renamed || isIndexPointingToTarget(lines)) {
+                keptStorage = lines.get(1);
+            } else {
+                StorageMigration.deleteRecursive(new File(lines.get(1) + File.separator + dataFolder));
+            }
+        }
+        delete(journalFile);
+        return keptStorage;
+    }
+
+    /**
+     * Removes the journal of a completed migration.
+     *
+     * @return  'false' if the journal exists and could not be deleted.
+     */
+    static boolean delete(File journalFile) {
+        return !journalFile.exists() || journalFile.delete();
+    }
+
+    /**
+     * Deletes the files and folders in a folder of the target that are not in the source anymore, since they were
+     * removed after the interrupted migration copied them.
+     *
+     * @param src   Folder in the source.
+     * @param dst   Same folder in the target.
+     * @return      'false' if some of them could not be deleted.
+     */
+    static boolean deleteVanished(File src, File dst) {
+        File[] copies = dst.listFiles();
+        if (copies == null) {
+            return true;
+        }
+        Set<String> names = new HashSet<>();
+        String[] sources = src.list();
+        if (sources != null) {
+            for (String name : sources) {
+                names.add(name);
+            }
+        }
+        boolean deleted = true;
+        for (File copy : copies) {
+            if (!names.contains(copy.getName())) {
+                deleted = StorageMigration.deleteRecursive(copy) && deleted;
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * @return  'true' if a folder does not exist or has nothing in it, as the data folder in the source once moved
+     *          to the target.
+     */
+    static boolean isEmptyFolder(File folder) {
+        String[] children = folder.list();
+        return children == null || children.length == 0;
+    }
+
+    private static boolean isIndexPointingToTarget(List<String> lines) {
+        boolean pointing = false;
+        for (String line : lines.subList(2, lines.size())) {
+            if (INDEX_UPDATED.equals(line)) {
+                pointing = true;
+            } else if (INDEX_REVERTED.equals(line)) {
+                pointing = false;
+            }
+        }
+        return pointing;
+    }
+
+    /**
+     * @return  Lines of the journal; those read until an error, since a journal that can not be read is as good as
+     *          none.
+     */
+    private static List<String> readLines(File journalFile) {
+        List<String> lines = new ArrayList<>();
+        if (!journalFile.exists()) {
+            return lines;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(journalFile));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } catch (IOException e) {
+            // keep the lines read
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // nothing to recover
+                }
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * @param relativePath  Path of a file relative to the data folder.
+     * @param source        The file in the source storage.
+     * @return              'true' if the file was not copied, or was changed in the source after its copy.
+     */
+    boolean needsCopy(String relativePath, File source) {
+        String copied = mCopiedFiles.get(relativePath);
+        return copied == null || !copied.equals(source.length() + " " + source.lastModified());
+    }
+
+    /**
+     * @return  'true' if the data folder was moved to the target as a whole, so that there is nothing to copy.
+     */
+    boolean isDataFolderRenamed() {
+        return mDataFolderRenamed;
+    }
+
+    /**
+     * @return  'true' if moving the data folder to the target as a whole was tried, but not recorded as done; the
+     *          process may have died right after moving it.
+     */
+    boolean isDataFolderRenaming() {
+        return mDataFolderRenaming && !mDataFolderRenamed;
+    }
+
+    /**
+     * Records that the data folder is about to be moved to the target as a whole; written before moving it, so that
+     * a resumed migration does not take the source left empty for files removed since the copy.
+     */
+    synchronized void dataFolderRenaming() {
+        mDataFolderRenaming = true;
+        write(DATA_FOLDER_RENAMING);
+    }
+
+    /**
+     * Records that the data folder was moved to the target as a whole; the source is empty from now on.
+     */
+    synchronized void dataFolderRenamed() {
+        mDataFolderRenamed = true;
+        write(DATA_FOLDER_RENAMED);
+    }
+
+    /**
+     * Records a copied file; written immediately, so that it survives the death of the process.
+     *
+     * @param relativePath  Path of the file relative to the data folder.
+     * @param size          Size of the source before it was copied.
+     * @param modified      Modification time of the source before it was copied.
+     */
+    synchronized void fileCopied(String relativePath, long size, long modified) {
+        write(size + " " + modified + " " + relativePath);
+    }
+
+    /**
+     * Records that the index of files starts pointing to the target; from now on, the target is not discarded.
+     */
+    synchronized void indexUpdated() {
+        write(INDEX_UPDATED);
+    }
+
+    /**
+     * Records that the index of files points again to the source only.
+     */
+    synchronized void indexReverted() {
+        write(INDEX_REVERTED);
+    }
+
+    private void write(String line) {
+        if (mWriter == null) {
+            return;
+        }
+        try {
+            mWriter.write(line);
+            mWriter.newLine();
+            mWriter.flush();
+        } catch (IOException e) {
+            if (mError == null) {
+                mError = e;
+            }
+        }
+    }
+
+    /**
+     * @return  First error writing the journal, or null if none; after an error, the journal may not be enough to
+     *          resume the migration.
+     */
+    synchronized IOException getError() {
+        return mError;
+    }
+
+    synchronized void close() {
+        if (mWriter != null) {
+            try {
+                mWriter.close();
+            } catch (IOException e) {
+                if (mError == null) {
+                    mError = e;
+                }
+            }
+        }
+    }
+}
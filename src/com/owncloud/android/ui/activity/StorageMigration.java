@@ -38,6 +38,13 @@ import com.owncloud.android.lib.common.utils.Log_OC;
 import com.owncloud.android.utils.FileStorageUtils;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * @author Bartosz Przybylski
@@ -67,7 +74,21 @@ public class StorageMigration {
     }
 
     public void migrate() {
-        if (storageFolderAlreadyExists()) {
+        if (MigrationJournal.isPending(MigrationJournal.getJournalFile(mContext), mSourceStoragePath,
+                mTargetStoragePath)) {
+            // the folder in the target was left by an interrupted migration; go on with it
+            ProgressDialog progressDialog = createMigrationProgressDialog();
+            progressDialog.show();
+            new FileMigrationTask(
+                    mContext,
+                    mSourceStoragePath,
+                    mTargetStoragePath,
+                    progressDialog,
+                    mListener).execute();
+
+            progressDialog.getButton(ProgressDialog.BUTTON_POSITIVE).setVisibility(View.GONE);
+
+        } else if (storageFolderAlreadyExists()) {
             askToOverride();
         } else {
             ProgressDialog progressDialog = createMigrationProgressDialog();
@@ -281,7 +302,23 @@ public class StorageMigration {
         }
     }
 
+    /**
+     * Moves the data folder to the new storage.
+     *
+     * A rename is tried first, so that no file is copied when both storages are in the same file system. Otherwise,
+     * files are copied by several threads, and every copied file is recorded in a {@link MigrationJournal}; if the
+     * migration is interrupted, the next one to the same storage skips the files already copied and not changed
+     * since then.
+     *
+     * If the index of files can not be updated, the entries already updated are pointed back to the source, and a
+     * renamed data folder is moved back, so that the source is consistent again.
+     */
     static private class FileMigrationTask extends FileMigrationTaskBase {
+
+        private static final int COPY_THREADS = 4;
+
+        private MigrationJournal mJournal;
+
         private class MigrationException extends Exception {
             private int mResId;
 
@@ -307,18 +344,30 @@ public class StorageMigration {
             Log_OC.stopLogging();
 
             boolean[] syncState = new boolean[0];
+            File journalFile = MigrationJournal.getJournalFile(mContext);
+            boolean resuming = MigrationJournal.isPending(journalFile, mStorageSource, mStorageTarget);
+            boolean migrationStarted = false;
 
             try {
                 File dstFile = new File(mStorageTarget + File.separator + MainApp.getDataFolder());
-                deleteRecursive(dstFile);
-                dstFile.delete();
+                if (!resuming) {
+                    String keptStorage = MigrationJournal.discard(journalFile, mStorageSource,
+                            MainApp.getDataFolder());
+                    if (keptStorage != null) {
+                        Log_OC.w(TAG, "Files in " + keptStorage + " are kept, the index may point to them");
+                    }
+                    deleteRecursive(dstFile);
+                    dstFile.delete();
+                }
 
                 File srcFile = new File(mStorageSource + File.separator + MainApp.getDataFolder());
+                // before the source is created again, in case it was moved to the target
+                boolean sourceEmpty = MigrationJournal.isEmptyFolder(srcFile);
                 srcFile.mkdirs();
 
                 publishProgress(R.string.file_migration_checking_destination);
 
-                checkDestinationAvailability();
+                checkDestinationAvailability(resuming);
 
                 publishProgress(R.string.file_migration_saving_accounts_configuration);
                 syncState = saveAccountsSyncStatus();
@@ -328,16 +377,59 @@ public class StorageMigration {
                 waitForUnfinishedSynchronizations();
 
                 publishProgress(R.string.file_migration_migrating);
-                copyFiles();
+                mJournal = MigrationJournal.open(journalFile, mStorageSource, mStorageTarget);
+                if (mJournal.getError() != null) {
+                    Log_OC.e(TAG, "Could not write migration journal", mJournal.getError());
+                }
+                migrationStarted = true;
+                boolean renamed = mJournal.isDataFolderRenamed();
+                if (!renamed && mJournal.isDataFolderRenaming() && sourceEmpty && dstFile.exists()) {
+                    // the process died after moving the data folder, before recording it
+                    mJournal.dataFolderRenamed();
+                    renamed = true;
+                }
+                if (!renamed && !resuming) {
+                    mJournal.dataFolderRenaming();
+                    if (srcFile.renameTo(dstFile)) {
+                        mJournal.dataFolderRenamed();
+                        renamed = true;
+                    }
+                }
+                if (!renamed) {
+                    copyFiles(resuming);
+                }
 
                 publishProgress(R.string.file_migration_updating_index);
-                updateIndex(mContext);
+                mJournal.indexUpdated();
+                try {
+                    updateIndex(mStorageSource, mStorageTarget);
+                } catch (MigrationException e) {
+                    if (!revertIndexUpdate(renamed, srcFile, dstFile, journalFile)) {
+                        throw e;
+                    }
+                    // the data folder could not be moved back, so the migration is completed in the target
+                    Log_OC.e(TAG, "Migration completed with an incomplete update of the index");
+                }
+
+                // the index points to the target from now on; nothing to resume
+                mJournal.close();
+                deleteJournal(journalFile);
 
                 publishProgress(R.string.file_migration_cleaning);
                 cleanup();
 
             } catch (MigrationException e) {
-                rollback();
+                if (mJournal != null) {
+                    mJournal.close();
+                }
+                if (migrationStarted) {
+                    Log_OC.w(TAG, "Migration interrupted; copied files are kept to resume it later");
+                    if (mJournal.getError() != null) {
+                        Log_OC.w(TAG, "Migration journal may be incomplete", mJournal.getError());
+                    }
+                } else {
+                    rollback();
+                }
                 Log_OC.startLogging(mStorageSource);
                 return e.getResId();
             } finally {
@@ -352,7 +444,7 @@ public class StorageMigration {
         }
 
 
-        private void checkDestinationAvailability() throws MigrationException {
+        private void checkDestinationAvailability(boolean resuming) throws MigrationException {
             File srcFile = new File(mStorageSource);
             File dstFile = new File(mStorageTarget);
 
@@ -364,64 +456,148 @@ public class StorageMigration {
                 throw new MigrationException(R.string.file_migration_failed_not_writable);
             }
 
-            if (new File(dstFile, MainApp.getDataFolder()).exists()) {
+            File dstDataFolder = new File(dstFile, MainApp.getDataFolder());
+            if (!resuming && dstDataFolder.exists()) {
                 throw new MigrationException(R.string.file_migration_failed_dir_already_exists);
             }
 
-            if (dstFile.getFreeSpace() < FileStorageUtils.getFolderSize(new File(srcFile, MainApp.getDataFolder()))) {
+            long pendingSize = FileStorageUtils.getFolderSize(new File(srcFile, MainApp.getDataFolder()));
+            if (resuming) {
+                pendingSize -= FileStorageUtils.getFolderSize(dstDataFolder);
+            }
+            if (dstFile.getFreeSpace() < pendingSize) {
                 throw new MigrationException(R.string.file_migration_failed_not_enough_space);
             }
         }
 
-        private void copyFiles() throws MigrationException {
+        /**
+         * Copies to the target the files not copied yet, or changed since an interrupted migration copied them.
+         *
+         * @param resuming      'true' when resuming an interrupted migration, to remove from the target the files
+         *                      removed from the source since then.
+         */
+        private void copyFiles(boolean resuming) throws MigrationException {
             File srcFile = new File(mStorageSource + File.separator + MainApp.getDataFolder());
             File dstFile = new File(mStorageTarget + File.separator + MainApp.getDataFolder());
 
-            copyDirs(srcFile, dstFile);
+            ExecutorService executor = Executors.newFixedThreadPool(COPY_THREADS);
+            List<Future<Boolean>> copies = new ArrayList<>();
+            try {
+                copyDirs(srcFile, dstFile, "", resuming, executor, copies);
+                for (Future<Boolean> copy : copies) {
+                    if (!copy.get()) {
+                        throw new MigrationException(R.string.file_migration_failed_while_coping);
+                    }
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                Log_OC.e(TAG, "Copy of files interrupted", e);
+                throw new MigrationException(R.string.file_migration_failed_while_coping);
+            } finally {
+                executor.shutdownNow();
+            }
         }
 
-        private void copyDirs(File src, File dst) throws MigrationException {
-            if (!dst.mkdirs()) {
+        /**
+         * Creates the folders in the target storage and submits the copy of the files not copied yet.
+         */
+        private void copyDirs(File src, File dst, String relativePath, boolean resuming, ExecutorService executor,
+                              List<Future<Boolean>> copies) throws MigrationException {
+            if (!dst.isDirectory() && !dst.mkdirs()) {
                 throw new MigrationException(R.string.file_migration_failed_while_coping);
             }
+            if (resuming && !MigrationJournal.deleteVanished(src, dst)) {
+                Log_OC.w(TAG, "Could not delete some files removed from " + src.getAbsolutePath());
+            }
 
-            for (File f : src.listFiles()) {
+            File[] children = src.listFiles();
+            if (children == null) {
+                throw new MigrationException(R.string.file_migration_failed_while_coping);
+            }
+            for (final File f : children) {
+                final String childPath = relativePath + File.separator + f.getName();
+                final File target = new File(dst, f.getName());
                 if (f.isDirectory()) {
-                    copyDirs(f, new File(dst, f.getName()));
-                } else if (!FileStorageUtils.copyFile(f, new File(dst, f.getName()))) {
-                    throw new MigrationException(R.string.file_migration_failed_while_coping);
+                    copyDirs(f, target, childPath, resuming, executor, copies);
+                } else if (mJournal.needsCopy(childPath, f)) {
+                    copies.add(executor.submit(new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() {
+                            // read before copying, so that a change during the copy is copied again on resume
+                            long size = f.length();
+                            long modified = f.lastModified();
+                            if (!FileStorageUtils.copyFile(f, target)) {
+                                Log_OC.e(TAG, "Could not copy " + f.getAbsolutePath());
+                                return false;
+                            }
+                            mJournal.fileCopied(childPath, size, modified);
+                            return true;
+                        }
+                    }));
                 }
             }
-
         }
 
-        private void updateIndex(Context context) throws MigrationException {
-            FileDataStorageManager manager = new FileDataStorageManager(null, context.getContentResolver());
+        private void updateIndex(String source, String target) throws MigrationException {
+            FileDataStorageManager manager = new FileDataStorageManager(null, mContext.getContentResolver());
 
             try {
-                manager.migrateStoredFiles(mStorageSource, mStorageTarget);
+                manager.migrateStoredFiles(source, target);
             } catch (Exception e) {
                 Log_OC.e(TAG,e.getMessage(),e);
                 throw new MigrationException(R.string.file_migration_failed_while_updating_index);
             }
         }
 
-        private void cleanup() {
-            File srcFile = new File(mStorageSource + File.separator + MainApp.getDataFolder());
-            if (!deleteRecursive(srcFile)) {
-                Log_OC.w(TAG, "Migration cleanup step failed");
+        /**
+         * Points back to the source the entries of the index updated before a failure, and moves back the data
+         * folder if it was renamed.
+         *
+         * @return  'false' if the migration can fail, since the index points to the source again or to copies that
+         *          are kept; 'true' if the renamed data folder can not be moved back, so the migration must be
+         *          completed in the target.
+         */
+        private boolean revertIndexUpdate(boolean renamed, File srcFile, File dstFile, File journalFile) {
+            try {
+                updateIndex(mStorageTarget, mStorageSource);
+                mJournal.indexReverted();
+            } catch (MigrationException e) {
+                Log_OC.e(TAG, "Could not point the index back to " + mStorageSource);
+                // copies in the target are never discarded while the index points to them
+                return renamed && completeIndexUpdate();
+            }
+            if (!renamed) {
+                return false;
             }
-            srcFile.delete();
+            if (!dstFile.renameTo(srcFile)) {
+                Log_OC.e(TAG, "Could not move the data folder back to " + mStorageSource);
+                return completeIndexUpdate();
+            }
+            // the source is whole again; nothing to resume
+            mJournal.close();
+            deleteJournal(journalFile);
+            return false;
         }
 
-        private boolean deleteRecursive(File f) {
-            boolean res = true;
-            if (f.isDirectory()) {
-                for (File c : f.listFiles()) {
-                    res = deleteRecursive(c) && res;
-                }
+        private void deleteJournal(File journalFile) {
+            if (!MigrationJournal.delete(journalFile)) {
+                Log_OC.w(TAG, "Could not delete migration journal");
+            }
+        }
+
+        private boolean completeIndexUpdate() {
+            try {
+                updateIndex(mStorageSource, mStorageTarget);
+            } catch (MigrationException e) {
+                Log_OC.e(TAG, "Could not complete the update of the index");
+            }
+            return true;
+        }
+
+        private void cleanup() {
+            File srcFile = new File(mStorageSource + File.separator + MainApp.getDataFolder());
+            if (srcFile.exists() && !deleteRecursive(srcFile)) {
+                Log_OC.w(TAG, "Migration cleanup step failed");
             }
-            return f.delete() && res;
         }
 
         private void rollback() {
@@ -431,4 +607,17 @@ public class StorageMigration {
             }
         }
     }
+
+    static boolean deleteRecursive(File f) {
+        boolean res = true;
+        if (f.isDirectory()) {
+            File[] children = f.listFiles();
+            if (children != null) {
+                for (File c : children) {
+                    res = deleteRecursive(c) && res;
+                }
+            }
+        }
+        return f.delete() && res;
+    }
 }
@@ -334,7 +334,13 @@ public class UploadListActivity extends FileActivity implements UploadListFragme
                 UploadListFragment uploadListFragment =
                     (UploadListFragment) getSupportFragmentManager().findFragmentByTag(TAG_UPLOAD_LIST_FRAGMENT);
 
-                uploadListFragment.updateUploads();
+                long uploadId = (intent == null) ? -1 : intent.getLongExtra(FileUploader.EXTRA_UPLOAD_ID, -1);
+                if (uploadId >= 0) {
+                    // just one upload changed
+                    uploadListFragment.updateUpload(uploadId);
+                } else {
+                    uploadListFragment.updateUploads();
+                }
             } finally {
                 if (intent != null) {
                     removeStickyBroadcast(intent);
@@ -21,6 +21,7 @@ package com.owncloud.android.ui.adapter;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -35,13 +36,25 @@ import com.jakewharton.disklrucache.DiskLruCache;
 import com.owncloud.android.BuildConfig;
 import com.owncloud.android.lib.common.utils.Log_OC;
 
+/**
+ * Disk cache of compressed images.
+ *
+ * Every entry keeps the compressed image and a tag with its MIME type, so that images can be stored in the format
+ * they were received or generated (JPEG, PNG or WebP) without transcoding them.
+ */
 public class DiskLruImageCache {
 
+    public static final String FORMAT_JPEG = "image/jpeg";
+    public static final String FORMAT_PNG = "image/png";
+    public static final String FORMAT_WEBP = "image/webp";
+
     private DiskLruCache mDiskCache;
     private CompressFormat mCompressFormat;
     private int mCompressQuality;
-    private static final int CACHE_VERSION = 1;
-    private static final int VALUE_COUNT = 1;
+    private static final int CACHE_VERSION = 2;
+    private static final int VALUE_COUNT = 2;
+    private static final int DATA_INDEX = 0;
+    private static final int FORMAT_INDEX = 1;
     private static final int IO_BUFFER_SIZE = 8 * 1024;
     private static final String CACHE_TEST_DISK = "cache_test_DISK_";
             
@@ -61,15 +74,32 @@ public class DiskLruImageCache {
 
     private boolean writeBitmapToFile( Bitmap bitmap, DiskLruCache.Editor editor )
         throws IOException, FileNotFoundException {
+        // keep transparency; JPEG would turn it black
+        CompressFormat format = bitmap.hasAlpha() ? CompressFormat.PNG : mCompressFormat;
         OutputStream out = null;
         try {
-            out = new BufferedOutputStream( editor.newOutputStream( 0 ), IO_BUFFER_SIZE );
-            return bitmap.compress( mCompressFormat, mCompressQuality, out );
+            out = new BufferedOutputStream( editor.newOutputStream( DATA_INDEX ), IO_BUFFER_SIZE );
+            if ( !bitmap.compress( format, mCompressQuality, out ) ) {
+                return false;
+            }
         } finally {
             if ( out != null ) {
                 out.close();
             }
         }
+        editor.set( FORMAT_INDEX, toMimeType( format ) );
+        return true;
+    }
+
+    private static String toMimeType( CompressFormat format ) {
+        switch ( format ) {
+            case PNG:
+                return FORMAT_PNG;
+            case WEBP:
+                return FORMAT_WEBP;
+            default:
+                return FORMAT_JPEG;
+        }
     }
 
     public void put( String key, Bitmap data ) {
@@ -108,6 +138,60 @@ public class DiskLruImageCache {
 
     }
 
+    /**
+     * Stores an image already compressed, as received, without decoding it.
+     *
+     * @param key       Key of the image.
+     * @param in        Stream with the compressed image; read until its end, not closed.
+     * @param format    MIME type of the image, one of FORMAT_JPEG, FORMAT_PNG or FORMAT_WEBP.
+     * @return          'true' if the image was completely stored.
+     */
+    public boolean putStream( String key, InputStream in, String format ) {
+
+        DiskLruCache.Editor editor = null;
+        String validKey = convertToValidKey(key);
+        try {
+            editor = mDiskCache.edit( validKey );
+            if ( editor == null ) {
+                return false;
+            }
+
+            OutputStream out = null;
+            try {
+                out = new BufferedOutputStream( editor.newOutputStream( DATA_INDEX ), IO_BUFFER_SIZE );
+                byte[] buffer = new byte[IO_BUFFER_SIZE];
+                int read;
+                while ( (read = in.read( buffer )) != -1 ) {
+                    out.write( buffer, 0, read );
+                }
+            } finally {
+                if ( out != null ) {
+                    out.close();
+                }
+            }
+            editor.set( FORMAT_INDEX, format );
+            editor.commit();
+            mDiskCache.flush();
+            if ( BuildConfig.DEBUG ) {
+                Log_OC.d( CACHE_TEST_DISK, "image stream put on disk cache " + validKey );
+            }
+            return true;
+
+        } catch (IOException e) {
+            if ( BuildConfig.DEBUG ) {
+                Log_OC.d( CACHE_TEST_DISK, "ERROR on: image stream put on disk cache " + validKey );
+            }
+            try {
+                if ( editor != null ) {
+                    editor.abort();
+                }
+            } catch (IOException ignored) {
+            }
+            return false;
+        }
+
+    }
+
     public Bitmap getBitmap( String key ) {
 
         Bitmap bitmap = null;
@@ -119,7 +203,7 @@ public class DiskLruImageCache {
             if ( snapshot == null ) {
                 return null;
             }
-            final InputStream in = snapshot.getInputStream( 0 );
+            final InputStream in = snapshot.getInputStream( DATA_INDEX );
             if ( in != null ) {
                 final BufferedInputStream buffIn =
                 new BufferedInputStream( in, IO_BUFFER_SIZE );
@@ -142,6 +226,44 @@ public class DiskLruImageCache {
 
     }
 
+    /**
+     * Reads the compressed image stored for a key, without decoding it.
+     *
+     * @param key   Key of the image.
+     * @return      Compressed image and its format, or null if not found.
+     */
+    public CachedImage getImage( String key ) {
+
+        CachedImage image = null;
+        DiskLruCache.Snapshot snapshot = null;
+        String validKey = convertToValidKey(key);
+        try {
+            snapshot = mDiskCache.get( validKey );
+            if ( snapshot == null ) {
+                return null;
+            }
+            final InputStream in = snapshot.getInputStream( DATA_INDEX );
+            if ( in != null ) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream( IO_BUFFER_SIZE );
+                byte[] buffer = new byte[IO_BUFFER_SIZE];
+                int read;
+                while ( (read = in.read( buffer )) != -1 ) {
+                    out.write( buffer, 0, read );
+                }
+                image = new CachedImage( out.toByteArray(), snapshot.getString( FORMAT_INDEX ) );
+            }
+        } catch ( IOException e ) {
+            Log_OC.d(TAG, e.getMessage(), e);
+        } finally {
+            if (snapshot != null) {
+                snapshot.close();
+            }
+        }
+
+        return image;
+
+    }
+
     public boolean containsKey( String key ) {
 
         boolean contained = false;
@@ -202,4 +324,36 @@ public class DiskLruImageCache {
     public long getMaxSize(){
         return mDiskCache.getMaxSize();
     }
+
+    /**
+     * Compressed image read from the cache.
+     */
+    public static class CachedImage {
+
+        private final byte[] mData;
+        private final String mFormat;
+
+        CachedImage( byte[] data, String format ) {
+            mData = data;
+            mFormat = format;
+        }
+
+        public byte[] getData() {
+            return mData;
+        }
+
+        /**
+         * @return  MIME type of the image.
+         */
+        public String getFormat() {
+            return mFormat;
+        }
+
+        /**
+         * @return  'true' if the format of the image can not hold transparent pixels.
+         */
+        public boolean isOpaque() {
+            return FORMAT_JPEG.equals( mFormat );
+        }
+    }
 }
\ No newline at end of file
@@ -23,6 +23,7 @@ import android.accounts.Account;
 import android.content.Context;
 import android.database.DataSetObserver;
 import android.graphics.Bitmap;
+import android.os.Handler;
 import android.text.format.DateUtils;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -53,8 +54,12 @@ import com.owncloud.android.utils.MimeTypeUtil;
 
 import java.io.File;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Observable;
 import java.util.Observer;
 
@@ -69,8 +74,14 @@ public class ExpandableUploadListAdapter extends BaseExpandableListAdapter imple
     private static final String TAG = ExpandableUploadListAdapter.class.getSimpleName();
     private FileActivity mParentActivity;
 
+    /** Finished uploads loaded at once, and distance to the end of the loaded ones to load the next page */
+    private static final int FINISHED_UPLOADS_PAGE_SIZE = 100;
+    private static final int FINISHED_UPLOADS_PAGE_MARGIN = 20;
+
     private UploadsStorageManager mUploadsStorageManager;
 
+    private final Handler mHandler = new Handler();
+
     public ProgressListener mProgressListener;
 
     interface Refresh {
@@ -78,18 +89,45 @@ public class ExpandableUploadListAdapter extends BaseExpandableListAdapter imple
     }
 
     abstract class UploadGroup implements Refresh {
-        OCUpload[] items;
+        List<OCUpload> items;
         String name;
 
         public UploadGroup(String groupName) {
             this.name = groupName;
-            items = new OCUpload[0];
+            items = new ArrayList<>();
         }
 
         public String getGroupName() {
             return name;
         }
 
+        /**
+         * @return  'true' if the upload, in its current state, belongs to this group.
+         */
+        abstract public boolean accepts(OCUpload upload);
+
+        /**
+         * Adds an upload accepted by the group in its sorted position.
+         */
+        public void insert(OCUpload upload) {
+            int position = Collections.binarySearch(items, upload, comparator);
+            items.add(position < 0 ? -position - 1 : position, upload);
+        }
+
+        /**
+         * @return  'true' if an upload with the id was in the group and was removed.
+         */
+        public boolean remove(long uploadId) {
+            Iterator<OCUpload> it = items.iterator();
+            while (it.hasNext()) {
+                if (it.next().getUploadId() == uploadId) {
+                    it.remove();
+                    return true;
+                }
+            }
+            return false;
+        }
+
         public Comparator<OCUpload> comparator = new Comparator<OCUpload>() {
 
             @Override
@@ -141,8 +179,12 @@ public class ExpandableUploadListAdapter extends BaseExpandableListAdapter imple
         mUploadGroups[0] = new UploadGroup(mParentActivity.getString(R.string.uploads_view_group_current_uploads)) {
             @Override
             public void refresh() {
-                items = mUploadsStorageManager.getCurrentAndPendingUploads();
-                Arrays.sort(items, comparator);
+                items = sort(mUploadsStorageManager.getCurrentAndPendingUploads(), comparator);
+            }
+
+            @Override
+            public boolean accepts(OCUpload upload) {
+                return upload.getUploadStatus() == UploadStatus.UPLOAD_IN_PROGRESS || isDelayed(upload);
             }
 
             @Override
@@ -153,8 +195,12 @@ public class ExpandableUploadListAdapter extends BaseExpandableListAdapter imple
         mUploadGroups[1] = new UploadGroup(mParentActivity.getString(R.string.uploads_view_group_failed_uploads)) {
             @Override
             public void refresh() {
-                items = mUploadsStorageManager.getFailedButNotDelayedUploads();
-                Arrays.sort(items, comparator);
+                items = sort(mUploadsStorageManager.getFailedButNotDelayedUploads(), comparator);
+            }
+
+            @Override
+            public boolean accepts(OCUpload upload) {
+                return upload.getUploadStatus() == UploadStatus.UPLOAD_FAILED && !isDelayed(upload);
             }
 
             @Override
@@ -163,20 +209,112 @@ public class ExpandableUploadListAdapter extends BaseExpandableListAdapter imple
             }
 
         };
-        mUploadGroups[2] = new UploadGroup(mParentActivity.getString(R.string.uploads_view_group_finished_uploads)) {
-            @Override
-            public void refresh() {
-                items = mUploadsStorageManager.getFinishedUploads();
-                Arrays.sort(items, comparator);
+        mUploadGroups[2] = new FinishedUploadGroup(
+                mParentActivity.getString(R.string.uploads_view_group_finished_uploads));
+        loadUploadItemsFromDb();
+    }
+
+    /**
+     * Group of the successful uploads, loaded by pages as the list is scrolled down, since the history of uploads
+     * may be long. Its name shows the number and size of all of them, read from the summary kept by the database.
+     */
+    class FinishedUploadGroup extends UploadGroup {
+
+        private boolean mAllLoaded = false;
+        private boolean mPageRequested = false;
+        private int mTotalCount = 0;
+        private long mTotalSize = 0;
+
+        FinishedUploadGroup(String groupName) {
+            super(groupName);
+        }
+
+        /**
+         * Reloads the uploads already loaded, or the first page.
+         */
+        @Override
+        public void refresh() {
+            int loaded = items.size();
+            items = new ArrayList<>();
+            loadPage(Math.max(FINISHED_UPLOADS_PAGE_SIZE, loaded));
+            readTotals();
+        }
+
+        void readTotals() {
+            mTotalCount = mUploadsStorageManager.getUploadsCount(UploadStatus.UPLOAD_SUCCEEDED);
+            mTotalSize = mUploadsStorageManager.getUploadsSize(UploadStatus.UPLOAD_SUCCEEDED);
+        }
+
+        @Override
+        public String getGroupName() {
+            if (mTotalCount == 0) {
+                return name;
             }
+            return mParentActivity.getString(
+                    R.string.uploads_view_group_finished_uploads_totals,
+                    name,
+                    mTotalCount,
+                    DisplayUtils.bytesToHumanReadable(mTotalSize)
+            );
+        }
 
-            @Override
-            public int getGroupIcon() {
-                return R.drawable.upload_finished;
+        @Override
+        public boolean accepts(OCUpload upload) {
+            return upload.getUploadStatus() == UploadStatus.UPLOAD_SUCCEEDED;
+        }
+
+        /**
+         * Uploads older than the last page loaded are left for the next pages.
+         */
+        @Override
+        public void insert(OCUpload upload) {
+            int position = Collections.binarySearch(items, upload, comparator);
+            position = position < 0 ? -position - 1 : position;
+            if (position < items.size() || mAllLoaded) {
+                items.add(position, upload);
             }
+        }
 
-        };
-        loadUploadItemsFromDb();
+        /**
+         * Loads the next page in a later iteration of the main loop, if there are more uploads and the child at
+         * the position is close to the end of the loaded ones.
+         */
+        void requestPage(int childPosition) {
+            if (mAllLoaded || mPageRequested || childPosition < items.size() - FINISHED_UPLOADS_PAGE_MARGIN) {
+                return;
+            }
+            mPageRequested = true;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mPageRequested = false;
+                    loadPage(FINISHED_UPLOADS_PAGE_SIZE);
+                    notifyDataSetChanged();
+                }
+            });
+        }
+
+        private void loadPage(int count) {
+            OCUpload last = items.isEmpty() ? null : items.get(items.size() - 1);
+            OCUpload[] page = mUploadsStorageManager.getFinishedUploads(last, count);
+            items.addAll(Arrays.asList(page));
+            mAllLoaded = page.length < count;
+        }
+
+        @Override
+        public int getGroupIcon() {
+            return R.drawable.upload_finished;
+        }
+    }
+
+    private static List<OCUpload> sort(OCUpload[] uploads, Comparator<OCUpload> comparator) {
+        Arrays.sort(uploads, comparator);
+        return new ArrayList<>(Arrays.asList(uploads));
+    }
+
+    private static boolean isDelayed(OCUpload upload) {
+        return upload.getLastResult() == UploadResult.DELAYED_FOR_WIFI ||
+                upload.getLastResult() == UploadResult.DELAYED_FOR_CHARGING;
     }
 
 
@@ -199,7 +337,7 @@ public class ExpandableUploadListAdapter extends BaseExpandableListAdapter imple
         return true;
     }
 
-    private View getView(OCUpload[] uploadsItems, int position, View convertView, ViewGroup parent) {
+    private View getView(List<OCUpload> uploadsItems, int position, View convertView, ViewGroup parent) {
         View view = convertView;
         if (view == null) {
             LayoutInflater inflator =
@@ -209,8 +347,8 @@ public class ExpandableUploadListAdapter extends BaseExpandableListAdapter imple
             view = inflator.inflate(R.layout.upload_list_item, parent, false);
         }
 
-        if (uploadsItems != null && uploadsItems.length > position) {
-            final OCUpload upload = uploadsItems[position];
+        if (uploadsItems != null && uploadsItems.size() > position) {
+            final OCUpload upload = uploadsItems.get(position);
 
             // local file name
             TextView fileTextView = (TextView) view.findViewById(R.id.upload_name);
@@ -349,8 +487,8 @@ public class ExpandableUploadListAdapter extends BaseExpandableListAdapter imple
                 rightButton.setOnClickListener(new OnClickListener() {
                     @Override
                     public void onClick(View v) {
+                        // the list is updated by the observer of the storage manager
                         mUploadsStorageManager.removeUpload(upload);
-                        refreshView();
                     }
                 });
 
@@ -440,7 +578,7 @@ public class ExpandableUploadListAdapter extends BaseExpandableListAdapter imple
                                         task
                                 );
                         fileIcon.setImageDrawable(asyncDrawable);
-                        task.execute(fakeFileToCheatThumbnailsCacheManagerInterface, true);
+                        task.executeOnThumbnailExecutor(fakeFileToCheatThumbnailsCacheManagerInterface, true);
                     }
                 }
 
@@ -476,7 +614,7 @@ public class ExpandableUploadListAdapter extends BaseExpandableListAdapter imple
                                         task
                                 );
                         fileIcon.setImageDrawable(asyncDrawable);
-                        task.execute(file, true);
+                        task.executeOnThumbnailExecutor(file, true);
                         Log_OC.v(TAG, "Executing task to generate a new thumbnail");
                     }
                 }
@@ -619,10 +757,46 @@ public class ExpandableUploadListAdapter extends BaseExpandableListAdapter imple
         notifyDataSetChanged();
     }
 
+    /**
+     * Receives changes in the uploads from {@link UploadsStorageManager}; only the uploads changed are read again
+     * when their ids are known.
+     */
     @Override
     public void update(Observable arg0, Object arg1) {
         Log_OC.d(TAG, "update");
-        loadUploadItemsFromDb();
+        if (arg1 instanceof long[]) {
+            updateUploads((long[]) arg1);
+        } else {
+            loadUploadItemsFromDb();
+        }
+    }
+
+    /**
+     * Reads again some uploads and moves them to the group matching their current state, without reloading the
+     * rest of the list.
+     *
+     * @param uploadIds     Ids of the uploads changed, added or removed.
+     */
+    public void updateUploads(long... uploadIds) {
+        Log_OC.d(TAG, "updateUploads");
+        for (long uploadId : uploadIds) {
+            for (UploadGroup group : mUploadGroups) {
+                if (group.remove(uploadId)) {
+                    break;
+                }
+            }
+            OCUpload upload = mUploadsStorageManager.getUploadById(uploadId);
+            if (upload != null) {
+                for (UploadGroup group : mUploadGroups) {
+                    if (group.accepts(upload)) {
+                        group.insert(upload);
+                        break;
+                    }
+                }
+            }
+        }
+        ((FinishedUploadGroup) mUploadGroups[2]).readTotals();
+        notifyDataSetChanged();
     }
 
 
@@ -633,7 +807,7 @@ public class ExpandableUploadListAdapter extends BaseExpandableListAdapter imple
 
     @Override
     public Object getChild(int groupPosition, int childPosition) {
-        return mUploadGroups[(int) getGroupId(groupPosition)].items[childPosition];
+        return mUploadGroups[(int) getGroupId(groupPosition)].items.get(childPosition);
     }
 
     @Override
@@ -644,12 +818,16 @@ public class ExpandableUploadListAdapter extends BaseExpandableListAdapter imple
     @Override
     public View getChildView(int groupPosition, int childPosition, boolean isLastChild, View convertView,
                              ViewGroup parent) {
-        return getView(mUploadGroups[(int) getGroupId(groupPosition)].items, childPosition, convertView, parent);
+        UploadGroup group = mUploadGroups[(int) getGroupId(groupPosition)];
+        if (group instanceof FinishedUploadGroup) {
+            ((FinishedUploadGroup) group).requestPage(childPosition);
+        }
+        return getView(group.items, childPosition, convertView, parent);
     }
 
     @Override
     public int getChildrenCount(int groupPosition) {
-        return mUploadGroups[(int) getGroupId(groupPosition)].items.length;
+        return mUploadGroups[(int) getGroupId(groupPosition)].items.size();
     }
 
     @Override
@@ -661,7 +839,7 @@ public class ExpandableUploadListAdapter extends BaseExpandableListAdapter imple
     public int getGroupCount() {
         int size = 0;
         for (UploadGroup uploadGroup : mUploadGroups) {
-            if (uploadGroup.items.length > 0) {
+            if (uploadGroup.items.size() > 0) {
                 size++;
             }
         }
@@ -677,7 +855,7 @@ public class ExpandableUploadListAdapter extends BaseExpandableListAdapter imple
         int id = -1;
         for (int i = 0; i <= groupPosition; ) {
             id++;
-            if (mUploadGroups[id].items.length > 0) {
+            if (mUploadGroups[id].items.size() > 0) {
                 i++;
             }
         }
@@ -698,7 +876,18 @@ public class ExpandableUploadListAdapter extends BaseExpandableListAdapter imple
             convertView = inflaInflater.inflate(R.layout.upload_list_group, null);
         }
         TextView tv = (TextView) convertView.findViewById(R.id.uploadListGroupName);
-        tv.setText(group.getGroupName());
+        String groupName = group.getGroupName();
+        FileUploader.FileUploaderBinder binder = mParentActivity.getFileUploaderBinder();
+        if (group == mUploadGroups[0] && binder != null) {
+            // throughput of all the upload lanes
+            groupName = mParentActivity.getString(
+                    R.string.uploads_view_group_current_uploads_throughput,
+                    groupName,
+                    binder.getUploadedFilesPerMinute(),
+                    DisplayUtils.bytesToHumanReadable(binder.getUploadedBytesPerSecond())
+            );
+        }
+        tv.setText(groupName);
         return convertView;
     }
 
@@ -27,6 +27,7 @@ import android.accounts.Account;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Color;
+import android.os.AsyncTask;
 import android.util.SparseBooleanArray;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -46,6 +47,7 @@ import com.owncloud.android.datamodel.ThumbnailsCacheManager;
 import com.owncloud.android.db.PreferenceManager;
 import com.owncloud.android.files.services.FileDownloader.FileDownloaderBinder;
 import com.owncloud.android.files.services.FileUploader.FileUploaderBinder;
+import com.owncloud.android.lib.common.utils.Log_OC;
 import com.owncloud.android.services.OperationsService.OperationsServiceBinder;
 import com.owncloud.android.ui.activity.ComponentsGetter;
 import com.owncloud.android.ui.fragment.OCFileListFragment;
@@ -54,6 +56,8 @@ import com.owncloud.android.utils.FileStorageUtils;
 import com.owncloud.android.utils.MimeTypeUtil;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Vector;
 
 
@@ -63,10 +67,15 @@ import java.util.Vector;
  */
 public class FileListListAdapter extends BaseAdapter implements FilterableListAdapter {
 
+    private static final String TAG = FileListListAdapter.class.getSimpleName();
+
+    private static final char ROW_STATE_SEPARATOR = '|';
+
     public static final int showFilenameColumnThreshold = 4;
     private Context mContext;
     private Vector<OCFile> mFilesAll = new Vector<OCFile>();
     private Vector<OCFile> mFiles = null;
+    private OCFile mDirectory = null;
     private boolean mJustFolders;
     private boolean mShowHiddenFiles;
 
@@ -75,6 +84,11 @@ public class FileListListAdapter extends BaseAdapter implements FilterableListAd
     private ComponentsGetter mTransferServiceGetter;
     private OCFileListFragment mListFragment;
 
+    private FolderLoadTask mLoadTask = null;
+
+    /** State of the files as bound to the rows, by file id */
+    private final Map<Long, String> mBoundRowStates = new HashMap<>();
+
     public FileListListAdapter(
             boolean justFolders,
             Context context,
@@ -180,6 +194,8 @@ public class FileListListAdapter extends BaseAdapter implements FilterableListAd
 
         if (file != null) {
 
+            mBoundRowStates.put(file.getFileId(), getRowState(file));
+
             ImageView fileIcon = (ImageView) view.findViewById(R.id.thumbnail);
 
             fileIcon.setTag(file.getFileId());
@@ -342,7 +358,7 @@ public class FileListListAdapter extends BaseAdapter implements FilterableListAd
                                     task
                                     );
                             fileIcon.setImageDrawable(asyncDrawable);
-                            task.execute(file, true);
+                            task.executeOnThumbnailExecutor(file, true);
                         }
                     }
 
@@ -387,36 +403,197 @@ public class FileListListAdapter extends BaseAdapter implements FilterableListAd
     }
 
     /**
-     * Change the adapted directory for a new one
+     * Change the adapted directory for a new one.
+     *
+     * The content of the folder is read and sorted in a background thread; the adapter keeps showing the previous
+     * content until the new one is ready. A load still in progress is cancelled by the next call.
      *
-     * @param directory                New folder to adapt. Can be NULL, meaning
+     * @param directory             New folder to adapt. Can be NULL, meaning
      *                              "no content to adapt".
      * @param updatedStorageManager Optional updated storage manager; used to replace
      *                              mStorageManager if is different (and not NULL)
+     * @param onlyOnDevice          When 'true', only the files available in the device are shown.
+     * @param listener              Optional listener to notify when the new content is in the adapter.
      */
     public void swapDirectory(OCFile directory, FileDataStorageManager updatedStorageManager
-            , boolean onlyOnDevice) {
+            , boolean onlyOnDevice, OnFolderLoadedListener listener) {
         if (updatedStorageManager != null && !updatedStorageManager.equals(mStorageManager)) {
             mStorageManager = updatedStorageManager;
             mAccount = AccountUtils.getCurrentOwnCloudAccount(mContext);
         }
-        if (mStorageManager != null) {
-            mFiles = mStorageManager.getFolderContent(directory, onlyOnDevice);
+        cancelFolderLoad();
+        mLoadTask = new FolderLoadTask(directory, mStorageManager, onlyOnDevice, listener);
+        mLoadTask.execute();
+    }
+
+    /**
+     * Cancels the load of a folder in progress, if any; its listener will not be notified.
+     */
+    public void cancelFolderLoad() {
+        if (mLoadTask != null) {
+            mLoadTask.cancel(false);
+            mLoadTask = null;
+        }
+    }
+
+    /**
+     * Replaces the adapted files with the result of a folder load.
+     *
+     * @param directory     Folder the files belong to.
+     * @param files         New content of the adapter, already filtered and sorted; NULL for no content.
+     * @return              'true' if the new content has the same files in the same positions than the previous
+     *                      one, so that the rows shown only need to be rebound if changed; in other case, the
+     *                      change was notified to the observers of the adapter.
+     */
+    private boolean setFolderContent(OCFile directory, Vector<OCFile> files) {
+        boolean sameItems = directory != null && directory.equals(mDirectory) &&
+                haveSameItems(mFiles, files);
+        mDirectory = directory;
+        mFiles = files;
+        mFilesAll = (files != null) ? new Vector<>(files) : new Vector<OCFile>();
+        if (!sameItems) {
+            mBoundRowStates.clear();
+            notifyDataSetChanged();
+        }
+        return sameItems;
+    }
+
+    private static boolean haveSameItems(Vector<OCFile> oldFiles, Vector<OCFile> newFiles) {
+        if (oldFiles == null || newFiles == null || oldFiles.size() != newFiles.size()) {
+            return false;
+        }
+        for (int i = 0; i < oldFiles.size(); i++) {
+            if (oldFiles.get(i).getFileId() != newFiles.get(i).getFileId()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Rebinds the visible rows whose content changed since they were bound, leaving untouched the rest.
+     *
+     * Meant to be called after a load of the same folder that did not add, remove or move any file, as it
+     * happens with most of the refreshes caused by synchronizations and transfers.
+     *
+     * @param parentList    List showing the adapter.
+     */
+    public void rebindChangedRows(AbsListView parentList) {
+        int first = parentList.getFirstVisiblePosition();
+        int childCount = parentList.getChildCount();
+        int rebound = 0;
+        for (int i = 0; i < childCount; i++) {
+            int position = first + i;
+            if (mFiles == null || position >= mFiles.size()) {
+                break;
+            }
+            OCFile file = mFiles.get(position);
+            if (!getRowState(file).equals(mBoundRowStates.get(file.getFileId()))) {
+                getView(position, parentList.getChildAt(i), parentList);
+                rebound++;
+            }
+        }
+        Log_OC.d(TAG, "Rebound " + rebound + " of " + childCount + " visible rows");
+    }
+
+    /**
+     * @param file      File shown in a row.
+     * @return          Summary of everything shown in the row for the file, to detect when it needs to be rebound.
+     */
+    private String getRowState(OCFile file) {
+        FileDownloaderBinder downloaderBinder = mTransferServiceGetter.getFileDownloaderBinder();
+        FileUploaderBinder uploaderBinder = mTransferServiceGetter.getFileUploaderBinder();
+        OperationsServiceBinder opsBinder = mTransferServiceGetter.getOperationsServiceBinder();
+        boolean transferring =
+                (opsBinder != null && opsBinder.isSynchronizing(mAccount, file)) ||
+                (downloaderBinder != null && downloaderBinder.isDownloading(mAccount, file)) ||
+                (uploaderBinder != null && uploaderBinder.isUploading(mAccount, file));
+
+        return file.getFileName() + ROW_STATE_SEPARATOR +
+                file.getModificationTimestamp() + ROW_STATE_SEPARATOR +
+                file.getFileLength() + ROW_STATE_SEPARATOR +
+                file.getMimetype() + ROW_STATE_SEPARATOR +
+                file.getRemoteId() + ROW_STATE_SEPARATOR +
+                file.isDown() + ROW_STATE_SEPARATOR +
+                file.getEtagInConflict() + ROW_STATE_SEPARATOR +
+                file.isFavorite() + ROW_STATE_SEPARATOR +
+                file.isSharedViaLink() + ROW_STATE_SEPARATOR +
+                file.isSharedWithSharee() + ROW_STATE_SEPARATOR +
+                file.isSharedWithMe() + ROW_STATE_SEPARATOR +
+                file.needsUpdateThumbnail() + ROW_STATE_SEPARATOR +
+                transferring;
+    }
+
+    /**
+     * Reads, filters and sorts the content of a folder out of the UI thread, and hands it to the adapter.
+     */
+    private class FolderLoadTask extends AsyncTask<Void, Void, Vector<OCFile>> {
+
+        private final OCFile mFolder;
+        private final FileDataStorageManager mFolderStorageManager;
+        private final boolean mOnlyOnDevice;
+        private final boolean mJustFoldersInFolder;
+        private final boolean mShowHiddenFilesInFolder;
+        private final OnFolderLoadedListener mListener;
+
+        FolderLoadTask(OCFile folder, FileDataStorageManager storageManager, boolean onlyOnDevice,
+                       OnFolderLoadedListener listener) {
+            mFolder = folder;
+            mFolderStorageManager = storageManager;
+            mOnlyOnDevice = onlyOnDevice;
+            mJustFoldersInFolder = mJustFolders;
+            mShowHiddenFilesInFolder = mShowHiddenFiles;
+            mListener = listener;
+        }
 
-            if (mJustFolders) {
-                mFiles = getFolders(mFiles);
+        @Override
+        protected Vector<OCFile> doInBackground(Void... params) {
+            if (mFolderStorageManager == null) {
+                return null;
             }
-            if (!mShowHiddenFiles) {
-                mFiles = filterHiddenFiles(mFiles);
+            // unsorted: the only sort needed is the one selected by the user
+            Vector<OCFile> files = mFolderStorageManager.getFolderContent(mFolder, mOnlyOnDevice, false);
+            if (mJustFoldersInFolder) {
+                files = getFolders(files);
             }
-            mFiles = FileStorageUtils.sortOcFolder(mFiles);
-            mFilesAll.addAll(mFiles);
-        } else {
-            mFiles = null;
-            mFilesAll.clear();
+            if (!mShowHiddenFilesInFolder) {
+                files = filterHiddenFiles(files);
+            }
+            if (isCancelled()) {
+                return null;
+            }
+            return FileStorageUtils.sortOcFolder(files);
         }
 
-        notifyDataSetChanged();
+        @Override
+        protected void onPostExecute(Vector<OCFile> files) {
+            if (mLoadTask == this) {
+                mLoadTask = null;
+            }
+            boolean folderChanged = mFolder == null || !mFolder.equals(mDirectory);
+            boolean sameItems = setFolderContent(mFolder, files);
+            if (mListener != null) {
+                mListener.onFolderLoaded(mFolder, folderChanged, sameItems);
+            }
+        }
+    }
+
+    /**
+     * Receives the end of the loads started with
+     * {@link #swapDirectory(OCFile, FileDataStorageManager, boolean, OnFolderLoadedListener)}.
+     */
+    public interface OnFolderLoadedListener {
+
+        /**
+         * Called in the UI thread once the content of the folder is in the adapter.
+         *
+         * @param directory         Folder loaded.
+         * @param folderChanged     'true' if the adapter was showing a different folder before.
+         * @param sameItems         'true' if the previous content had the same files in the same positions; only
+         *                          the rows that changed need to be rebound with
+         *                          {@link #rebindChangedRows(AbsListView)}.
+         */
+        void onFolderLoaded(OCFile directory, boolean folderChanged, boolean sameItems);
     }
 
     /**
@@ -112,18 +112,20 @@ public class FolderSyncAdapter extends SectionedRecyclerViewAdapter<FolderSyncAd
 
         File file = new File(mSyncFolderItems.get(section).getFilePaths().get(relativePosition));
 
-        ThumbnailsCacheManager.MediaThumbnailGenerationTask task =
-                new ThumbnailsCacheManager.MediaThumbnailGenerationTask(holder.image);
-
-        ThumbnailsCacheManager.AsyncMediaThumbnailDrawable asyncDrawable =
-                new ThumbnailsCacheManager.AsyncMediaThumbnailDrawable(
-                        mContext.getResources(),
-                        ThumbnailsCacheManager.mDefaultImg,
-                        task
-                );
-        holder.image.setImageDrawable(asyncDrawable);
-
-        task.execute(file);
+        if (ThumbnailsCacheManager.cancelPotentialMediaThumbnailWork(file, holder.image)) {
+            ThumbnailsCacheManager.MediaThumbnailGenerationTask task =
+                    new ThumbnailsCacheManager.MediaThumbnailGenerationTask(holder.image);
+
+            ThumbnailsCacheManager.AsyncMediaThumbnailDrawable asyncDrawable =
+                    new ThumbnailsCacheManager.AsyncMediaThumbnailDrawable(
+                            mContext.getResources(),
+                            ThumbnailsCacheManager.mDefaultImg,
+                            task
+                    );
+            holder.image.setImageDrawable(asyncDrawable);
+
+            task.executeOnThumbnailExecutor(file);
+        }
 
         // set proper tag
         holder.image.setTag(file.hashCode());
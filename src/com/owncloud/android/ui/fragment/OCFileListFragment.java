@@ -103,6 +103,7 @@ public class OCFileListFragment extends ExtendedListFragment {
 
     private OCFile mFile = null;
     private FileListListAdapter mAdapter;
+    private boolean mRestorePositionOnLoad = false;
     private boolean mJustFolders;
 
     private int mSystemBarActionModeColor;
@@ -167,6 +168,9 @@ public class OCFileListFragment extends ExtendedListFragment {
     
     @Override
     public void onDetach() {
+        if (mAdapter != null) {
+            mAdapter.cancelFolderLoad();
+        }
         setOnRefreshListener(null);
         mContainerActivity = null;
         super.onDetach();
@@ -590,13 +594,12 @@ public class OCFileListFragment extends ExtendedListFragment {
             }   // exit is granted because storageManager.getFileByPath("/") never returns null
             mFile = parentDir;
 
+            // restore index and top position once the parent folder is loaded
+            mRestorePositionOnLoad = true;
             listDirectory(mFile, MainApp.isOnlyOnDevice());
 
             onRefresh(false);
 
-            // restore index and top position
-            restoreIndexAndTopPosition();
-
         }   // else - should never happen now
 
         return moveCount;
@@ -790,16 +793,33 @@ public class OCFileListFragment extends ExtendedListFragment {
                 directory = storageManager.getFileById(directory.getParentId());
             }
 
-            mAdapter.swapDirectory(directory, storageManager, onlyOnDevice);
-            if (mFile == null || !mFile.equals(directory)) {
-                mCurrentListView.setSelection(0);
-            }
             mFile = directory;
+            mAdapter.swapDirectory(directory, storageManager, onlyOnDevice, mFolderLoadedListener);
+        }
+    }
 
+    /**
+     * Completes {@link #listDirectory(OCFile, boolean)} when the content of the folder is ready in the adapter.
+     */
+    private final FileListListAdapter.OnFolderLoadedListener mFolderLoadedListener =
+            new FileListListAdapter.OnFolderLoadedListener() {
+        @Override
+        public void onFolderLoaded(OCFile directory, boolean folderChanged, boolean sameItems) {
+            if (!isAdded()) {
+                return;
+            }
+            if (mRestorePositionOnLoad) {
+                mRestorePositionOnLoad = false;
+                restoreIndexAndTopPosition();
+            } else if (folderChanged) {
+                mCurrentListView.setSelection(0);
+            }
+            if (sameItems) {
+                mAdapter.rebindChangedRows(mCurrentListView);
+            }
             updateLayout();
-
         }
-    }
+    };
 
     private void updateLayout() {
         if (!mJustFolders) {
@@ -149,4 +149,15 @@ public class UploadListFragment extends ExpandableListFragment {
         }
     }
 
+    /**
+     * Updates only the item of an upload that changed, instead of reloading the whole list.
+     *
+     * @param uploadId  Id of the changed upload.
+     */
+    public void updateUpload(long uploadId) {
+        if (mAdapter != null) {
+            mAdapter.updateUploads(uploadId);
+        }
+    }
+
 }
\ No newline at end of file
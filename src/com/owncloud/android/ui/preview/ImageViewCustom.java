@@ -5,6 +5,7 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Movie;
+import android.graphics.drawable.Drawable;
 import android.os.Build;
 import android.util.AttributeSet;
 import android.view.View;
@@ -83,6 +84,11 @@ public class ImageViewCustom extends ImageView {
             mLastTick = nowTick;
             invalidate();
         } else {
+            Drawable drawable = getDrawable();
+            if (drawable instanceof TiledImageDrawable) {
+                // tiles are decoded only for the visible part of the image
+                ((TiledImageDrawable) drawable).setViewport(getImageMatrix(), getWidth(), getHeight());
+            }
             super.onDraw(canvas);
         }
     }
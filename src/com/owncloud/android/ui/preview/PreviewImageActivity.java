@@ -44,6 +44,7 @@ import com.owncloud.android.R;
 import com.owncloud.android.authentication.AccountUtils;
 import com.owncloud.android.datamodel.FileDataStorageManager;
 import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.db.PreferenceManager;
 import com.owncloud.android.files.services.FileDownloader;
 import com.owncloud.android.files.services.FileDownloader.FileDownloaderBinder;
 import com.owncloud.android.files.services.FileUploader;
@@ -57,6 +58,7 @@ import com.owncloud.android.operations.SynchronizeFileOperation;
 import com.owncloud.android.ui.activity.FileActivity;
 import com.owncloud.android.ui.activity.FileDisplayActivity;
 import com.owncloud.android.ui.fragment.FileFragment;
+import com.owncloud.android.utils.ConnectivityUtils;
 import com.owncloud.android.utils.MimeTypeUtil;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
@@ -373,10 +375,35 @@ public class PreviewImageActivity extends FileActivity implements
             Intent i = new Intent(this, FileDownloader.class);
             i.putExtra(FileDownloader.EXTRA_ACCOUNT, getAccount());
             i.putExtra(FileDownloader.EXTRA_FILE, file);
+            i.putExtra(FileDownloader.EXTRA_PRIORITY, true);
             startService(i);
         }
     }
 
+    /**
+     * Requests the speculative download of the images following a position in the gallery, so that they are ready
+     * when the user swipes to them. Only done on unmetered connections.
+     *
+     * @param position      Position of the image shown.
+     */
+    private void prefetchImagesAfter(int position) {
+        int count = PreferenceManager.getImagePrefetchCount(this);
+        if (count <= 0 || !ConnectivityUtils.isAppConnectedViaUnmeteredWiFi(this)) {
+            return;
+        }
+        int last = Math.min(position + count, mPreviewImagePagerAdapter.getCount() - 1);
+        for (int i = position + 1; i <= last; i++) {
+            OCFile file = mPreviewImagePagerAdapter.getFileAt(i);
+            if (!file.isDown() && !mDownloaderBinder.isDownloading(getAccount(), file)) {
+                Intent prefetch = new Intent(this, FileDownloader.class);
+                prefetch.putExtra(FileDownloader.EXTRA_ACCOUNT, getAccount());
+                prefetch.putExtra(FileDownloader.EXTRA_FILE, file);
+                prefetch.putExtra(FileDownloader.EXTRA_PREFETCH, true);
+                startService(prefetch);
+            }
+        }
+    }
+
     /**
      * This method will be invoked when a new page becomes selected. Animation is not necessarily
      * complete.
@@ -397,6 +424,8 @@ public class PreviewImageActivity extends FileActivity implements
 
             // Call to reset image zoom to initial state
             ((PreviewImagePagerAdapter) mViewPager.getAdapter()).resetZoom();
+
+            prefetchImagesAfter(position);
         }
 
     }
@@ -48,7 +48,6 @@ import com.owncloud.android.lib.common.utils.Log_OC;
 import com.owncloud.android.ui.dialog.ConfirmationDialogFragment;
 import com.owncloud.android.ui.dialog.RemoveFilesDialogFragment;
 import com.owncloud.android.ui.fragment.FileFragment;
-import com.owncloud.android.utils.BitmapUtils;
 import com.owncloud.android.utils.DisplayUtils;
 import com.owncloud.android.utils.MimeTypeUtil;
 
@@ -81,7 +80,7 @@ public class PreviewImageFragment extends FileFragment {
 
     private Boolean mShowResizedImage = false;
 
-    public Bitmap mBitmap = null;
+    private TiledImageDrawable mImageDrawable = null;
 
     private static final String TAG = PreviewImageFragment.class.getSimpleName();
 
@@ -217,7 +216,7 @@ public class PreviewImageFragment extends FileFragment {
                     mProgressWheel.setVisibility(View.GONE);
                     mImageView.setImageBitmap(resizedImage);
                     mImageView.setVisibility(View.VISIBLE);
-                    mBitmap  = resizedImage;
+                    // not kept in mImageDrawable; it belongs to the thumbnails cache and must not be recycled
                 } else {
                     // show thumbnail while loading resized image
                     Bitmap thumbnail = ThumbnailsCacheManager.getBitmapFromDiskCache(
@@ -227,7 +226,6 @@ public class PreviewImageFragment extends FileFragment {
                         mImageView.setImageBitmap(thumbnail);
                         mProgressWheel.setVisibility(View.VISIBLE);
                         mImageView.setVisibility(View.VISIBLE);
-                        mBitmap = thumbnail;
                     } else {
                         thumbnail = ThumbnailsCacheManager.mDefaultImg;
                     }
@@ -250,7 +248,7 @@ public class PreviewImageFragment extends FileFragment {
                                         task
                                 );
                         mImageView.setImageDrawable(asyncDrawable);
-                        task.execute(getFile(), false);
+                        task.executeOnThumbnailExecutor(getFile(), false);
                     }
             }
             } else {
@@ -402,8 +400,8 @@ public class PreviewImageFragment extends FileFragment {
     @SuppressFBWarnings("Dm")
     @Override
     public void onDestroy() {
-        if (mBitmap != null) {
-            mBitmap.recycle();
+        if (mImageDrawable != null) {
+            mImageDrawable.recycle();
             System.gc();
                 // putting this in onStop() is just the same; the fragment is always destroyed by
                 // {@link FragmentStatePagerAdapter} when the fragment in swiped further than the
@@ -430,7 +428,7 @@ public class PreviewImageFragment extends FileFragment {
          * Using a weak reference will avoid memory leaks if the target ImageView is retired from
          * memory before the load finishes.
          */
-        private final WeakReference<ImageViewCustom> mImageViewRef;
+        private final WeakReference<TouchImageViewCustom> mImageViewRef;
 
         /**
          * Weak reference to the target {@link TextView} where error messages will be written.
@@ -461,16 +459,16 @@ public class PreviewImageFragment extends FileFragment {
          *
          * @param imageView Target {@link ImageView} where the bitmap will be loaded into.
          */
-        public LoadBitmapTask(ImageViewCustom imageView, TextView messageView,
+        public LoadBitmapTask(TouchImageViewCustom imageView, TextView messageView,
                               ProgressBar progressWheel) {
-            mImageViewRef = new WeakReference<ImageViewCustom>(imageView);
+            mImageViewRef = new WeakReference<TouchImageViewCustom>(imageView);
             mMessageViewRef = new WeakReference<TextView>(messageView);
             mProgressWheelRef = new WeakReference<ProgressBar>(progressWheel);
         }
 
         @Override
         protected LoadImage doInBackground(OCFile... params) {
-            Bitmap result = null;
+            TiledImageDrawable result = null;
             if (params.length != 1) {
                 return null;
             }
@@ -487,8 +485,8 @@ public class PreviewImageFragment extends FileFragment {
                         return null;
                     }
                     try {
-                        result = BitmapUtils.decodeSampledBitmapFromFile(storagePath, minWidth,
-                                minHeight);
+                        // full detail is decoded later by tiles, and EXIF orientation applied when drawing
+                        result = TiledImageDrawable.decode(storagePath, minWidth, minHeight);
 
                         if (isCancelled()) {
                             return new LoadImage(result, ocFile);
@@ -498,9 +496,6 @@ public class PreviewImageFragment extends FileFragment {
                             mErrorMessageId = R.string.preview_image_error_unknown_format;
                             Log_OC.e(TAG, "File could not be loaded as a bitmap: " + storagePath);
                             break;
-                        } else {
-                            // Rotate image, obeying exif tag.
-                            result = BitmapUtils.rotateImage(result, storagePath);
                         }
 
                     } catch (OutOfMemoryError e) {
@@ -538,33 +533,33 @@ public class PreviewImageFragment extends FileFragment {
 
         @Override
         protected void onCancelled(LoadImage result) {
-            if (result != null && result.bitmap != null) {
-                result.bitmap.recycle();
+            if (result != null && result.drawable != null) {
+                result.drawable.recycle();
             }
         }
 
         @Override
         protected void onPostExecute(LoadImage result) {
             hideProgressWheel();
-            if (result.bitmap != null) {
+            if (result.drawable != null) {
                 showLoadedImage(result);
             }
             else {
                 showErrorMessage();
             }
-            if (result.bitmap != null && mBitmap != result.bitmap)  {
-                // unused bitmap, release it! (just in case)
-                result.bitmap.recycle();
+            if (result.drawable != null && mImageDrawable != result.drawable)  {
+                // unused drawable, release it! (just in case)
+                result.drawable.recycle();
             }
         }
 
         @SuppressLint("InlinedApi")
         private void showLoadedImage(LoadImage result) {
-            final ImageViewCustom imageView = mImageViewRef.get();
-            Bitmap bitmap = result.bitmap;
+            final TouchImageViewCustom imageView = mImageViewRef.get();
+            TiledImageDrawable drawable = result.drawable;
             if (imageView != null) {
-                Log_OC.d(TAG, "Showing image with resolution " + bitmap.getWidth() + "x" +
-                        bitmap.getHeight());
+                Log_OC.d(TAG, "Showing image with resolution " + drawable.getIntrinsicWidth() + "x" +
+                        drawable.getIntrinsicHeight());
 
                 if (result.ocFile.getMimetype().equalsIgnoreCase("image/png")) {
                     Drawable backrepeat = getResources().getDrawable(R.drawable.backrepeat);
@@ -574,11 +569,23 @@ public class PreviewImageFragment extends FileFragment {
                 if (result.ocFile.getMimetype().equalsIgnoreCase("image/gif")) {
                     imageView.setGIFImageFromStoragePath(result.ocFile.getStoragePath());
                 } else {
-                    imageView.setImageBitmap(bitmap);
+                    imageView.setImageDrawable(drawable);
+
+                    // allow zooming until the full resolution of the image is seen at double size; double tap keeps
+                    // zooming to its own, smaller scale
+                    int viewWidth = imageView.getWidth();
+                    int viewHeight = imageView.getHeight();
+                    if (viewWidth <= 0 || viewHeight <= 0) {
+                        Point screenSize = DisplayUtils.getScreenSize(getActivity());
+                        viewWidth = screenSize.x;
+                        viewHeight = screenSize.y;
+                    }
+                    imageView.setMaxZoom(Math.max(imageView.getMaxZoom(),
+                            2 * drawable.getFullResolutionZoom(viewWidth, viewHeight)));
                 }
 
                 imageView.setVisibility(View.VISIBLE);
-                mBitmap  = bitmap;  // needs to be kept for recycling when not useful
+                mImageDrawable = drawable;  // needs to be kept for recycling when not useful
             }
 
             final TextView messageView = mMessageViewRef.get();
@@ -635,11 +642,11 @@ public class PreviewImageFragment extends FileFragment {
     }
 
     private class LoadImage {
-        private Bitmap bitmap;
+        private TiledImageDrawable drawable;
         private OCFile ocFile;
 
-        public LoadImage(Bitmap bitmap, OCFile ocFile){
-            this.bitmap = bitmap;
+        public LoadImage(TiledImageDrawable drawable, OCFile ocFile){
+            this.drawable = drawable;
             this.ocFile = ocFile;
         }
 
@@ -20,18 +20,15 @@
 package com.owncloud.android.ui.preview;
 
 import android.accounts.Account;
-import android.os.AsyncTask;
+import android.database.DataSetObserver;
 import android.os.Bundle;
-import android.support.v4.app.Fragment;
-import android.support.v4.app.FragmentManager;
-import android.support.v4.app.FragmentTransaction;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.TextView;
+import android.widget.ListView;
 
 import com.owncloud.android.R;
 import com.owncloud.android.datamodel.OCFile;
@@ -39,29 +36,28 @@ import com.owncloud.android.files.FileMenuFilter;
 import com.owncloud.android.lib.common.utils.Log_OC;
 import com.owncloud.android.ui.activity.FileDisplayActivity;
 import com.owncloud.android.ui.dialog.ConfirmationDialogFragment;
-import com.owncloud.android.ui.dialog.LoadingDialog;
 import com.owncloud.android.ui.dialog.RemoveFilesDialogFragment;
 import com.owncloud.android.ui.fragment.FileFragment;
 import com.owncloud.android.utils.MimeTypeUtil;
 
-import java.io.BufferedWriter;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.StringWriter;
-import java.lang.ref.WeakReference;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Scanner;
 
 public class PreviewTextFragment extends FileFragment {
     private static final String EXTRA_FILE = "FILE";
     private static final String EXTRA_ACCOUNT = "ACCOUNT";
+    private static final String EXTRA_SCROLL_POSITION = "SCROLL_POSITION";
+    private static final String EXTRA_SCROLL_OFFSET = "SCROLL_OFFSET";
     private static final String TAG = PreviewTextFragment.class.getSimpleName();
 
     private Account mAccount;
-    private TextView mTextPreview;
-    private TextLoadAsyncTask mTextLoadTask;
+    private ListView mTextPreview;
+    private TextPreviewPageAdapter mTextPreviewAdapter;
+
+    /** First visible page and its offset from the top of the list, restored once the page is indexed */
+    private int mScrollPosition = 0;
+    private int mScrollOffset = 0;
 
     /**
      * Creates an empty fragment for previews.
@@ -89,7 +85,7 @@ public class PreviewTextFragment extends FileFragment {
 
         View ret = inflater.inflate(R.layout.text_file_preview, container, false);
 
-        mTextPreview = (TextView) ret.findViewById(R.id.text_preview);
+        mTextPreview = (ListView) ret.findViewById(R.id.text_preview);
 
         return ret;
     }
@@ -123,6 +119,8 @@ public class PreviewTextFragment extends FileFragment {
         } else {
             file = savedInstanceState.getParcelable(EXTRA_FILE);
             mAccount = savedInstanceState.getParcelable(EXTRA_ACCOUNT);
+            mScrollPosition = savedInstanceState.getInt(EXTRA_SCROLL_POSITION);
+            mScrollOffset = savedInstanceState.getInt(EXTRA_SCROLL_OFFSET);
         }
         setFile(file);
         setHasOptionsMenu(true);
@@ -136,6 +134,9 @@ public class PreviewTextFragment extends FileFragment {
         super.onSaveInstanceState(outState);
         outState.putParcelable(PreviewTextFragment.EXTRA_FILE, getFile());
         outState.putParcelable(PreviewTextFragment.EXTRA_ACCOUNT, mAccount);
+        saveScrollPosition();
+        outState.putInt(PreviewTextFragment.EXTRA_SCROLL_POSITION, mScrollPosition);
+        outState.putInt(PreviewTextFragment.EXTRA_SCROLL_OFFSET, mScrollOffset);
     }
 
     @Override
@@ -147,114 +148,53 @@ public class PreviewTextFragment extends FileFragment {
     }
 
     private void loadAndShowTextPreview() {
-        mTextLoadTask = new TextLoadAsyncTask(new WeakReference<TextView>(mTextPreview));
-        mTextLoadTask.execute(getFile().getStoragePath());
+        mTextPreviewAdapter = new TextPreviewPageAdapter(getActivity(), getFile().getStoragePath());
+        try {
+            mTextPreviewAdapter.open();
+        } catch (IOException e) {
+            Log_OC.e(TAG, e.getMessage(), e);
+            mTextPreviewAdapter = null;
+            finish();
+            return;
+        }
+        mTextPreview.setAdapter(mTextPreviewAdapter);
+        mTextPreview.setVisibility(View.VISIBLE);
+        restoreScrollPosition();
     }
 
-
     /**
-     * Reads the file to preview and shows its contents. Too critical to be anonymous.
+     * Keeps the position of the list, while it shows the pages of the file.
      */
-    private class TextLoadAsyncTask extends AsyncTask<Object, Void, StringWriter> {
-        private static final String DIALOG_WAIT_TAG = "DIALOG_WAIT";
-        private final WeakReference<TextView> mTextViewReference;
-
-        private TextLoadAsyncTask(WeakReference<TextView> textView) {
-            mTextViewReference = textView;
-        }
-
-
-        @Override
-        protected void onPreExecute() {
-            showLoadingDialog();
-        }
-
-        @Override
-        protected StringWriter doInBackground(java.lang.Object... params) {
-            if (params.length != 1) {
-                throw new IllegalArgumentException("The parameter to " + TextLoadAsyncTask.class.getName() + " must be (1) the file location");
-            }
-            final String location = (String) params[0];
-
-            InputStreamReader inputStream = null;
-            Scanner sc = null;
-            StringWriter source = new StringWriter();
-            BufferedWriter bufferedWriter = new BufferedWriter(source);
-            try {
-                inputStream = new InputStreamReader(new FileInputStream(location), "UTF8");
-                sc = new Scanner(inputStream);
-                while (sc.hasNextLine()) {
-                    bufferedWriter.append(sc.nextLine());
-                    if (sc.hasNextLine()) {
-                        bufferedWriter.append("\n");
-                    }
-                }
-                bufferedWriter.close();
-                IOException exc = sc.ioException();
-                if (exc != null) {
-                    throw exc;
-                }
-            } catch (IOException e) {
-                Log_OC.e(TAG, e.getMessage(), e);
-                finish();
-            } finally {
-                if (inputStream != null) {
-                    try {
-                        inputStream.close();
-                    } catch (IOException e) {
-                        Log_OC.e(TAG, e.getMessage(), e);
-                        finish();
-                    }
-                }
-                if (sc != null) {
-                    sc.close();
-                }
-            }
-            return source;
+    private void saveScrollPosition() {
+        if (mTextPreviewAdapter != null && mTextPreview.getChildCount() > 0) {
+            mScrollPosition = mTextPreview.getFirstVisiblePosition();
+            mScrollOffset = mTextPreview.getChildAt(0).getTop();
         }
+    }
 
-        @Override
-        protected void onPostExecute(final StringWriter stringWriter) {
-            final TextView textView = mTextViewReference.get();
-
-            if (textView != null) {
-                textView.setText(new String(stringWriter.getBuffer()));
-                textView.setVisibility(View.VISIBLE);
-            }
-
-            dismissLoadingDialog();
+    /**
+     * Scrolls back to the saved position, as soon as its page is indexed.
+     */
+    private void restoreScrollPosition() {
+        if (mScrollPosition == 0 && mScrollOffset == 0) {
+            return;
         }
-
-        /**
-         * Show loading dialog
-         */
-        public void showLoadingDialog() {
-            // only once
-            Fragment frag = getActivity().getSupportFragmentManager().findFragmentByTag(DIALOG_WAIT_TAG);
-            LoadingDialog loading = null;
-            if (frag == null) {
-                // Construct dialog
-                loading = new LoadingDialog(getResources().getString(R.string.wait_a_moment));
-                FragmentManager fm = getActivity().getSupportFragmentManager();
-                FragmentTransaction ft = fm.beginTransaction();
-                loading.show(ft, DIALOG_WAIT_TAG);
-            } else {
-                loading = (LoadingDialog) frag;
-                loading.setShowsDialog(true);
-            }
-
+        if (mScrollPosition < mTextPreviewAdapter.getCount()) {
+            mTextPreview.setSelectionFromTop(mScrollPosition, mScrollOffset);
+            return;
         }
-
-        /**
-         * Dismiss loading dialog
-         */
-        public void dismissLoadingDialog() {
-            final Fragment frag = getActivity().getSupportFragmentManager().findFragmentByTag(DIALOG_WAIT_TAG);
-            if (frag != null) {
-                LoadingDialog loading = (LoadingDialog) frag;
-                loading.dismissAllowingStateLoss();
+        final TextPreviewPageAdapter adapter = mTextPreviewAdapter;
+        adapter.registerDataSetObserver(new DataSetObserver() {
+            @Override
+            public void onChanged() {
+                if (adapter != mTextPreviewAdapter) {
+                    adapter.unregisterDataSetObserver(this);
+                } else if (mScrollPosition < adapter.getCount()) {
+                    adapter.unregisterDataSetObserver(this);
+                    mTextPreview.setSelectionFromTop(mScrollPosition, mScrollOffset);
+                }
             }
-        }
+        });
     }
 
     /**
@@ -407,9 +347,11 @@ public class PreviewTextFragment extends FileFragment {
     public void onStop() {
         super.onStop();
         Log_OC.e(TAG, "onStop");
-        if (mTextLoadTask != null) {
-            mTextLoadTask.cancel(Boolean.TRUE);
-            mTextLoadTask.dismissLoadingDialog();
+        if (mTextPreviewAdapter != null) {
+            saveScrollPosition();
+            mTextPreview.setAdapter(null);
+            mTextPreviewAdapter.close();
+            mTextPreviewAdapter = null;
         }
     }
 
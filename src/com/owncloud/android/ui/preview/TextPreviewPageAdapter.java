@@ -0,0 +1,299 @@
+/**
+ *   Nextcloud Android client application
+ *
+ *   Copyright (C) 2016 Nextcloud
+ *
+ *   This program is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU AFFERO GENERAL PUBLIC LICENSE
+ *   License as published by the Free Software Foundation; either
+ *   version 3 of the License, or any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU AFFERO GENERAL PUBLIC LICENSE for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public
+ *   License along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.owncloud.android.ui.preview;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.util.LruCache;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+import com.owncloud.android.R;
+import com.owncloud.android.lib.common.utils.Log_OC;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Adapter showing a text file as a list of pages of a few lines each, so that only the pages on the screen are read
+ * and decoded, whatever the size of the file.
+ *
+ * The offsets where pages start are indexed in a background task; pages are added to the adapter as they are found,
+ * so the first screen is available as soon as its lines are indexed, and the list can be scrolled to any indexed page.
+ * Pages are read out of the UI thread too, and shown empty until read.
+ */
+public class TextPreviewPageAdapter extends BaseAdapter {
+
+    private static final String TAG = TextPreviewPageAdapter.class.getSimpleName();
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Lines in a page */
+    private static final int PAGE_LINES = 100;
+
+    /** Pages with longer lines are split before, at a character boundary */
+    private static final int MAX_PAGE_BYTES = 32 * 1024;
+
+    /** Decoded pages kept in memory */
+    private static final int CACHED_PAGES = 16;
+
+    private static final int INDEX_BUFFER_SIZE = 64 * 1024;
+
+    private final Context mContext;
+    private final String mPath;
+
+    /** Offsets of the indexed pages, plus the end of the last one; modified only in the UI thread */
+    private final List<Long> mPageOffsets = new ArrayList<>();
+    private final LruCache<Integer, String> mPages = new LruCache<>(CACHED_PAGES);
+
+    /** Pages being read; modified only in the UI thread */
+    private final Set<Integer> mPendingPages = new HashSet<>();
+
+    /** Opened file, read only in {@link #mReadExecutor}; access synchronized on the adapter to close it */
+    private RandomAccessFile mFile;
+    private PageIndexTask mIndexTask;
+    private ExecutorService mReadExecutor;
+
+    /**
+     * @param context   Caller {@link Context}.
+     * @param path      Local path of the text file to show.
+     */
+    public TextPreviewPageAdapter(Context context, String path) {
+        mContext = context;
+        mPath = path;
+        mPageOffsets.add(0L);
+    }
+
+    /**
+     * Opens the file and starts indexing its pages.
+     *
+     * @throws IOException  If the file could not be opened.
+     */
+    public void open() throws IOException {
+        mFile = new RandomAccessFile(mPath, "r");
+        mReadExecutor = Executors.newSingleThreadExecutor();
+        mIndexTask = new PageIndexTask();
+        // a large file takes long to index; not in the serial executor shared by the app
+        mIndexTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, mPath);
+    }
+
+    /**
+     * Stops indexing and reading pages, and closes the file.
+     */
+    public void close() {
+        if (mIndexTask != null) {
+            mIndexTask.cancel(true);
+            mIndexTask = null;
+        }
+        if (mReadExecutor != null) {
+            mReadExecutor.shutdownNow();
+            mReadExecutor = null;
+        }
+        synchronized (this) {
+            if (mFile != null) {
+                try {
+                    mFile.close();
+                } catch (IOException e) {
+                    Log_OC.w(TAG, "Could not close " + mPath);
+                }
+                mFile = null;
+            }
+        }
+        mPendingPages.clear();
+        mPages.evictAll();
+    }
+
+    @Override
+    public int getCount() {
+        return mPageOffsets.size() - 1;
+    }
+
+    /**
+     * @return  Text of the page, or null while it is read in background; the adapter is notified when read.
+     */
+    @Override
+    public Object getItem(int position) {
+        String page = mPages.get(position);
+        if (page == null && mReadExecutor != null && mPendingPages.add(position)) {
+            long start = mPageOffsets.get(position);
+            long end = mPageOffsets.get(position + 1);
+            new PageReadTask(position).executeOnExecutor(mReadExecutor, start, end);
+        }
+        return page;
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        TextView view = (TextView) convertView;
+        if (view == null) {
+            view = (TextView) LayoutInflater.from(mContext).inflate(R.layout.text_file_preview_page, parent, false);
+        }
+        String page = (String) getItem(position);
+        view.setText(page != null ? page : "");
+        return view;
+    }
+
+    /**
+     * Reads and decodes a page of the file, without the line break that ends it. Slow, do not call from the UI
+     * thread.
+     */
+    private String readPage(int position, long start, long end) {
+        int length = (int) (end - start);
+        byte[] bytes = new byte[length];
+        synchronized (this) {
+            if (mFile == null) {
+                return null;
+            }
+            try {
+                mFile.seek(start);
+                mFile.readFully(bytes);
+            } catch (IOException e) {
+                Log_OC.e(TAG, "Could not read page " + position + " of " + mPath, e);
+                return "";
+            }
+        }
+        if (length > 0 && bytes[length - 1] == '\n') {
+            length--;
+            if (length > 0 && bytes[length - 1] == '\r') {
+                length--;
+            }
+        }
+        return new String(bytes, 0, length, UTF8);
+    }
+
+    private void addPages(Long... pageEnds) {
+        for (Long pageEnd : pageEnds) {
+            mPageOffsets.add(pageEnd);
+        }
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Reads a page, between the offsets given as parameters, and adds it to the cached pages.
+     */
+    private class PageReadTask extends AsyncTask<Long, Void, String> {
+
+        private final int mPosition;
+
+        PageReadTask(int position) {
+            mPosition = position;
+        }
+
+        @Override
+        protected String doInBackground(Long... params) {
+            return readPage(mPosition, params[0], params[1]);
+        }
+
+        @Override
+        protected void onPostExecute(String page) {
+            if (page != null && mPendingPages.remove(mPosition)) {
+                mPages.put(mPosition, page);
+                notifyDataSetChanged();
+            }
+        }
+    }
+
+    /**
+     * Finds the offsets where pages end, publishing them in batches.
+     */
+    private class PageIndexTask extends AsyncTask<String, Long, Void> {
+
+        @Override
+        protected Void doInBackground(String... params) {
+            InputStream in = null;
+            try {
+                in = new BufferedInputStream(new FileInputStream(params[0]), INDEX_BUFFER_SIZE);
+                byte[] buffer = new byte[INDEX_BUFFER_SIZE];
+                List<Long> pageEnds = new ArrayList<>();
+                long offset = 0;
+                long pageStart = 0;
+                int lines = 0;
+                int read;
+                while ((read = in.read(buffer)) != -1 && !isCancelled()) {
+                    for (int i = 0; i < read; i++) {
+                        byte b = buffer[i];
+                        if (b == '\n') {
+                            lines++;
+                            if (lines == PAGE_LINES) {
+                                pageStart = offset + i + 1;
+                                pageEnds.add(pageStart);
+                                lines = 0;
+                            }
+                        } else if (offset + i - pageStart >= MAX_PAGE_BYTES && (b & 0xC0) != 0x80) {
+                            // no line breaks for too long; split before the first byte of a character
+                            pageStart = offset + i;
+                            pageEnds.add(pageStart);
+                            lines = 0;
+                        }
+                    }
+                    offset += read;
+                    if (!pageEnds.isEmpty()) {
+                        publishProgress(pageEnds.toArray(new Long[pageEnds.size()]));
+                        pageEnds.clear();
+                    }
+                }
+                if (offset > pageStart && !isCancelled()) {
+                    publishProgress(offset);
+                }
+
+            } catch (IOException e) {
+                Log_OC.e(TAG, "Could not index " + params[0], e);
+
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        Log_OC.w(TAG, "Could not close " + params[0]);
+                    }
+                }
+            }
+            return null;
+        }
+
+        @Override
+        protected void onProgressUpdate(Long... pageEnds) {
+            addPages(pageEnds);
+        }
+    }
+}
@@ -0,0 +1,321 @@
+/**
+ *   Nextcloud Android client application
+ *
+ *   Copyright (C) 2016 Nextcloud
+ *
+ *   This program is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU AFFERO GENERAL PUBLIC LICENSE
+ *   License as published by the Free Software Foundation; either
+ *   version 3 of the License, or any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU AFFERO GENERAL PUBLIC LICENSE for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public
+ *   License along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.owncloud.android.ui.preview;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LruCache;
+
+import com.owncloud.android.lib.common.utils.Log_OC;
+import com.owncloud.android.utils.BitmapUtils;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Drawable showing an image at any zoom level without decoding it completely at full resolution.
+ *
+ * A bitmap subsampled to the size of the screen is always drawn; when the view showing the drawable zooms in beyond
+ * its resolution, the visible part is covered with tiles decoded with a {@link BitmapRegionDecoder} at the sample
+ * size matching the current scale. Tiles are decoded in a background thread and kept in a memory cache.
+ *
+ * The EXIF orientation of the image is applied when drawing, so no rotated copy of any bitmap is created. Intrinsic
+ * sizes are the ones of the complete image, correctly oriented.
+ */
+public class TiledImageDrawable extends Drawable {
+
+    private static final String TAG = TiledImageDrawable.class.getSimpleName();
+
+    /** Side of a tile, in pixels of the decoded tile */
+    private static final int TILE_SIZE = 512;
+
+    /** Upper limit of memory used by the cache of tiles */
+    private static final int MAX_CACHE_BYTES = 32 * 1024 * 1024;
+
+    private final Bitmap mBaseBitmap;
+    private final BitmapRegionDecoder mDecoder;
+    private final int mWidth;
+    private final int mHeight;
+    private final float mBaseScale;
+
+    private final Matrix mOrientation;
+    private final Matrix mInverseOrientation = new Matrix();
+    private final int mOrientedWidth;
+    private final int mOrientedHeight;
+
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final LruCache<String, Bitmap> mTiles;
+    private final Set<String> mPendingTiles = new HashSet<>();
+    private final ExecutorService mDecodeExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /** Visible part of the image in coordinates of the stored image, and scale from them to the screen */
+    private final RectF mVisibleRect = new RectF();
+    private float mScale = 0;
+    private volatile boolean mRecycled = false;
+
+    /** Reused while drawing */
+    private final Matrix mInverseViewMatrix = new Matrix();
+    private final RectF mDrawRect = new RectF();
+    private final Rect mTileRect = new Rect();
+
+    /**
+     * Decodes the base bitmap of an image and prepares the decoding of tiles. Slow, do not call from the UI thread.
+     *
+     * @param storagePath   Local path of the image.
+     * @param reqWidth      Width of the surface where the image will be fit initially, in pixels.
+     * @param reqHeight     Height of the surface where the image will be fit initially, in pixels.
+     * @return              New drawable, or null if the file could not be decoded as an image.
+     */
+    public static TiledImageDrawable decode(String storagePath, int reqWidth, int reqHeight) {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(storagePath, bounds);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            return null;
+        }
+
+        Bitmap base = BitmapUtils.decodeSampledBitmapFromFile(storagePath, reqWidth, reqHeight);
+        if (base == null) {
+            return null;
+        }
+
+        BitmapRegionDecoder decoder = null;
+        try {
+            decoder = BitmapRegionDecoder.newInstance(storagePath, false);
+        } catch (IOException e) {
+            // format not supported by the region decoder; the base bitmap will be shown at every zoom level
+            Log_OC.w(TAG, "Image can not be decoded by regions: " + storagePath);
+        }
+
+        Matrix orientation = BitmapUtils.getOrientationMatrix(storagePath, bounds.outWidth, bounds.outHeight);
+        return new TiledImageDrawable(base, decoder, bounds.outWidth, bounds.outHeight, orientation);
+    }
+
+    private TiledImageDrawable(Bitmap baseBitmap, BitmapRegionDecoder decoder, int width, int height,
+                               Matrix orientation) {
+        mBaseBitmap = baseBitmap;
+        mDecoder = decoder;
+        mWidth = width;
+        mHeight = height;
+        mBaseScale = (float) baseBitmap.getWidth() / width;
+
+        mOrientation = orientation;
+        mOrientation.invert(mInverseOrientation);
+        RectF oriented = new RectF(0, 0, width, height);
+        mOrientation.mapRect(oriented);
+        mOrientedWidth = Math.round(oriented.width());
+        mOrientedHeight = Math.round(oriented.height());
+
+        int cacheBytes = (int) Math.min(Runtime.getRuntime().maxMemory() / 8, MAX_CACHE_BYTES);
+        mTiles = new LruCache<String, Bitmap>(cacheBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap tile) {
+                return tile.getByteCount();
+            }
+        };
+    }
+
+    /**
+     * @return  Zoom over the size of the image fit in the surface, to see it at its full resolution.
+     */
+    public float getFullResolutionZoom(int viewWidth, int viewHeight) {
+        return Math.max((float) mOrientedWidth / viewWidth, (float) mOrientedHeight / viewHeight);
+    }
+
+    /**
+     * Updates the part of the image visible in the view showing the drawable. Must be called before every draw.
+     *
+     * @param imageMatrix   Matrix applied by the view to the drawable.
+     * @param viewWidth     Width of the view, in pixels.
+     * @param viewHeight    Height of the view, in pixels.
+     */
+    public void setViewport(Matrix imageMatrix, int viewWidth, int viewHeight) {
+        if (!imageMatrix.invert(mInverseViewMatrix)) {
+            return;
+        }
+        mDrawRect.set(0, 0, viewWidth, viewHeight);
+        mInverseViewMatrix.mapRect(mDrawRect);
+        mInverseOrientation.mapRect(mDrawRect);
+        synchronized (mVisibleRect) {
+            mVisibleRect.set(mDrawRect);
+            mScale = imageMatrix.mapRadius(1f);
+        }
+    }
+
+    @Override
+    public void draw(Canvas canvas) {
+        if (mRecycled) {
+            return;
+        }
+        canvas.save();
+        canvas.concat(mOrientation);
+        mDrawRect.set(0, 0, mWidth, mHeight);
+        canvas.drawBitmap(mBaseBitmap, null, mDrawRect, mPaint);
+        if (mDecoder != null && mScale > mBaseScale) {
+            drawTiles(canvas);
+        }
+        canvas.restore();
+    }
+
+    /**
+     * Draws over the base bitmap the tiles in the visible part of the image that are ready, and requests the rest.
+     */
+    private void drawTiles(Canvas canvas) {
+        int sampleSize = getSampleSize(mScale);
+        int tileSide = TILE_SIZE * sampleSize;
+        int firstColumn = Math.max(0, (int) (mVisibleRect.left / tileSide));
+        int lastColumn = Math.min((mWidth - 1) / tileSide, (int) (mVisibleRect.right / tileSide));
+        int firstRow = Math.max(0, (int) (mVisibleRect.top / tileSide));
+        int lastRow = Math.min((mHeight - 1) / tileSide, (int) (mVisibleRect.bottom / tileSide));
+
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                mTileRect.set(column * tileSide, row * tileSide,
+                        Math.min((column + 1) * tileSide, mWidth), Math.min((row + 1) * tileSide, mHeight));
+                String key = sampleSize + ":" + column + ":" + row;
+                Bitmap tile = mTiles.get(key);
+                if (tile != null) {
+                    mDrawRect.set(mTileRect);
+                    canvas.drawBitmap(tile, null, mDrawRect, mPaint);
+                } else {
+                    requestTile(key, new Rect(mTileRect), sampleSize);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return  Largest power of 2 that decodes the image with, at least, the resolution needed for the scale.
+     */
+    private static int getSampleSize(float scale) {
+        int sampleSize = 1;
+        while (sampleSize * 2 * scale <= 1f) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private void requestTile(final String key, final Rect region, final int sampleSize) {
+        if (!mPendingTiles.add(key)) {
+            return;
+        }
+        mDecodeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap tile = null;
+                if (!mRecycled && isStillNeeded(region, sampleSize)) {
+                    BitmapFactory.Options options = new BitmapFactory.Options();
+                    options.inSampleSize = sampleSize;
+                    try {
+                        tile = mDecoder.decodeRegion(region, options);
+                    } catch (OutOfMemoryError e) {
+                        Log_OC.w(TAG, "Out of memory decoding tile " + key + "; releasing cached tiles");
+                        mTiles.trimToSize(mTiles.size() / 2);
+                    }
+                }
+                final Bitmap decodedTile = tile;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mPendingTiles.remove(key);
+                        if (decodedTile != null && !mRecycled) {
+                            mTiles.put(key, decodedTile);
+                            invalidateSelf();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Tiles left behind by a fast scroll or zoom are not decoded.
+     */
+    private boolean isStillNeeded(Rect region, int sampleSize) {
+        synchronized (mVisibleRect) {
+            return getSampleSize(mScale) == sampleSize &&
+                    RectF.intersects(mVisibleRect, region.left, region.top, region.right, region.bottom);
+        }
+    }
+
+    /**
+     * Releases the decoder and the cached tiles. The drawable can not be drawn anymore.
+     */
+    public void recycle() {
+        if (mRecycled) {
+            return;
+        }
+        mRecycled = true;
+        mTiles.evictAll();
+        mDecodeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // in the decoding thread, so that no tile is being decoded
+                if (mDecoder != null) {
+                    mDecoder.recycle();
+                }
+            }
+        });
+        mDecodeExecutor.shutdown();
+        mBaseBitmap.recycle();
+    }
+
+    @Override
+    public int getIntrinsicWidth() {
+        return mOrientedWidth;
+    }
+
+    @Override
+    public int getIntrinsicHeight() {
+        return mOrientedHeight;
+    }
+
+    @Override
+    public void setAlpha(int alpha) {
+        mPaint.setAlpha(alpha);
+        invalidateSelf();
+    }
+
+    @Override
+    public void setColorFilter(ColorFilter colorFilter) {
+        mPaint.setColorFilter(colorFilter);
+        invalidateSelf();
+    }
+
+    @Override
+    public int getOpacity() {
+        return PixelFormat.TRANSLUCENT;
+    }
+}
@@ -24,6 +24,7 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.BitmapFactory.Options;
 import android.graphics.Matrix;
+import android.graphics.RectF;
 import android.media.ExifInterface;
 import android.support.v4.graphics.drawable.RoundedBitmapDrawable;
 import android.support.v4.graphics.drawable.RoundedBitmapDrawableFactory;
@@ -127,48 +128,8 @@ public class BitmapUtils {
             ExifInterface exifInterface = new ExifInterface(storagePath);
             int orientation = exifInterface.getAttributeInt(ExifInterface.TAG_ORIENTATION, 1);
 
-            Matrix matrix = new Matrix();
+            Matrix matrix = getExifOrientationMatrix(orientation);
 
-            // 1: nothing to do
-            
-            // 2
-            if (orientation == ExifInterface.ORIENTATION_FLIP_HORIZONTAL)
-            {
-                matrix.postScale(-1.0f, 1.0f);
-            }
-            // 3
-            else if (orientation == ExifInterface.ORIENTATION_ROTATE_180)
-            {
-                matrix.postRotate(180);
-            }
-            // 4
-            else if (orientation == ExifInterface.ORIENTATION_FLIP_VERTICAL)
-            {
-                matrix.postScale(1.0f, -1.0f);
-            }
-            // 5
-            else if (orientation == ExifInterface.ORIENTATION_TRANSPOSE)
-            {
-                matrix.postRotate(-90);
-                matrix.postScale(1.0f, -1.0f);
-            }
-            // 6
-            else if (orientation == ExifInterface.ORIENTATION_ROTATE_90)
-            {
-                matrix.postRotate(90);
-            }
-            // 7
-            else if (orientation == ExifInterface.ORIENTATION_TRANSVERSE)
-            {
-                matrix.postRotate(90);
-                matrix.postScale(1.0f, -1.0f);
-            }
-            // 8
-            else if (orientation == ExifInterface.ORIENTATION_ROTATE_270)
-            {
-                matrix.postRotate(270);
-            } 
-            
             // Rotate the bitmap
             resultBitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
             if (!resultBitmap.equals(bitmap)) {
@@ -182,6 +143,84 @@ public class BitmapUtils {
         return resultBitmap;
     }
 
+    /**
+     * Builds the matrix that draws an image according to its EXIF orientation, without creating a rotated copy of
+     * it.
+     *
+     * @param storagePath   Path to source file of the image. Needed for EXIF information.
+     * @param width         Width of the image as stored, in pixels.
+     * @param height        Height of the image as stored, in pixels.
+     * @return              Matrix transforming coordinates of the stored image into coordinates of the correctly
+     *                      oriented image, which starts at (0, 0).
+     */
+    public static Matrix getOrientationMatrix(String storagePath, int width, int height) {
+        int orientation = ExifInterface.ORIENTATION_NORMAL;
+        try {
+            ExifInterface exifInterface = new ExifInterface(storagePath);
+            orientation = exifInterface.getAttributeInt(ExifInterface.TAG_ORIENTATION, 1);
+        } catch (Exception exception) {
+            Log_OC.e("BitmapUtil", "Could not read the orientation of the image: " + storagePath);
+        }
+
+        Matrix matrix = getExifOrientationMatrix(orientation);
+        RectF bounds = new RectF(0, 0, width, height);
+        matrix.mapRect(bounds);
+        matrix.postTranslate(-bounds.left, -bounds.top);
+        return matrix;
+    }
+
+    /**
+     * Cf. http://www.daveperrett.com/articles/2012/07/28/exif-orientation-handling-is-a-ghetto/
+     *
+     * @param orientation   EXIF orientation of an image.
+     * @return              Rotation and mirroring to apply to the image, around (0, 0).
+     */
+    private static Matrix getExifOrientationMatrix(int orientation) {
+        Matrix matrix = new Matrix();
+
+        // 1: nothing to do
+
+        // 2
+        if (orientation == ExifInterface.ORIENTATION_FLIP_HORIZONTAL)
+        {
+            matrix.postScale(-1.0f, 1.0f);
+        }
+        // 3
+        else if (orientation == ExifInterface.ORIENTATION_ROTATE_180)
+        {
+            matrix.postRotate(180);
+        }
+        // 4
+        else if (orientation == ExifInterface.ORIENTATION_FLIP_VERTICAL)
+        {
+            matrix.postScale(1.0f, -1.0f);
+        }
+        // 5
+        else if (orientation == ExifInterface.ORIENTATION_TRANSPOSE)
+        {
+            matrix.postRotate(-90);
+            matrix.postScale(1.0f, -1.0f);
+        }
+        // 6
+        else if (orientation == ExifInterface.ORIENTATION_ROTATE_90)
+        {
+            matrix.postRotate(90);
+        }
+        // 7
+        else if (orientation == ExifInterface.ORIENTATION_TRANSVERSE)
+        {
+            matrix.postRotate(90);
+            matrix.postScale(1.0f, -1.0f);
+        }
+        // 8
+        else if (orientation == ExifInterface.ORIENTATION_ROTATE_270)
+        {
+            matrix.postRotate(270);
+        }
+
+        return matrix;
+    }
+
     /**
      *  Convert HSL values to a RGB Color.
      *
@@ -426,7 +426,7 @@ public class DisplayUtils {
                         listener.avatarGenerated(BitmapUtils.bitmapToCircularBitmapDrawable(
                                         resources, asyncDrawable.getBitmap()), callContext);
                     }
-                    task.execute(account.name);
+                    task.executeOnThumbnailExecutor(account.name);
                 }
             }
         }
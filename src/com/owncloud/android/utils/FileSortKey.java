@@ -0,0 +1,166 @@
+/**
+ *   Nextcloud Android client application
+ *
+ *   Copyright (C) 2016 Nextcloud
+ *
+ *   This program is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU AFFERO GENERAL PUBLIC LICENSE
+ *   License as published by the Free Software Foundation; either
+ *   version 3 of the License, or any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU AFFERO GENERAL PUBLIC LICENSE for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public
+ *   License along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.owncloud.android.utils;
+
+import com.owncloud.android.datamodel.OCFile;
+
+import java.io.File;
+
+/**
+ * Everything needed to sort a file, read once before sorting so that comparisons neither allocate nor access the
+ * file system.
+ *
+ * The path is kept lowercased, together with the limits of its natural order chunks (runs of digits and runs of
+ * non digits), so that {@link #compareNatural(FileSortKey)} gives the same order than
+ * {@link third_parties.daveKoeller.AlphanumComparator} without splitting the strings in every comparison.
+ *
+ * @param <T>   Type of the sorted item, {@link OCFile} or {@link File}.
+ */
+public final class FileSortKey<T> {
+
+    private final T mItem;
+    private final boolean mFolder;
+    private final boolean mFavorite;
+    private final long mLength;
+    private final long mModificationTimestamp;
+    private final char[] mPath;
+    private final int[] mChunkEnds;
+
+    private FileSortKey(T item, boolean folder, boolean favorite, long length, long modificationTimestamp,
+                        String path) {
+        mItem = item;
+        mFolder = folder;
+        mFavorite = favorite;
+        mLength = length;
+        mModificationTimestamp = modificationTimestamp;
+        mPath = path.toLowerCase().toCharArray();
+        mChunkEnds = findChunkEnds(mPath);
+    }
+
+    public static FileSortKey<OCFile> forOCFile(OCFile file) {
+        return new FileSortKey<>(file, file.isFolder(), file.isFavorite(), file.getFileLength(),
+                file.getModificationTimestamp(), file.getRemotePath());
+    }
+
+    public static FileSortKey<File> forLocalFile(File file) {
+        return new FileSortKey<>(file, file.isDirectory(), false, file.length(), file.lastModified(),
+                file.getPath());
+    }
+
+    public T getItem() {
+        return mItem;
+    }
+
+    public boolean isFolder() {
+        return mFolder;
+    }
+
+    public boolean isFavorite() {
+        return mFavorite;
+    }
+
+    public long getLength() {
+        return mLength;
+    }
+
+    public long getModificationTimestamp() {
+        return mModificationTimestamp;
+    }
+
+    /**
+     * Compares the lowercased paths character by character, as {@link String#compareTo(String)} would.
+     */
+    public int comparePath(FileSortKey<?> another) {
+        return compareChars(mPath, 0, mPath.length, another.mPath, 0, another.mPath.length);
+    }
+
+    /**
+     * Compares the lowercased paths in natural order: numbers inside the paths are compared by their value.
+     */
+    public int compareNatural(FileSortKey<?> another) {
+        char[] thisPath = mPath;
+        char[] thatPath = another.mPath;
+        int thisMarker = 0;
+        int thatMarker = 0;
+        int thisChunk = 0;
+        int thatChunk = 0;
+
+        while (thisMarker < thisPath.length && thatMarker < thatPath.length) {
+            int thisEnd = mChunkEnds[thisChunk++];
+            int thatEnd = another.mChunkEnds[thatChunk++];
+            int thisLength = thisEnd - thisMarker;
+            int thatLength = thatEnd - thatMarker;
+
+            int result;
+            if (isDigit(thisPath[thisMarker]) && isDigit(thatPath[thatMarker])) {
+                // longer numbers are greater; with the same length, the first different digit counts
+                result = thisLength - thatLength;
+                for (int i = 0; result == 0 && i < thisLength; i++) {
+                    result = thisPath[thisMarker + i] - thatPath[thatMarker + i];
+                }
+            } else {
+                result = compareChars(thisPath, thisMarker, thisLength, thatPath, thatMarker, thatLength);
+            }
+
+            if (result != 0) {
+                return result;
+            }
+            thisMarker = thisEnd;
+            thatMarker = thatEnd;
+        }
+
+        return thisPath.length - thatPath.length;
+    }
+
+    private static int compareChars(char[] a, int aStart, int aLength, char[] b, int bStart, int bLength) {
+        int length = Math.min(aLength, bLength);
+        for (int i = 0; i < length; i++) {
+            int result = a[aStart + i] - b[bStart + i];
+            if (result != 0) {
+                return result;
+            }
+        }
+        return aLength - bLength;
+    }
+
+    /**
+     * @return  Index after the last character of every chunk of digits or non digits in the path, in order.
+     */
+    private static int[] findChunkEnds(char[] path) {
+        int count = 0;
+        for (int i = 0; i < path.length; i++) {
+            if (i == path.length - 1 || isDigit(path[i]) != isDigit(path[i + 1])) {
+                count++;
+            }
+        }
+        int[] chunkEnds = new int[count];
+        count = 0;
+        for (int i = 0; i < path.length; i++) {
+            if (i == path.length - 1 || isDigit(path[i]) != isDigit(path[i + 1])) {
+                chunkEnds[count++] = i + 1;
+            }
+        }
+        return chunkEnds;
+    }
+
+    private static boolean isDigit(char ch) {
+        return ch >= '0' && ch <= '9';
+    }
+}
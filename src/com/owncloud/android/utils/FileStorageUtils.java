@@ -38,11 +38,9 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
@@ -50,9 +48,6 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Vector;
 
-import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
-import third_parties.daveKoeller.AlphanumComparator;
-
 
 /**
  * Static methods to help in access to local file system.
@@ -226,24 +221,30 @@ public class FileStorageUtils {
     }
     
     /**
-     * Sorts all filenames, regarding last user decision 
+     * Sorts all filenames, regarding last user decision.
+     *
+     * Favourites go first; the selected order is applied in the same sort.
      */
     public static Vector<OCFile> sortOcFolder(Vector<OCFile> files){
+        final Comparator<FileSortKey<OCFile>> order;
         switch (mSortOrder){
-        case 0:
-            files = FileStorageUtils.sortOCFilesByName(files);
-            break;
         case 1:
-            files = FileStorageUtils.sortOCFilesByDate(files);
+            order = getOCFilesByDateComparator();
             break;
         case 2:
-            files = FileStorageUtils.sortOCFilesBySize(files);
+            order = getOCFilesBySizeComparator();
+            break;
+        default:
+            order = getOCFilesByNameComparator();
             break;
         }
 
-        files = FileStorageUtils.sortOCFilesByFavourite(files);
-       
-        return files;
+        return sortOCFiles(files, new Comparator<FileSortKey<OCFile>>() {
+            public int compare(FileSortKey<OCFile> o1, FileSortKey<OCFile> o2) {
+                int result = FAVOURITE_COMPARATOR.compare(o1, o2);
+                return (result != 0) ? result : order.compare(o1, o2);
+            }
+        });
     }
 
     /**
@@ -266,123 +267,163 @@ public class FileStorageUtils {
     }
 
     /**
-     * Sorts list by Date
-     * @param files
+     * Sorts files in place, reading every sort key once.
+     *
+     * @param files         Files to sort.
+     * @param comparator    Order to apply to the keys of the files.
+     * @return              The same files, sorted.
      */
-    public static Vector<OCFile> sortOCFilesByDate(Vector<OCFile> files){
-        final int multiplier = mSortAscending ? 1 : -1;
-
-        Collections.sort(files, new Comparator<OCFile>() {
-            @SuppressFBWarnings(value = "Bx", justification = "Would require stepping up API level")
-            public int compare(OCFile o1, OCFile o2) {
-            Long obj1 = o1.getModificationTimestamp();
-            return multiplier * obj1.compareTo(o2.getModificationTimestamp());
-            }
-        });
-
+    private static Vector<OCFile> sortOCFiles(Vector<OCFile> files,
+                                              Comparator<FileSortKey<OCFile>> comparator) {
+        List<FileSortKey<OCFile>> keys = new ArrayList<>(files.size());
+        for (OCFile file : files) {
+            keys.add(FileSortKey.forOCFile(file));
+        }
+        Collections.sort(keys, comparator);
+        for (int i = 0; i < keys.size(); i++) {
+            files.set(i, keys.get(i).getItem());
+        }
         return files;
     }
 
     /**
-     * Sorts list by Date
-     * @param filesArray
+     * Sorts local files, reading every sort key once; length, date and type are not read from the file system
+     * while sorting.
+     *
+     * @param filesArray    Files to sort.
+     * @param comparator    Order to apply to the keys of the files.
+     * @return              New array with the files sorted.
      */
-    public static File[] sortLocalFilesByDate(File[] filesArray){
-        final int multiplier = mSortAscending ? 1 : -1;
-
-        List<File> files = new ArrayList<File>(Arrays.asList(filesArray));
+    private static File[] sortLocalFiles(File[] filesArray, Comparator<FileSortKey<File>> comparator) {
+        List<FileSortKey<File>> keys = new ArrayList<>(filesArray.length);
+        for (File file : filesArray) {
+            keys.add(FileSortKey.forLocalFile(file));
+        }
+        Collections.sort(keys, comparator);
+        File[] returnArray = new File[filesArray.length];
+        for (int i = 0; i < returnArray.length; i++) {
+            returnArray[i] = keys.get(i).getItem();
+        }
+        return returnArray;
+    }
 
-        Collections.sort(files, new Comparator<File>() {
-            @SuppressFBWarnings(value = "Bx")
-            public int compare(File o1, File o2) {
-            Long obj1 = o1.lastModified();
-            return multiplier * obj1.compareTo(o2.lastModified());
+    private static final Comparator<FileSortKey<OCFile>> FAVOURITE_COMPARATOR =
+            new Comparator<FileSortKey<OCFile>>() {
+        public int compare(FileSortKey<OCFile> o1, FileSortKey<OCFile> o2) {
+            if (o1.isFavorite() && o2.isFavorite()) {
+                return 0;
+            } else if (o1.isFavorite()) {
+                return -1;
+            } else if (o2.isFavorite()) {
+                return 1;
             }
-        });
+            return 0;
+        }
+    };
 
-        File[] returnArray = new File[files.size()];
-        return files.toArray(returnArray);
+    private static Comparator<FileSortKey<OCFile>> getOCFilesByDateComparator() {
+        final int multiplier = mSortAscending ? 1 : -1;
+        return new Comparator<FileSortKey<OCFile>>() {
+            public int compare(FileSortKey<OCFile> o1, FileSortKey<OCFile> o2) {
+                return multiplier * compareLongs(o1.getModificationTimestamp(), o2.getModificationTimestamp());
+            }
+        };
     }
 
-    /**
-     * Sorts list by Size
-     */
-    public static Vector<OCFile> sortOCFilesBySize(Vector<OCFile> files){
+    private static Comparator<FileSortKey<OCFile>> getOCFilesBySizeComparator() {
         final int multiplier = mSortAscending ? 1 : -1;
-
-        Collections.sort(files, new Comparator<OCFile>() {
-            @SuppressFBWarnings(value = "Bx")
-            public int compare(OCFile o1, OCFile o2) {
+        return new Comparator<FileSortKey<OCFile>>() {
+            public int compare(FileSortKey<OCFile> o1, FileSortKey<OCFile> o2) {
                 if (o1.isFolder() && o2.isFolder()) {
-                    Long obj1 = o1.getFileLength();
-                    return multiplier * obj1.compareTo(o2.getFileLength());
+                    return multiplier * compareLongs(o1.getLength(), o2.getLength());
                 } else if (o1.isFolder()) {
                     return -1;
+                } else if (o2.isFolder()) {
+                    return 1;
+                }
+                return multiplier * compareLongs(o1.getLength(), o2.getLength());
+            }
+        };
+    }
 
+    private static Comparator<FileSortKey<OCFile>> getOCFilesByNameComparator() {
+        final int multiplier = mSortAscending ? 1 : -1;
+        return new Comparator<FileSortKey<OCFile>>() {
+            public int compare(FileSortKey<OCFile> o1, FileSortKey<OCFile> o2) {
+                if (o1.isFolder() && o2.isFolder()) {
+                    return multiplier * o1.compareNatural(o2);
+                } else if (o1.isFolder()) {
+                    return -1;
                 } else if (o2.isFolder()) {
                     return 1;
-                } else {
-                    Long obj1 = o1.getFileLength();
-                    return multiplier * obj1.compareTo(o2.getFileLength());
                 }
+                return multiplier * o1.compareNatural(o2);
             }
-        });
+        };
+    }
 
-        return files;
+    /**
+     * Same as Long.compare, not available in the API level supported
+     */
+    private static int compareLongs(long l1, long l2) {
+        return (l1 < l2) ? -1 : ((l1 == l2) ? 0 : 1);
     }
 
     /**
-     * Sorts list by Size
+     * Sorts list by Date
+     * @param files
      */
-    public static File[] sortLocalFilesBySize(File[] filesArray) {
-        final int multiplier = mSortAscending ? 1 : -1;
+    public static Vector<OCFile> sortOCFilesByDate(Vector<OCFile> files){
+        return sortOCFiles(files, getOCFilesByDateComparator());
+    }
 
-        List<File> files = new ArrayList<>(Arrays.asList(filesArray));
+    /**
+     * Sorts list by Date
+     * @param filesArray
+     */
+    public static File[] sortLocalFilesByDate(File[] filesArray){
+        final int multiplier = mSortAscending ? 1 : -1;
 
-        Collections.sort(files, new Comparator<File>() {
-            @SuppressFBWarnings(value = "Bx")
-            public int compare(File o1, File o2) {
-                if (o1.isDirectory() && o2.isDirectory()) {
-                    // Long obj1 = getFolderSize(o1);
-                    // return multiplier * obj1.compareTo(getFolderSize(o2));
-                    return o1.getPath().toLowerCase().compareTo(o2.getPath().toLowerCase());
-                } else if (o1.isDirectory()) {
-                    return -1;
-                } else if (o2.isDirectory()) {
-                    return 1;
-                } else {
-                    Long obj1 = o1.length();
-                    return multiplier * obj1.compareTo(o2.length());
-                }
+        return sortLocalFiles(filesArray, new Comparator<FileSortKey<File>>() {
+            public int compare(FileSortKey<File> o1, FileSortKey<File> o2) {
+                return multiplier * compareLongs(o1.getModificationTimestamp(), o2.getModificationTimestamp());
             }
         });
+    }
 
-        File[] returnArray = new File[files.size()];
-        return files.toArray(returnArray);
+    /**
+     * Sorts list by Size
+     */
+    public static Vector<OCFile> sortOCFilesBySize(Vector<OCFile> files){
+        return sortOCFiles(files, getOCFilesBySizeComparator());
     }
 
     /**
-     * Sorts list by Name
-     * @param files     files to sort
+     * Sorts list by Size
      */
-    @SuppressFBWarnings(value = "Bx")
-    public static Vector<OCFile> sortOCFilesByName(Vector<OCFile> files){
+    public static File[] sortLocalFilesBySize(File[] filesArray) {
         final int multiplier = mSortAscending ? 1 : -1;
 
-        Collections.sort(files, new Comparator<OCFile>() {
-            public int compare(OCFile o1, OCFile o2) {
+        return sortLocalFiles(filesArray, new Comparator<FileSortKey<File>>() {
+            public int compare(FileSortKey<File> o1, FileSortKey<File> o2) {
                 if (o1.isFolder() && o2.isFolder()) {
-                    return multiplier * new AlphanumComparator().compare(o1, o2);
+                    return o1.comparePath(o2);
                 } else if (o1.isFolder()) {
                     return -1;
                 } else if (o2.isFolder()) {
                     return 1;
                 }
-                return multiplier * new AlphanumComparator().compare(o1, o2);
+                return multiplier * compareLongs(o1.getLength(), o2.getLength());
             }
         });
-        
-        return files;
+    }
+
+    /**
+     * Sorts list by Name
+     * @param files     files to sort
+     */
+    public static Vector<OCFile> sortOCFilesByName(Vector<OCFile> files){
+        return sortOCFiles(files, getOCFilesByNameComparator());
     }
 
     /**
@@ -392,24 +433,18 @@ public class FileStorageUtils {
     public static File[] sortLocalFilesByName(File[] filesArray) {
         final int multiplier = mSortAscending ? 1 : -1;
 
-        List<File> files = new ArrayList<File>(Arrays.asList(filesArray));
-
-        Collections.sort(files, new Comparator<File>() {
-            public int compare(File o1, File o2) {
-                if (o1.isDirectory() && o2.isDirectory()) {
-                    return multiplier * o1.getPath().toLowerCase().compareTo(o2.getPath().toLowerCase());
-                } else if (o1.isDirectory()) {
+        return sortLocalFiles(filesArray, new Comparator<FileSortKey<File>>() {
+            public int compare(FileSortKey<File> o1, FileSortKey<File> o2) {
+                if (o1.isFolder() && o2.isFolder()) {
+                    return multiplier * o1.comparePath(o2);
+                } else if (o1.isFolder()) {
                     return -1;
-                } else if (o2.isDirectory()) {
+                } else if (o2.isFolder()) {
                     return 1;
                 }
-                return multiplier * new AlphanumComparator().compare(o1.getPath().toLowerCase(),
-                                                              o2.getPath().toLowerCase());
+                return multiplier * o1.compareNatural(o2);
             }
         });
-
-        File[] returnArray = new File[files.size()];
-        return files.toArray(returnArray);
     }
 
     /**
@@ -417,20 +452,7 @@ public class FileStorageUtils {
      * @param files     files to sort
      */
     public static Vector<OCFile> sortOCFilesByFavourite(Vector<OCFile> files){
-        Collections.sort(files, new Comparator<OCFile>() {
-            public int compare(OCFile o1, OCFile o2) {
-                if (o1.isFavorite() && o2.isFavorite()) {
-                    return 0;
-                } else if (o1.isFavorite()) {
-                    return -1;
-                } else if (o2.isFavorite()) {
-                    return 1;
-                }
-                return 0;
-            }
-        });
-
-        return files;
+        return sortOCFiles(files, FAVOURITE_COMPARATOR);
     }
 
     /**
@@ -498,19 +520,33 @@ public class FileStorageUtils {
         }
     }
 
+    /**
+     * Copies the contents of a file with {@link FileChannel#transferTo}, letting the system move the bytes between
+     * both files without copying them through the Java heap.
+     *
+     * @param src       File to copy.
+     * @param target    Copy to create or overwrite.
+     * @return          'true' if the complete file was copied.
+     */
     public static boolean copyFile(File src, File target) {
         boolean ret = true;
 
-        InputStream in = null;
-        OutputStream out = null;
+        FileInputStream in = null;
+        FileOutputStream out = null;
 
         try {
             in = new FileInputStream(src);
             out = new FileOutputStream(target);
-            byte[] buf = new byte[1024];
-            int len;
-            while ((len = in.read(buf)) > 0) {
-                out.write(buf, 0, len);
+            FileChannel inChannel = in.getChannel();
+            FileChannel outChannel = out.getChannel();
+            long size = inChannel.size();
+            long position = 0;
+            while (position < size) {
+                long transferred = inChannel.transferTo(position, size - position, outChannel);
+                if (transferred <= 0) {
+                    throw new IOException("Source file truncated while copying: " + src.getAbsolutePath());
+                }
+                position += transferred;
             }
         } catch (IOException ex) {
             ret = false;
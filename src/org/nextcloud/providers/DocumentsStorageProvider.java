@@ -36,18 +36,36 @@ import com.owncloud.android.authentication.AccountUtils;
 import com.owncloud.android.datamodel.FileDataStorageManager;
 import com.owncloud.android.datamodel.OCFile;
 import com.owncloud.android.files.services.FileDownloader;
+import com.owncloud.android.lib.common.utils.Log_OC;
+import com.owncloud.android.operations.DownloadFileOperation;
+import com.owncloud.android.utils.MimeTypeUtil;
 import org.nextcloud.providers.cursors.FileCursor;
 import org.nextcloud.providers.cursors.RootCursor;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 @TargetApi(Build.VERSION_CODES.KITKAT)
 public class DocumentsStorageProvider extends DocumentsProvider {
 
+    private static final String TAG = DocumentsStorageProvider.class.getSimpleName();
+
+    private static final String READ_ONLY_MODE = "r";
+    private static final long CANCELLATION_CHECK_INTERVAL_MS = 1000;
+    private static final long STREAM_POLL_INTERVAL_MS = 100;
+    private static final int STREAM_BUFFER_SIZE = 8192;
+
+    /** Search results beyond this are not returned; the user should refine the search */
+    private static final int MAX_SEARCH_RESULTS = 500;
+
     private FileDataStorageManager mCurrentStorageManager = null;
     private static Map<Long, FileDataStorageManager> mRootIdToStorageManager;
 
@@ -101,22 +119,39 @@ public class DocumentsStorageProvider extends DocumentsProvider {
         final long docId = Long.parseLong(documentId);
         updateCurrentStorageManagerIfNeeded(docId);
 
-        OCFile file = mCurrentStorageManager.getFileById(docId);
+        final FileDataStorageManager storageManager = mCurrentStorageManager;
+        OCFile file = storageManager.getFileById(docId);
+        if (file == null) {
+            throw new FileNotFoundException("Document " + documentId + " not found");
+        }
 
         if (!file.isDown()) {
+            // registered before requesting the download, so the end can not be missed
+            CountDownLatch completion = FileDownloader.getCompletionLatch(storageManager.getAccount(), file);
+
+            File partialFile = new File(new DownloadFileOperation(storageManager.getAccount(), file).getPartialPath());
+            // an existing partial file could be discarded by the download, after being partially streamed
+            boolean stream = READ_ONLY_MODE.equals(mode) && isStreamable(file) && !partialFile.exists();
 
             Intent i = new Intent(getContext(), FileDownloader.class);
-            i.putExtra(FileDownloader.EXTRA_ACCOUNT, mCurrentStorageManager.getAccount());
+            i.putExtra(FileDownloader.EXTRA_ACCOUNT, storageManager.getAccount());
             i.putExtra(FileDownloader.EXTRA_FILE, file);
-            getContext().startService(i);
+            i.putExtra(FileDownloader.EXTRA_PRIORITY, true);
+            if (getContext().startService(i) == null) {
+                throw new FileNotFoundException("Could not request download of document " + documentId);
+            }
 
-            do {
-                if (!waitOrGetCancelled(cancellationSignal)) {
-                    return null;
-                }
-                file = mCurrentStorageManager.getFileById(docId);
+            if (stream) {
+                return openStreamingDocument(storageManager, docId, partialFile, completion);
+            }
 
-            } while (!file.isDown());
+            if (!waitOrGetCancelled(completion, cancellationSignal)) {
+                return null;
+            }
+            file = storageManager.getFileById(docId);
+            if (file == null || !file.isDown()) {
+                throw new FileNotFoundException("Download of document " + documentId + " failed");
+            }
         }
 
         return ParcelFileDescriptor.open(
@@ -150,10 +185,9 @@ public class DocumentsStorageProvider extends DocumentsProvider {
     public Cursor querySearchDocuments(String rootId, String query, String[] projection) throws FileNotFoundException {
         updateCurrentStorageManagerIfNeeded(rootId);
 
-        OCFile root = mCurrentStorageManager.getFileByPath("/");
         FileCursor result = new FileCursor(projection);
 
-        for (OCFile f : findFiles(root, query)) {
+        for (OCFile f : mCurrentStorageManager.searchFiles(query, 0, MAX_SEARCH_RESULTS)) {
             result.addFile(f);
         }
 
@@ -191,29 +225,148 @@ public class DocumentsStorageProvider extends DocumentsProvider {
 
     }
 
-    private boolean waitOrGetCancelled(CancellationSignal cancellationSignal) {
+    /**
+     * Waits for the end of a download.
+     *
+     * @param completion            Signal released by {@link FileDownloader} when the download finishes.
+     * @param cancellationSignal    Signal of the caller to stop waiting, checked periodically.
+     * @return                      'false' if the wait was cancelled.
+     */
+    private boolean waitOrGetCancelled(CountDownLatch completion, CancellationSignal cancellationSignal) {
         try {
-            Thread.sleep(1000);
+            while (!completion.await(CANCELLATION_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+                if (cancellationSignal != null && cancellationSignal.isCanceled()) {
+                    return false;
+                }
+            }
         } catch (InterruptedException e) {
             return false;
         }
 
-        if (cancellationSignal != null && cancellationSignal.isCanceled()) {
-            return false;
+        return cancellationSignal == null || !cancellationSignal.isCanceled();
+    }
+
+    /**
+     * Only types usually read from start to end, since the returned pipe can not be seeked.
+     */
+    private boolean isStreamable(OCFile file) {
+        return MimeTypeUtil.isImage(file) || MimeTypeUtil.isText(file);
+    }
+
+    /**
+     * Opens a document while it is being downloaded: returns the read side of a pipe, fed with the content of the
+     * partial file of the download as it grows, so the caller can start reading before the download finishes.
+     *
+     * If the download fails, the pipe is closed with an error.
+     *
+     * @param storageManager    Storage manager of the account of the document.
+     * @param docId             Id of the document.
+     * @param partialFile       File written by the download.
+     * @param completion        Signal released by {@link FileDownloader} when the download finishes.
+     * @return                  Read side of the pipe.
+     */
+    private ParcelFileDescriptor openStreamingDocument(final FileDataStorageManager storageManager,
+                                                       final long docId,
+                                                       final File partialFile,
+                                                       final CountDownLatch completion)
+            throws FileNotFoundException {
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createReliablePipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException("Could not create pipe for document " + docId + ": " + e.getMessage());
         }
 
-        return true;
+        new Thread("DocumentsStorageProvider-stream-" + docId) {
+            @Override
+            public void run() {
+                ParcelFileDescriptor output = pipe[1];
+                String error = null;
+                try {
+                    error = streamDownload(storageManager, docId, partialFile, completion,
+                            new FileOutputStream(output.getFileDescriptor()));
+                } catch (IOException e) {
+                    // also when the reader closes its side
+                    error = e.getMessage();
+                } catch (InterruptedException e) {
+                    error = "Interrupted";
+                } finally {
+                    closeOutput(output, error);
+                }
+            }
+        }.start();
+
+        return pipe[0];
     }
 
-    Vector<OCFile> findFiles(OCFile root, String query) {
-        Vector<OCFile> result = new Vector<OCFile>();
-        for (OCFile f : mCurrentStorageManager.getFolderContent(root, false)) {
-            if (f.isFolder()) {
-                result.addAll(findFiles(f, query));
-            } else if (f.getFileName().contains(query)) {
-                result.add(f);
+    /**
+     * Copies the content of a download to a stream, as it is written.
+     *
+     * @return  Error message, or null if the whole file was copied.
+     */
+    private String streamDownload(FileDataStorageManager storageManager, long docId, File partialFile,
+                                  CountDownLatch completion, OutputStream out)
+            throws IOException, InterruptedException {
+
+        // wait for the download to start writing
+        while (!partialFile.exists()) {
+            if (completion.await(STREAM_POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+                // finished before being seen, or failed
+                OCFile file = storageManager.getFileById(docId);
+                if (file == null || !file.isDown()) {
+                    return "Download failed";
+                }
+                copy(new FileInputStream(file.getStoragePath()), out);
+                return null;
             }
         }
-        return result;
+
+        // the opened partial file keeps being readable after being moved to its final location
+        FileInputStream in = new FileInputStream(partialFile);
+        try {
+            byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+            boolean finished = false;
+            while (true) {
+                int read = in.read(buffer);
+                if (read > 0) {
+                    out.write(buffer, 0, read);
+                } else if (finished) {
+                    break;
+                } else {
+                    // no new data yet; after the download finished, only what remains is read
+                    finished = completion.await(STREAM_POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                }
+            }
+        } finally {
+            in.close();
+        }
+
+        OCFile file = storageManager.getFileById(docId);
+        return (file != null && file.isDown()) ? null : "Download failed";
+    }
+
+    private void copy(FileInputStream in, OutputStream out) throws IOException {
+        try {
+            byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void closeOutput(ParcelFileDescriptor output, String error) {
+        try {
+            if (error == null) {
+                output.close();
+            } else {
+                Log_OC.w(TAG, "Streaming of document failed: " + error);
+                output.closeWithError(error);
+            }
+        } catch (IOException e) {
+            Log_OC.e(TAG, "Error closing streamed document", e);
+        }
     }
 }
@@ -69,6 +69,7 @@ public class TouchImageViewCustom extends ImageViewCustom {
 
     private float minScale;
     private float maxScale;
+    private float doubleTapScale;
     private float superMinScale;
     private float superMaxScale;
     private float[] m;
@@ -128,6 +129,7 @@ public class TouchImageViewCustom extends ImageViewCustom {
         }
         minScale = 1;
         maxScale = 3;
+        doubleTapScale = 3;
         superMinScale = SUPER_MIN_MULTIPLIER * minScale;
         superMaxScale = SUPER_MAX_MULTIPLIER * maxScale;
         setImageMatrix(matrix);
@@ -309,6 +311,22 @@ public class TouchImageViewCustom extends ImageViewCustom {
         maxScale = max;
         superMaxScale = SUPER_MAX_MULTIPLIER * maxScale;
     }
+
+    /**
+     * Get the zoom multiplier reached with a double tap.
+     * @return double tap zoom multiplier.
+     */
+    public float getDoubleTapZoom() {
+    	return doubleTapScale;
+    }
+
+    /**
+     * Set the zoom multiplier reached with a double tap, limited by the max zoom. Default value: 3.
+     * @param zoom double tap zoom multiplier.
+     */
+    public void setDoubleTapZoom(float zoom) {
+        doubleTapScale = zoom;
+    }
     
     /**
      * Get the min zoom multiplier.
@@ -790,7 +808,7 @@ public class TouchImageViewCustom extends ImageViewCustom {
             	consumed = doubleTapListener.onDoubleTap(e);
             }
         	if (state == State.NONE) {
-	        	float targetZoom = (normalizedScale == minScale) ? maxScale : minScale;
+	        	float targetZoom = (normalizedScale == minScale) ? Math.min(doubleTapScale, maxScale) : minScale;
 	        	DoubleTapZoom doubleTap = new DoubleTapZoom(targetZoom, e.getX(), e.getY(), false);
 	        	compatPostOnAnimation(doubleTap);
 	        	consumed = true;
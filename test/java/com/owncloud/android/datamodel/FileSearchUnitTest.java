@@ -0,0 +1,88 @@
+/**
+ *   Nextcloud Android client application
+ *
+ *   Copyright (C) 2016 Nextcloud
+ *
+ *   This program is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU AFFERO GENERAL PUBLIC LICENSE
+ *   License as published by the Free Software Foundation; either
+ *   version 3 of the License, or any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU AFFERO GENERAL PUBLIC LICENSE for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public
+ *   License along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.owncloud.android.datamodel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit test of the matching of file names done by {@link FileDataStorageManager#searchFiles(String, int, int)}.
+ */
+public class FileSearchUnitTest {
+
+    private Locale mDefaultLocale;
+
+    @Before
+    public void saveLocale() {
+        mDefaultLocale = Locale.getDefault();
+    }
+
+    @After
+    public void restoreLocale() {
+        Locale.setDefault(mDefaultLocale);
+    }
+
+    @Test
+    public void matchesNonAsciiNamesIgnoringCase() {
+        assertTrue(matches("Übersicht.pdf", "übersicht"));
+        assertTrue(matches("ÉTÉ 2016.jpg", "été"));
+        assertTrue(matches("été 2016.jpg", "ÉTÉ"));
+        assertTrue(matches("ΣΗΜΕΙΩΣΕΙΣ.txt", "σημ"));
+        assertFalse(matches("Uebersicht.pdf", "übersicht"));
+    }
+
+    @Test
+    public void matchesAsciiNamesInTurkishLocale() {
+        Locale.setDefault(new Locale("tr", "TR"));
+        assertTrue(matches("INBOX.txt", "inbox"));
+        assertTrue(matches("inbox.txt", "INBOX"));
+        assertTrue(matches("Invoice.pdf", "VOICE"));
+    }
+
+    @Test
+    public void treatsWildcardsLiterally() {
+        assertTrue(matches("100%_done.txt", "%_d"));
+        assertFalse(matches("100 done.txt", "%_d"));
+    }
+
+    @Test
+    public void namePatternKeepsOnlyCharactersFoldedByDatabase() {
+        assertEquals("%report 2016.pdf%", pattern("REPORT 2016.pdf"));
+        assertEquals("%bers%cht%", pattern("Übersicht"));
+        assertEquals("%t%", pattern("été"));
+        assertEquals("%", pattern("İ"));
+        assertEquals("%100\\%\\_\\\\%", pattern("100%_\\"));
+    }
+
+    private static String pattern(String query) {
+        return FileDataStorageManager.namePattern(FileDataStorageManager.foldCase(query));
+    }
+
+    private static boolean matches(String fileName, String query) {
+        return FileDataStorageManager.nameMatches(fileName, FileDataStorageManager.foldCase(query));
+    }
+}
@@ -0,0 +1,240 @@
+/**
+ *   Nextcloud Android client application
+ *
+ *   Copyright (C) 2016 Nextcloud
+ *
+ *   This program is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU AFFERO GENERAL PUBLIC LICENSE
+ *   License as published by the Free Software Foundation; either
+ *   version 3 of the License, or any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU AFFERO GENERAL PUBLIC LICENSE for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public
+ *   License along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.owncloud.android.operations;
+
+import com.owncloud.android.lib.common.OwnCloudClient;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Local unit test of the resumption of downloads by {@link ResumableDownloadRemoteFileOperation}, with the
+ * responses of the server simulated.
+ */
+public class ResumableDownloadRemoteFileOperationUnitTest {
+
+    private static final String REMOTE_PATH = "/folder/file.txt";
+    private static final String ETAG = "5810f7e5a1a5c";
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    private OwnCloudClient mClient;
+    private File mTargetFile;
+    private File mPartialFile;
+    private File mEtagFile;
+
+    /** Responses given to the requests, in order, and the requests done */
+    private final List<GetMethod> mResponses = new ArrayList<>();
+    private final List<GetMethod> mRequests = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        mClient = mock(OwnCloudClient.class);
+        mTargetFile = new File(mTemp.getRoot(), "tmp" + REMOTE_PATH);
+        mPartialFile = new File(ResumableDownloadRemoteFileOperation.getPartialPath(mTargetFile.getPath()));
+        mEtagFile = new File(mPartialFile.getPath() + ".etag");
+    }
+
+    @Test
+    public void resumesPartialFileWithRangeAndIfRange() throws Exception {
+        writePartialFile("01234", ETAG);
+        respond(HttpStatus.SC_PARTIAL_CONTENT, ETAG, "56789");
+
+        ResumableDownloadRemoteFileOperation operation = newOperation();
+        RemoteOperationResult result = operation.run(mClient);
+
+        assertTrue(result.isSuccess());
+        verify(mRequests.get(0)).addRequestHeader("Range", "bytes=5-");
+        verify(mRequests.get(0)).addRequestHeader("If-Range", "\"" + ETAG + "\"");
+        assertEquals("0123456789", read(mTargetFile));
+        assertEquals(5, operation.getResumedBytes());
+        assertFalse(mPartialFile.exists());
+        assertFalse(mEtagFile.exists());
+    }
+
+    @Test
+    public void replacesPartialFileWhenRemoteFileChanged() throws Exception {
+        writePartialFile("01234", ETAG);
+        // If-Range does not match, the server sends the complete new file
+        respond(HttpStatus.SC_OK, "new" + ETAG, "abcdefghij");
+
+        ResumableDownloadRemoteFileOperation operation = newOperation();
+        RemoteOperationResult result = operation.run(mClient);
+
+        assertTrue(result.isSuccess());
+        assertEquals("abcdefghij", read(mTargetFile));
+        assertEquals(0, operation.getResumedBytes());
+    }
+
+    @Test
+    public void restartsWhenServerIgnoresIfRange() throws Exception {
+        writePartialFile("01234", ETAG);
+        respond(HttpStatus.SC_PARTIAL_CONTENT, "new" + ETAG, "fghij");
+        respond(HttpStatus.SC_OK, "new" + ETAG, "abcdefghij");
+
+        ResumableDownloadRemoteFileOperation operation = newOperation();
+        RemoteOperationResult result = operation.run(mClient);
+
+        assertTrue(result.isSuccess());
+        assertEquals(2, mRequests.size());
+        verify(mRequests.get(1), never()).addRequestHeader(eq("Range"), anyString());
+        assertEquals("abcdefghij", read(mTargetFile));
+        assertEquals(0, operation.getResumedBytes());
+    }
+
+    @Test
+    public void downloadsCompleteFileWithoutEtag() throws Exception {
+        writePartialFile("01234", null);
+        respond(HttpStatus.SC_OK, ETAG, "0123456789");
+
+        RemoteOperationResult result = newOperation().run(mClient);
+
+        assertTrue(result.isSuccess());
+        verify(mRequests.get(0), never()).addRequestHeader(eq("Range"), anyString());
+        assertEquals("0123456789", read(mTargetFile));
+    }
+
+    @Test
+    public void keepsPartialFileOnNetworkError() throws Exception {
+        writePartialFile("01234", ETAG);
+        GetMethod get = respond(HttpStatus.SC_PARTIAL_CONTENT, ETAG, "56789");
+        when(mClient.executeMethod(get)).thenThrow(new IOException("connection lost"));
+
+        RemoteOperationResult result = newOperation().run(mClient);
+
+        assertFalse(result.isSuccess());
+        assertEquals("01234", read(mPartialFile));
+        assertTrue(mEtagFile.exists());
+    }
+
+    @Test
+    public void discardsPartialFileWhenRemoteFileNotFound() throws Exception {
+        writePartialFile("01234", ETAG);
+        respond(HttpStatus.SC_NOT_FOUND, null, "");
+
+        RemoteOperationResult result = newOperation().run(mClient);
+
+        assertFalse(result.isSuccess());
+        assertFalse(mPartialFile.exists());
+        assertFalse(mEtagFile.exists());
+    }
+
+    @Test
+    public void discardsPartialFileWhenCancelled() throws Exception {
+        writePartialFile("01234", ETAG);
+
+        ResumableDownloadRemoteFileOperation operation = newOperation();
+        operation.cancel();
+        RemoteOperationResult result = operation.run(mClient);
+
+        assertFalse(result.isSuccess());
+        assertFalse(mPartialFile.exists());
+        assertFalse(mEtagFile.exists());
+    }
+
+    private ResumableDownloadRemoteFileOperation newOperation() {
+        return new ResumableDownloadRemoteFileOperation(REMOTE_PATH, mTargetFile.getPath()) {
+            @Override
+            GetMethod createGetMethod(String uri) {
+                GetMethod get = mResponses.remove(0);
+                mRequests.add(get);
+                return get;
+            }
+        };
+    }
+
+    /**
+     * Queues the response to the next request.
+     */
+    private GetMethod respond(int status, String etag, String body) throws IOException {
+        GetMethod get = mock(GetMethod.class);
+        final Header etagHeader = (etag != null) ? new Header("ETag", "\"" + etag + "\"") : null;
+        when(get.getResponseHeader(anyString())).thenAnswer(new Answer<Header>() {
+            @Override
+            public Header answer(InvocationOnMock invocation) {
+                return ((String) invocation.getArguments()[0]).toLowerCase().endsWith("etag") ? etagHeader : null;
+            }
+        });
+        when(get.getResponseHeaders()).thenReturn(new Header[0]);
+        when(get.getResponseBodyAsStream()).thenReturn(new ByteArrayInputStream(body.getBytes("UTF-8")));
+        when(get.getResponseContentLength()).thenReturn((long) body.length());
+        when(mClient.executeMethod(get)).thenReturn(status);
+        mResponses.add(get);
+        return get;
+    }
+
+    private void writePartialFile(String content, String etag) throws IOException {
+        assertTrue(mPartialFile.getParentFile().mkdirs());
+        write(mPartialFile, content);
+        if (etag != null) {
+            write(mEtagFile, etag);
+        }
+    }
+
+    private static void write(File file, String content) throws IOException {
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static String read(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] content = new byte[(int) file.length()];
+            int read = 0;
+            while (read < content.length) {
+                read += in.read(content, read, content.length - read);
+            }
+            return new String(content, "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/**
+ *   Nextcloud Android client application
+ *
+ *   Copyright (C) 2016 Nextcloud
+ *
+ *   This program is free software; you can redistribute it and/or
+ *   modify it under the terms of the GNU AFFERO GENERAL PUBLIC LICENSE
+ *   License as published by the Free Software Foundation; either
+ *   version 3 of the License, or any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU AFFERO GENERAL PUBLIC LICENSE for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public
+ *   License along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.owncloud.android.ui.activity;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit test of the {@link MigrationJournal} used to resume an interrupted {@link StorageMigration}.
+ */
+public class MigrationJournalUnitTest {
+
+    private static final String DATA_FOLDER = "nextcloud";
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    private File mJournalFile;
+    private String mSource;
+    private String mTarget;
+
+    @Before
+    public void setUp() throws IOException {
+        mJournalFile = new File(mTemp.getRoot(), "journal");
+        mSource = mTemp.newFolder("source").getAbsolutePath();
+        mTarget = mTemp.newFolder("target").getAbsolutePath();
+    }
+
+    @Test
+    public void isPendingOnlyBetweenTheSameStorages() {
+        assertFalse(MigrationJournal.isPending(mJournalFile, mSource, mTarget));
+
+        MigrationJournal.open(mJournalFile, mSource, mTarget).close();
+
+        assertTrue(MigrationJournal.isPending(mJournalFile, mSource, mTarget));
+        assertFalse(MigrationJournal.isPending(mJournalFile, mTarget, mSource));
+
+        MigrationJournal.delete(mJournalFile);
+
+        assertFalse(MigrationJournal.isPending(mJournalFile, mSource, mTarget));
+    }
+
+    @Test
+    public void copiesAgainOnlyTheFilesChangedAfterTheirCopy() throws IOException {
+        File unchanged = createFile(mSource, "unchanged.txt", "content");
+        File resized = createFile(mSource, "resized.txt", "content");
+        File touched = createFile(mSource, "touched.txt", "content");
+        File notCopied = createFile(mSource, "new.txt", "content");
+
+        MigrationJournal journal = MigrationJournal.open(mJournalFile, mSource, mTarget);
+        journal.fileCopied("unchanged.txt", unchanged.length(), unchanged.lastModified());
+        journal.fileCopied("resized.txt", resized.length(), resized.lastModified());
+        journal.fileCopied("touched.txt", touched.length(), touched.lastModified());
+        journal.close();
+
+        long modified = resized.lastModified();
+        writeFile(resized, "longer content");
+        assertTrue(resized.setLastModified(modified));
+        assertTrue(touched.setLastModified(touched.lastModified() - 60000));
+
+        // the process died; the migration is resumed with the journal in storage
+        journal = MigrationJournal.open(mJournalFile, mSource, mTarget);
+        assertFalse(journal.needsCopy("unchanged.txt", unchanged));
+        assertTrue(journal.needsCopy("resized.txt", resized));
+        assertTrue(journal.needsCopy("touched.txt", touched));
+        assertTrue(journal.needsCopy("new.txt", notCopied));
+        journal.close();
+    }
+
+    @Test
+    public void newMigrationStartsEmptyJournal() throws IOException {
+        File file = createFile(mSource, "file.txt", "content");
+
+        MigrationJournal journal = MigrationJournal.open(mJournalFile, mSource, mTarget);
+        journal.fileCopied("file.txt", file.length(), file.lastModified());
+        journal.close();
+
+        String otherTarget = mTemp.newFolder("other").getAbsolutePath();
+        journal = MigrationJournal.open(mJournalFile, mSource, otherTarget);
+        assertTrue(journal.needsCopy("file.txt", file));
+        journal.close();
+
+        assertFalse(MigrationJournal.isPending(mJournalFile, mSource, mTarget));
+    }
+
+    @Test
+    public void deleteVanishedRemovesOnlyFilesNotInSource() throws IOException {
+        File src = new File(mSource, DATA_FOLDER);
+        File dst = new File(mTarget, DATA_FOLDER);
+        createFile(src.getPath(), "kept.txt", "content");
+        createFile(dst.getPath(), "kept.txt", "content");
+        File removed = createFile(dst.getPath(), "removed.txt", "content");
+        File removedFolder = new File(dst, "removed");
+        createFile(removedFolder.getPath(), "child.txt", "content");
+
+        MigrationJournal.deleteVanished(src, dst);
+
+        assertTrue(new File(dst, "kept.txt").exists());
+        assertFalse(removed.exists());
+        assertFalse(removedFolder.exists());
+    }
+
+    @Test
+    public void discardDeletesTargetWhileIndexPointsToSource() throws IOException {
+        File copy = createFile(mTarget + File.separator + DATA_FOLDER, "file.txt", "content");
+
+        MigrationJournal journal = MigrationJournal.open(mJournalFile, mSource, mTarget);
+        journal.fileCopied("file.txt", copy.length(), copy.lastModified());
+        journal.indexUpdated();
+        journal.indexReverted();
+        journal.close();
+
+        MigrationJournal.discard(mJournalFile, mSource, DATA_FOLDER);
+
+        assertFalse(copy.exists());
+        assertFalse(mJournalFile.exists());
+    }
+
+    @Test
+    public void discardKeepsTargetTheIndexMayPointTo() throws IOException {
+        File copy = createFile(mTarget + File.separator + DATA_FOLDER, "file.txt", "content");
+
+        MigrationJournal journal = MigrationJournal.open(mJournalFile, mSource, mTarget);
+        journal.fileCopied("file.txt", copy.length(), copy.lastModified());
+        journal.indexUpdated();
+        journal.close();
+
+        MigrationJournal.discard(mJournalFile, mSource, DATA_FOLDER);
+
+        assertTrue(copy.exists());
+        assertFalse(mJournalFile.exists());
+    }
+
+    @Test
+    public void renamedDataFolderIsNeverCopiedNorDiscarded() throws IOException {
+        File moved = createFile(mTarget + File.separator + DATA_FOLDER, "file.txt", "content");
+
+        MigrationJournal journal = MigrationJournal.open(mJournalFile, mSource, mTarget);
+        assertFalse(journal.isDataFolderRenamed());
+        journal.dataFolderRenamed();
+        journal.close();
+
+        journal = MigrationJournal.open(mJournalFile, mSource, mTarget);
+        assertTrue(journal.isDataFolderRenamed());
+        journal.close();
+
+        MigrationJournal.discard(mJournalFile, mSource, DATA_FOLDER);
+
+        assertTrue(moved.exists());
+    }
+
+    @Test
+    public void renamingDataFolderIsKeptOnlyIfSourceIsEmpty() throws IOException {
+        File moved = createFile(mTarget + File.separator + DATA_FOLDER, "file.txt", "content");
+
+        // the process died right after moving the data folder
+        MigrationJournal journal = MigrationJournal.open(mJournalFile, mSource, mTarget);
+        journal.dataFolderRenaming();
+        journal.close();
+
+        journal = MigrationJournal.open(mJournalFile, mSource, mTarget);
+        assertTrue(journal.isDataFolderRenaming());
+        assertFalse(journal.isDataFolderRenamed());
+        journal.close();
+
+        assertTrue(MigrationJournal.isEmptyFolder(new File(mSource, DATA_FOLDER)));
+        MigrationJournal.discard(mJournalFile, mSource, DATA_FOLDER);
+        assertTrue(moved.exists());
+
+        // the move failed, the target only has copies
+        File copy = createFile(mTarget + File.separator + DATA_FOLDER, "copy.txt", "content");
+        createFile(mSource + File.separator + DATA_FOLDER, "copy.txt", "content");
+        journal = MigrationJournal.open(mJournalFile, mSource, mTarget);
+        journal.dataFolderRenaming();
+        journal.close();
+
+        MigrationJournal.discard(mJournalFile, mSource, DATA_FOLDER);
+        assertFalse(copy.exists());
+    }
+
+    @Test
+    public void discardNeverDeletesCurrentStorage() throws IOException {
+        File file = createFile(mTarget + File.separator + DATA_FOLDER, "file.txt", "content");
+
+        MigrationJournal.open(mJournalFile, mSource, mTarget).close();
+
+        MigrationJournal.discard(mJournalFile, mTarget, DATA_FOLDER);
+
+        assertTrue(file.exists());
+    }
+
+    private static File createFile(String folder, String name, String content) throws IOException {
+        File dir = new File(folder);
+        assertTrue(dir.isDirectory() || dir.mkdirs());
+        File file = new File(dir, name);
+        writeFile(file, content);
+        return file;
+    }
+
+    private static void writeFile(File file, String content) throws IOException {
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+}